@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The serialized JSON for a widget, or for the list of widget configs, as it is sent to
+ * the client. The plain and gzipped bytes are kept so neither has to be produced per
+ * request, and the hash of the content can be used as an ETag or to version URLs.
+ */
+public class WidgetContent {
+
+  private final byte[] content;
+  private final byte[] gzippedContent;
+  private final String hash;
+
+  /**
+   * @param content
+   *          the UTF-8 encoded JSON.
+   */
+  public WidgetContent(byte[] content) {
+    this.content = content;
+    this.gzippedContent = gzip(content);
+    this.hash = sha1(content);
+  }
+
+  /**
+   * @return the UTF-8 encoded JSON, not to be modified.
+   */
+  public byte[] getContent() {
+    return content;
+  }
+
+  /**
+   * @return the gzipped JSON, not to be modified.
+   */
+  public byte[] getGzippedContent() {
+    return gzippedContent;
+  }
+
+  /**
+   * @return a hex SHA-1 of the content.
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * @param gzipped
+   *          whether the gzipped content is being sent.
+   * @return a strong ETag for the representation.
+   */
+  public String getETag(boolean gzipped) {
+    return gzipped ? "\"" + hash + "-gz\"" : "\"" + hash + "\"";
+  }
+
+  private static byte[] gzip(byte[] content) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 4 + 64);
+      GZIPOutputStream out = new GZIPOutputStream(baos);
+      out.write(content);
+      out.close();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      // Not possible on a byte array.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String sha1(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
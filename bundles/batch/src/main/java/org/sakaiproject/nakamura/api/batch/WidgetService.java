@@ -55,6 +55,31 @@ public interface WidgetService {
    */
   public ValueMap getWidget(String path, Locale locale, ResourceResolver resolver);
 
+  /**
+   * The same as {@link #getWidget(String, Locale, ResourceResolver)}, serialized and ready
+   * to send. The content is rendered once per widget and locale, and again only when the
+   * widget changes.
+   *
+   * @param path
+   *          The path to the widget.
+   * @param locale
+   *          The locale that should be outputted. If this is null, the system's default
+   *          locale will be used.
+   * @param resolver
+   *          A ResourceResolver that can be used to retrieve all the widget files.
+   * @return The rendered widget.
+   */
+  public WidgetContent getWidgetContent(String path, Locale locale,
+      ResourceResolver resolver);
+
+  /**
+   * @param resolver
+   *          A {@link ResourceResolver} that can be used to retrieve widgets.
+   * @return The output of {@link #getWidgetConfigs(ResourceResolver)} as one JSON object,
+   *         keyed by widget name, serialized and ready to send.
+   */
+  public WidgetContent getWidgetConfigsContent(ResourceResolver resolver);
+
   /**
    * When a resource changes (either on disk or in JCR) this method should be called. This
    * will ensure that the cache is kept up to date.
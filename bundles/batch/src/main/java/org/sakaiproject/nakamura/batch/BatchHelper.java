@@ -23,11 +23,16 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceNotFoundException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.RequestInfo;
 import org.sakaiproject.nakamura.util.RequestWrapper;
 import org.sakaiproject.nakamura.util.ResponseWrapper;
@@ -36,15 +41,26 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
 public class BatchHelper {
@@ -55,6 +71,41 @@ public class BatchHelper {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  /**
+   * Set to true to have results written to the client as each one completes, with JSON
+   * bodies embedded as JSON rather than as escaped strings.
+   */
+  protected static final String STREAM_PARAMETER = "stream";
+
+  private ExecutorService executor;
+  private long timeout;
+  private SlingRepository slingRepository;
+  private ResourceResolverFactory resourceResolverFactory;
+  private SlingRequestProcessor requestProcessor;
+
+  /**
+   * Run the safe requests of a batch in parallel on the executor, each with its own
+   * session and resource resolver. Requests that modify content still run one at a time
+   * on the batch request, and the safe requests either side of them wait for them.
+   *
+   * @param executor
+   *          the executor to run safe requests on, null to run every request in turn.
+   * @param timeout
+   *          time in ms the parallel requests of a batch have to complete, after which
+   *          the ones that haven't are reported as failed.
+   * @param slingRepository
+   * @param resourceResolverFactory
+   * @param requestProcessor
+   */
+  protected void setParallel(ExecutorService executor, long timeout,
+      SlingRepository slingRepository, ResourceResolverFactory resourceResolverFactory,
+      SlingRequestProcessor requestProcessor) {
+    this.timeout = timeout;
+    this.slingRepository = slingRepository;
+    this.resourceResolverFactory = resourceResolverFactory;
+    this.requestProcessor = requestProcessor;
+    this.executor = executor;
+  }
 
   /**
    * Takes the original request and starts the batching.
@@ -78,6 +129,18 @@ public class BatchHelper {
           batchedRequests.add(r);
         }
       }
+      // TODO: This is a nasty hack to work around white listing of /system/batch POST
+      // requests. This should be removed when the UI has refactored itself not to use batch
+      // POSTs in place of GETs (see http spec for reasons by thats bad)
+      // Checked before anything is written, a streamed response can't be taken back.
+      if (User.ANON_USER.equals(request.getRemoteUser())) {
+        for (RequestInfo r : batchedRequests) {
+          if (!"GET".equals(r.getMethod())) {
+            response.reset();
+            throw new ServletException("Anon Users may only perform GET operations");
+          }
+        }
+      }
     } catch (MalformedURLException e) {
       response.sendError(HttpServletResponse.SC_BAD_REQUEST,e.getMessage());
       return;
@@ -89,42 +152,173 @@ public class BatchHelper {
     }
 
     // Loop over the requests and handle each one.
+    boolean stream = "true".equals(request.getParameter(STREAM_PARAMETER));
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
-      write.object();
-      write.key("results");
-      write.array();
-
-      for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+      if (stream) {
+        // Each result goes straight out, only one body is held at a time.
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        writeResults(request, response, batchedRequests, write, true);
+      } else {
+        StringWriter sw = new StringWriter();
+        ExtendedJSONWriter write = new ExtendedJSONWriter(sw);
+        writeResults(request, response, batchedRequests, write, false);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(sw.getBuffer().toString());
       }
-      write.endArray();
-      write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
     } catch (JSONException e) {
       LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
+    }
+  }
+
+  private void writeResults(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests,
+      ExtendedJSONWriter write, boolean stream) throws JSONException, ServletException {
+    write.object();
+    write.key("results");
+    write.array();
+
+    if (executor == null) {
+      for (RequestInfo r : batchedRequests) {
+        doRequest(request, response, r, write, stream);
+      }
+    } else {
+      doParallelRequests(request, response, batchedRequests, write, stream);
+    }
+    write.endArray();
+    write.endObject();
+  }
+
+  /**
+   * Runs each unbroken run of safe requests in parallel, and the requests between them in
+   * turn. The results are written in the order they were asked for.
+   */
+  private void doParallelRequests(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests,
+      ExtendedJSONWriter write, boolean stream) throws JSONException, ServletException {
+    long deadline = System.currentTimeMillis() + timeout;
+    List<RequestInfo> safeRequests = new ArrayList<RequestInfo>();
+    for (RequestInfo r : batchedRequests) {
+      if (r.isSafe()) {
+        safeRequests.add(r);
+      } else {
+        doSafeRequests(request, response, safeRequests, write, deadline, stream);
+        safeRequests.clear();
+        doRequest(request, response, r, write, stream);
+      }
+    }
+    doSafeRequests(request, response, safeRequests, write, deadline, stream);
+  }
+
+  private void doSafeRequests(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> safeRequests,
+      ExtendedJSONWriter write, long deadline, boolean stream) throws JSONException,
+      ServletException {
+    if (safeRequests.size() < 2) {
+      // Not worth a session of its own.
+      for (RequestInfo r : safeRequests) {
+        doRequest(request, response, r, write, stream);
+      }
+      return;
+    }
+    List<Future<SubResponseWrapper>> futures = new ArrayList<Future<SubResponseWrapper>>();
+    for (RequestInfo r : safeRequests) {
+      futures.add(executor.submit(new SubRequest(request, response, r)));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      Future<SubResponseWrapper> future = futures.get(i);
+      RequestInfo requestInfo = safeRequests.get(i);
+      try {
+        long wait = Math.max(0L, deadline - System.currentTimeMillis());
+        SubResponseWrapper responseWrapper = future.get(wait, TimeUnit.MILLISECONDS);
+        if (!response.isCommitted()) {
+          for (Cookie cookie : responseWrapper.getCookies()) {
+            response.addCookie(cookie);
+          }
+        }
+        writeResponse(write, responseWrapper, requestInfo, stream);
+      } catch (TimeoutException e) {
+        // Not interrupted, an interrupt can leave the session half way through a read. The
+        // request finishes in the background and its session is logged out then.
+        future.cancel(false);
+        LOGGER.warn("Batch request to {} did not complete within {} ms",
+            requestInfo.getUrl(), timeout);
+        writeFailedRequest(write, requestInfo);
+      } catch (ExecutionException e) {
+        LOGGER.warn("Batch request to " + requestInfo.getUrl() + " failed", e.getCause());
+        writeFailedRequest(write, requestInfo);
+      } catch (InterruptedException e) {
+        future.cancel(false);
+        Thread.currentThread().interrupt();
+        writeFailedRequest(write, requestInfo);
+      }
+    }
+  }
+
+  /**
+   * A safe request, processed by Sling as a request of its own with a session and
+   * resource resolver for the batch user. Sessions and resolvers are not thread safe, so
+   * the ones on the batch request can't be used, nor can the batch response.
+   */
+  private class SubRequest implements Callable<SubResponseWrapper> {
+
+    private final SlingHttpServletRequest request;
+    private final SlingHttpServletResponse response;
+    private final RequestInfo requestInfo;
+
+    SubRequest(SlingHttpServletRequest request, SlingHttpServletResponse response,
+        RequestInfo requestInfo) {
+      this.request = request;
+      this.response = response;
+      this.requestInfo = requestInfo;
+    }
+
+    public SubResponseWrapper call() throws Exception {
+      String userId = request.getRemoteUser();
+      if (userId == null) {
+        userId = User.ANON_USER;
+      }
+      Session session = impersonate(userId);
+      ResourceResolver resourceResolver = null;
+      try {
+        Map<String, Object> authInfo = new HashMap<String, Object>();
+        authInfo.put(JcrResourceConstants.AUTHENTICATION_INFO_SESSION, session);
+        resourceResolver = resourceResolverFactory.getResourceResolver(authInfo);
+        SubRequestWrapper requestWrapper = new SubRequestWrapper(request, requestInfo,
+            resourceResolver);
+        SubResponseWrapper responseWrapper = new SubResponseWrapper(response);
+        LOGGER.debug("Processing request path='{}' in parallel", requestInfo.getUrl());
+        requestProcessor.processRequest(requestWrapper, responseWrapper, resourceResolver);
+        return responseWrapper;
+      } finally {
+        if (resourceResolver != null) {
+          resourceResolver.close();
+        }
+        session.logout();
+      }
+    }
+
+    private Session impersonate(String userId) throws RepositoryException {
+      Session adminSession = slingRepository.loginAdministrative(null);
+      try {
+        return adminSession.impersonate(new SimpleCredentials(userId, new char[0]));
+      } finally {
+        adminSession.logout();
+      }
     }
   }
 
   private void doRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, RequestInfo requestInfo,
-      JSONWriter write) throws JSONException, ServletException {
+      ExtendedJSONWriter write, boolean stream) throws JSONException, ServletException {
     // Look for a matching resource in the usual way. If one is found,
     // the resource will also be embedded with any necessary RequestPathInfo.
-    // TODO: This is a nasty hack to work around white listing of /system/batch POST
-    // requests. This should be removed when the UI has refactored itself not to use batch
-    // POSTs in place of GETs (see http spec for reasons by thats bad)
-    if (User.ANON_USER.equals(request.getRemoteUser())) {
-      if (!"GET".equals(requestInfo.getMethod())) {
-        response.reset();
-        throw new ServletException("Anon Users may only perform GET operations");
-      }
-    }
     String requestPath = requestInfo.getUrl();
     ResourceResolver resourceResolver = request.getResourceResolver();
     Resource resource = resourceResolver.resolve(request, requestPath);
@@ -150,7 +344,7 @@ public class BatchHelper {
         responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
       // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      writeResponse(write, responseWrapper, requestInfo, stream);
     } catch (ServletException e) {
       writeFailedRequest(write, requestInfo);
     } catch (IOException e) {
@@ -159,33 +353,52 @@ public class BatchHelper {
 
   }
 
-  private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestInfo requestData) throws JSONException {
+  private void writeResponse(ExtendedJSONWriter write, ResponseWrapper responseWrapper,
+      RequestInfo requestData, boolean stream) throws JSONException {
+    // Read before anything is written, so a failure can only be written as a whole entry.
+    String body;
     try {
-      String body = responseWrapper.getDataAsString();
-      write.object();
-      write.key("url");
-      write.value(requestData.getUrl());
-      write.key("success");
-      write.value(true);
-      write.key("body");
-      write.value(body);
-      write.key("status");
-      write.value(responseWrapper.getResponseStatus());
-      write.key("headers");
-      write.object();
-      Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
-      Enumeration<String> keys = headers.keys();
-      while (keys.hasMoreElements()) {
-        String k = keys.nextElement();
-        write.key(k);
-        write.value(headers.get(k));
-      }
-      write.endObject();
-      write.endObject();
-    } catch (UnsupportedEncodingException e) {
+      body = responseWrapper.getDataAsString();
+    } catch (IOException e) {
       writeFailedRequest(write, requestData);
+      return;
+    }
+    write.object();
+    write.key("url");
+    write.value(requestData.getUrl());
+    write.key("success");
+    write.value(true);
+    write.key("body");
+    if (stream && isJSON(responseWrapper)) {
+      // Bodies that turn out not to be JSON are quoted.
+      write.valueJSON(body);
+    } else {
+      write.value(body);
+    }
+    write.key("status");
+    write.value(responseWrapper.getResponseStatus());
+    write.key("headers");
+    write.object();
+    Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
+    Enumeration<String> keys = headers.keys();
+    while (keys.hasMoreElements()) {
+      String k = keys.nextElement();
+      write.key(k);
+      write.value(headers.get(k));
     }
+    write.endObject();
+    write.endObject();
+  }
+
+  /**
+   * Only successful responses that say they are JSON are embedded as they are, error pages
+   * are often HTML whatever the content type.
+   */
+  private boolean isJSON(ResponseWrapper responseWrapper) {
+    String contentType = responseWrapper.getContentType();
+    int status = responseWrapper.getResponseStatus();
+    return contentType != null && contentType.startsWith("application/json")
+        && status >= 200 && status < 300;
   }
 
   private void writeFailedRequest(JSONWriter write, RequestInfo requestData)
@@ -17,10 +17,18 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -29,6 +37,12 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -45,11 +59,18 @@ import javax.servlet.http.HttpServletResponse;
     methods = @ServiceMethod(
         name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
+        parameters = {
+          @ServiceParameter(
             name = "requests",
             description = "A JSON string representing a request. <br />Example:" +
                 "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/_user/a/ad/admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+          ),
+          @ServiceParameter(
+            name = "stream",
+            description = "Optional, set to true to have each result written as soon as it is ready. " +
+                "Successful application/json bodies that are valid JSON are then embedded as JSON rather than as an escaped string."
+          )
+        },
         response = {@ServiceResponse(
             code = 200,
             description = "All requests are successful. <br />" +
@@ -73,9 +94,57 @@ public class BatchServlet extends SlingAllMethodsServlet {
   private static final long serialVersionUID = 419598445499567027L;
 
   protected static final String REQUESTS_PARAMETER = "requests";
-  
+
+  @Property(intValue = 0, description = "The number of threads safe batch requests are run on in parallel, 0 to run every request in turn.")
+  static final String PARALLEL_THREADS = "sakai.batch.parallel.threads";
+
+  @Property(longValue = 30000L, description = "Time in ms the parallel requests of a batch have to complete.")
+  static final String PARALLEL_TIMEOUT = "sakai.batch.parallel.timeout";
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  @Reference
+  protected transient ResourceResolverFactory resourceResolverFactory;
+
+  @Reference
+  protected transient SlingRequestProcessor requestProcessor;
+
   private BatchHelper helper = new BatchHelper();
 
+  private transient ThreadPoolExecutor executor;
+
+  @SuppressWarnings("rawtypes")
+  @Activate
+  protected void activate(Map properties) {
+    int threads = OsgiUtil.toInteger(properties.get(PARALLEL_THREADS), 0);
+    long timeout = OsgiUtil.toLong(properties.get(PARALLEL_TIMEOUT), 30000L);
+    if (threads > 0) {
+      final AtomicInteger count = new AtomicInteger();
+      executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(threads * 8), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "batch-request-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+      // When the pool is busy the batch thread runs the request itself, with its own
+      // session as on any other thread.
+      helper.setParallel(executor, timeout, slingRepository, resourceResolverFactory,
+          requestProcessor);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    helper.setParallel(null, 0L, null, null, null);
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
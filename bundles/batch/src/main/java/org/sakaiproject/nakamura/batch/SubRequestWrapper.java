@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.RequestWrapper;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Wraps the batch request for a sub-request that runs on its own thread. Sling keeps its
+ * per-request state in request attributes, so each sub-request gets its own attributes
+ * rather than sharing those of the batch request with the other sub-requests.
+ */
+public class SubRequestWrapper extends RequestWrapper {
+
+  private final Hashtable<String, Object> attributes = new Hashtable<String, Object>();
+  private final ResourceResolver resourceResolver;
+
+  public SubRequestWrapper(SlingHttpServletRequest request, RequestInfo requestInfo,
+      ResourceResolver resourceResolver) {
+    super(request, requestInfo);
+    this.resourceResolver = resourceResolver;
+  }
+
+  @Override
+  public ResourceResolver getResourceResolver() {
+    return resourceResolver;
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Enumeration getAttributeNames() {
+    return attributes.keys();
+  }
+
+  @Override
+  public void setAttribute(String name, Object o) {
+    if (o == null) {
+      attributes.remove(name);
+    } else {
+      attributes.put(name, o);
+    }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    attributes.remove(name);
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.sakaiproject.nakamura.util.ResponseWrapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Wraps the batch response for a sub-request that runs on its own thread. The batch
+ * response is not thread safe, so nothing the sub-request does reaches it. Cookies are
+ * held until the batch thread applies them with {@link #getCookies()}.
+ */
+public class SubResponseWrapper extends ResponseWrapper {
+
+  private final List<Cookie> cookies = new ArrayList<Cookie>();
+
+  public SubResponseWrapper(SlingHttpServletResponse wrappedResponse) {
+    super(wrappedResponse);
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) {
+    cookies.add(cookie);
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+    return getResponseHeaders().get(name) != null;
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    setHeader(name, Integer.toString(value));
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
+    setHeader("Location", location);
+  }
+
+  @Override
+  public void setLocale(Locale loc) {
+  }
+
+  @Override
+  public void setBufferSize(int size) {
+  }
+
+  /**
+   * @return the cookies the sub-request added, for the batch thread to set on the batch
+   *         response.
+   */
+  public List<Cookie> getCookies() {
+    return cookies;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.sakaiproject.nakamura.api.batch.WidgetContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends pre-rendered {@link WidgetContent} with an ETag, gzipped when the client accepts
+ * it.
+ */
+final class WidgetContentWriter {
+
+  /**
+   * The request parameter the UI can append with the hash of the content, the response
+   * is then cacheable for a year as any change gives a different URL.
+   */
+  static final String VERSION_PARAM = "v";
+
+  private static final String MAX_AGE = "public, max-age=31536000";
+
+  private WidgetContentWriter() {
+  }
+
+  /**
+   * Writes the content as the JSON body of the response, or a 304 if the client already
+   * has it.
+   */
+  static void send(SlingHttpServletRequest request, SlingHttpServletResponse response,
+      WidgetContent content) throws IOException {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    boolean gzip = acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0;
+    String etag = content.getETag(gzip);
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("ETag", etag);
+    response.setHeader("Vary", "Accept-Encoding");
+    if (content.getHash().equals(request.getParameter(VERSION_PARAM))) {
+      response.setHeader("Cache-Control", MAX_AGE);
+    }
+
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null
+        && (ifNoneMatch.indexOf(etag) >= 0 || "*".equals(ifNoneMatch.trim()))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    byte[] body = gzip ? content.getGzippedContent() : content.getContent();
+    if (gzip) {
+      response.setHeader("Content-Encoding", "gzip");
+    }
+    response.setContentLength(body.length);
+    OutputStream out = response.getOutputStream();
+    out.write(body);
+    out.flush();
+  }
+}
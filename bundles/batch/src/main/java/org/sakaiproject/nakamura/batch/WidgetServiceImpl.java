@@ -19,13 +19,16 @@ package org.sakaiproject.nakamura.batch;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.osgi.OsgiUtil;
@@ -33,6 +36,7 @@ import org.apache.tika.detect.Detector;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.mime.MediaType;
 import org.apache.tika.parser.AutoDetectParser;
+import org.sakaiproject.nakamura.api.batch.WidgetContent;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
@@ -46,12 +50,17 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service()
 @Component(immediate = true, metatype = true)
@@ -68,9 +77,15 @@ public class WidgetServiceImpl implements WidgetService {
   static final String WIDGET_FOLDERS = "sakai.batch.widgets.widget_folders";
   private List<String> widgetFolders;
 
+  @Property(boolValue = true, description = "Render the widget list and every widget in the default locale when the service starts, so the first page load doesn't have to.")
+  static final String WIDGET_WARM_UP = "sakai.batch.widgets.warm_up";
+
   @Reference
   protected transient CacheManagerService cacheManagerService;
 
+  @Reference
+  protected transient ResourceResolverFactory resourceResolverFactory;
+
   /**
    * The name for the cache that holds all the HTML, CSS, .. files for widgets
    */
@@ -83,12 +98,39 @@ public class WidgetServiceImpl implements WidgetService {
   static final String CACHE_NAME_WIDGET_CONFIGS = WidgetServiceImpl.class.getName()
       + "_configs";
 
+  /**
+   * The name for the cache that holds the rendered list of widget configs.
+   */
+  static final String CACHE_NAME_WIDGET_CONFIGS_CONTENT = WidgetServiceImpl.class
+      .getName() + "_configs_content";
+
+  private static final String CONFIGS = "configs";
+  private static final String CONFIGS_CONTENT = "content";
+
   private static final Logger LOGGER = LoggerFactory.getLogger(WidgetServiceImpl.class);
 
   private List<String> skipDirectories;
   private List<String> validMimetypes;
   private Detector detector;
 
+  /**
+   * Widgets whose config has changed since the configs were last read. Only these are
+   * read again, rather than every widget folder.
+   */
+  private final ConcurrentMap<String, Boolean> changedConfigs = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * Set when a change can't be pinned to one widget, such as a widget folder going.
+   */
+  private final AtomicBoolean rescanConfigs = new AtomicBoolean();
+
+  /**
+   * Moved on whenever a widget changes, a widget rendered across a change is not cached.
+   */
+  private final AtomicLong widgetGeneration = new AtomicLong();
+
+  private Thread warmUpThread;
+
   @SuppressWarnings("rawtypes")
   @Activate
   protected void activate(Map properties) {
@@ -96,6 +138,25 @@ public class WidgetServiceImpl implements WidgetService {
     detector = parser.getDetector();
 
     modified(properties);
+
+    if (OsgiUtil.toBoolean(properties.get(WIDGET_WARM_UP), true)
+        && resourceResolverFactory != null) {
+      warmUpThread = new Thread(new Runnable() {
+        public void run() {
+          warmUp();
+        }
+      }, "Widget warm up");
+      warmUpThread.setDaemon(true);
+      warmUpThread.start();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (warmUpThread != null) {
+      warmUpThread.interrupt();
+      warmUpThread = null;
+    }
   }
 
   @SuppressWarnings("rawtypes")
@@ -124,6 +185,26 @@ public class WidgetServiceImpl implements WidgetService {
    *      java.util.Locale, org.apache.sling.api.resource.ResourceResolver)
    */
   public ValueMap getWidget(String path, Locale locale, ResourceResolver resolver) {
+    try {
+      return getRenderedWidget(path, locale, resolver).getValueMap();
+    } catch (JSONException e) {
+      throw new RuntimeException("Could not parse this widget to JSON.");
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.batch.WidgetService#getWidgetContent(java.lang.String,
+   *      java.util.Locale, org.apache.sling.api.resource.ResourceResolver)
+   */
+  public WidgetContent getWidgetContent(String path, Locale locale,
+      ResourceResolver resolver) {
+    return getRenderedWidget(path, locale, resolver);
+  }
+
+  private RenderedWidget getRenderedWidget(String path, Locale locale,
+      ResourceResolver resolver) {
     if (path == null) {
       throw new IllegalArgumentException("The path cannot be null.");
     }
@@ -147,18 +228,19 @@ public class WidgetServiceImpl implements WidgetService {
 
     // Check if we have something in the cache.
     String widgetName = resource.getName();
-    Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
+    Cache<Map<String, RenderedWidget>> cache = cacheManagerService.getCache(
         CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE);
 
-    Map<String, ValueMap> widgetCache = cache.get(widgetName);
+    long generation = widgetGeneration.get();
+    Map<String, RenderedWidget> widgetCache = cache.get(widgetName);
     if (widgetCache == null) {
-      widgetCache = new HashMap<String, ValueMap>();
+      widgetCache = new ConcurrentHashMap<String, RenderedWidget>();
     } else {
-      ValueMap map = widgetCache.get(locale.toString());
-      if (map != null) {
+      RenderedWidget content = widgetCache.get(locale.toString());
+      if (content != null) {
         // The locale for this widget is in the cache.
         // We can just return it.
-        return map;
+        return content;
       }
     }
 
@@ -169,17 +251,21 @@ public class WidgetServiceImpl implements WidgetService {
       writer.object();
       outputWidget(resource, writer, locale);
       writer.endObject();
-      sw.flush();
-      String content = sw.toString();
-      ValueMap map = new JsonValueMap(content);
+      RenderedWidget content = new RenderedWidget(sw.toString().getBytes("UTF-8"));
 
-      // Put the map in the cache.
-      widgetCache.put(locale.toString(), map);
+      // Put the content in the cache, unless a widget changed while it was being read, in
+      // which case it may be stale.
+      widgetCache.put(locale.toString(), content);
       cache.put(widgetName, widgetCache);
+      if (generation != widgetGeneration.get()) {
+        cache.remove(widgetName);
+      }
 
-      return map;
+      return content;
     } catch (JSONException e) {
       throw new RuntimeException("Could not parse this widget to JSON.");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Could not parse this widget to JSON.");
     }
   }
 
@@ -192,23 +278,72 @@ public class WidgetServiceImpl implements WidgetService {
     // Check the cache to see if we have anything cached already.
     Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
         CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
-    Map<String, ValueMap> configs = cache.get("configs");
-    if (configs != null) {
-      // There is something in here, return it.
+    Map<String, ValueMap> configs = cache.get(CONFIGS);
+    boolean rescan = rescanConfigs.getAndSet(false);
+    if (configs != null && !rescan) {
+      // Read the configs that have changed again, and leave the rest.
+      if (!changedConfigs.isEmpty()) {
+        for (String widgetName : changedConfigs.keySet()) {
+          changedConfigs.remove(widgetName);
+          reloadWidgetConfig(widgetName, resolver, configs);
+        }
+        removeConfigsContent();
+      }
       return configs;
     }
 
     // We will store all the found widgets in this map.
     // The key will be the name of widget.
-    Map<String, ValueMap> validWidgets = new HashMap<String, ValueMap>();
+    changedConfigs.clear();
+    Map<String, ValueMap> validWidgets = new ConcurrentHashMap<String, ValueMap>();
     for (String folder : widgetFolders) {
       processWidgetFolder(folder, resolver, validWidgets);
     }
     // Stick the map in the cache so it can be retrieved later on.
-    cache.put("configs", validWidgets);
+    cache.put(CONFIGS, validWidgets);
+    removeConfigsContent();
     return validWidgets;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.batch.WidgetService#getWidgetConfigsContent(org.apache.sling.api.resource.ResourceResolver)
+   */
+  public WidgetContent getWidgetConfigsContent(ResourceResolver resolver) {
+    // Bring the configs up to date first, that drops the content if anything changed.
+    Map<String, ValueMap> configs = getWidgetConfigs(resolver);
+    Cache<WidgetContent> cache = cacheManagerService.getCache(
+        CACHE_NAME_WIDGET_CONFIGS_CONTENT, CacheScope.INSTANCE);
+    WidgetContent content = cache.get(CONFIGS_CONTENT);
+    if (content != null) {
+      return content;
+    }
+    try {
+      StringWriter sw = new StringWriter();
+      ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
+      writer.object();
+      for (Entry<String, ValueMap> entry : configs.entrySet()) {
+        writer.key(entry.getKey());
+        writer.valueMap(entry.getValue());
+      }
+      writer.endObject();
+      content = new WidgetContent(sw.toString().getBytes("UTF-8"));
+      cache.put(CONFIGS_CONTENT, content);
+      return content;
+    } catch (JSONException e) {
+      throw new RuntimeException("Could not write the widget configs as JSON.");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Could not write the widget configs as JSON.");
+    }
+  }
+
+  private void removeConfigsContent() {
+    Cache<WidgetContent> cache = cacheManagerService.getCache(
+        CACHE_NAME_WIDGET_CONFIGS_CONTENT, CacheScope.INSTANCE);
+    cache.remove(CONFIGS_CONTENT);
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -240,8 +375,9 @@ public class WidgetServiceImpl implements WidgetService {
       }
     }
     if (widget != null) {
+      widgetGeneration.incrementAndGet();
       // Get the cache for this widget.
-      Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
+      Cache<Map<String, RenderedWidget>> cache = cacheManagerService.getCache(
           CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE);
 
       if (cache != null) {
@@ -255,10 +391,52 @@ public class WidgetServiceImpl implements WidgetService {
       }
     }
 
-    // Invalidate the configs cache.
-    Cache<Map<String, ValueMap>> configCache = cacheManagerService.getCache(
-        CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
-    configCache.clear();
+    // Only the config of the widget that changed is read again, on the next request for
+    // the configs.
+    if (widget != null) {
+      changedConfigs.put(widget, Boolean.TRUE);
+    } else {
+      rescanConfigs.set(true);
+    }
+  }
+
+  /**
+   * Renders the widget list and every widget in the default locale.
+   */
+  protected void warmUp() {
+    ResourceResolver resolver = null;
+    try {
+      long start = System.currentTimeMillis();
+      resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+      Map<String, ValueMap> configs = getWidgetConfigs(resolver);
+      getWidgetConfigsContent(resolver);
+      int n = 0;
+      for (String folder : widgetFolders) {
+        for (String widgetName : configs.keySet()) {
+          if (Thread.currentThread().isInterrupted()) {
+            return;
+          }
+          Resource resource = resolver.getResource(folder + "/" + widgetName);
+          if (resource != null && !(resource instanceof NonExistingResource)) {
+            try {
+              getWidgetContent(resource.getPath(), null, resolver);
+              n++;
+            } catch (IllegalArgumentException e) {
+              LOGGER.debug("Not warming up {}, {}", resource.getPath(), e.getMessage());
+            }
+          }
+        }
+      }
+      LOGGER.info("Rendered {} widgets in {} ms", n, System.currentTimeMillis() - start);
+    } catch (LoginException e) {
+      LOGGER.warn("Unable to warm up the widget cache: {}", e.getMessage());
+    } catch (RuntimeException e) {
+      LOGGER.warn("Unable to warm up the widget cache: " + e.getMessage(), e);
+    } finally {
+      if (resolver != null) {
+        resolver.close();
+      }
+    }
   }
 
   // --- Implementation
@@ -490,22 +668,75 @@ public class WidgetServiceImpl implements WidgetService {
       while (widgets.hasNext()) {
         Resource widget = widgets.next();
         String widgetName = widget.getName();
-        // Get the config for this widget.
-        // If none is found or isn't valid JSON then it is ignored.
-        String configPath = widget.getPath() + "/config.json";
-        Resource config = resolver.getResource(configPath);
-        if (config != null && !(config instanceof NonExistingResource)) {
-          // Try to parse it to JSON.
-          try {
-            InputStream stream = config.adaptTo(InputStream.class);
-            JsonValueMap map = new JsonValueMap(stream);
-            validWidgets.put(widgetName, map);
-          } catch (Exception e) {
-            LOGGER.warn("Exception when trying to parse the 'config.json' for {}, Error Message {} ", widgetName, e.getMessage());
-          }
+        ValueMap config = readWidgetConfig(widget.getPath(), widgetName, resolver);
+        if (config != null) {
+          validWidgets.put(widgetName, config);
         }
       }
     }
   }
 
+  /**
+   * Reads the config of a single widget into the configs, or takes it out if the widget
+   * has gone.
+   */
+  protected void reloadWidgetConfig(String widgetName, ResourceResolver resolver,
+      Map<String, ValueMap> configs) {
+    for (String folder : widgetFolders) {
+      ValueMap config = readWidgetConfig(folder + "/" + widgetName, widgetName, resolver);
+      if (config != null) {
+        configs.put(widgetName, config);
+        return;
+      }
+    }
+    configs.remove(widgetName);
+  }
+
+  /**
+   * @return the parsed config.json of the widget, or null if there is none or it isn't
+   *         valid JSON.
+   */
+  private ValueMap readWidgetConfig(String widgetPath, String widgetName,
+      ResourceResolver resolver) {
+    // Get the config for this widget.
+    // If none is found or isn't valid JSON then it is ignored.
+    String configPath = widgetPath + "/config.json";
+    Resource config = resolver.getResource(configPath);
+    if (config != null && !(config instanceof NonExistingResource)) {
+      // Try to parse it to JSON.
+      try {
+        InputStream stream = config.adaptTo(InputStream.class);
+        return new JsonValueMap(stream);
+      } catch (Exception e) {
+        LOGGER.warn("Exception when trying to parse the 'config.json' for {}, Error Message {} ", widgetName, e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A rendered widget, which also keeps the parsed map for {@link #getWidget} once it has
+   * been asked for.
+   */
+  private static final class RenderedWidget extends WidgetContent {
+
+    private volatile ValueMap valueMap;
+
+    RenderedWidget(byte[] content) {
+      super(content);
+    }
+
+    ValueMap getValueMap() throws JSONException {
+      ValueMap map = valueMap;
+      if (map == null) {
+        try {
+          map = new JsonValueMap(new String(getContent(), "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+          throw new IllegalStateException(e);
+        }
+        valueMap = map;
+      }
+      return map;
+    }
+  }
 }
@@ -24,9 +24,8 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.batch.WidgetContent;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -36,7 +35,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.io.IOException;
@@ -45,14 +43,16 @@ import java.util.Locale;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@ServiceDocumentation(name = "WidgetizeServlet", shortDescription = "Fetch all the resources for a widget.", description = { "Fetch all the resources of a widget in one request." }, bindings = { @ServiceBinding(type = BindingType.TYPE, selectors = { @ServiceSelector(name = "widgetize") }, extensions = { @ServiceExtension(name = "json") }) }, methods = { @ServiceMethod(name = "GET", description = { "Fetches all the resources and specified language bundles for a widget in one request." }, parameters = { @ServiceParameter(name = "locale", description = "What locale should be used for the language bundle. This should be in the ISO3 format. ie: en_US or zh_CN.") }, response = {
+@ServiceDocumentation(name = "WidgetizeServlet", shortDescription = "Fetch all the resources for a widget.", description = { "Fetch all the resources of a widget in one request." }, bindings = { @ServiceBinding(type = BindingType.TYPE, selectors = { @ServiceSelector(name = "widgetize") }, extensions = { @ServiceExtension(name = "json") }) }, methods = { @ServiceMethod(name = "GET", description = { "Fetches all the resources and specified language bundles for a widget in one request." }, parameters = { @ServiceParameter(name = "locale", description = "What locale should be used for the language bundle. This should be in the ISO3 format. ie: en_US or zh_CN."), @ServiceParameter(name = "v", description = "Optional, the hash from the ETag of the widget. When it matches the current content the response may be cached for a year.") }, response = {
     @ServiceResponse(code = 200, description = {
         "A JSON response will be streamed back. This exists out of 2 parts",
         "<ul><li>Language bundles</li><li>Widget files</li></ul>",
         "Language bundles",
         "There will be a key in the json object called 'bundles'. This key will contain an object that will contain 2 child-objects.<br />The first one will always be 'default' which is the output for the default language bundle of a widget.<br />The other one will be the one specified in the request parameter (or the server default if none has been specified.)<br /> If the language bundle could not be found an empty object will be returned.",
         "Widget files",
-        "The servlet will walk down the tree and try to get the content of each resource. It will then try to get the mimetype of this file. If the mimetype is in the list of allowed mimetypes it will be outputted. This list can be modified in the felix admin console." }),
+        "The servlet will walk down the tree and try to get the content of each resource. It will then try to get the mimetype of this file. If the mimetype is in the list of allowed mimetypes it will be outputted. This list can be modified in the felix admin console.",
+        "The output is rendered once per widget and locale and sent with an ETag, gzipped if the client accepts it." }),
+    @ServiceResponse(code = 304, description = { "The widget has not changed since the ETag in the If-None-Match header." }),
     @ServiceResponse(code = 403, description = { "The resource where this action is performed on is not a valid widget." }) }
 
 ) })
@@ -86,26 +86,17 @@ public class WidgetizeServlet extends SlingSafeMethodsServlet {
       locale = new Locale(l[0], l[1]);
     }
 
-    // Get the values.
-    ValueMap map = null;
+    // Get the rendered widget, this is only built once per widget and locale.
+    WidgetContent content = null;
     try {
-      map = widgetService.getWidget(path, locale, resolver);
+      content = widgetService.getWidgetContent(path, locale, resolver);
     } catch (IllegalArgumentException e) {
       response.sendError(HttpServletResponse.SC_FORBIDDEN,
           "The current resource is not a widget.");
       return;
     }
 
-    // Make sure that we're outputting proper json.
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
-
     // Output all the widget info.
-    try {
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
-      writer.valueMap(map);
-    } catch (JSONException e) {
-      throw new ServletException("Could not output proper JSON.", e);
-    }
+    WidgetContentWriter.send(request, response, content);
   }
 }
@@ -26,9 +26,15 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -39,6 +45,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletOutputStream;
 
 /**
  *
@@ -57,6 +66,7 @@ public abstract class AbstractWidgetServletTest {
   protected String path;
   protected StringWriter stringWriter;
   protected PrintWriter printWriter;
+  protected ByteArrayOutputStream outputStream;
   protected WidgetServiceImpl widgetService;
 
   public void setUp() throws IOException {
@@ -85,11 +95,28 @@ public abstract class AbstractWidgetServletTest {
     printWriter = new PrintWriter(stringWriter);
     when(response.getWriter()).thenReturn(printWriter);
 
+    // And the output stream.
+    outputStream = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        outputStream.write(b);
+      }
+    });
+
     // Mock all the test resources as "Sling Resources".
     File file = new File(getClass().getResource("/widgets").getPath());
     mockResource("/widgets", file);
   }
 
+  /**
+   * @return everything written to the response, as a string.
+   */
+  protected String getResponseBody() throws IOException {
+    printWriter.flush();
+    return stringWriter.toString() + outputStream.toString("UTF-8");
+  }
+
   /**
    *
    */
@@ -151,4 +178,70 @@ public abstract class AbstractWidgetServletTest {
     return null;
   }
 
+  /**
+   * Backs every cache the widget service asks for with a map, so content rendered once is
+   * served from the cache.
+   */
+  protected void useMapCaches() {
+    final Map<String, Cache<Object>> caches = new HashMap<String, Cache<Object>>();
+    when(
+        cacheManagerService
+            .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenAnswer(
+        new Answer<Cache<Object>>() {
+          public Cache<Object> answer(InvocationOnMock invocation) throws Throwable {
+            String name = (String) invocation.getArguments()[0];
+            if (!caches.containsKey(name)) {
+              caches.put(name, new MapCache());
+            }
+            return caches.get(name);
+          }
+        });
+  }
+
+  protected static class MapCache implements Cache<Object> {
+    private Map<String, Object> map = new ConcurrentHashMap<String, Object>();
+
+    public Object put(String key, Object payload) {
+      return map.put(key, payload);
+    }
+
+    public boolean containsKey(String key) {
+      return map.containsKey(key);
+    }
+
+    public Object get(String key) {
+      return map.get(key);
+    }
+
+    public void clear() {
+      map.clear();
+    }
+
+    public void remove(String key) {
+      map.remove(key);
+    }
+
+    public void removeChildren(String key) {
+      for (String k : map.keySet()) {
+        if (k.startsWith(key)) {
+          map.remove(k);
+        }
+      }
+    }
+
+    public List<Object> listChildren(String key) {
+      List<Object> children = new ArrayList<Object>();
+      for (Map.Entry<String, Object> e : map.entrySet()) {
+        if (e.getKey().startsWith(key)) {
+          children.add(e.getValue());
+        }
+      }
+      return children;
+    }
+
+    public List<Object> list() {
+      return new ArrayList<Object>(map.values());
+    }
+  }
+
 }
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Credentials;
+import javax.jcr.Session;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Replays the batch the UI sends on a typical page load, sequentially and with the safe
+ * requests in parallel. Each sub-request sleeps for the time the real request took on a
+ * development server, so this measures how the batch is scheduled, not Sling.
+ *
+ * <pre>
+ * java -cp ... org.sakaiproject.nakamura.batch.BatchHelperBenchmark [threads] [runs]
+ * </pre>
+ */
+public class BatchHelperBenchmark {
+
+  /**
+   * url and latency in ms of the requests the dashboard makes on load.
+   */
+  private static final Object[][] PAGE_LOAD = new Object[][] {
+      { "/system/me", 25 }, { "/var/widgets.json", 15 },
+      { "/_user/a/al/alice/public/authprofile.json", 10 },
+      { "/_user/a/al/alice/private/privspace.infinity.json", 30 },
+      { "/_user/a/al/alice/public/pubspace.infinity.json", 30 },
+      { "/var/contacts/invited.json?page=0&items=100", 20 },
+      { "/var/contacts/accepted.json?page=0&items=100", 20 },
+      { "/var/contacts/pending.json?page=0&items=100", 20 },
+      { "/var/message/boxcategory.json?box=inbox&category=message", 35 },
+      { "/var/message/boxcategory.json?box=inbox&category=invitation", 35 },
+      { "/var/search/pool/me/manager.json?q=*", 40 },
+      { "/var/search/pool/me/viewer.json?q=*", 40 },
+      { "/var/search/groups.json?q=*", 30 }, { "/system/me/groups.json", 15 },
+      { "/devwidgets/mycontent/config.json", 5 }, { "/devwidgets/mygroups/config.json", 5 },
+      { "/devwidgets/recentmessages/config.json", 5 },
+      { "/devwidgets/mycontacts/config.json", 5 }, { "/var/activity/feed.json", 25 },
+      { "/system/batch/i18n/default.json", 10 } };
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    StringBuilder json = new StringBuilder("[");
+    for (Object[] r : PAGE_LOAD) {
+      if (json.length() > 1) {
+        json.append(",");
+      }
+      json.append("{\"url\":\"").append(r[0]).append("\",\"method\":\"GET\"}");
+    }
+    String batch = json.append("]").toString();
+
+    final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getRemoteUser()).thenReturn("alice");
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    Resource resource = mock(Resource.class);
+    when(resourceResolver.resolve(eq(request), anyString())).thenReturn(resource);
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletRequest req = (HttpServletRequest) invocation.getArguments()[0];
+        serve(req.getRequestURI(), (ServletResponse) invocation.getArguments()[1]);
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+
+    SlingRepository repository = mock(SlingRepository.class);
+    Session adminSession = mock(Session.class);
+    when(repository.loginAdministrative(null)).thenReturn(adminSession);
+    Session userSession = mock(Session.class);
+    when(adminSession.impersonate(any(Credentials.class))).thenReturn(userSession);
+    ResourceResolverFactory resolverFactory = mock(ResourceResolverFactory.class);
+    when(resolverFactory.getResourceResolver(anyMap())).thenReturn(resourceResolver);
+    // Not a mock, Mockito runs the answers for a mock one at a time.
+    SlingRequestProcessor requestProcessor = new SlingRequestProcessor() {
+      public void processRequest(HttpServletRequest req, HttpServletResponse resp,
+          ResourceResolver resourceResolver) throws IOException {
+        try {
+          serve(req.getRequestURI(), resp);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+
+    BatchHelper sequential = new BatchHelper();
+    BatchHelper parallel = new BatchHelper();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    parallel.setParallel(executor, 30000L, repository, resolverFactory, requestProcessor);
+
+    long serial = 0;
+    for (Object[] r : PAGE_LOAD) {
+      serial += (Integer) r[1];
+    }
+    System.out.println(PAGE_LOAD.length + " GETs, " + serial + " ms of request time, "
+        + threads + " threads");
+    run("sequential", sequential, request, batch, 2);
+    run("parallel", parallel, request, batch, 2);
+    run("sequential", sequential, request, batch, runs);
+    run("parallel", parallel, request, batch, runs);
+    executor.shutdownNow();
+  }
+
+  private static void run(String name, BatchHelper helper,
+      SlingHttpServletRequest request, String batch, int runs) throws Exception {
+    long total = 0;
+    for (int i = 0; i < runs; i++) {
+      SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+      when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+      long start = System.nanoTime();
+      helper.batchRequest(request, response, batch, false);
+      total += System.nanoTime() - start;
+    }
+    System.out.println(name + ": " + (total / runs / 1000000L) + " ms per batch over "
+        + runs + " runs");
+  }
+
+  private static void serve(String url, ServletResponse response) throws IOException,
+      InterruptedException {
+    for (Object[] r : PAGE_LOAD) {
+      if (r[0].equals(url)) {
+        Thread.sleep((Integer) r[1]);
+        break;
+      }
+    }
+    response.getWriter().write("{\"url\":\"" + url + "\"}");
+  }
+}
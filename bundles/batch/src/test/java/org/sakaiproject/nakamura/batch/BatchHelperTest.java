@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.batch.WidgetContent;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Credentials;
+import javax.jcr.Session;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class BatchHelperTest {
+
+  private BatchHelper helper;
+  private ExecutorService executor;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private SlingRequestProcessor requestProcessor;
+  private Session userSession;
+  private StringWriter output;
+
+  @Before
+  public void setUp() throws Exception {
+    helper = new BatchHelper();
+    executor = Executors.newFixedThreadPool(4);
+    request = mock(SlingHttpServletRequest.class);
+    response = mock(SlingHttpServletResponse.class);
+    output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+    when(request.getRemoteUser()).thenReturn("alice");
+
+    SlingRepository repository = mock(SlingRepository.class);
+    Session adminSession = mock(Session.class);
+    userSession = mock(Session.class);
+    when(repository.loginAdministrative(null)).thenReturn(adminSession);
+    when(adminSession.impersonate(any(Credentials.class))).thenReturn(userSession);
+    ResourceResolverFactory resolverFactory = mock(ResourceResolverFactory.class);
+    ResourceResolver userResolver = mock(ResourceResolver.class);
+    when(resolverFactory.getResourceResolver(anyMap())).thenReturn(userResolver);
+
+    // Later requests answer first, the results still have to come back in order. Not a
+    // mock, Mockito runs the answers for a mock one at a time.
+    requestProcessor = new SlingRequestProcessor() {
+      public void processRequest(HttpServletRequest req, HttpServletResponse resp,
+          ResourceResolver resourceResolver) throws IOException {
+        String url = req.getRequestURI();
+        int n = Integer.parseInt(url.substring(url.lastIndexOf('/') + 1));
+        try {
+          Thread.sleep(n == 99 ? 5000 : (10 - n) * 20);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (n == 7) {
+          resp.addCookie(new Cookie("seen", "7"));
+          resp.setIntHeader("X-Count", 7);
+          resp.sendRedirect("/r/8");
+          return;
+        }
+        resp.getWriter().write("body" + n);
+      }
+    };
+
+    helper.setParallel(executor, 1000, repository, resolverFactory, requestProcessor);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testParallelInOrder() throws Exception {
+    helper.batchRequest(request, response, gets(1, 2, 3, 4, 5), false);
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    Assert.assertEquals(5, results.length());
+    for (int i = 0; i < 5; i++) {
+      JSONObject result = results.getJSONObject(i);
+      Assert.assertEquals("/r/" + (i + 1), result.getString("url"));
+      Assert.assertTrue(result.getBoolean("success"));
+      Assert.assertEquals("body" + (i + 1), result.getString("body"));
+    }
+    verify(userSession, org.mockito.Mockito.times(5)).logout();
+  }
+
+  @Test
+  public void testParallelResponseIsNotShared() throws Exception {
+    helper.batchRequest(request, response, gets(1, 7), false);
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    JSONObject redirect = results.getJSONObject(1);
+    Assert.assertEquals(302, redirect.getInt("status"));
+    Assert.assertEquals("/r/8", redirect.getJSONObject("headers").getString("Location"));
+    Assert.assertEquals("7", redirect.getJSONObject("headers").getString("X-Count"));
+    verify(response, never()).sendRedirect(any(String.class));
+    verify(response, never()).setIntHeader(any(String.class), anyInt());
+    verify(response).addCookie(any(Cookie.class));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    helper.batchRequest(request, response, gets(1, 99, 3), false);
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    Assert.assertEquals(3, results.length());
+    Assert.assertTrue(results.getJSONObject(0).getBoolean("success"));
+    Assert.assertFalse(results.getJSONObject(1).getBoolean("success"));
+    Assert.assertTrue(results.getJSONObject(2).getBoolean("success"));
+  }
+
+  @Test
+  public void testWritesRunOnTheBatchRequest() throws Exception {
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve(request, "/r/post")).thenReturn(resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        ((ServletResponse) invocation.getArguments()[1]).getWriter().write("posted");
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+
+    String json = "[{\"url\":\"/r/1\",\"method\":\"GET\"},{\"url\":\"/r/2\",\"method\":\"GET\"},"
+        + "{\"url\":\"/r/post\",\"method\":\"POST\"},{\"url\":\"/r/3\",\"method\":\"GET\"},"
+        + "{\"url\":\"/r/4\",\"method\":\"GET\"}]";
+    helper.batchRequest(request, response, json, true);
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    Assert.assertEquals(5, results.length());
+    Assert.assertEquals("body1", results.getJSONObject(0).getString("body"));
+    Assert.assertEquals("body2", results.getJSONObject(1).getString("body"));
+    Assert.assertEquals("posted", results.getJSONObject(2).getString("body"));
+    Assert.assertEquals("body3", results.getJSONObject(3).getString("body"));
+    Assert.assertEquals("body4", results.getJSONObject(4).getString("body"));
+  }
+
+  @Test
+  public void testStreamed() throws Exception {
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    when(request.getParameter(BatchHelper.STREAM_PARAMETER)).thenReturn("true");
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve(any(HttpServletRequest.class), any(String.class)))
+        .thenReturn(resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletRequest req = (HttpServletRequest) invocation.getArguments()[0];
+        HttpServletResponse resp = (HttpServletResponse) invocation.getArguments()[1];
+        if (req.getRequestURI().endsWith(".json")) {
+          resp.setContentType("application/json");
+          resp.getWriter().write("{\"name\":\"alice\",\"groups\":[\"a\",\"b\"]}");
+        } else if (req.getRequestURI().endsWith(".broken")) {
+          resp.setContentType("application/json");
+          resp.getWriter().write("{\"name\":\"al");
+        } else if (req.getRequestURI().endsWith(".missing")) {
+          resp.setContentType("application/json");
+          resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+          resp.getWriter().write("<html>Not found</html>");
+        } else {
+          resp.setContentType("text/html");
+          resp.getWriter().write("<p class=\"x\">hi</p>\n");
+        }
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+
+    helper.setParallel(null, 0L, null, null, null);
+    String json = "[{\"url\":\"/r/me.json\",\"method\":\"GET\"},"
+        + "{\"url\":\"/r/page.html\",\"method\":\"GET\"},"
+        + "{\"url\":\"/r/page.missing\",\"method\":\"GET\"},"
+        + "{\"url\":\"/r/me.broken\",\"method\":\"GET\"}]";
+    helper.batchRequest(request, response, json, false);
+    verify(response).setContentType("application/json");
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    Assert.assertEquals(4, results.length());
+    JSONObject body = results.getJSONObject(0).getJSONObject("body");
+    Assert.assertEquals("alice", body.getString("name"));
+    Assert.assertEquals(2, body.getJSONArray("groups").length());
+    Assert.assertEquals("<p class=\"x\">hi</p>\n", results.getJSONObject(1).getString("body"));
+    Assert.assertEquals("<html>Not found</html>", results.getJSONObject(2).getString("body"));
+    Assert.assertEquals(404, results.getJSONObject(2).getInt("status"));
+    Assert.assertEquals("{\"name\":\"al", results.getJSONObject(3).getString("body"));
+    Assert.assertEquals(200, results.getJSONObject(3).getInt("status"));
+  }
+
+  @Test
+  public void testWidgetsAreNotGzippedInsideTheBatch() throws Exception {
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve(request, "/devwidgets/twitter.widgetize.json")).thenReturn(
+        resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        WidgetContentWriter.send((SlingHttpServletRequest) invocation.getArguments()[0],
+            (SlingHttpServletResponse) invocation.getArguments()[1], new WidgetContent(
+                "{\"name\":\"twitter\"}".getBytes("UTF-8")));
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+
+    helper.setParallel(null, 0L, null, null, null);
+    helper.batchRequest(request, response,
+        "[{\"url\":\"/devwidgets/twitter.widgetize.json\",\"method\":\"GET\"}]", false);
+    JSONObject result = new JSONObject(output.toString()).getJSONArray("results")
+        .getJSONObject(0);
+    Assert.assertEquals("{\"name\":\"twitter\"}", result.getString("body"));
+    Assert.assertFalse(result.getJSONObject("headers").has("Content-Encoding"));
+  }
+
+  private String gets(int... ids) {
+    StringBuilder sb = new StringBuilder("[");
+    for (int id : ids) {
+      if (sb.length() > 1) {
+        sb.append(",");
+      }
+      sb.append("{\"url\":\"/r/").append(id).append("\",\"method\":\"GET\"}");
+    }
+    return sb.append("]").toString();
+  }
+}
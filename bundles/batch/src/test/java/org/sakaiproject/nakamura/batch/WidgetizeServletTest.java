@@ -19,21 +19,33 @@ package org.sakaiproject.nakamura.batch;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.batch.WidgetContent;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
 import java.io.IOException;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Map;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -69,8 +81,7 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
     
     servlet.doGet(request, response);
 
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getResponseBody());
 
     // Assert the responses
     verify(response).setCharacterEncoding("UTF-8");
@@ -131,4 +142,83 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
 
   }
 
+  @Test
+  public void testGzipAndNotModified() throws Exception {
+    useMapCaches();
+    Resource twitterResource = resolver.getResource("/widgets/twitter");
+    when(request.getResource()).thenReturn(twitterResource);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+
+    servlet.doGet(request, response);
+
+    // The body is the gzipped JSON, tagged with the hash of the content.
+    verify(response).setHeader("Content-Encoding", "gzip");
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(Mockito.eq("ETag"), etag.capture());
+    byte[] gzipped = outputStream.toByteArray();
+    verify(response).setContentLength(gzipped.length);
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      plain.write(buffer, 0, n);
+    }
+    WidgetContent content = new WidgetContent(plain.toByteArray());
+    assertEquals("\"" + content.getHash() + "-gz\"", etag.getValue());
+    assertTrue(new JSONObject(plain.toString("UTF-8")).has("bundles"));
+
+    // A client that has this version gets a 304 and no body.
+    outputStream.reset();
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    servlet.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(0, outputStream.size());
+    verify(response, never()).setHeader("Cache-Control", "public, max-age=31536000");
+  }
+
+  @Test
+  public void testParsedWidgetIsKept() throws Exception {
+    useMapCaches();
+    ValueMap first = widgetService.getWidget("/widgets/twitter", null, resolver);
+    assertNotNull(first.get("bundles"));
+    assertSame(first, widgetService.getWidget("/widgets/twitter", null, resolver));
+
+    widgetService.updateWidget("/widgets/twitter/twitter.html");
+    assertNotSame(first, widgetService.getWidget("/widgets/twitter", null, resolver));
+  }
+
+  @Test
+  public void testWidgetChangedWhileRenderingIsNotCached() throws Exception {
+    MapCache files = new MapCache() {
+      private boolean changed;
+
+      @Override
+      public Object put(String key, Object payload) {
+        if (!changed) {
+          // The widget changes after it was read, but before it is cached.
+          changed = true;
+          widgetService.updateWidget("/widgets/twitter/twitter.html");
+        }
+        return super.put(key, payload);
+      }
+    };
+    when(cacheManagerService.getCache(WidgetServiceImpl.CACHE_NAME_WIDGET_FILES,
+        CacheScope.INSTANCE)).thenReturn(files);
+
+    widgetService.getWidgetContent("/widgets/twitter", null, resolver);
+    assertNull(files.get("twitter"));
+    widgetService.getWidgetContent("/widgets/twitter", null, resolver);
+    assertNotNull(files.get("twitter"));
+  }
+
+  @Test
+  public void testRescanBeforeFirstReadIsCleared() throws Exception {
+    useMapCaches();
+    // A change to the widget folder itself, before the configs have ever been read.
+    widgetService.updateWidget("/widgets");
+    Map<String, ValueMap> configs = widgetService.getWidgetConfigs(resolver);
+    assertSame(configs, widgetService.getWidgetConfigs(resolver));
+  }
+
 }
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -24,16 +25,21 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -66,8 +72,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
         cache);
 
     servlet.doGet(request, response);
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getResponseBody());
     assertNotNull(json.get("twitter"));
     assertNull(json.opt("badwidget"));
   }
@@ -88,8 +93,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
     when(cache.get("configs")).thenReturn(map);
 
     servlet.doGet(request, response);
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getResponseBody());
     assertNotNull(json.get("foo"));
     assertTrue(json.getJSONObject("foo").getBoolean("bar"));
   }
@@ -108,9 +112,37 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
     when(callbackParam.getString("UTF-8")).thenReturn("parseWidgets");
     when(request.getRequestParameter("callback")).thenReturn(callbackParam);
     servlet.doGet(request, response);
-    printWriter.flush();
-    String content = stringWriter.toString();
+    String content = getResponseBody();
     assertTrue(content.startsWith("parseWidgets("));
     assertTrue(content.endsWith(");"));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testOnlyChangedWidgetIsReloaded() throws Exception {
+    useMapCaches();
+
+    servlet.doGet(request, response);
+    JSONObject json = new JSONObject(getResponseBody());
+    assertNotNull(json.get("twitter"));
+    assertFalse(json.has("foo"));
+
+    // A widget that wasn't there on the first scan shows up.
+    Resource config = mock(Resource.class);
+    when(config.adaptTo(InputStream.class)).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) throws Throwable {
+        return new ByteArrayInputStream("{'bar' : true}".getBytes("UTF-8"));
+      }
+    });
+    when(resolver.getResource("/widgets/foo/config.json")).thenReturn(config);
+    widgetService.updateWidget("/widgets/foo/config.json");
+
+    // Only foo should be read again, the folder itself is not walked. As the children
+    // of /widgets can only be listed once in this test, a rescan would lose twitter.
+    outputStream.reset();
+    servlet.doGet(request, response);
+    json = new JSONObject(getResponseBody());
+    assertNotNull(json.get("twitter"));
+    assertTrue(json.getJSONObject("foo").getBoolean("bar"));
+    Mockito.verify(resolver.getResource("/widgets"), Mockito.times(1)).listChildren();
+  }
+}
@@ -75,6 +75,18 @@ public interface ClusterTrackingService {
    */
   String getClusterUniqueId();
 
+  /**
+   * @return generate an ID that will be unique in the cluster, as a number. The string
+   *         form of the same ID is what {@link #getClusterUniqueId()} would return.
+   */
+  long getClusterUniqueIdNum();
+
+  /**
+   * @return generate an ID that will be unique in the cluster, as a fixed width 8 byte,
+   *         big endian array.
+   */
+  byte[] getClusterUniqueIdBytes();
+
   /**
    * @param trackingCookie
    * @return the ClusterServer originating this tracking Cookie.
@@ -483,4 +483,22 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     return uniqueIdGenerator.nextId();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.cluster.ClusterTrackingService#getClusterUniqueIdNum()
+   */
+  public long getClusterUniqueIdNum() {
+    return uniqueIdGenerator.nextIdLong();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.cluster.ClusterTrackingService#getClusterUniqueIdBytes()
+   */
+  public byte[] getClusterUniqueIdBytes() {
+    return uniqueIdGenerator.nextIdBytes();
+  }
+
 }
@@ -4,48 +4,116 @@ import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.math.BigInteger;
 import java.util.GregorianCalendar;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UniqueIdGenerator {
 
-  private Object lockObject = new Object();
-  private long next = 0;
-  private long epoch;
-  private long last = 0;
-  private long micro = 0;
-  private int serverId;
-  private int rollover;
+  /**
+   * Number of ids that can be issued in one ms before borrowing from the next ms.
+   */
+  private static final long TICKS_PER_MS = 1000L;
+  /**
+   * Multiplier that leaves room for the server number in the low digits.
+   */
+  private static final long SERVER_SPACE = 10000L;
+  /**
+   * The last tick whose id still fits in a signed long.
+   */
+  static final long MAX_LONG_TICK = (Long.MAX_VALUE - (SERVER_SPACE - 1)) / SERVER_SPACE;
+  /**
+   * Width of the fixed byte form of an id.
+   */
+  public static final int ID_BYTES = 8;
+
+  /**
+   * The last tick issued, as ms since the epoch * 1000 + the sequence in that ms.
+   */
+  private final AtomicLong last = new AtomicLong();
+  private final AtomicInteger rollover = new AtomicInteger();
+  private final long epoch;
+  private final int serverId;
 
   public UniqueIdGenerator(int serverId) {
+    this(serverId, new GregorianCalendar(2010, 8, 6).getTimeInMillis());
+  }
+
+  UniqueIdGenerator(int serverId, long epoch) {
     this.serverId = serverId;
-    GregorianCalendar calendar = new GregorianCalendar(2010, 8, 6);
-    epoch = calendar.getTimeInMillis();
+    this.epoch = epoch;
   }
 
   public String nextId() {
-    return StringUtils.encode(nextIdNum().toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    long tick = nextTick();
+    if (tick > MAX_LONG_TICK) {
+      return StringUtils.encode(toIdNum(tick).toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    }
+    return toId(toIdLong(tick));
   }
-  
+
   public BigInteger nextIdNum() {
-    // single threaded this benchmarks at 0.5 ns per invocation, so rollover is possible
-    synchronized (lockObject) {
-      next = System.currentTimeMillis() - epoch;
-      if (next == last) { // 2 in the same ms
-        micro++;
-      } else if (next < last) { // roll over happend in this ms
-        next = last;
-        micro++;
-      } else { // new ms
-        micro = 0;
-        last = next;
-      }
-      // catch any rollover in micro.
-      if (micro > 999) {
-        rollover++;
-        next++;
-        micro = 0;
-        last = next;
-      }
+    return toIdNum(nextTick());
+  }
+
+  /**
+   * @return the next id in its fixed width, big endian, {@link #ID_BYTES} byte form.
+   * @throws IllegalStateException
+   *           once the ids no longer fit in a long, see {@link #getLastLongIdTime()}.
+   */
+  public byte[] nextIdBytes() {
+    return toBytes(nextIdLong());
+  }
+
+  /**
+   * @return the next id.
+   * @throws IllegalStateException
+   *           once the ids no longer fit in a long, see {@link #getLastLongIdTime()}.
+   *           {@link #nextId()} and {@link #nextIdNum()} carry on past that point.
+   */
+  public long nextIdLong() {
+    long tick = nextTick();
+    if (tick > MAX_LONG_TICK) {
+      throw new IllegalStateException("Ids issued after " + getLastLongIdTime()
+          + " ms since 1970 no longer fit in a long, use nextId() or nextIdNum()");
+    }
+    return toIdLong(tick);
+  }
+
+  /**
+   * @return the time in ms since 1970 of the last id that {@link #nextIdLong()} can issue,
+   *         in November 2039.
+   */
+  public long getLastLongIdTime() {
+    return epoch + MAX_LONG_TICK / TICKS_PER_MS;
+  }
+
+  private long nextTick() {
+    // A tick is ms*1000+sequence, so a new ms starts at now*1000, a second id in the same
+    // ms takes the next tick, and a clock that goes backwards keeps counting from the last
+    // tick. When more than 1000 ids are issued in one ms the sequence carries into the
+    // next ms, exactly as the old synchronized version did.
+    long now = (System.currentTimeMillis() - epoch) * TICKS_PER_MS;
+    long prev;
+    long next;
+    do {
+      prev = last.get();
+      next = (now > prev) ? now : prev + 1;
+    } while (!last.compareAndSet(prev, next));
+    if (next - now >= TICKS_PER_MS && next % TICKS_PER_MS == 0) {
+      rollover.incrementAndGet();
     }
+    return next;
+  }
+
+  private BigInteger toIdNum(long tick) {
+    if (tick > MAX_LONG_TICK) {
+      return BigInteger.valueOf(tick).multiply(BigInteger.valueOf(SERVER_SPACE)).add(
+          BigInteger.valueOf(serverId));
+    }
+    return BigInteger.valueOf(toIdLong(tick));
+  }
+
+  private long toIdLong(long tick) {
     // Collision analysis
     // The server number is unique in the cluster so no 2 servers with the same number can
     // exist at the same time
@@ -55,14 +123,64 @@ public class UniqueIdGenerator {
     // the server part of the number is prefixed
     // by 1 as in 1SSSS therefore this ID can never collide in the cluster or by rollover
     // provided we have < 9001 servers in the cluster.
-    BigInteger idNum = BigInteger.valueOf(next*1000+micro);
-    idNum = idNum.multiply(BigInteger.valueOf(10000));
-    idNum = idNum.add(BigInteger.valueOf(serverId));
-    return idNum;
+    // Every tick is issued once by the CAS in nextTick, so ids from one server never repeat.
+    // A signed long holds ticks*10000 until November 2039, after which only the BigInteger
+    // forms can be issued.
+    return tick * SERVER_SPACE + serverId;
+  }
+
+  /**
+   * @param id
+   *          an id from {@link #nextIdLong()}
+   * @return the id in the same encoding as {@link #nextId()}
+   */
+  public static String toId(long id) {
+    // same bytes as BigInteger.valueOf(id).toByteArray(), without the BigInteger.
+    int skip = 0;
+    while (skip < ID_BYTES - 1 && (id >>> (8 * (ID_BYTES - 1 - skip))) == 0
+        && ((id >>> (8 * (ID_BYTES - 2 - skip))) & 0x80) == 0) {
+      skip++;
+    }
+    byte[] b = new byte[ID_BYTES - skip];
+    for (int i = b.length - 1, shift = 0; i >= 0; i--, shift += 8) {
+      b[i] = (byte) (id >>> shift);
+    }
+    return StringUtils.encode(b, StringUtils.URL_SAFE_ENCODING);
   }
-  
+
+  /**
+   * @param id
+   *          an id from {@link #nextIdLong()}
+   * @return the id as {@link #ID_BYTES} bytes, big endian, so the byte forms sort in id
+   *         order.
+   */
+  public static byte[] toBytes(long id) {
+    byte[] b = new byte[ID_BYTES];
+    for (int i = ID_BYTES - 1; i >= 0; i--) {
+      b[i] = (byte) id;
+      id >>>= 8;
+    }
+    return b;
+  }
+
+  /**
+   * @param b
+   *          the byte form of an id.
+   * @return the id.
+   */
+  public static long fromBytes(byte[] b) {
+    if (b == null || b.length != ID_BYTES) {
+      throw new IllegalArgumentException("Ids are " + ID_BYTES + " bytes long");
+    }
+    long id = 0;
+    for (int i = 0; i < ID_BYTES; i++) {
+      id = (id << 8) | (b[i] & 0xff);
+    }
+    return id;
+  }
+
   public int getRollover() {
-    return rollover;
+    return rollover.get();
   }
 
 }
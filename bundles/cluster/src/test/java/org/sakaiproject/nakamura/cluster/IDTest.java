@@ -25,11 +25,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  *
@@ -125,4 +128,105 @@ public class IDTest {
         + uniqueIdGenerator.getRollover());
   }
 
+  @Test
+  public void testSharedGeneratorCollission() throws Exception {
+    final UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(7);
+    final Map<Long, Long> ids = new ConcurrentHashMap<Long, Long>();
+    final int threads = 16;
+    final int perThread = 20000;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread(new Runnable() {
+
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < perThread; j++) {
+              long id = uniqueIdGenerator.nextIdLong();
+              if (ids.put(id, id) != null) {
+                failed++;
+              }
+            }
+          } catch (InterruptedException e) {
+            LOGGER.info(e.getMessage(), e);
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      t.start();
+    }
+    start.countDown();
+    done.await();
+    Assert.assertEquals(0, failed);
+    Assert.assertEquals(threads * perThread, ids.size());
+    for (Long id : ids.keySet()) {
+      Assert.assertEquals(7, id % 10000);
+    }
+  }
+
+  @Test
+  public void testIdForms() {
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(42);
+    long last = 0;
+    for (int i = 0; i < 10000; i++) {
+      long id = uniqueIdGenerator.nextIdLong();
+      Assert.assertTrue(id > last);
+      last = id;
+      // the string form must not change from the BigInteger encoding.
+      Assert.assertEquals(StringUtils.encode(BigInteger.valueOf(id).toByteArray(),
+          StringUtils.URL_SAFE_ENCODING), UniqueIdGenerator.toId(id));
+      byte[] b = UniqueIdGenerator.toBytes(id);
+      Assert.assertEquals(UniqueIdGenerator.ID_BYTES, b.length);
+      Assert.assertEquals(id, UniqueIdGenerator.fromBytes(b));
+    }
+    long[] edges = new long[] { 0L, 1L, 127L, 128L, 255L, 256L, 32767L, 32768L,
+        Long.MAX_VALUE };
+    for (long id : edges) {
+      Assert.assertEquals(StringUtils.encode(BigInteger.valueOf(id).toByteArray(),
+          StringUtils.URL_SAFE_ENCODING), UniqueIdGenerator.toId(id));
+      Assert.assertEquals(id, UniqueIdGenerator.fromBytes(UniqueIdGenerator.toBytes(id)));
+    }
+  }
+
+  @Test
+  public void testLongIdsEndInNovember2039() {
+    Calendar last = new GregorianCalendar();
+    last.setTimeInMillis(new UniqueIdGenerator(1).getLastLongIdTime());
+    Assert.assertEquals(2039, last.get(Calendar.YEAR));
+    Assert.assertEquals(Calendar.NOVEMBER, last.get(Calendar.MONTH));
+    Assert.assertEquals(28, last.get(Calendar.DAY_OF_MONTH));
+  }
+
+  @Test
+  public void testIdsAfterTheLongIdsEnd() {
+    // a generator whose epoch is far enough back that now is past the last long id.
+    long lastTick = UniqueIdGenerator.MAX_LONG_TICK / 1000;
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(3,
+        System.currentTimeMillis() - lastTick - 1000);
+    try {
+      uniqueIdGenerator.nextIdLong();
+      Assert.fail("A long id would have overflowed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      uniqueIdGenerator.nextIdBytes();
+      Assert.fail("A long id would have overflowed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    BigInteger id = uniqueIdGenerator.nextIdNum();
+    Assert.assertTrue(id.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0);
+    Assert.assertEquals(3, id.mod(BigInteger.valueOf(10000)).intValue());
+    Assert.assertTrue(uniqueIdGenerator.nextIdNum().compareTo(id) > 0);
+    Assert.assertNotNull(uniqueIdGenerator.nextId());
+
+    // just before the end the long form is still issued.
+    uniqueIdGenerator = new UniqueIdGenerator(3, System.currentTimeMillis() - lastTick
+        + 1000);
+    Assert.assertTrue(uniqueIdGenerator.nextIdLong() > 0);
+  }
+
 }
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of {@link UniqueIdGenerator} from 1 to 64 threads sharing one generator, as
+ * used by ClusterTrackingService. Run as a main class, it is not part of the unit tests.
+ */
+public class UniqueIdGeneratorBenchmark {
+
+  private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+  private static final long RUN_MS = 2000;
+
+  public static void main(String[] args) throws Exception {
+    UniqueIdGenerator generator = new UniqueIdGenerator(1);
+    // warm up
+    run(generator, 4, RUN_MS, 0);
+    System.out.println("threads\tform\tids/s\tns/id");
+    for (int threads : THREADS) {
+      for (int form = 0; form < 3; form++) {
+        long n = run(generator, threads, RUN_MS, form);
+        System.out.println(threads + "\t" + (form == 0 ? "long" : form == 1 ? "bytes" : "string")
+            + "\t" + (n * 1000 / RUN_MS) + "\t" + ((RUN_MS * 1000000.0 * threads) / n));
+      }
+    }
+    System.out.println("rollover " + generator.getRollover());
+  }
+
+  private static long run(final UniqueIdGenerator generator, int threads,
+      final long runMs, final int form) throws InterruptedException {
+    final AtomicLong total = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread(new Runnable() {
+
+        public void run() {
+          long n = 0;
+          long sink = 0;
+          try {
+            start.await();
+            long end = System.currentTimeMillis() + runMs;
+            while ((n & 0xff) != 0 || System.currentTimeMillis() < end) {
+              switch (form) {
+              case 0:
+                sink += generator.nextIdLong();
+                break;
+              case 1:
+                sink += generator.nextIdBytes()[7];
+                break;
+              default:
+                sink += generator.nextId().length();
+              }
+              n++;
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            total.addAndGet(n + (sink == 42 ? 1 : 0));
+            done.countDown();
+          }
+        }
+      });
+      t.start();
+    }
+    start.countDown();
+    done.await();
+    return total.get();
+  }
+
+}
@@ -0,0 +1,615 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A bounded queue of messages drained by a small pool of sender threads. Each sender owns
+ * a connection and a transacted session for its lifetime, caches one producer per
+ * destination and delivery mode, and commits everything it finds on the queue, up to the
+ * batch size, in one transaction.
+ *
+ * The queue is partitioned by topic, one partition per sender, so events on a topic are
+ * sent in the order they were queued. Persistent and point to point events are never
+ * dropped: when their partition is full they wait for space, and once the pipeline has
+ * stopped the caller sends them itself. A batch that fails is sent again one message at a
+ * time, and stopping sends whatever is still queued.
+ */
+public class JmsProducerPipeline implements JmsProducerPipelineMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmsProducerPipeline.class);
+  private static final String JMX_DOMAIN = "org.sakaiproject.nakamura.events";
+  /**
+   * How long a sender waits on an empty queue before checking for shutdown.
+   */
+  private static final long POLL_MS = 500;
+  /**
+   * Producers cached per sender before the cache is flushed, topics are normally a small
+   * fixed set, this only guards against a topic per event.
+   */
+  private static final int MAX_PRODUCERS = 256;
+  /**
+   * Attempts, each on a new connection, to send a message from a failed batch.
+   */
+  private static final int MAX_ATTEMPTS = 3;
+
+  /**
+   * What to do with an event when the queue is full, persistent and point to point events
+   * always wait for space.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait up to the offer timeout for space, then drop the event.
+     */
+    BLOCK,
+    /**
+     * Drop the new event.
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest queued event to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Send the event on the calling thread, as if there were no queue.
+     */
+    CALLER_RUNS;
+
+    /**
+     * @param value
+     *          the configured value, eg block or drop-oldest
+     * @param defaultPolicy
+     *          used if the value is not recognised.
+     * @return the policy.
+     */
+    public static OverflowPolicy parse(String value, OverflowPolicy defaultPolicy) {
+      if (value != null) {
+        String name = value.trim().toUpperCase().replace('-', '_');
+        for (OverflowPolicy p : values()) {
+          if (p.name().equals(name)) {
+            return p;
+          }
+        }
+        LOGGER.warn("Unknown overflow policy {}, using {} ", value, defaultPolicy);
+      }
+      return defaultPolicy;
+    }
+  }
+
+  /**
+   * An event, reduced to what is needed to build its message on a sender thread.
+   */
+  static class PendingMessage {
+    final String topic;
+    final boolean p2p;
+    final boolean persistent;
+    final Map<String, Object> properties;
+    final long queued;
+
+    PendingMessage(String topic, boolean p2p, boolean persistent,
+        Map<String, Object> properties) {
+      this.topic = topic;
+      this.p2p = p2p;
+      this.persistent = persistent;
+      this.properties = properties;
+      this.queued = System.nanoTime();
+    }
+
+    String getProducerKey() {
+      return (p2p ? "q:" : "t:") + (persistent ? "p:" : "n:") + topic;
+    }
+
+    /**
+     * @return true if the message must not be dropped.
+     */
+    boolean isGuaranteed() {
+      return persistent || p2p;
+    }
+  }
+
+  private final ConnectionFactory connectionFactory;
+  private final BlockingQueue<PendingMessage>[] queues;
+  private final int capacity;
+  private final int batchSize;
+  private final OverflowPolicy overflowPolicy;
+  private final long offerTimeoutMs;
+  private final String serverId;
+  private final Thread[] senders;
+  private volatile boolean running;
+  private long lastMessage = System.currentTimeMillis();
+  private ObjectName objectName;
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong latencyNanos = new AtomicLong();
+  private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+  /**
+   * @param connectionFactory
+   *          the factory each sender gets its connection from.
+   * @param serverId
+   *          set as the clusterServerId property of each message.
+   * @param senders
+   *          the number of sender threads, and so sessions and queue partitions.
+   * @param capacity
+   *          the maximum number of queued messages, shared between the partitions.
+   * @param batchSize
+   *          the maximum number of messages in one transaction.
+   * @param overflowPolicy
+   *          what to do when the queue is full.
+   * @param offerTimeoutMs
+   *          how long to wait for space under {@link OverflowPolicy#BLOCK}.
+   */
+  @SuppressWarnings("unchecked")
+  public JmsProducerPipeline(ConnectionFactory connectionFactory, String serverId,
+      int senders, int capacity, int batchSize, OverflowPolicy overflowPolicy,
+      long offerTimeoutMs) {
+    this.connectionFactory = connectionFactory;
+    this.serverId = serverId;
+    this.senders = new Thread[Math.max(1, senders)];
+    this.queues = new BlockingQueue[this.senders.length];
+    int partitionCapacity = Math.max(1, (capacity + queues.length - 1) / queues.length);
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ArrayBlockingQueue<PendingMessage>(partitionCapacity);
+    }
+    this.capacity = partitionCapacity * queues.length;
+    this.batchSize = Math.max(1, batchSize);
+    this.overflowPolicy = overflowPolicy;
+    this.offerTimeoutMs = offerTimeoutMs;
+  }
+
+  public void start() {
+    running = true;
+    for (int i = 0; i < senders.length; i++) {
+      senders[i] = new Thread(new Sender(queues[i]), "JmsBridgeSender-" + i);
+      senders[i].setDaemon(true);
+      senders[i].start();
+    }
+  }
+
+  /**
+   * Stop accepting messages, give the senders up to timeoutMs to empty the queue, send
+   * anything they left on the calling thread, and close their sessions.
+   *
+   * @param timeoutMs
+   * @return the number of messages that could not be sent.
+   */
+  public int stop(long timeoutMs) {
+    running = false;
+    long end = System.currentTimeMillis() + timeoutMs;
+    for (Thread sender : senders) {
+      if (sender == null) {
+        continue;
+      }
+      try {
+        long wait = end - System.currentTimeMillis();
+        if (wait > 0) {
+          sender.join(wait);
+        }
+        if (sender.isAlive()) {
+          sender.interrupt();
+          sender.join(POLL_MS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    long failedBefore = failed.get();
+    Sender last = new Sender(null);
+    try {
+      for (BlockingQueue<PendingMessage> queue : queues) {
+        List<PendingMessage> left = new ArrayList<PendingMessage>();
+        queue.drainTo(left);
+        for (int i = 0; i < left.size(); i += batchSize) {
+          last.send(left.subList(i, Math.min(left.size(), i + batchSize)));
+        }
+      }
+    } finally {
+      last.close();
+    }
+    return (int) (failed.get() - failedBefore);
+  }
+
+  private BlockingQueue<PendingMessage> getQueue(PendingMessage message) {
+    return queues[(message.topic.hashCode() & Integer.MAX_VALUE) % queues.length];
+  }
+
+  /**
+   * Queue a message, applying the overflow policy if the queue is full.
+   *
+   * @param message
+   * @return false if the message was not queued and the caller should send it itself,
+   *         which happens under {@link OverflowPolicy#CALLER_RUNS}, and for any message
+   *         once the pipeline has stopped.
+   */
+  boolean offer(PendingMessage message) {
+    if (!running) {
+      return false;
+    }
+    BlockingQueue<PendingMessage> queue = getQueue(message);
+    if (queue.offer(message)) {
+      return queued(queue, message);
+    }
+    if (message.isGuaranteed()) {
+      return offerGuaranteed(queue, message);
+    }
+    switch (overflowPolicy) {
+    case CALLER_RUNS:
+      return false;
+    case DROP_OLDEST:
+      while (!queue.offer(message)) {
+        if (!dropOldest(queue)) {
+          // everything queued has to be sent, so wait for space.
+          return offerGuaranteed(queue, message);
+        }
+      }
+      return queued(queue, message);
+    case BLOCK:
+      try {
+        if (queue.offer(message, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+          return queued(queue, message);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      break;
+    case DROP_NEWEST:
+    default:
+      break;
+    }
+    dropped.incrementAndGet();
+    LOGGER.debug("JMS bridge queue full, dropped message for {} ", message.topic);
+    return true;
+  }
+
+  /**
+   * Wait for as long as the pipeline is running for space in the queue.
+   */
+  private boolean offerGuaranteed(BlockingQueue<PendingMessage> queue,
+      PendingMessage message) {
+    boolean interrupted = false;
+    try {
+      while (running) {
+        try {
+          if (queue.offer(message, POLL_MS, TimeUnit.MILLISECONDS)) {
+            return queued(queue, message);
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      return false;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * A message queued as the pipeline stopped may have missed the final drain, if it is
+   * still there take it back so the caller sends it.
+   */
+  private boolean queued(BlockingQueue<PendingMessage> queue, PendingMessage message) {
+    if (!running && queue.remove(message)) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Remove the oldest message that may be dropped.
+   *
+   * @return false if every queued message has to be sent.
+   */
+  private boolean dropOldest(BlockingQueue<PendingMessage> queue) {
+    for (Iterator<PendingMessage> i = queue.iterator(); i.hasNext();) {
+      if (!i.next().isGuaranteed()) {
+        i.remove();
+        dropped.incrementAndGet();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Builds a message for the event in the session. Shared with the bridge for events it
+   * sends on the calling thread.
+   */
+  static Message createMessage(Session session, PendingMessage pending, String serverId)
+      throws JMSException {
+    Message msg = session.createMessage();
+    msg.setJMSDeliveryMode(pending.persistent ? DeliveryMode.PERSISTENT
+        : DeliveryMode.NON_PERSISTENT);
+    msg.setJMSType(pending.topic);
+    for (Entry<String, Object> e : pending.properties.entrySet()) {
+      msg.setObjectProperty(e.getKey(), e.getValue());
+    }
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
+  }
+
+  /**
+   * One sender thread, which owns its connection, session and producers.
+   */
+  private class Sender implements Runnable {
+    private final BlockingQueue<PendingMessage> queue;
+    private Connection connection;
+    private Session session;
+    private final Map<String, MessageProducer> producers = new HashMap<String, MessageProducer>();
+
+    Sender(BlockingQueue<PendingMessage> queue) {
+      this.queue = queue;
+    }
+
+    public void run() {
+      List<PendingMessage> batch = new ArrayList<PendingMessage>(batchSize);
+      try {
+        while (running || !queue.isEmpty()) {
+          PendingMessage first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          queue.drainTo(batch, batchSize - 1);
+          send(batch);
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        LOGGER.debug("JMS bridge sender interrupted");
+      } finally {
+        close();
+      }
+    }
+
+    void send(List<PendingMessage> batch) {
+      try {
+        commit(batch);
+      } catch (JMSException e) {
+        logFailure(e);
+        // nothing in the batch was committed, start again with a new connection and send
+        // each message on its own so one bad message does not lose the rest.
+        close();
+        for (PendingMessage pending : batch) {
+          sendAlone(pending);
+        }
+      }
+    }
+
+    private void sendAlone(PendingMessage pending) {
+      List<PendingMessage> single = Collections.singletonList(pending);
+      for (int attempt = 1;; attempt++) {
+        try {
+          commit(single);
+          return;
+        } catch (JMSException e) {
+          close();
+          if (attempt >= MAX_ATTEMPTS) {
+            failed.incrementAndGet();
+            LOGGER.warn("Failed to send message for {} after {} attempts ", pending.topic,
+                attempt);
+            logFailure(e);
+            return;
+          }
+        }
+      }
+    }
+
+    private void commit(List<PendingMessage> batch) throws JMSException {
+      Session s = getSession();
+      for (PendingMessage pending : batch) {
+        getProducer(s, pending).send(createMessage(s, pending, serverId));
+      }
+      s.commit();
+      long now = System.nanoTime();
+      for (PendingMessage pending : batch) {
+        long latency = now - pending.queued;
+        latencyNanos.addAndGet(latency);
+        long max = maxLatencyNanos.get();
+        while (latency > max && !maxLatencyNanos.compareAndSet(max, latency)) {
+          max = maxLatencyNanos.get();
+        }
+      }
+      sent.addAndGet(batch.size());
+      batches.incrementAndGet();
+    }
+
+    private Session getSession() throws JMSException {
+      if (session == null) {
+        connection = connectionFactory.createConnection();
+        session = connection.createSession(true, Session.SESSION_TRANSACTED);
+      }
+      return session;
+    }
+
+    private MessageProducer getProducer(Session s, PendingMessage pending)
+        throws JMSException {
+      String key = pending.getProducerKey();
+      MessageProducer producer = producers.get(key);
+      if (producer == null) {
+        if (producers.size() >= MAX_PRODUCERS) {
+          closeProducers();
+        }
+        Destination destination = pending.p2p ? s.createQueue(pending.topic) : s
+            .createTopic(pending.topic);
+        producer = s.createProducer(destination);
+        producer.setDeliveryMode(pending.persistent ? DeliveryMode.PERSISTENT
+            : DeliveryMode.NON_PERSISTENT);
+        producers.put(key, producer);
+      }
+      return producer;
+    }
+
+    private void closeProducers() {
+      for (MessageProducer producer : producers.values()) {
+        try {
+          producer.close();
+        } catch (Exception e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+      producers.clear();
+    }
+
+    void close() {
+      closeProducers();
+      try {
+        if (session != null) {
+          session.close();
+        }
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      try {
+        if (connection != null) {
+          connection.close();
+        }
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      session = null;
+      connection = null;
+    }
+  }
+
+  private void logFailure(JMSException e) {
+    Throwable t = e.getCause();
+    if (t != null
+        && t.getClass().getName().equals(
+            "org.apache.activemq.transport.TransportDisposedIOException")) {
+      if ((System.currentTimeMillis() - lastMessage) > 15000L) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info(
+            "Transport disposed, probably on shutdown, use debug level logging to see more :{} ",
+            e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Register the pipeline with the platform MBeanServer.
+   *
+   * @param name
+   */
+  public void register(String name) {
+    try {
+      ObjectName on = new ObjectName(JMX_DOMAIN + ":type=JmsBridge,name="
+          + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+      objectName = on;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register JMS bridge {} with JMX {} ", name, e.getMessage());
+    }
+  }
+
+  public void unregister() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      objectName = null;
+    }
+  }
+
+  public int getQueueDepth() {
+    int depth = 0;
+    for (BlockingQueue<PendingMessage> queue : queues) {
+      depth += queue.size();
+    }
+    return depth;
+  }
+
+  public int getQueueCapacity() {
+    return capacity;
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public double getAverageBatchSize() {
+    long b = batches.get();
+    return b == 0 ? 0.0 : ((double) sent.get()) / b;
+  }
+
+  public double getAverageSendLatencyMs() {
+    long s = sent.get();
+    return s == 0 ? 0.0 : (latencyNanos.get() / 1000000.0) / s;
+  }
+
+  public long getMaxSendLatencyMs() {
+    return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+  }
+
+  public void reset() {
+    sent.set(0);
+    dropped.set(0);
+    failed.set(0);
+    batches.set(0);
+    latencyNanos.set(0);
+    maxLatencyNanos.set(0);
+  }
+
+}
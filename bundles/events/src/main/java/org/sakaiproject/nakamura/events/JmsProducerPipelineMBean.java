@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * The JMX view of the queue between OSGi events and the JMS senders.
+ */
+public interface JmsProducerPipelineMBean {
+
+  /**
+   * @return the number of messages waiting to be sent.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the maximum number of messages that can wait to be sent.
+   */
+  int getQueueCapacity();
+
+  /**
+   * @return the number of messages committed to JMS.
+   */
+  long getSent();
+
+  /**
+   * @return the number of messages dropped because the queue was full, persistent and
+   *         point to point messages are never dropped.
+   */
+  long getDropped();
+
+  /**
+   * @return the number of messages lost because every attempt to send them failed.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of transactions committed.
+   */
+  long getBatches();
+
+  /**
+   * @return the average number of messages per committed transaction.
+   */
+  double getAverageBatchSize();
+
+  /**
+   * @return the average time from an event being queued to its message being committed,
+   *         in ms.
+   */
+  double getAverageSendLatencyMs();
+
+  /**
+   * @return the longest time from an event being queued to its message being committed,
+   *         in ms.
+   */
+  long getMaxSendLatencyMs();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
@@ -21,6 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
@@ -31,17 +32,19 @@ import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
+import org.sakaiproject.nakamura.events.JmsProducerPipeline.OverflowPolicy;
+import org.sakaiproject.nakamura.events.JmsProducerPipeline.PendingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.jms.Connection;
-import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -71,6 +74,26 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  @Property(intValue = 1)
+  static final String SENDERS = "bridge.senders";
+
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queue.size";
+
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batch.size";
+
+  @Property(value = "block")
+  static final String OVERFLOW_POLICY = "bridge.queue.overflow";
+
+  @Property(longValue = 100)
+  static final String OFFER_TIMEOUT = "bridge.queue.offer.timeout";
+
+  /**
+   * How long deactivate waits for the senders to empty the queue.
+   */
+  private static final long STOP_TIMEOUT_MS = 5000;
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -89,6 +112,11 @@ public class OsgiJmsBridge implements EventHandler {
 
   private String serverId;
 
+  /**
+   * Queue and senders for events, null if events are sent on the calling thread.
+   */
+  private JmsProducerPipeline pipeline;
+
   /**
    * Default constructor.
    */
@@ -134,6 +162,23 @@ public class OsgiJmsBridge implements EventHandler {
 
     LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
         new Object[] { transacted, acknowledgeMode, connectionClientId });
+
+    stopPipeline();
+    int senders = OsgiUtil.toInteger(props.get(SENDERS), 1);
+    if (senders > 0) {
+      int queueSize = OsgiUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+      int batchSize = OsgiUtil.toInteger(props.get(BATCH_SIZE), 100);
+      OverflowPolicy overflowPolicy = OverflowPolicy.parse(
+          OsgiUtil.toString(props.get(OVERFLOW_POLICY), null), OverflowPolicy.BLOCK);
+      long offerTimeout = OsgiUtil.toLong(props.get(OFFER_TIMEOUT), 100);
+      pipeline = new JmsProducerPipeline(
+          connFactoryService.getDefaultPooledConnectionFactory(), serverId, senders,
+          queueSize, batchSize, overflowPolicy, offerTimeout);
+      pipeline.start();
+      pipeline.register(connectionClientId == null ? "default" : connectionClientId);
+      LOGGER.info("Sending events with {} senders, queue size {}, batch size {}, "
+          + "overflow {} ", new Object[] { senders, queueSize, batchSize, overflowPolicy });
+    }
   }
 
   /**
@@ -142,6 +187,18 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    stopPipeline();
+  }
+
+  private void stopPipeline() {
+    if (pipeline != null) {
+      int unsent = pipeline.stop(STOP_TIMEOUT_MS);
+      pipeline.unregister();
+      if (unsent > 0) {
+        LOGGER.warn("Failed to send {} events that were queued for JMS on shutdown ", unsent);
+      }
+      pipeline = null;
+    }
   }
 
   /**
@@ -155,9 +212,55 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
-
     LOGGER.debug("Processing event {}", event);
+    PendingMessage pending = toPendingMessage(event);
+    JmsProducerPipeline p = pipeline;
+    if (p == null || !p.offer(pending)) {
+      send(event, pending);
+    }
+  }
+
+  /**
+   * Reduce an event to its destination, delivery mode and the properties that can be put
+   * into a JMS message.
+   *
+   * @param event
+   * @return the message to send.
+   */
+  private PendingMessage toPendingMessage(Event event) {
+    EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+        .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    boolean persistent = messageMode == EventMessageMode.PERSISTENT;
+    boolean p2p = deliveryMode == EventDeliveryMode.P2P;
+
+    String[] names = event.getPropertyNames();
+    Map<String, Object> properties = new HashMap<String, Object>(names.length * 2);
+    for (String name : names) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List) {
+        properties.put(name, obj);
+      }
+    }
+    return new PendingMessage(event.getTopic(), p2p, persistent, properties);
+  }
+
+  /**
+   * Send one event on the calling thread with its own connection and session.
+   *
+   * @param event
+   * @param pending
+   */
+  private void send(Event event, PendingMessage pending) {
+    Connection conn = null;
     Session clientSession = null;
     try {
 
@@ -166,11 +269,6 @@ public class OsgiJmsBridge implements EventHandler {
       // post to JMS
       // Sessions are not thread safe, so we need to create and destroy a session, for
       // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
       EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
           .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
 
@@ -191,54 +289,15 @@ public class OsgiJmsBridge implements EventHandler {
 
       clientSession = conn.createSession(transacted, clientAcknowledgeMode);
 
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
-        }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-      }
+      Message msg = JmsProducerPipeline.createMessage(clientSession, pending, serverId);
 
       Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
+      if (pending.p2p) {
+        destination = clientSession.createQueue(pending.topic);
       } else {
-        destination = clientSession.createTopic(event.getTopic());
+        destination = clientSession.createTopic(pending.topic);
       }
       MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List) {
-          msg.setObjectProperty(name, obj);
-        }
-      }
-
-      msg.setStringProperty("clusterServerId", serverId);
 
       // add the current user
 
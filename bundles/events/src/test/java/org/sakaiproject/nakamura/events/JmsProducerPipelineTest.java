@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.nakamura.events.JmsProducerPipeline.OverflowPolicy;
+import org.sakaiproject.nakamura.events.JmsProducerPipeline.PendingMessage;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Unit test for the overflow handling, retries and shutdown of the queue in front of the
+ * JMS senders.
+ */
+public class JmsProducerPipelineTest {
+
+  private CountDownLatch blocked = new CountDownLatch(1);
+  private CountDownLatch release = new CountDownLatch(1);
+
+  @Test
+  public void testParsePolicy() {
+    assertEquals(OverflowPolicy.DROP_OLDEST,
+        OverflowPolicy.parse("drop-oldest", OverflowPolicy.BLOCK));
+    assertEquals(OverflowPolicy.CALLER_RUNS,
+        OverflowPolicy.parse(" Caller-Runs ", OverflowPolicy.BLOCK));
+    assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse("nonsense", OverflowPolicy.BLOCK));
+    assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse(null, OverflowPolicy.BLOCK));
+  }
+
+  @Test
+  public void testDropNewest() throws Exception {
+    JmsProducerPipeline pipeline = fillQueue(OverflowPolicy.DROP_NEWEST);
+    assertTrue(pipeline.offer(message()));
+    assertEquals(1, pipeline.getDropped());
+    assertEquals(2, pipeline.getQueueDepth());
+    stop(pipeline);
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    JmsProducerPipeline pipeline = fillQueue(OverflowPolicy.DROP_OLDEST);
+    assertTrue(pipeline.offer(message()));
+    assertEquals(1, pipeline.getDropped());
+    assertEquals(2, pipeline.getQueueDepth());
+    stop(pipeline);
+  }
+
+  @Test
+  public void testBlockThenDrop() throws Exception {
+    JmsProducerPipeline pipeline = fillQueue(OverflowPolicy.BLOCK);
+    long start = System.currentTimeMillis();
+    assertTrue(pipeline.offer(message()));
+    assertTrue(System.currentTimeMillis() - start >= 40);
+    assertEquals(1, pipeline.getDropped());
+    stop(pipeline);
+  }
+
+  @Test
+  public void testCallerRuns() throws Exception {
+    JmsProducerPipeline pipeline = fillQueue(OverflowPolicy.CALLER_RUNS);
+    assertFalse(pipeline.offer(message()));
+    assertEquals(0, pipeline.getDropped());
+    stop(pipeline);
+  }
+
+  @Test
+  public void testGuaranteedMessagesWaitForSpace() throws Exception {
+    final JmsProducerPipeline pipeline = fillQueue(OverflowPolicy.DROP_NEWEST);
+    final boolean[] queued = new boolean[1];
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        queued[0] = pipeline.offer(new PendingMessage("test-event", true, true,
+            new HashMap<String, Object>()));
+      }
+    };
+    producer.start();
+    producer.join(200);
+    // still waiting for the stuck sender, not dropped.
+    assertTrue(producer.isAlive());
+    assertEquals(0, pipeline.getDropped());
+    release.countDown();
+    producer.join(5000);
+    assertFalse(producer.isAlive());
+    assertTrue(queued[0]);
+    assertEquals(0, pipeline.getDropped());
+    pipeline.stop(1000);
+  }
+
+  @Test
+  public void testDropOldestKeepsGuaranteedMessages() throws Exception {
+    JmsProducerPipeline pipeline = new JmsProducerPipeline(stuckFactory(), "server", 1, 2,
+        10, OverflowPolicy.DROP_OLDEST, 50);
+    pipeline.start();
+    assertTrue(pipeline.offer(message()));
+    blocked.await();
+    assertTrue(pipeline.offer(new PendingMessage("test-event", false, true,
+        new HashMap<String, Object>())));
+    assertTrue(pipeline.offer(message()));
+    // the oldest message that may be dropped goes, not the persistent one ahead of it.
+    assertTrue(pipeline.offer(message()));
+    assertEquals(1, pipeline.getDropped());
+    assertEquals(2, pipeline.getQueueDepth());
+    stop(pipeline);
+  }
+
+  @Test
+  public void testStoppedPipelineHandsBackMessages() throws Exception {
+    JmsProducerPipeline pipeline = new JmsProducerPipeline(workingFactory(0,
+        new AtomicInteger()), "server", 1, 10, 10, OverflowPolicy.BLOCK, 50);
+    pipeline.start();
+    pipeline.stop(1000);
+    assertFalse(pipeline.offer(message()));
+    assertEquals(0, pipeline.getDropped());
+  }
+
+  @Test
+  public void testStopSendsQueuedMessages() throws Exception {
+    AtomicInteger sends = new AtomicInteger();
+    JmsProducerPipeline pipeline = new JmsProducerPipeline(workingFactory(0, sends),
+        "server", 2, 100, 10, OverflowPolicy.BLOCK, 50);
+    pipeline.start();
+    for (int i = 0; i < 50; i++) {
+      assertTrue(pipeline.offer(new PendingMessage("test-event-" + (i % 5), false, false,
+          new HashMap<String, Object>())));
+    }
+    assertEquals(0, pipeline.stop(0));
+    assertEquals(50, pipeline.getSent());
+    assertEquals(50, sends.get());
+    assertEquals(0, pipeline.getQueueDepth());
+  }
+
+  @Test
+  public void testFailedBatchIsSentAgain() throws Exception {
+    AtomicInteger sends = new AtomicInteger();
+    JmsProducerPipeline pipeline = new JmsProducerPipeline(workingFactory(1, sends),
+        "server", 1, 100, 10, OverflowPolicy.BLOCK, 50);
+    pipeline.start();
+    for (int i = 0; i < 20; i++) {
+      assertTrue(pipeline.offer(message()));
+    }
+    assertEquals(0, pipeline.stop(5000));
+    assertEquals(20, pipeline.getSent());
+    assertEquals(0, pipeline.getFailed());
+  }
+
+  /**
+   * A connection factory that works, apart from failing the first commits.
+   *
+   * @param failCommits
+   *          the number of commits that fail.
+   * @param sends
+   *          counts the messages sent, including any that were rolled back.
+   */
+  private ConnectionFactory workingFactory(int failCommits, final AtomicInteger sends)
+      throws Exception {
+    ConnectionFactory connFactory = createNiceMock(ConnectionFactory.class);
+    Connection conn = createNiceMock(Connection.class);
+    Session sess = createNiceMock(Session.class);
+    MessageProducer prod = createNiceMock(MessageProducer.class);
+    expect(connFactory.createConnection()).andReturn(conn).anyTimes();
+    expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess)
+        .anyTimes();
+    expect(sess.createMessage()).andAnswer(new IAnswer<Message>() {
+      public Message answer() throws Throwable {
+        return new ActiveMQMessage();
+      }
+    }).anyTimes();
+    expect(sess.createProducer((Destination) anyObject())).andReturn(prod).anyTimes();
+    prod.send((Message) anyObject());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        sends.incrementAndGet();
+        return null;
+      }
+    }).anyTimes();
+    if (failCommits > 0) {
+      sess.commit();
+      expectLastCall().andThrow(new JMSException("commit failed")).times(failCommits);
+    }
+    sess.commit();
+    expectLastCall().anyTimes();
+    replay(connFactory, conn, sess, prod);
+    return connFactory;
+  }
+
+  private ConnectionFactory stuckFactory() throws Exception {
+    ConnectionFactory connFactory = createMock(ConnectionFactory.class);
+    expect(connFactory.createConnection()).andAnswer(new IAnswer<Connection>() {
+      public Connection answer() throws Throwable {
+        blocked.countDown();
+        release.await();
+        throw new JMSException("stopped");
+      }
+    }).anyTimes();
+    replay(connFactory);
+    return connFactory;
+  }
+
+  /**
+   * Start a pipeline with a queue of 2 whose only sender is stuck connecting, and fill the
+   * queue.
+   */
+  private JmsProducerPipeline fillQueue(OverflowPolicy policy) throws Exception {
+    JmsProducerPipeline pipeline = new JmsProducerPipeline(stuckFactory(), "server", 1, 2,
+        10, policy, 50);
+    pipeline.start();
+    assertTrue(pipeline.offer(message()));
+    blocked.await();
+    assertTrue(pipeline.offer(message()));
+    assertTrue(pipeline.offer(message()));
+    assertEquals(2, pipeline.getQueueDepth());
+    return pipeline;
+  }
+
+  private void stop(JmsProducerPipeline pipeline) {
+    release.countDown();
+    pipeline.stop(1000);
+  }
+
+  private PendingMessage message() {
+    return new PendingMessage("test-event", false, false, new HashMap<String, Object>());
+  }
+}
@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 
 import org.apache.activemq.command.ActiveMQMessage;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
@@ -41,6 +42,7 @@ import java.util.Hashtable;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
@@ -223,6 +225,52 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  /**
+   * Test that queued events are sent in transactions on a long lived session and
+   * producer, and that deactivate waits for them and closes the session.
+   */
+  @Test
+  public void testHandleEventQueued() throws Exception {
+    compProps.put(OsgiJmsBridge.SENDERS, 1);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess);
+    expect(sess.createMessage()).andAnswer(new IAnswer<Message>() {
+      public Message answer() throws Throwable {
+        return new ActiveMQMessage();
+      }
+    }).times(10);
+    // one producer for the topic, however many events are sent.
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    prod.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    prod.send((Message) anyObject());
+    expectLastCall().times(10);
+    sess.commit();
+    expectLastCall().atLeastOnce();
+    prod.close();
+    sess.close();
+    conn.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    for (int i = 0; i < 10; i++) {
+      bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    }
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -264,6 +312,8 @@ public class OsgiJmsBridgeTest {
     dict.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge");
     dict.put(OsgiJmsBridge.SESSION_TRANSACTED, false);
     dict.put(OsgiJmsBridge.TOPICS, "*");
+    // send on the calling thread, the queued senders are tested separately.
+    dict.put(OsgiJmsBridge.SENDERS, 0);
     return dict;
   }
 
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * A file being uploaded to the pool in chunks. The chunks are written to a file on local
+ * disk, next to a properties file that records who is uploading what, so an upload can
+ * be resumed from its offset after the connection drops or the server restarts. Nothing
+ * is created in the pool until the upload is committed.
+ */
+class ChunkedUpload {
+
+  private static final String DATA = ".data";
+  private static final String INFO = ".properties";
+
+  private static final String USER_ID = "userId";
+  private static final String FILE_NAME = "fileName";
+  private static final String CONTENT_TYPE = "contentType";
+  private static final String LENGTH = "length";
+  private static final String POOL_ID = "poolId";
+  private static final String ALTERNATIVE_STREAM = "alternativeStream";
+
+  private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_\\-]+");
+
+  private static final int BUFFER_SIZE = 65536;
+
+  private final String id;
+  private final File data;
+  private final File info;
+  private final Properties properties;
+
+  /**
+   * A SHA-1 of the bytes written so far, while they have been written in order. Set to
+   * null when a chunk is written again, then the checksum is worked out from the file.
+   */
+  private MessageDigest digest;
+
+  /**
+   * Set while the upload is being committed, no chunks can be written then.
+   */
+  private boolean committing;
+
+  /**
+   * Set once the staged files have been removed.
+   */
+  private boolean closed;
+
+  private ChunkedUpload(String id, File data, File info, Properties properties,
+      MessageDigest digest) {
+    this.id = id;
+    this.data = data;
+    this.info = info;
+    this.properties = properties;
+    this.digest = digest;
+  }
+
+  /**
+   * Starts a new upload.
+   *
+   * @param length
+   *          the length of the file, or -1 if not known.
+   * @param poolId
+   *          the pool item to update when committed, or null to create one.
+   */
+  static ChunkedUpload create(File directory, String id, String userId, String fileName,
+      String contentType, long length, String poolId, String alternativeStream)
+      throws IOException {
+    checkId(id);
+    Properties properties = new Properties();
+    properties.setProperty(USER_ID, userId);
+    properties.setProperty(FILE_NAME, fileName);
+    properties.setProperty(LENGTH, String.valueOf(length));
+    if (contentType != null) {
+      properties.setProperty(CONTENT_TYPE, contentType);
+    }
+    if (poolId != null) {
+      properties.setProperty(POOL_ID, poolId);
+    }
+    if (alternativeStream != null) {
+      properties.setProperty(ALTERNATIVE_STREAM, alternativeStream);
+    }
+
+    File data = new File(directory, id + DATA);
+    File info = new File(directory, id + INFO);
+    if (!data.createNewFile()) {
+      throw new IOException("Upload " + id + " already exists");
+    }
+    OutputStream out = new FileOutputStream(info);
+    try {
+      properties.store(out, null);
+    } finally {
+      out.close();
+    }
+    return new ChunkedUpload(id, data, info, properties, newDigest());
+  }
+
+  /**
+   * @return the upload staged in <code>directory</code>, or null if there is none with
+   *         that id.
+   */
+  static ChunkedUpload load(File directory, String id) throws IOException {
+    if (id == null || !VALID_ID.matcher(id).matches()) {
+      return null;
+    }
+    File data = new File(directory, id + DATA);
+    File info = new File(directory, id + INFO);
+    if (!data.isFile() || !info.isFile()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(info);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    // The digest was lost with the server, it is worked out from the file on commit.
+    return new ChunkedUpload(id, data, info, properties, null);
+  }
+
+  /**
+   * Removes uploads in <code>directory</code> that haven't had a chunk written for
+   * longer than <code>maxAge</code>.
+   *
+   * @return the ids of the uploads removed.
+   */
+  static String[] removeExpired(File directory, long maxAge) {
+    long cutoff = System.currentTimeMillis() - maxAge;
+    List<String> removed = new ArrayList<String>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (name.endsWith(DATA) && f.lastModified() < cutoff) {
+          String id = name.substring(0, name.length() - DATA.length());
+          f.delete();
+          new File(directory, id + INFO).delete();
+          removed.add(id);
+        }
+      }
+    }
+    return removed.toArray(new String[removed.size()]);
+  }
+
+  String getId() {
+    return id;
+  }
+
+  String getUserId() {
+    return properties.getProperty(USER_ID);
+  }
+
+  String getFileName() {
+    return properties.getProperty(FILE_NAME);
+  }
+
+  String getContentType() {
+    return properties.getProperty(CONTENT_TYPE);
+  }
+
+  String getPoolId() {
+    return properties.getProperty(POOL_ID);
+  }
+
+  String getAlternativeStream() {
+    return properties.getProperty(ALTERNATIVE_STREAM);
+  }
+
+  /**
+   * @return the length given when the upload started, or -1 if none was given.
+   */
+  long getLength() {
+    return Long.parseLong(properties.getProperty(LENGTH, "-1"));
+  }
+
+  /**
+   * @return the number of bytes received, where the next chunk should start.
+   */
+  long getOffset() {
+    return data.length();
+  }
+
+  /**
+   * Writes a chunk. A chunk may start before the current offset, when the client didn't
+   * hear that a chunk arrived and sends it again, but not after it.
+   *
+   * @param maxLength
+   *          the most an upload without a length may hold, or -1 for no limit.
+   * @return the offset after the chunk.
+   * @throws IllegalArgumentException
+   *           if the chunk starts after the current offset, or goes past the length given
+   *           when the upload started, or past <code>maxLength</code>. Nothing is
+   *           written.
+   * @throws IllegalStateException
+   *           if the upload is being committed, or has been.
+   */
+  synchronized long write(long offset, InputStream in, long maxLength) throws IOException {
+    if (committing || closed) {
+      throw new IllegalStateException("Upload " + id + " has been committed");
+    }
+    long current = data.length();
+    if (offset < 0 || offset > current) {
+      throw new IllegalArgumentException("Expected a chunk at or before offset " + current);
+    }
+    long length = getLength();
+    if (length < 0) {
+      length = maxLength;
+    }
+    RandomAccessFile raf = new RandomAccessFile(data, "rw");
+    try {
+      if (offset < current) {
+        raf.setLength(offset);
+        digest = null;
+      }
+      raf.seek(offset);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long position = offset;
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        if (length >= 0 && position + n > length) {
+          raf.setLength(offset);
+          digest = null;
+          throw new IllegalArgumentException("The chunk goes past the length of " + length);
+        }
+        raf.write(buffer, 0, n);
+        if (digest != null) {
+          digest.update(buffer, 0, n);
+        }
+        position += n;
+      }
+      return position;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * @return true if all the bytes have arrived, always true when the length isn't known.
+   */
+  synchronized boolean isComplete() {
+    long length = getLength();
+    return length < 0 || data.length() == length;
+  }
+
+  /**
+   * @return the hex SHA-1 of the bytes received.
+   */
+  synchronized String getChecksum() throws IOException {
+    if (digest == null) {
+      MessageDigest md = newDigest();
+      InputStream in = new FileInputStream(data);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          md.update(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+      digest = md;
+    }
+    try {
+      // digest() resets, so take it from a copy that more chunks can still be added to.
+      return toHex(((MessageDigest) digest.clone()).digest());
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Stops any more chunks being written, while the upload is committed. Takes the same
+   * lock as {@link #write(long, InputStream, long)}, so a chunk being written finishes
+   * first.
+   *
+   * @return false if the upload is already being committed, or has been.
+   */
+  synchronized boolean startCommit() {
+    if (committing || closed) {
+      return false;
+    }
+    committing = true;
+    return true;
+  }
+
+  /**
+   * Lets chunks be written again after a commit that didn't complete.
+   */
+  synchronized void abortCommit() {
+    committing = false;
+  }
+
+  /**
+   * @return the bytes received, to be closed by the caller.
+   */
+  InputStream openStream() throws IOException {
+    return new FileInputStream(data);
+  }
+
+  /**
+   * Removes the staged files.
+   */
+  synchronized void delete() {
+    closed = true;
+    data.delete();
+    info.delete();
+  }
+
+  private static void checkId(String id) {
+    if (id == null || !VALID_ID.matcher(id).matches()) {
+      throw new IllegalArgumentException("Invalid upload id " + id);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
@@ -26,6 +26,7 @@ import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_NEEDS_PR
 
 import com.google.common.collect.Lists;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -35,13 +36,16 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
@@ -65,7 +69,9 @@ import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -73,15 +79,21 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@SlingServlet(methods = "POST", paths = "/system/pool/createfile")
+@SlingServlet(methods = { "GET", "POST" }, paths = "/system/pool/createfile")
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
-    @Property(name = "service.description", value = "Allows for uploading files to the pool.") })
+    @Property(name = "service.description", value = "Allows for uploading files to the pool."),
+    @Property(name = CreateContentPoolServlet.UPLOAD_DIRECTORY, value = ""),
+    @Property(name = CreateContentPoolServlet.UPLOAD_MAX_AGE, longValue = CreateContentPoolServlet.DEFAULT_UPLOAD_MAX_AGE),
+    @Property(name = CreateContentPoolServlet.UPLOAD_MAX_LENGTH, longValue = CreateContentPoolServlet.DEFAULT_UPLOAD_MAX_LENGTH),
+    @Property(name = CreateContentPoolServlet.UPLOAD_MAX_OPEN, intValue = CreateContentPoolServlet.DEFAULT_UPLOAD_MAX_OPEN) })
 @ServiceDocumentation(name="Create Content Pool Servlet",
     description="Creates and Updates files in the pool",
     shortDescription="Creates and Updates files in the pool",
@@ -97,11 +109,31 @@ import javax.servlet.http.HttpServletResponse;
             "Response is of the form " +
             "<pre>" +
             "   { \"file1\" : \"3sd23a4QW4WD\", \"file2\" : \"3sd23a4QW4ZS\" } " +
-            "</pre>"
+            "</pre>",
+            "Large files can be uploaded in chunks, so a dropped connection only loses the chunk in flight. " +
+            "The chunks are staged on the local disk of the server, so all the requests for one upload must go to the same server.<br>" +
+            "<pre>POST :upload=initiate&amp;filename=movie.mp4&amp;length=4294967296 " +
+            "to /system/pool/createfile (or createfile.PoolID to update a file) returns { \"uploadId\" : \"...\", \"offset\" : 0 }<br>" +
+            "POST /system/pool/createfile?:upload=chunk&amp;uploadId=...&amp;offset=0 with the bytes as an application/octet-stream body returns the new offset<br>" +
+            "GET /system/pool/createfile?uploadId=... returns the offset to resume from<br>" +
+            "POST :upload=commit&amp;uploadId=...&amp;checksum=(hex SHA-1) creates or updates the pool file and returns { \"movie.mp4\" : \"3sd23a4QW4WD\" }</pre>"
+          },
+          parameters={
+            @ServiceParameter(name=":upload", description="initiate, chunk or commit, for a chunked upload."),
+            @ServiceParameter(name="uploadId", description="The id of the chunked upload, as returned when it was initiated."),
+            @ServiceParameter(name="filename", description="When initiating, the name of the file being uploaded."),
+            @ServiceParameter(name="contentType", description="When initiating, optionally the content type of the file. It is otherwise worked out from the file name."),
+            @ServiceParameter(name="length", description="When initiating, optionally the length of the file. The upload can then only be committed once all of it has arrived. Uploads, with or without a length, are limited to sakai.pool.upload.maxLength bytes."),
+            @ServiceParameter(name="offset", description="For a chunk, where in the file it starts. This can be before the current offset, to send a chunk again, but not after it."),
+            @ServiceParameter(name="checksum", description="When committing, optionally the hex SHA-1 of the whole file. The commit fails with a 400 if it doesn't match.")
           },
           response={
           @ServiceResponse(code=201,description="Where files are created"),
           @ServiceResponse(code=400,description="Where the request is invalid"),
+          @ServiceResponse(code=403,description="Where the user already has sakai.pool.upload.maxOpen chunked uploads in progress"),
+          @ServiceResponse(code=404,description="Where the chunked upload does not exist, or belongs to someone else"),
+          @ServiceResponse(code=409,description="Where a chunk starts after the current offset of the upload, or the upload is committed before all of it arrived. The body has the current offset. Also where a chunk or commit arrives while the upload is being committed."),
+          @ServiceResponse(code=413,description="Where the length given when initiating is over sakai.pool.upload.maxLength"),
           @ServiceResponse(code=200,description="Where the file is updated"),
           @ServiceResponse(code=500,description="Failure with HTML explanation.")}
 
@@ -124,6 +156,66 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   private static final Logger LOGGER = LoggerFactory
       .getLogger(CreateContentPoolServlet.class);
 
+  static final String UPLOAD_DIRECTORY = "sakai.pool.upload.directory";
+  static final String UPLOAD_MAX_AGE = "sakai.pool.upload.maxAge";
+  static final long DEFAULT_UPLOAD_MAX_AGE = 24L * 60L * 60L * 1000L;
+  static final String UPLOAD_MAX_LENGTH = "sakai.pool.upload.maxLength";
+  static final long DEFAULT_UPLOAD_MAX_LENGTH = 4L * 1024L * 1024L * 1024L;
+  static final String UPLOAD_MAX_OPEN = "sakai.pool.upload.maxOpen";
+  static final int DEFAULT_UPLOAD_MAX_OPEN = 10;
+
+  static final String UPLOAD_PARAM = ":upload";
+  static final String UPLOAD_INITIATE = "initiate";
+  static final String UPLOAD_CHUNK = "chunk";
+  static final String UPLOAD_COMMIT = "commit";
+  static final String UPLOAD_ID_PARAM = "uploadId";
+  static final String FILENAME_PARAM = "filename";
+  static final String CONTENT_TYPE_PARAM = "contentType";
+  static final String LENGTH_PARAM = "length";
+  static final String OFFSET_PARAM = "offset";
+  static final String CHECKSUM_PARAM = "checksum";
+
+  private File uploadDirectory;
+  private long uploadMaxAge;
+  private long uploadMaxLength;
+  private int uploadMaxOpen;
+  private volatile long lastUploadCleanup;
+
+  /**
+   * Chunked uploads in progress on this server, by id.
+   */
+  private final ConcurrentMap<String, ChunkedUpload> uploads = new ConcurrentHashMap<String, ChunkedUpload>();
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    String directory = OsgiUtil.toString(properties.get(UPLOAD_DIRECTORY), "");
+    if (directory.length() == 0) {
+      uploadDirectory = new File(System.getProperty("java.io.tmpdir"), "sakai-pool-uploads");
+    } else {
+      uploadDirectory = new File(directory);
+    }
+    if (!uploadDirectory.isDirectory() && !uploadDirectory.mkdirs()) {
+      LOGGER.warn("Unable to create {}, chunked uploads will fail", uploadDirectory);
+    }
+    uploadMaxAge = OsgiUtil.toLong(properties.get(UPLOAD_MAX_AGE), DEFAULT_UPLOAD_MAX_AGE);
+    uploadMaxLength = OsgiUtil.toLong(properties.get(UPLOAD_MAX_LENGTH),
+        DEFAULT_UPLOAD_MAX_LENGTH);
+    uploadMaxOpen = OsgiUtil.toInteger(properties.get(UPLOAD_MAX_OPEN),
+        DEFAULT_UPLOAD_MAX_OPEN);
+  }
+
+  /**
+   * Reports how much of a chunked upload has arrived.
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    ChunkedUpload upload = getUpload(request, response);
+    if (upload != null) {
+      writeUploadStatus(response, HttpServletResponse.SC_OK, upload);
+    }
+  }
+
 
   @Override
   protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
@@ -153,6 +245,38 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       return;
     }
 
+    // Chunked uploads only touch the pool when they are committed.
+    ChunkedUpload committing = null;
+    String upload = request.getParameter(UPLOAD_PARAM);
+    if (UPLOAD_INITIATE.equals(upload)) {
+      initiateUpload(request, response, userId, poolId, alternativeStream);
+      return;
+    } else if (UPLOAD_CHUNK.equals(upload)) {
+      writeChunk(request, response);
+      return;
+    } else if (UPLOAD_COMMIT.equals(upload)) {
+      committing = getUpload(request, response);
+      if (committing == null) {
+        return;
+      }
+      // From here on no chunk can be written, and no other commit can start.
+      if (!committing.startCommit()) {
+        response.sendError(HttpServletResponse.SC_CONFLICT, "Upload "
+            + committing.getId() + " is already being committed.");
+        return;
+      }
+      if (!readyToCommit(request, response, committing)) {
+        committing.abortCommit();
+        return;
+      }
+      poolId = committing.getPoolId();
+      alternativeStream = committing.getAlternativeStream();
+    } else if (upload != null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown upload operation "
+          + upload);
+      return;
+    }
+
     Session adminSession = null;
     try {
       // Grab an admin session so we can create files in the pool space.
@@ -168,20 +292,52 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       int statusCode = HttpServletResponse.SC_BAD_REQUEST;
       boolean fileUpload = false;
       Map<String, String> results = new HashMap<String, String>();
+      if (committing != null) {
+        // The pool item, its ACLs and the processing flag are only created now.
+        String contentType = getContentType(committing.getContentType(),
+            committing.getFileName());
+        InputStream in = committing.openStream();
+        try {
+          if (poolId == null) {
+            String createPoolId = generatePoolId();
+            createFile(createPoolId, null, adminSession, committing.getFileName(),
+                contentType, in, au, true);
+            results.put(committing.getFileName(), createPoolId);
+            statusCode = HttpServletResponse.SC_CREATED;
+          } else {
+            createFile(poolId, alternativeStream, session, committing.getFileName(),
+                contentType, in, au, false);
+            results.put(committing.getFileName(), poolId);
+            statusCode = HttpServletResponse.SC_OK;
+          }
+        } finally {
+          in.close();
+        }
+        fileUpload = true;
+        committing.delete();
+        uploads.remove(committing.getId());
+      }
       for (Entry<String, RequestParameter[]> e : request.getRequestParameterMap()
           .entrySet()) {
+        if (committing != null) {
+          break;
+        }
         for (RequestParameter p : e.getValue()) {
           if (!p.isFormField()) {
             // This is a file upload.
             // Generate an ID and store it.
             if ( poolId == null ) {
               String createPoolId = generatePoolId();
-              createFile(createPoolId, null, adminSession, p, au, true);
+              createFile(createPoolId, null, adminSession, p.getFileName(),
+                  getContentType(p.getContentType(), p.getFileName()), p.getInputStream(),
+                  au, true);
               results.put(p.getFileName(), createPoolId);
               statusCode = HttpServletResponse.SC_CREATED;
               fileUpload = true;
             } else {
-              createFile(poolId, alternativeStream, session, p, au, false);
+              createFile(poolId, alternativeStream, session, p.getFileName(),
+                  getContentType(p.getContentType(), p.getFileName()), p.getInputStream(),
+                  au, false);
               // Add it to the map so we can output something to the UI.
               results.put(p.getFileName(), poolId);
               statusCode = HttpServletResponse.SC_OK;
@@ -228,6 +384,10 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       LOGGER.warn(e.getMessage(), e);
       throw new ServletException(e.getMessage(), e);
     } finally {
+      if (committing != null) {
+        // Does nothing once the upload has been removed, otherwise chunks can be resent.
+        committing.abortCommit();
+      }
       // Make sure we're logged out.
       try {
         if ( adminSession != null ) {
@@ -285,17 +445,16 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
 
   }
 
-  private void createFile(String poolId, String alternativeStream, Session session, RequestParameter value,
-      Authorizable au, boolean create) throws IOException, AccessDeniedException, StorageClientException {
-    // Get the content type.
-    String contentType = getContentType(value);
+  private void createFile(String poolId, String alternativeStream, Session session,
+      String fileName, String contentType, InputStream body, Authorizable au,
+      boolean create) throws IOException, AccessDeniedException, StorageClientException {
     ContentManager contentManager = session.getContentManager();
     AccessControlManager accessControlManager = session.getAccessControlManager();
     if ( create ) {
       // Create a proper nt:file node in jcr with some properties on it to make it possible
       // to locate this pool file without having to use the path.
       Map<String, Object> contentProperties = new HashMap<String, Object>();
-      contentProperties.put(POOLED_CONTENT_FILENAME, value.getFileName());
+      contentProperties.put(POOLED_CONTENT_FILENAME, fileName);
       contentProperties.put(SLING_RESOURCE_TYPE_PROPERTY, POOLED_CONTENT_RT);
       contentProperties.put(POOLED_CONTENT_CREATED_FOR, au.getId());
       contentProperties.put(POOLED_NEEDS_PROCESSING, "true");
@@ -306,7 +465,7 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       
       contentManager.update(content);
       
-      contentManager.writeBody(poolId, value.getInputStream());
+      contentManager.writeBody(poolId, body);
       
       
       // deny anon everyting
@@ -323,19 +482,20 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       Content content = contentManager.get(poolId);
       content.setProperty(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream), contentType);
       contentManager.update(content);
-      contentManager.writeBody(poolId, value.getInputStream(),alternativeStream);
+      contentManager.writeBody(poolId, body, alternativeStream);
     }
   }
 
   /**
-   * Get the content type of a file that's in a {@link RequestParameter}.
+   * Get the content type of an uploaded file.
    *
-   * @param value
-   *          The request parameter.
+   * @param contentType
+   *          The content type the client gave, or null.
+   * @param fileName
+   *          The name of the file.
    * @return The content type.
    */
-  private String getContentType(RequestParameter value) {
-    String contentType = value.getContentType();
+  private String getContentType(String contentType, String fileName) {
     if (contentType != null) {
       int idx = contentType.indexOf(';');
       if (idx > 0) {
@@ -344,7 +504,7 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
     }
     if (contentType == null || contentType.equals("application/octet-stream")) {
       // try to find a better content type
-      contentType = getServletContext().getMimeType(value.getFileName());
+      contentType = getServletContext().getMimeType(fileName);
       if (contentType == null || contentType.equals("application/octet-stream")) {
         contentType = "application/octet-stream";
       }
@@ -353,6 +513,194 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   }
 
 
+  /**
+   * Starts a chunked upload and sends its id.
+   */
+  private void initiateUpload(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, String userId, String poolId,
+      String alternativeStream) throws IOException {
+    String fileName = request.getParameter(FILENAME_PARAM);
+    if (fileName == null || fileName.length() == 0) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "A filename is required.");
+      return;
+    }
+    long length = -1;
+    String lengthParam = request.getParameter(LENGTH_PARAM);
+    if (lengthParam != null) {
+      try {
+        length = Long.parseLong(lengthParam);
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid length "
+            + lengthParam);
+        return;
+      }
+      if (length < 0) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid length "
+            + lengthParam);
+        return;
+      }
+      if (uploadMaxLength >= 0 && length > uploadMaxLength) {
+        response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+            "Uploads are limited to " + uploadMaxLength + " bytes.");
+        return;
+      }
+    }
+    removeExpiredUploads();
+
+    ChunkedUpload upload = null;
+    // Counted and added together, so parallel requests can't go over the limit.
+    synchronized (uploads) {
+      if (countUploads(userId) < uploadMaxOpen) {
+        upload = ChunkedUpload.create(uploadDirectory,
+            clusterTrackingService.getClusterUniqueId(), userId, fileName,
+            request.getParameter(CONTENT_TYPE_PARAM), length, poolId, alternativeStream);
+        uploads.put(upload.getId(), upload);
+      }
+    }
+    if (upload == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "No more than " + uploadMaxOpen
+          + " uploads can be in progress at once.");
+      return;
+    }
+    writeUploadStatus(response, HttpServletResponse.SC_CREATED, upload);
+  }
+
+  private int countUploads(String userId) {
+    int n = 0;
+    for (ChunkedUpload upload : uploads.values()) {
+      if (userId.equals(upload.getUserId())) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Writes a chunk of an upload. The chunk is the body of the request, or the first file
+   * in a multipart request.
+   */
+  private void writeChunk(SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws IOException {
+    ChunkedUpload upload = getUpload(request, response);
+    if (upload == null) {
+      return;
+    }
+    long offset;
+    try {
+      offset = Long.parseLong(request.getParameter(OFFSET_PARAM));
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid offset "
+          + request.getParameter(OFFSET_PARAM));
+      return;
+    }
+    InputStream in = null;
+    String requestContentType = request.getContentType();
+    if (requestContentType != null && requestContentType.startsWith("multipart/")) {
+      for (RequestParameter[] values : request.getRequestParameterMap().values()) {
+        for (RequestParameter p : values) {
+          if (in == null && !p.isFormField()) {
+            in = p.getInputStream();
+          }
+        }
+      }
+    } else {
+      in = request.getInputStream();
+    }
+    if (in == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The chunk is missing.");
+      return;
+    }
+    try {
+      upload.write(offset, in, uploadMaxLength);
+      writeUploadStatus(response, HttpServletResponse.SC_OK, upload);
+    } catch (IllegalStateException e) {
+      response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Rejected chunk for {}: {}", upload.getId(), e.getMessage());
+      int status = offset > upload.getOffset() ? HttpServletResponse.SC_CONFLICT
+          : HttpServletResponse.SC_BAD_REQUEST;
+      writeUploadStatus(response, status, upload);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return true if all of the upload has arrived and it matches the checksum, if one was
+   *         sent. Otherwise the response has been sent.
+   */
+  private boolean readyToCommit(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, ChunkedUpload upload) throws IOException {
+    if (!upload.isComplete()) {
+      writeUploadStatus(response, HttpServletResponse.SC_CONFLICT, upload);
+      return false;
+    }
+    String checksum = request.getParameter(CHECKSUM_PARAM);
+    if (checksum != null && !checksum.equalsIgnoreCase(upload.getChecksum())) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "The checksum of the upload doesn't match.");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the upload named in the request, if it belongs to the current user. Otherwise
+   *         null, and a 404 has been sent.
+   */
+  private ChunkedUpload getUpload(SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws IOException {
+    String id = request.getParameter(UPLOAD_ID_PARAM);
+    ChunkedUpload upload = null;
+    if (id != null) {
+      upload = uploads.get(id);
+      if (upload == null) {
+        // Staged before the server restarted.
+        upload = ChunkedUpload.load(uploadDirectory, id);
+        if (upload != null) {
+          ChunkedUpload existing = uploads.putIfAbsent(id, upload);
+          if (existing != null) {
+            upload = existing;
+          }
+        }
+      }
+    }
+    if (upload == null || !upload.getUserId().equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such upload " + id);
+      return null;
+    }
+    return upload;
+  }
+
+  private void writeUploadStatus(SlingHttpServletResponse response, int status,
+      ChunkedUpload upload) throws IOException {
+    response.setStatus(status);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONObject json = new JSONObject();
+      json.put(UPLOAD_ID_PARAM, upload.getId());
+      json.put(OFFSET_PARAM, upload.getOffset());
+      json.put(LENGTH_PARAM, upload.getLength());
+      response.getWriter().write(json.toString());
+    } catch (JSONException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * Removes uploads that have been abandoned, at most once an hour.
+   */
+  private void removeExpiredUploads() {
+    long now = System.currentTimeMillis();
+    if (now - lastUploadCleanup > 60L * 60L * 1000L) {
+      lastUploadCleanup = now;
+      for (String id : ChunkedUpload.removeExpired(uploadDirectory, uploadMaxAge)) {
+        uploads.remove(id);
+      }
+    }
+  }
+
   private String generatePoolId() throws UnsupportedEncodingException,
       NoSuchAlgorithmException {
     return clusterTrackingService.getClusterUniqueId();
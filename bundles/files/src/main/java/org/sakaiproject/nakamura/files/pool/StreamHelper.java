@@ -1,10 +1,12 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_PRECONDITION_FAILED;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -12,8 +14,17 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -23,25 +34,316 @@ import javax.servlet.http.HttpServletResponse;
 
 public class StreamHelper {
 
+  static final String HEADER_ETAG = "ETag";
+  static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  static final String HEADER_IF_MATCH = "If-Match";
+  static final String HEADER_IF_RANGE = "If-Range";
+  static final String HEADER_RANGE = "Range";
+  static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+  /**
+   * The boundary between the parts of a multipart/byteranges response.
+   */
+  static final String BOUNDARY = "SAKAI_BYTERANGE_BOUNDARY";
+
+  /**
+   * A request for more ranges than this is answered with the whole body, rather than
+   * letting a client turn one download into thousands of small parts.
+   */
+  static final int MAX_RANGES = 20;
+
+  private static final int BUFFER_SIZE = 65536;
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
+    Map<String, Object> properties = node.getProperties();
+    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    String etag = getETag(node.getPath(), alternativeStream, modifTime, length);
+
+    // Check the conditional headers before the body is opened, so nothing is left open
+    // when there is nothing to send.
+    String ifMatch = request.getHeader(HEADER_IF_MATCH);
+    if (ifMatch != null && !matches(ifMatch, etag)) {
+      response.setStatus(SC_PRECONDITION_FAILED);
+      return;
+    }
+    String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+    if (ifNoneMatch != null ? matches(ifNoneMatch, etag) : unmodified(request, modifTime)) {
+      if (etag != null) {
+        response.setHeader(HEADER_ETAG, etag);
+      }
+      response.setStatus(SC_NOT_MODIFIED);
+      return;
+    }
+
     InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
 
     if ( dataStream == null ) {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+
+    try {
+      setHeaders(properties, resource, response, alternativeStream, servletContext);
+      if (etag != null) {
+        response.setHeader(HEADER_ETAG, etag);
+      }
+      if (length > 0) {
+        response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+      }
+
+      List<long[]> ranges = null;
+      String range = request.getHeader(HEADER_RANGE);
+      if (range != null && length > 0 && rangeApplies(request, etag, modifTime)) {
+        ranges = parseRanges(range, length);
+      }
+
+      if (ranges == null) {
+        setContentLength(properties, response, alternativeStream);
+        copy(dataStream, response.getOutputStream(), Long.MAX_VALUE);
+      } else if (ranges.isEmpty()) {
+        response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+        response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      } else if (ranges.size() == 1) {
+        long[] r = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(HEADER_CONTENT_RANGE, contentRange(r, length));
+        setContentLength(response, r[1] - r[0] + 1);
+        copyRange(dataStream, response.getOutputStream(), r[0], r[1] - r[0] + 1);
+      } else {
+        streamMultipart(dataStream, ranges, length, response);
+      }
+    } finally {
+      dataStream.close();
+    }
+  }
+
+  /**
+   * Writes the ranges as a multipart/byteranges body. The ranges are in order and don't
+   * overlap, so the stream is read forwards once.
+   */
+  private void streamMultipart(InputStream dataStream, List<long[]> ranges, long length,
+      HttpServletResponse response) throws IOException {
+    String contentType = response.getContentType();
+    List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+    long contentLength = 0;
+    for (long[] r : ranges) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("\r\n--").append(BOUNDARY).append("\r\n");
+      if (contentType != null) {
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+      }
+      sb.append("Content-Range: ").append(contentRange(r, length)).append("\r\n\r\n");
+      byte[] header = ascii(sb.toString());
+      partHeaders.add(header);
+      contentLength += header.length + r[1] - r[0] + 1;
+    }
+    byte[] end = ascii("\r\n--" + BOUNDARY + "--\r\n");
+    contentLength += end.length;
+
+    response.setStatus(SC_PARTIAL_CONTENT);
+    response.setContentType("multipart/byteranges; boundary=" + BOUNDARY);
+    setContentLength(response, contentLength);
+
+    OutputStream out = response.getOutputStream();
+    long position = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      long[] r = ranges.get(i);
+      out.write(partHeaders.get(i));
+      copyRange(dataStream, out, r[0] - position, r[1] - r[0] + 1);
+      position = r[1] + 1;
+    }
+    out.write(end);
+  }
+
+  /**
+   * Parses a <code>Range</code> header against a body of <code>length</code> bytes.
+   *
+   * @return null if the header can't be parsed or should be ignored, in which case the
+   *         whole body is sent, an empty list if none of the ranges can be satisfied, or
+   *         the ranges as inclusive [first, last] pairs, sorted and with overlapping or
+   *         adjacent ranges merged.
+   */
+  static List<long[]> parseRanges(String header, long length) {
+    header = header.trim();
+    if (!header.startsWith("bytes=")) {
+      return null;
+    }
+    String[] specs = header.substring("bytes=".length()).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<long[]>();
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first;
+      long last;
+      try {
+        if (dash == 0) {
+          // The last n bytes.
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix == 0) {
+            continue;
+          }
+          first = Math.max(0, length - suffix);
+          last = length - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, dash));
+          String end = spec.substring(dash + 1);
+          last = end.length() == 0 ? Long.MAX_VALUE : Long.parseLong(end);
+          if (last < first) {
+            return null;
+          }
+          last = Math.min(last, length - 1);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (first < 0) {
+        return null;
+      }
+      if (first < length) {
+        ranges.add(new long[] { first, last });
+      }
+    }
+
+    Collections.sort(ranges, new Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+    List<long[]> merged = new ArrayList<long[]>(ranges.size());
+    for (long[] r : ranges) {
+      long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (previous != null && r[0] <= previous[1] + 1) {
+        previous[1] = Math.max(previous[1], r[1]);
+      } else {
+        merged.add(r);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * A <code>Range</code> only applies if there is no <code>If-Range</code>, or the
+   * <code>If-Range</code> still matches the body. Otherwise the whole body is sent.
+   */
+  private boolean rangeApplies(HttpServletRequest request, String etag, long modifTime) {
+    String ifRange = request.getHeader(HEADER_IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.trim().startsWith("\"")) {
+      return etag != null && etag.equals(ifRange.trim());
+    }
+    try {
+      long date = request.getDateHeader(HEADER_IF_RANGE);
+      return modifTime > 0 && date >= 0 && modifTime / 1000 <= date / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the If-None-Match or If-Match header value lists the etag, or is *.
+   */
+  private boolean matches(String header, String etag) {
+    if ("*".equals(header.trim())) {
+      return true;
+    }
+    if (etag == null) {
+      return false;
+    }
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The ETag is a hash of what identifies this version of the body: its path, the
+   * alternative stream, the last modification time and the length. This is the same on
+   * every server and across restarts, without reading the body to work it out.
+   *
+   * @return the ETag, or null if the body has no modification time to version it by.
+   */
+  static String getETag(String path, String alternativeStream, long modifTime, long length) {
+    if (modifTime <= 0) {
+      return null;
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest((path + ":" + alternativeStream + ":" + modifTime + ":" + length)
+          .getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder(digest.length * 2 + 2);
+      sb.append('"');
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    } catch (UnsupportedEncodingException e) {
+      return null;
     }
+  }
+
+  private String contentRange(long[] r, long length) {
+    return "bytes " + r[0] + "-" + r[1] + "/" + length;
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  private byte[] ascii(String s) throws UnsupportedEncodingException {
+    return s.getBytes("US-ASCII");
+  }
+
+  /**
+   * Copies <code>count</code> bytes after skipping <code>skip</code> bytes from the
+   * current position of the stream. Skipping a file backed body seeks rather than reads.
+   */
+  private void copyRange(InputStream in, OutputStream out, long skip, long count)
+      throws IOException {
+    while (skip > 0) {
+      long skipped = in.skip(skip);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException("The body is shorter than its length.");
+        }
+        skipped = 1;
+      }
+      skip -= skipped;
+    }
+    if (copy(in, out, count) < count) {
+      throw new EOFException("The body is shorter than its length.");
+    }
+  }
+
+  /**
+   * @return the number of bytes copied, less than count only at the end of the stream.
+   */
+  private long copy(InputStream in, OutputStream out, long count) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long copied = 0;
+    while (copied < count) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, count - copied));
+      if (n < 0) {
+        break;
+      }
+      out.write(buffer, 0, n);
+      copied += n;
+    }
+    return copied;
   }
 
   /**
@@ -72,7 +374,7 @@ public class StreamHelper {
    * @param resource
    * @param request
    * @param response
-   * @param servletContext 
+   * @param servletContext
    * @throws RepositoryException
    */
   private void setHeaders(Map<String, Object> properties, Resource resource, HttpServletResponse response, String alternativeStream, ServletContext servletContext) {
@@ -113,6 +415,10 @@ public class StreamHelper {
    */
   private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
     long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    setContentLength(response, length);
+  }
+
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
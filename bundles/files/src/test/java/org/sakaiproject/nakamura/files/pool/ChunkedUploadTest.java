@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ *
+ */
+public class ChunkedUploadTest {
+
+  private File directory;
+
+  @Before
+  public void before() throws IOException {
+    directory = File.createTempFile("chunkedupload", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void after() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void testChunksAreAssembledInOrder() throws Exception {
+    ChunkedUpload upload = ChunkedUpload.create(directory, "u1", "ieb", "a.txt",
+        "text/plain", 10, null, null);
+    assertEquals(0, upload.getOffset());
+    assertEquals(5, upload.write(0, stream("01234"), -1));
+    assertFalse(upload.isComplete());
+    assertEquals(10, upload.write(5, stream("56789"), -1));
+    assertTrue(upload.isComplete());
+    assertEquals(sha1("0123456789"), upload.getChecksum());
+    assertEquals("0123456789", read(upload));
+  }
+
+  @Test
+  public void testChunkCanBeSentAgain() throws Exception {
+    ChunkedUpload upload = ChunkedUpload.create(directory, "u1", "ieb", "a.txt", null,
+        -1, null, null);
+    upload.write(0, stream("01234"), -1);
+    upload.write(5, stream("5678X"), -1);
+    // The client didn't hear that the second chunk arrived, and sends it again fixed.
+    assertEquals(10, upload.write(5, stream("56789"), -1));
+    assertEquals("0123456789", read(upload));
+    assertEquals(sha1("0123456789"), upload.getChecksum());
+  }
+
+  @Test
+  public void testChunkAfterOffsetIsRejected() throws Exception {
+    ChunkedUpload upload = ChunkedUpload.create(directory, "u1", "ieb", "a.txt", null,
+        -1, null, null);
+    upload.write(0, stream("01234"), -1);
+    try {
+      upload.write(6, stream("6789"), -1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(5, upload.getOffset());
+  }
+
+  @Test
+  public void testChunkPastLengthIsRejected() throws Exception {
+    ChunkedUpload upload = ChunkedUpload.create(directory, "u1", "ieb", "a.txt", null,
+        8, null, null);
+    upload.write(0, stream("01234"), -1);
+    try {
+      upload.write(5, stream("56789"), -1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(5, upload.getOffset());
+    assertEquals(8, upload.write(5, stream("567"), -1));
+    assertTrue(upload.isComplete());
+    assertEquals(sha1("01234567"), upload.getChecksum());
+  }
+
+  @Test
+  public void testUploadWithoutLengthIsLimited() throws Exception {
+    ChunkedUpload upload = ChunkedUpload.create(directory, "u1", "ieb", "a.txt", null,
+        -1, null, null);
+    upload.write(0, stream("01234"), 8);
+    try {
+      upload.write(5, stream("56789"), 8);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(5, upload.getOffset());
+  }
+
+  @Test
+  public void testNoChunksWhileCommitting() throws Exception {
+    ChunkedUpload upload = ChunkedUpload.create(directory, "u1", "ieb", "a.txt", null,
+        -1, null, null);
+    upload.write(0, stream("01234"), -1);
+    assertTrue(upload.startCommit());
+    assertFalse(upload.startCommit());
+    try {
+      upload.write(5, stream("56789"), -1);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    upload.abortCommit();
+    assertEquals(10, upload.write(5, stream("56789"), -1));
+
+    upload.delete();
+    assertFalse(upload.startCommit());
+    try {
+      upload.write(0, stream("01234"), -1);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertFalse(new File(directory, "u1.data").exists());
+  }
+
+  @Test
+  public void testLoadResumesUpload() throws Exception {
+    ChunkedUpload upload = ChunkedUpload.create(directory, "u1", "ieb", "a.txt",
+        "text/plain", 10, "pool1", "alt");
+    upload.write(0, stream("01234"), -1);
+
+    ChunkedUpload loaded = ChunkedUpload.load(directory, "u1");
+    assertEquals("ieb", loaded.getUserId());
+    assertEquals("a.txt", loaded.getFileName());
+    assertEquals("text/plain", loaded.getContentType());
+    assertEquals(10, loaded.getLength());
+    assertEquals("pool1", loaded.getPoolId());
+    assertEquals("alt", loaded.getAlternativeStream());
+    assertEquals(5, loaded.getOffset());
+    loaded.write(5, stream("56789"), -1);
+    assertEquals(sha1("0123456789"), loaded.getChecksum());
+
+    assertNull(ChunkedUpload.load(directory, "missing"));
+    assertNull(ChunkedUpload.load(directory, "../u1"));
+  }
+
+  @Test
+  public void testExpiredUploadsAreRemoved() throws Exception {
+    ChunkedUpload old = ChunkedUpload.create(directory, "old", "ieb", "a.txt", null, -1,
+        null, null);
+    ChunkedUpload.create(directory, "new", "ieb", "b.txt", null, -1, null, null);
+    new File(directory, "old.data").setLastModified(System.currentTimeMillis() - 100000L);
+
+    String[] removed = ChunkedUpload.removeExpired(directory, 50000L);
+    assertEquals(1, removed.length);
+    assertEquals(old.getId(), removed[0]);
+    assertNull(ChunkedUpload.load(directory, "old"));
+    assertEquals("b.txt", ChunkedUpload.load(directory, "new").getFileName());
+  }
+
+  private InputStream stream(String s) throws IOException {
+    return new ByteArrayInputStream(s.getBytes("UTF-8"));
+  }
+
+  private String read(ChunkedUpload upload) throws IOException {
+    InputStream in = upload.openStream();
+    try {
+      return IOUtils.toString(in, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  private String sha1(String s) throws Exception {
+    byte[] hash = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+    StringBuilder sb = new StringBuilder();
+    for (byte b : hash) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+}
@@ -28,6 +28,7 @@ import com.google.common.collect.ImmutableMap;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.commons.io.FileUtils;
 import org.apache.kahadb.util.ByteArrayInputStream;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -50,10 +51,13 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -72,6 +76,8 @@ import javax.jcr.security.AccessControlList;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.AccessControlPolicy;
 import javax.jcr.security.Privilege;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletResponse;
 
 public class CreateContentPoolServletTest {
 
@@ -256,4 +262,142 @@ public class CreateContentPoolServletTest {
     Assert.assertEquals(2, jsonObject.length());
 
   }
+
+  @Test
+  public void testChunkedUpload() throws Exception {
+    File directory = File.createTempFile("uploads", "");
+    directory.delete();
+    try {
+      when(request.getResourceResolver()).thenReturn(resourceResolver);
+      when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSesson);
+      Session session = repository.loginAdministrative("ieb");
+      when(jcrSesson.getUserManager()).thenReturn(sparseMapUserManager);
+      when(sparseMapUserManager.getSession()).thenReturn(session);
+      when(clusterTrackingService.getClusterUniqueId()).thenReturn("upload1");
+      when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
+      when(requestPathInfo.getExtension()).thenReturn(null);
+      when(request.getRemoteUser()).thenReturn("ieb");
+      when(request.getRequestParameterMap()).thenReturn(requestParameterMap);
+
+      CreateContentPoolServlet cp = new CreateContentPoolServlet();
+      cp.clusterTrackingService = clusterTrackingService;
+      cp.sparseRepository = repository;
+      cp.activate(ImmutableMap.of(CreateContentPoolServlet.UPLOAD_DIRECTORY,
+          (Object) directory.getAbsolutePath()));
+
+      // initiate
+      when(request.getParameter(":upload")).thenReturn("initiate");
+      when(request.getParameter("filename")).thenReturn("movie.txt");
+      when(request.getParameter("contentType")).thenReturn("text/plain");
+      when(request.getParameter("length")).thenReturn("10");
+      StringWriter stringWriter = new StringWriter();
+      when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+      cp.doPost(request, response);
+      Mockito.verify(response).setStatus(HttpServletResponse.SC_CREATED);
+      Assert.assertEquals("upload1", new JSONObject(stringWriter.toString()).getString("uploadId"));
+
+      // two chunks, the second sent before the first has all arrived is refused
+      when(request.getParameter(":upload")).thenReturn("chunk");
+      when(request.getParameter("uploadId")).thenReturn("upload1");
+      when(request.getParameter("offset")).thenReturn("0");
+      when(request.getInputStream()).thenReturn(servletStream("01234"));
+      cp.doPost(request, response);
+      when(request.getParameter("offset")).thenReturn("6");
+      when(request.getInputStream()).thenReturn(servletStream("6789"));
+      stringWriter = new StringWriter();
+      when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+      cp.doPost(request, response);
+      Mockito.verify(response).setStatus(HttpServletResponse.SC_CONFLICT);
+      Assert.assertEquals(5, new JSONObject(stringWriter.toString()).getLong("offset"));
+      when(request.getParameter("offset")).thenReturn("5");
+      when(request.getInputStream()).thenReturn(servletStream("56789"));
+      cp.doPost(request, response);
+
+      // progress
+      stringWriter = new StringWriter();
+      when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+      cp.doGet(request, response);
+      Assert.assertEquals(10, new JSONObject(stringWriter.toString()).getLong("offset"));
+
+      // commit
+      when(request.getParameter(":upload")).thenReturn("commit");
+      when(request.getParameter("checksum")).thenReturn(
+          "87acec17cd9dcd20a716cc2cf67417b71c8a7016");
+      stringWriter = new StringWriter();
+      when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+      cp.doPost(request, response);
+
+      String poolId = new JSONObject(stringWriter.toString()).getString("movie.txt");
+      Content content = session.getContentManager().get(poolId);
+      Assert.assertEquals("movie.txt", content.getProperty("sakai:pooled-content-file-name"));
+      Assert.assertEquals("true", content.getProperty("sakai:needsprocessing"));
+      InputStream in = session.getContentManager().getInputStream(poolId);
+      Assert.assertEquals("0123456789", org.apache.commons.io.IOUtils.toString(in));
+      in.close();
+      Assert.assertEquals(0, directory.list().length);
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void testChunkedUploadLimits() throws Exception {
+    File directory = File.createTempFile("uploads", "");
+    directory.delete();
+    try {
+      when(request.getResourceResolver()).thenReturn(resourceResolver);
+      when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSesson);
+      Session session = repository.loginAdministrative("ieb");
+      when(jcrSesson.getUserManager()).thenReturn(sparseMapUserManager);
+      when(sparseMapUserManager.getSession()).thenReturn(session);
+      when(clusterTrackingService.getClusterUniqueId()).thenReturn("upload1", "upload2",
+          "upload3");
+      when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
+      when(requestPathInfo.getExtension()).thenReturn(null);
+      when(request.getRemoteUser()).thenReturn("ieb");
+      when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+      CreateContentPoolServlet cp = new CreateContentPoolServlet();
+      cp.clusterTrackingService = clusterTrackingService;
+      cp.sparseRepository = repository;
+      cp.activate(ImmutableMap.of(CreateContentPoolServlet.UPLOAD_DIRECTORY,
+          (Object) directory.getAbsolutePath(), CreateContentPoolServlet.UPLOAD_MAX_LENGTH,
+          8L, CreateContentPoolServlet.UPLOAD_MAX_OPEN, 2));
+
+      when(request.getParameter(":upload")).thenReturn("initiate");
+      when(request.getParameter("filename")).thenReturn("movie.txt");
+      when(request.getParameter("length")).thenReturn("10");
+      cp.doPost(request, response);
+      Mockito.verify(response).sendError(
+          Mockito.eq(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE), Mockito.anyString());
+
+      // Without a length the limit applies to the chunks.
+      when(request.getParameter("length")).thenReturn(null);
+      cp.doPost(request, response);
+      cp.doPost(request, response);
+      cp.doPost(request, response);
+      Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_FORBIDDEN),
+          Mockito.anyString());
+
+      when(request.getParameter(":upload")).thenReturn("chunk");
+      when(request.getParameter("uploadId")).thenReturn("upload1");
+      when(request.getParameter("offset")).thenReturn("0");
+      when(request.getInputStream()).thenReturn(servletStream("0123456789"));
+      cp.doPost(request, response);
+      Mockito.verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      Assert.assertEquals(0L, new File(directory, "upload1.data").length());
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  private ServletInputStream servletStream(String body) {
+    final InputStream in = new java.io.ByteArrayInputStream(body.getBytes());
+    return new ServletInputStream() {
+      @Override
+      public int read() throws IOException {
+        return in.read();
+      }
+    };
+  }
 }
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.api.resource.Resource;
+import org.mockito.Matchers;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Downloads a large file through {@link StreamHelper}, whole and with a Range request
+ * from the middle the way a video player seeks, from a file backed body and from a
+ * buffered stream. IOUtils.copyLarge (what StreamHelper used before) and
+ * FileChannel.transferTo onto the output stream are timed on the same file for
+ * comparison. The output is discarded, so this measures the copy and not a network.
+ *
+ * <pre>
+ * java -cp ... org.sakaiproject.nakamura.files.pool.StreamHelperBenchmark [MB] [runs]
+ * </pre>
+ */
+public class StreamHelperBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int mb = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    long length = mb * 1024L * 1024L;
+
+    File file = File.createTempFile("streamhelper", ".bin");
+    file.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    byte[] block = new byte[1024 * 1024];
+    for (int i = 0; i < block.length; i++) {
+      block[i] = (byte) i;
+    }
+    for (int i = 0; i < mb; i++) {
+      raf.write(block);
+    }
+    raf.close();
+
+    System.out.println("Streaming " + mb + " MB, " + runs + " runs");
+    for (int run = 0; run < runs; run++) {
+      report("IOUtils.copyLarge", length, copyLarge(file));
+      report("FileChannel.transferTo", length, transferTo(file));
+      report("file backed", length, run(file, length, true, null));
+      report("buffered stream", length, run(file, length, false, null));
+      String seek = "bytes=" + (length / 2) + "-";
+      report("file backed, seek to middle", length / 2, run(file, length, true, seek));
+      report("buffered stream, seek to middle", length / 2, run(file, length, false, seek));
+    }
+  }
+
+  private static void report(String name, long bytes, long nanos) {
+    double seconds = nanos / 1e9;
+    System.out.println(String.format("%-32s %8.0f ms %8.0f MB/s", name, seconds * 1000,
+        bytes / 1048576.0 / seconds));
+  }
+
+  private static long copyLarge(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    CountingOutputStream out = new CountingOutputStream();
+    long start = System.nanoTime();
+    IOUtils.copyLarge(in, out);
+    long nanos = System.nanoTime() - start;
+    in.close();
+    return nanos;
+  }
+
+  private static long transferTo(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    CountingOutputStream out = new CountingOutputStream();
+    long start = System.nanoTime();
+    FileChannel channel = in.getChannel();
+    WritableByteChannel target = Channels.newChannel(out);
+    long position = 0;
+    long size = channel.size();
+    while (position < size) {
+      position += channel.transferTo(position, size - position, target);
+    }
+    long nanos = System.nanoTime() - start;
+    in.close();
+    return nanos;
+  }
+
+  private static long run(File file, long length, boolean fileBacked, String range)
+      throws Exception {
+    InputStream in = new FileInputStream(file);
+    if (!fileBacked) {
+      in = new BufferedInputStream(in);
+    }
+    Content content = new Content("p/benchmark", ImmutableMap.of(Content.LENGTH_FIELD,
+        (Object) length, Content.LASTMODIFIED_FIELD, System.currentTimeMillis()));
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.getInputStream("p/benchmark", null)).thenReturn(in);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getDateHeader(Matchers.anyString())).thenReturn(-1L);
+    when(request.getHeader("Range")).thenReturn(range);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    CountingOutputStream out = new CountingOutputStream();
+    when(response.getOutputStream()).thenReturn(out);
+
+    long start = System.nanoTime();
+    new StreamHelper().stream(request, contentManager, content, null, response,
+        mock(Resource.class), mock(ServletContext.class));
+    long nanos = System.nanoTime() - start;
+    long expected = range == null ? length : length - length / 2;
+    if (out.written != expected) {
+      throw new IllegalStateException("Wrote " + out.written + " bytes, expected " + expected);
+    }
+    return nanos;
+  }
+
+  private static class CountingOutputStream extends ServletOutputStream {
+    private long written;
+
+    @Override
+    public void write(int b) throws IOException {
+      written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      written += len;
+    }
+  }
+}
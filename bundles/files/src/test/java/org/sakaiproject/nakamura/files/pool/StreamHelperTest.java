@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class StreamHelperTest {
+
+  private static final String BODY = "0123456789abcdefghij";
+  private static final long MODIFIED = 1300000000000L;
+
+  @Mock
+  private HttpServletRequest request;
+  @Mock
+  private HttpServletResponse response;
+  @Mock
+  private ContentManager contentManager;
+  @Mock
+  private Resource resource;
+  @Mock
+  private ServletContext servletContext;
+
+  private Content content;
+  private ByteArrayOutputStream out;
+  private StreamHelper streamHelper;
+  private String etag;
+
+  @Before
+  public void before() throws Exception {
+    content = new Content("p/abc", ImmutableMap.of(Content.LENGTH_FIELD,
+        (Object) BODY.length(), Content.LASTMODIFIED_FIELD, MODIFIED,
+        Content.MIMETYPE_FIELD, "text/plain"));
+    etag = StreamHelper.getETag("p/abc", null, MODIFIED, BODY.length());
+    when(contentManager.getInputStream("p/abc", null)).thenReturn(
+        new ByteArrayInputStream(BODY.getBytes("UTF-8")));
+    when(request.getDateHeader(Matchers.anyString())).thenReturn(-1L);
+
+    out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+    });
+    streamHelper = new StreamHelper();
+  }
+
+  @Test
+  public void testWholeBody() throws Exception {
+    stream();
+
+    assertEquals(BODY, out.toString("UTF-8"));
+    verify(response).setContentLength(BODY.length());
+    verify(response).setHeader("ETag", etag);
+    verify(response).setHeader("Accept-Ranges", "bytes");
+    verify(response, never()).setStatus(Matchers.anyInt());
+  }
+
+  @Test
+  public void testIfNoneMatchDoesNotOpenTheBody() throws Exception {
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + etag);
+
+    stream();
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(contentManager, never()).getInputStream("p/abc", null);
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testIfModifiedSinceDoesNotOpenTheBody() throws Exception {
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(MODIFIED + 1000);
+
+    stream();
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(contentManager, never()).getInputStream("p/abc", null);
+  }
+
+  @Test
+  public void testChangedETagSendsTheBody() throws Exception {
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+    // If-None-Match takes precedence over If-Modified-Since.
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(MODIFIED + 1000);
+
+    stream();
+
+    assertEquals(BODY, out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=2-5");
+
+    stream();
+
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(response).setHeader("Content-Range", "bytes 2-5/20");
+    verify(response).setContentLength(4);
+    assertEquals("2345", out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testSuffixRange() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=-3");
+
+    stream();
+
+    verify(response).setHeader("Content-Range", "bytes 17-19/20");
+    assertEquals("hij", out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=10-11,0-1");
+    when(response.getContentType()).thenReturn("text/plain");
+
+    stream();
+
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(response).setContentType(
+        "multipart/byteranges; boundary=" + StreamHelper.BOUNDARY);
+    String expected = "\r\n--" + StreamHelper.BOUNDARY + "\r\n"
+        + "Content-Type: text/plain\r\nContent-Range: bytes 0-1/20\r\n\r\n01"
+        + "\r\n--" + StreamHelper.BOUNDARY + "\r\n"
+        + "Content-Type: text/plain\r\nContent-Range: bytes 10-11/20\r\n\r\nab"
+        + "\r\n--" + StreamHelper.BOUNDARY + "--\r\n";
+    assertEquals(expected, out.toString("UTF-8"));
+    verify(response).setContentLength(expected.length());
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=20-");
+
+    stream();
+
+    verify(response).setHeader("Content-Range", "bytes */20");
+    verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testIfRangeMismatchSendsTheWholeBody() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=2-5");
+    when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+
+    stream();
+
+    verify(response, never()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    assertEquals(BODY, out.toString("UTF-8"));
+
+    // And the range is honoured when it matches.
+    out.reset();
+    when(contentManager.getInputStream("p/abc", null)).thenReturn(
+        new ByteArrayInputStream(BODY.getBytes("UTF-8")));
+    when(request.getHeader("If-Range")).thenReturn(etag);
+    stream();
+    assertEquals("2345", out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testFileBackedRanges() throws Exception {
+    File file = File.createTempFile("streamhelper", ".txt");
+    file.deleteOnExit();
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write(BODY.getBytes("UTF-8"));
+    fos.close();
+    when(contentManager.getInputStream("p/abc", null)).thenReturn(
+        new FileInputStream(file));
+    when(request.getHeader("Range")).thenReturn("bytes=3-4,15-");
+
+    stream();
+
+    String result = out.toString("UTF-8");
+    assertEquals(true, result.contains("\r\n\r\n34\r\n"));
+    assertEquals(true, result.contains("\r\n\r\nfghij\r\n"));
+
+    out.reset();
+    when(contentManager.getInputStream("p/abc", null)).thenReturn(
+        new FileInputStream(file));
+    when(request.getHeader("Range")).thenReturn(null);
+    stream();
+    assertEquals(BODY, out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testParseRanges() {
+    List<long[]> ranges = StreamHelper.parseRanges("bytes=0-4, 3-9, 15-", 20);
+    assertEquals(2, ranges.size());
+    assertEquals(0, ranges.get(0)[0]);
+    assertEquals(9, ranges.get(0)[1]);
+    assertEquals(15, ranges.get(1)[0]);
+    assertEquals(19, ranges.get(1)[1]);
+
+    assertEquals(19, StreamHelper.parseRanges("bytes=5-100", 20).get(0)[1]);
+    assertEquals(0, StreamHelper.parseRanges("bytes=-100", 20).get(0)[0]);
+    assertEquals(0, StreamHelper.parseRanges("bytes=25-30", 20).size());
+    assertNull(StreamHelper.parseRanges("bytes=5-2", 20));
+    assertNull(StreamHelper.parseRanges("bytes=a-b", 20));
+    assertNull(StreamHelper.parseRanges("items=0-1", 20));
+  }
+
+  private void stream() throws Exception {
+    streamHelper.stream(request, contentManager, content, null, response, resource,
+        servletContext);
+  }
+}
@@ -30,13 +30,20 @@ import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -53,8 +60,18 @@ import javax.servlet.http.HttpServletResponse;
  * configured regex patterns. Each configured pattern must also have a corresponding
  * maxage value (in seconds) to use if the pattern matches.
  * 
- * When more than one pattern matches, the filter sets the lowest maxage of the collection
- * of matching patterns.
+ * Subpath rules take precedence over patterns, the deepest matching subpath wins, and
+ * when more than one pattern matches the first one configured wins. See
+ * {@link PathRuleMatcher}.
+ *
+ * Paths with a .requestCache setting have their whole response captured and replayed. While
+ * one request renders an expired entry, concurrent requests for the same key wait for it
+ * rather than rendering it again. Rendered and replayed responses carry a strong ETag so
+ * clients can revalidate with If-None-Match and get a 304, which means the content of a
+ * response that may be cached is held back until it is complete. Text responses are also
+ * stored with the configured content encodings, and replayed encoded to clients that
+ * accept them. Each node renders and holds its own copies; with a cluster scope, a node
+ * whose render of an entry has changed drops the copies the other nodes hold.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -68,25 +85,17 @@ import javax.servlet.http.HttpServletResponse;
         "root;.*(js|css)$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding",
         "root;.*html$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding",
         "var;^/var/search/public/.*$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:3600;Vary: Accept-Encoding",
-        "var;^/var/widgets.json$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding"}, 
+        "var;^/var/widgets.json$;.lastmodified:unset;.cookies:unset;.expires:180000;Vary: Accept-Encoding"}, 
         description = "List of path prefixes followed by a regex. If the prefix starts with a root: it means files in the root folder that match the pattern."),
     @Property(name = "service.vendor", value = "The Sakai Foundation")})
 public class CacheControlFilter implements Filter {
 
-  /**
-   * map of expiry times for whole subtrees
-   */
-  private Map<String, Map<String,String>> subPaths;
-
-  /**
-   * map of patterns by subtree
-   */
-  private Map<String, Map<Pattern,  Map<String,String>>> subPathPatterns;
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheControlFilter.class);
 
   /**
-   * list of patterns for the root resources
+   * the compiled subpath and pattern rules.
    */
-  private Map<Pattern,  Map<String,String>> rootPathPatterns;
+  private PathRuleMatcher pathRules = new PathRuleMatcher();
 
   static final String SAKAI_CACHE_PATTERNS = "sakai.cache.patterns";
 
@@ -98,6 +107,49 @@ public class CacheControlFilter implements Filter {
   @Property(intValue=5)
   private static final String FILTER_PRIORITY_CONF = "filter.priority";
 
+  /**
+   * The scope of the response cache. INSTANCE keeps a private copy per node.
+   * CLUSTERINVALIDATED also keeps a copy per node, but when a node renders an entry again
+   * and the content has changed, the stale copies held by the others are dropped.
+   */
+  @Property(value="INSTANCE")
+  static final String SAKAI_CACHE_SCOPE = "sakai.cache.scope";
+
+  /**
+   * The longest time in ms a request will wait for another request rendering the same
+   * cache key before rendering it itself.
+   */
+  @Property(intValue=10000)
+  static final String SAKAI_CACHE_COALESCE_WAIT = "sakai.cache.coalesce.wait";
+
+  /**
+   * Content encodings stored alongside cached text responses, gzip and deflate are
+   * supported.
+   */
+  @Property(value={"gzip"})
+  static final String SAKAI_CACHE_ENCODINGS = "sakai.cache.encodings";
+
+  /**
+   * The largest response in bytes, including its encoded copies, that will be held in the
+   * response cache. 0 means no limit.
+   */
+  @Property(intValue=1048576)
+  static final String SAKAI_CACHE_MAX_ENTRY_SIZE = "sakai.cache.max.entry.size";
+
+  private CacheScope cacheScope = CacheScope.INSTANCE;
+
+  private Set<String> encodings = new HashSet<String>();
+
+  private int maxEntrySize = 1048576;
+
+  private long coalesceWait = 10000L;
+
+  /**
+   * Cache keys currently being rendered, with a latch that is released when the render
+   * completes.
+   */
+  private ConcurrentMap<String, CountDownLatch> rendering = new ConcurrentHashMap<String, CountDownLatch>();
+
   
   @Reference 
   protected CacheManagerService cacheManagerService;
@@ -130,6 +182,7 @@ public class CacheControlFilter implements Filter {
     boolean withCookies = true;
     int cacheAge = 0;
     CachedResponseManager cachedResponseManager = null;
+    CountDownLatch renderLatch = null;
     FilterResponseWrapper fresponse = null;
     if ("GET".equals(srequest.getMethod())) {
       headers = getHeaders(path);
@@ -160,64 +213,86 @@ public class CacheControlFilter implements Filter {
       sresponse.flushBuffer();
     } else {
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache(), encodings, maxEntrySize);
+        if ( !cachedResponseManager.isValid() ) {
+          renderLatch = startRender(cachedResponseManager);
+        }
         if ( cachedResponseManager.isValid() ) {
-          cachedResponseManager.send(sresponse);
+          cachedResponseManager.send(srequest, sresponse);
           return;
         }
       }
-      if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
-        fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
-      }
-      if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
-        if ( cachedResponseManager != null ) {
-          cachedResponseManager.save(fresponse.getResponseOperation());
+      try {
+        if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
+          // hold back the content of a response that may be cached, so it goes out with its ETag.
+          fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null, maxEntrySize);
+        }
+        if ( fresponse != null ) {
+          try {
+            chain.doFilter(request, fresponse);
+            if ( cachedResponseManager != null ) {
+              cachedResponseManager.save(fresponse.getResponseOperation(), sresponse);
+            }
+          } finally {
+            // send what was held back, even if the chain failed part way through.
+            fresponse.release();
+          }
+        } else {
+          chain.doFilter(request, response);
+        }
+      } finally {
+        if ( renderLatch != null ) {
+          endRender(cachedResponseManager.getKey(), renderLatch);
         }
-      } else {
-        chain.doFilter(request, response);
       }
     }
   }
 
-  private Cache<CachedResponse> getCache() {
-    return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE);
+  /**
+   * Either claim the render of a missing cache entry, or wait for the request that already
+   * claimed it.
+   *
+   * @param cachedResponseManager
+   * @return the latch to release once rendering is complete, or null if this request did
+   *         not claim the render. In that case the manager has been reloaded and may now
+   *         hold a valid response.
+   */
+  private CountDownLatch startRender(CachedResponseManager cachedResponseManager) {
+    String key = cachedResponseManager.getKey();
+    CountDownLatch latch = new CountDownLatch(1);
+    CountDownLatch inProgress = rendering.putIfAbsent(key, latch);
+    if (inProgress == null) {
+      // another request may have finished rendering between the load and the claim.
+      if (cachedResponseManager.reload()) {
+        endRender(key, latch);
+        return null;
+      }
+      return latch;
+    }
+    try {
+      if (!inProgress.await(coalesceWait, TimeUnit.MILLISECONDS)) {
+        LOGGER.debug("Gave up waiting for {} to be rendered ", key);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // if the other render was not cacheable, this request renders without coalescing.
+    cachedResponseManager.reload();
+    return null;
   }
 
+  private void endRender(String key, CountDownLatch latch) {
+    rendering.remove(key, latch);
+    latch.countDown();
+  }
 
-  private Map<String, String> getHeaders(String path) {
-
-    // get the Path and then the first 2 elements (2 so that we can tell if this is root
-    // or not
-    String[] elements = StringUtils.split(path, "/", 2);
-
-    if (elements.length == 0) { // odd request
-      return null;
-    } else if (elements.length == 1) { // root request eg /index.html
-      for (Entry<Pattern, Map<String, String>> p : rootPathPatterns.entrySet()) {
-        if (p.getKey().matcher(path).matches()) {
-          return p.getValue();
-        }
-      }
-    } else { // subtree //p/index.html
+  private Cache<CachedResponse> getCache() {
+    return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", cacheScope);
+  }
 
-      // check if there is a subtree with a setting
-      Map<String, String> headers = subPaths.get(elements[0]);
-      if (headers != null) {
-        return headers;
-      }
 
-      // or a set of patterns for the subtree
-      Map<Pattern, Map<String, String>> patterns = subPathPatterns.get(elements[0]);
-      if (patterns != null) {
-        for (Entry<Pattern, Map<String,String>> p : patterns.entrySet()) {
-          if (p.getKey().matcher(path).matches()) {
-            return p.getValue();
-          }
-        }
-      }
-    }
-    return null;
+  private Map<String, String> getHeaders(String path) {
+    return pathRules.match(path);
   }
 
   /**
@@ -234,31 +309,38 @@ public class CacheControlFilter implements Filter {
     @SuppressWarnings("unchecked")
     Dictionary<String, Object> properties = componentContext.getProperties();
     String[] sakaiCachePaths = (String[]) properties.get(SAKAI_CACHE_PATHS);
-    subPaths = new HashMap<String, Map<String, String>>();
+    PathRuleMatcher rules = new PathRuleMatcher();
     if (sakaiCachePaths != null) {
       for (String sakaiCachePath : sakaiCachePaths) {
         String[] cp = StringUtils.split(sakaiCachePath, ';');
-        subPaths.put(cp[0], toMap(1, cp));
+        rules.addSubPath(cp[0], toMap(1, cp));
       }
     }
     String[] sakaiCachePatternPaths = (String[]) properties.get(SAKAI_CACHE_PATTERNS);
-    subPathPatterns = new HashMap<String, Map<Pattern, Map<String, String>>>();
     if (sakaiCachePatternPaths != null) {
       for (String sakaiCachePatternPath : sakaiCachePatternPaths) {
         String[] cp = StringUtils.split(sakaiCachePatternPath, ';');
-        if (subPathPatterns.containsKey(cp[0])) {
-          subPathPatterns.get(cp[0]).put(Pattern.compile(cp[1]), toMap(2, cp));
-        } else {
-          Map<Pattern, Map<String, String>> patternMap = new HashMap<Pattern, Map<String, String>>();
-          patternMap.put(Pattern.compile(cp[1]), toMap(2, cp));
-          subPathPatterns.put(cp[0], patternMap);
-        }
+        rules.addPattern(cp[0], cp[1], toMap(2, cp));
       }
     }
-    rootPathPatterns = subPathPatterns.get("root");
-    if (rootPathPatterns == null) {
-      rootPathPatterns = new HashMap<Pattern, Map<String, String>>();
+    rules.compile();
+    pathRules = rules;
+
+    String scope = OsgiUtil.toString(properties.get(SAKAI_CACHE_SCOPE), CacheScope.INSTANCE.name());
+    try {
+      cacheScope = CacheScope.valueOf(scope.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn("Unknown cache scope {}, using INSTANCE ", scope);
+      cacheScope = CacheScope.INSTANCE;
+    }
+    coalesceWait = OsgiUtil.toInteger(properties.get(SAKAI_CACHE_COALESCE_WAIT), 10000);
+    Set<String> configuredEncodings = new HashSet<String>();
+    for (String encoding : OsgiUtil.toStringArray(properties.get(SAKAI_CACHE_ENCODINGS),
+        new String[] { CachedResponse.GZIP })) {
+      configuredEncodings.add(encoding.trim().toLowerCase());
     }
+    encodings = configuredEncodings;
+    maxEntrySize = OsgiUtil.toInteger(properties.get(SAKAI_CACHE_MAX_ENTRY_SIZE), 1048576);
 
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),0);
 
@@ -17,13 +17,24 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
 /**
   A pojo to contain the response redo log and content.
+  Compressible content is also held gzip (and optionally deflate) encoded, so that hits
+  from clients that accept an encoding are replayed without compressing again.
  */
 public class CachedResponse implements Serializable {
 
@@ -31,17 +42,173 @@ public class CachedResponse implements Serializable {
    * 
    */
   private static final long serialVersionUID = -533080549451000116L;
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+  /**
+   * Responses smaller than this are not worth compressing.
+   */
+  private static final int MIN_COMPRESS_SIZE = 256;
   private long expires;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
+  private String etag;
+  private byte[] gzipContent;
+  private byte[] deflateContent;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
+    this(responseOperation, cacheAge, null, 0);
+  }
+
+  /**
+   * @param responseOperation
+   *          the captured response.
+   * @param cacheAge
+   *          seconds the response is valid for.
+   * @param encodings
+   *          the content encodings to precompute, {@link #GZIP} and {@link #DEFLATE} are
+   *          understood. May be null.
+   * @param maxSize
+   *          if greater than 0, the content is not compressed when it is already larger
+   *          than this, as the response will not be stored.
+   * @throws IOException
+   */
+  public CachedResponse(OperationResponseCapture responseOperation, int cacheAge,
+      Set<String> encodings, int maxSize) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
     responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
     operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+    etag = computeEtag();
+    if (encodings != null && !encodings.isEmpty() && isCompressible()) {
+      byte[] content = getContentBytes();
+      if (content != null && content.length >= MIN_COMPRESS_SIZE
+          && (maxSize <= 0 || content.length <= maxSize)) {
+        if (encodings.contains(GZIP)) {
+          gzipContent = smallerOrNull(content, compress(content, true));
+        }
+        if (encodings.contains(DEFLATE)) {
+          deflateContent = smallerOrNull(content, compress(content, false));
+        }
+      }
+    }
+  }
+
+  /**
+   * A strong entity tag is a digest of the exact bytes (or characters) that were captured,
+   * so two nodes rendering the same content hand out the same tag.
+   */
+  private String computeEtag() throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      if (stringContent != null) {
+        md.update(stringContent.getBytes("UTF-8"));
+      } else if (byteContent != null) {
+        md.update(byteContent);
+      }
+      byte[] digest = md.digest();
+      StringBuilder sb = new StringBuilder(digest.length * 2 + 2);
+      sb.append('"');
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("MD5 is not available: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the quoted strong ETag for the cached content.
+   */
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * @param encoding
+   *          the content encoding being sent, or null for the identity encoding.
+   * @return the ETag of that representation. Each encoding is a different entity, so it
+   *         gets its own strong tag.
+   */
+  public String getEtag(String encoding) {
+    if (encoding == null) {
+      return etag;
+    }
+    return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+  }
+
+  /**
+   * Pick the stored encoding to send for an Accept-Encoding header, preferring gzip.
+   *
+   * @param acceptEncoding
+   *          the value of the Accept-Encoding request header, may be null.
+   * @return {@link #GZIP}, {@link #DEFLATE} or null if the identity encoding should be
+   *         sent.
+   */
+  public String selectEncoding(String acceptEncoding) {
+    if (acceptEncoding == null || (gzipContent == null && deflateContent == null)) {
+      return null;
+    }
+    boolean gzip = false;
+    boolean deflate = false;
+    for (String coding : StringUtils.split(acceptEncoding, ',')) {
+      String[] parts = StringUtils.split(coding, ';');
+      if (parts.length == 0) {
+        continue;
+      }
+      String name = parts[0].trim().toLowerCase();
+      if (parts.length > 1 && isZeroQuality(parts[1])) {
+        continue;
+      }
+      if (GZIP.equals(name) || "x-gzip".equals(name) || "*".equals(name)) {
+        gzip = true;
+      }
+      if (DEFLATE.equals(name) || "*".equals(name)) {
+        deflate = true;
+      }
+    }
+    if (gzip && gzipContent != null) {
+      return GZIP;
+    }
+    if (deflate && deflateContent != null) {
+      return DEFLATE;
+    }
+    return null;
+  }
+
+  private boolean isZeroQuality(String param) {
+    String[] kv = StringUtils.split(param, '=');
+    if (kv.length == 2 && "q".equals(kv[0].trim())) {
+      try {
+        return Float.parseFloat(kv[1].trim()) <= 0.0f;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the approximate number of bytes held by this response.
+   */
+  public int size() {
+    int size = 0;
+    if (stringContent != null) {
+      size += stringContent.length() * 2;
+    }
+    if (byteContent != null) {
+      size += byteContent.length;
+    }
+    if (gzipContent != null) {
+      size += gzipContent.length;
+    }
+    if (deflateContent != null) {
+      size += deflateContent.length;
+    }
+    return size;
   }
 
   public boolean isValid() {
@@ -49,13 +216,110 @@ public class CachedResponse implements Serializable {
   }
 
   public void replay(HttpServletResponse response) throws IOException {
+    replay(response, null);
+  }
+
+  /**
+   * Replay the response.
+   *
+   * @param response
+   * @param encoding
+   *          an encoding from {@link #selectEncoding(String)}, or null to send the content
+   *          as captured.
+   * @throws IOException
+   */
+  public void replay(HttpServletResponse response, String encoding) throws IOException {
+    response.setHeader("ETag", getEtag(encoding));
     OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
-    responseOperation.replay(response);
+    if (GZIP.equals(encoding)) {
+      responseOperation.replay(response, GZIP, gzipContent);
+    } else if (DEFLATE.equals(encoding)) {
+      responseOperation.replay(response, DEFLATE, deflateContent);
+    } else {
+      responseOperation.replay(response);
+    }
   }
-  
+
+  /**
+   * Only text is compressed, and never a response that already has a Content-Encoding.
+   */
+  private boolean isCompressible() {
+    String contentType = null;
+    for (Operation o : operations) {
+      switch (o.getOperation()) {
+      case OperationResponseCapture.SET_CONTENT_TYPE:
+        contentType = o.get(0);
+        break;
+      case OperationResponseCapture.SET_HEADER:
+      case OperationResponseCapture.ADD_HEADER:
+        String name = o.get(0);
+        if ("Content-Encoding".equalsIgnoreCase(name)) {
+          return false;
+        }
+        if ("Content-Type".equalsIgnoreCase(name)) {
+          contentType = o.get(1);
+        }
+        break;
+      }
+    }
+    if (contentType == null) {
+      return false;
+    }
+    contentType = contentType.toLowerCase();
+    return contentType.startsWith("text/") || contentType.indexOf("javascript") >= 0
+        || contentType.indexOf("json") >= 0 || contentType.indexOf("xml") >= 0;
+  }
+
+  /**
+   * @return the content as it goes on the wire, encoding character content with the
+   *         charset of the response, or null if that is not possible.
+   */
+  private byte[] getContentBytes() {
+    if (byteContent != null) {
+      return byteContent;
+    }
+    if (stringContent == null) {
+      return null;
+    }
+    String charset = "ISO-8859-1";
+    for (Operation o : operations) {
+      switch (o.getOperation()) {
+      case OperationResponseCapture.SET_CHARACTER_ENCODING:
+        charset = o.get(0);
+        break;
+      case OperationResponseCapture.SET_CONTENT_TYPE:
+        String contentType = o.get(0);
+        int i = contentType == null ? -1 : contentType.toLowerCase().indexOf("charset=");
+        if (i >= 0) {
+          charset = contentType.substring(i + "charset=".length()).trim();
+        }
+        break;
+      }
+    }
+    try {
+      return stringContent.getBytes(charset);
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  private static byte[] compress(byte[] content, boolean gzip) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 3 + 64);
+    DeflaterOutputStream out = gzip ? new GZIPOutputStream(baos) : new DeflaterOutputStream(baos);
+    out.write(content);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  private static byte[] smallerOrNull(byte[] content, byte[] compressed) {
+    return compressed.length < content.length ? compressed : null;
+  }
+
   @Override
   public String toString() {
-    return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
+    return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length())
+        +(gzipContent == null ? "" : " gzip "+gzipContent.length)
+        +(deflateContent == null ? "" : " deflate "+deflateContent.length);
   }
 
 }
@@ -18,11 +18,14 @@
 
 package org.sakaiproject.nakamura.http.cache;
 
+import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.ClusterInvalidatedCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -34,8 +37,28 @@ public class CachedResponseManager {
   private String key;
   private Cache<CachedResponse> cache;
   private CachedResponse cachedResponse;
+  /**
+   * The entry that was in the cache, even if it had expired.
+   */
+  private CachedResponse previous;
+  private Set<String> encodings;
+  private int maxEntrySize;
 
   public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+    this(request, cacheAge, cache, null, 0);
+  }
+
+  /**
+   * @param request
+   * @param cacheAge
+   * @param cache
+   * @param encodings content encodings to store alongside the captured content, may be null.
+   * @param maxEntrySize responses larger than this many bytes are not cached, 0 for no limit.
+   */
+  public CachedResponseManager(HttpServletRequest request, int cacheAge,
+      Cache<CachedResponse> cache, Set<String> encodings, int maxEntrySize) {
+    this.encodings = encodings;
+    this.maxEntrySize = maxEntrySize;
     this.cacheAge = cacheAge;
     this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
     this.cache = cache;
@@ -54,27 +77,116 @@ public class CachedResponseManager {
   }
 
   public void save(OperationResponseCapture responseOperation) {
+    save(responseOperation, null);
+  }
+
+  /**
+   * Save the captured response, and give the response that is being rendered the same
+   * ETag a replay would have, if its headers have not been sent yet.
+   *
+   * @param responseOperation
+   * @param liveResponse the response the capture was taken from, may be null.
+   */
+  public void save(OperationResponseCapture responseOperation, HttpServletResponse liveResponse) {
     try {
       if ( responseOperation.canCache() ) {
-        cache.put(key, new CachedResponse(responseOperation, cacheAge));
+        CachedResponse response = new CachedResponse(responseOperation, cacheAge, encodings, maxEntrySize);
+        if ( liveResponse != null && !liveResponse.isCommitted() ) {
+          liveResponse.setHeader("ETag", response.getEtag());
+        }
+        if ( maxEntrySize > 0 && response.size() > maxEntrySize ) {
+          LOGGER.debug("Not caching {}, {} bytes is over the limit ", key, response.size());
+          return;
+        }
+        store(response);
       }
     } catch (IOException e) {
       LOGGER.error("Failed to save response in cache ",e);
     }
   }
 
+  /**
+   * A render on one node only needs to reach the others if it has changed, otherwise the
+   * nodes would keep dropping each other's copies of the same content.
+   */
+  @SuppressWarnings("unchecked")
+  private void store(CachedResponse response) {
+    if ( cache instanceof ClusterInvalidatedCache<?>
+        && (previous == null || previous.getEtag().equals(response.getEtag())) ) {
+      ((ClusterInvalidatedCache<CachedResponse>) cache).load(key, response);
+    } else {
+      cache.put(key, response);
+    }
+  }
+
   private CachedResponse load() {
     CachedResponse cachedResponse = null;
     cachedResponse = cache.get(key);
+    previous = cachedResponse;
     if ( cachedResponse != null && !cachedResponse.isValid() ) {
       cachedResponse = null;
-      cache.remove(key);
+      // the copies on other nodes expire on their own, and the expired entry is replaced
+      // when this one is rendered again.
+      if ( !(cache instanceof ClusterInvalidatedCache<?>) ) {
+        cache.remove(key);
+      }
     }
     return cachedResponse;
   }
 
-  public void send(HttpServletResponse response) throws IOException {
-    cachedResponse.replay(response);
+  /**
+   * Reload the cached response, used once another request has finished rendering the
+   * same key.
+   *
+   * @return true if there is now a valid cached response.
+   */
+  public boolean reload() {
+    cachedResponse = load();
+    return isValid();
+  }
+
+  /**
+   * @return the key this response is cached under.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Send the cached response, encoded if the client accepts an encoding that is stored,
+   * or a 304 with no body if the client already holds the same entity.
+   *
+   * @param request
+   * @param response
+   * @throws IOException
+   */
+  public void send(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String encoding = cachedResponse.selectEncoding(request.getHeader("Accept-Encoding"));
+    String etag = cachedResponse.getEtag(encoding);
+    if (matchesEtag(request.getHeader("If-None-Match"), etag)) {
+      response.setHeader("ETag", etag);
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    cachedResponse.replay(response, encoding);
+  }
+
+  private boolean matchesEtag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : StringUtils.split(ifNoneMatch, ',')) {
+      candidate = candidate.trim();
+      // weak comparison is allowed for If-None-Match on a GET
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if ("*".equals(candidate) || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
   }
   
   @Override
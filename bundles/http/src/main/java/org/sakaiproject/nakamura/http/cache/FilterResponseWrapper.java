@@ -40,11 +40,24 @@ public class FilterResponseWrapper extends HttpServletResponseWrapper {
   private OperationResponseCapture capture = new OperationResponseCapture();
 
   public FilterResponseWrapper(HttpServletResponse wrappedResponse, boolean withLastModfied, boolean withCookies, boolean captureResponse) {
+    this(wrappedResponse, withLastModfied, withCookies, captureResponse, -1);
+  }
+
+  /**
+   * @param wrappedResponse
+   * @param withLastModfied
+   * @param withCookies
+   * @param captureResponse
+   * @param holdLimit
+   *          when capturing, the content is held back until {@link #release()} or until it
+   *          is larger than this many bytes, 0 holds all of it and less than 0 none.
+   */
+  public FilterResponseWrapper(HttpServletResponse wrappedResponse, boolean withLastModfied, boolean withCookies, boolean captureResponse, int holdLimit) {
     super(wrappedResponse);
     this.withCookies = withCookies;
     this.withLastModified = withLastModfied;
     if ( captureResponse ) {
-      capture = new OperationResponseCapture();
+      capture = new OperationResponseCapture(holdLimit);
     }
     this.captureResponse = captureResponse;
   }
@@ -188,6 +201,22 @@ public class FilterResponseWrapper extends HttpServletResponseWrapper {
     }
   }
   
+  @Override
+  public void flushBuffer() throws IOException {
+    // flushing would commit the headers while the content is held back.
+    if ( !capture.isHeld() ) {
+      super.flushBuffer();
+    }
+  }
+
+  /**
+   * Send any content that was held back to the wrapped response.
+   * @throws IOException
+   */
+  public void release() throws IOException {
+    capture.release();
+  }
+
   @Override
   public ServletOutputStream getOutputStream() throws IOException {
     return capture.getOutputStream(super.getOutputStream());
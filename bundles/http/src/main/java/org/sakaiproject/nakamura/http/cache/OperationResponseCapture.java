@@ -18,6 +18,9 @@
 
 package org.sakaiproject.nakamura.http.cache;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -28,6 +31,8 @@ import javax.servlet.ServletOutputStream;
 
 public class OperationResponseCapture {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(OperationResponseCapture.class);
+
   public static final int MARKER = 0xff;
   public static final int END_OF_MARKER = 0xfe;
   public static final int ADD_INT_HEADER = 0x01;
@@ -51,8 +56,19 @@ public class OperationResponseCapture {
   private boolean cacheable;
   private SplitWriter splitWriter;
   private List<Operation> operations = new ArrayList<Operation>();
+  private int holdLimit;
 
   public OperationResponseCapture() {
+    this(-1);
+  }
+
+  /**
+   * @param holdLimit
+   *          the content is held back from the response until {@link #release()} or until
+   *          it is larger than this many bytes, 0 holds all of it and less than 0 none.
+   */
+  public OperationResponseCapture(int holdLimit) {
+    this.holdLimit = holdLimit;
     cacheable = true;
     resetRedoLog();
   }
@@ -62,7 +78,7 @@ public class OperationResponseCapture {
       throw new IllegalStateException();
     }
     if (writer == null) {
-      splitWriter = new SplitWriter(baseWriter);
+      splitWriter = new SplitWriter(baseWriter, holdLimit);
       writer = new PrintWriter(splitWriter);
     }
     return writer;
@@ -73,16 +89,18 @@ public class OperationResponseCapture {
       throw new IllegalStateException();
     }
     if (outputStream == null) {
-      outputStream = new SplitOutputStream(baseStream);
+      outputStream = new SplitOutputStream(baseStream, holdLimit);
     }
     return outputStream;
   }
 
   public void sendRedirect(String location) {
+    discardContent();
     dropCache();
   }
 
   public void sendError(int sc, String msg) {
+    discardContent();
     dropCache();
   }
 
@@ -124,6 +142,7 @@ public class OperationResponseCapture {
   }
 
   public void setHeader(String name, String value) {
+    checkEncoding(name);
     if (cacheable && cacheHeader(name)) {
       operations.add(new Operation(SET_HEADER, name, value));
     }
@@ -154,6 +173,7 @@ public class OperationResponseCapture {
   }
 
   public void addHeader(String name, String value) {
+    checkEncoding(name);
     if (cacheable && cacheHeader(name)) {
       operations.add(new Operation(ADD_HEADER, name, value));
     }
@@ -165,26 +185,76 @@ public class OperationResponseCapture {
     }
   }
 
+  /**
+   * A response the servlet encoded itself was encoded for this client's Accept-Encoding,
+   * which the cache is not keyed on, so it can't be replayed to others.
+   */
+  private void checkEncoding(String name) {
+    if ("Content-Encoding".equalsIgnoreCase(name)) {
+      dropCache();
+    }
+  }
+
   private boolean cacheHeader(String name) {
     String lc = name.toLowerCase();
     return (DONT_CACHE.indexOf(lc) == -1);
   }
 
   public void reset() {
+    discardContent();
     resetRedoLog();
   }
 
   public void resetBuffer() {
+    discardContent();
     dropCache();
   }
 
   public void sendError(int sc) {
+    discardContent();
     dropCache();
   }
 
   private void dropCache() {
     cacheable = false;
     resetRedoLog();
+    // nothing is going to be cached, so there is no reason to hold the content back.
+    try {
+      release();
+    } catch (IOException e) {
+      LOGGER.debug("Failed to release held content {} ", e.getMessage());
+    }
+  }
+
+  private void discardContent() {
+    if (outputStream != null) {
+      outputStream.discard();
+    }
+    if (splitWriter != null) {
+      splitWriter.discard();
+    }
+  }
+
+  /**
+   * Send the content that has been held back to the response.
+   *
+   * @throws IOException
+   */
+  public void release() throws IOException {
+    if (outputStream != null) {
+      outputStream.release();
+    }
+    if (splitWriter != null) {
+      splitWriter.release();
+    }
+  }
+
+  /**
+   * @return true if some of the content is still held back from the response.
+   */
+  public boolean isHeld() {
+    return (outputStream != null && outputStream.isHeld())
+        || (splitWriter != null && splitWriter.isHeld());
   }
 
   private void resetRedoLog() {
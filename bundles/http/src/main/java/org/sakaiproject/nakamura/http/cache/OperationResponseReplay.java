@@ -45,10 +45,39 @@ public class OperationResponseReplay implements Serializable {
    * @param response
    * @throws IOException
    */
-  @SuppressWarnings("deprecation")
   public void replay(HttpServletResponse response) throws IOException {
+    replayOperations(response, false);
+
+     if ( stringContent != null  ) {
+       response.getWriter().write(stringContent);
+     } else if ( byteContent != null ){
+       response.getOutputStream().write(byteContent);
+     }
+
+  }
+
+  /**
+   * Replay the cached request with content that has already been encoded, the captured
+   * Content-Length does not apply to the encoded body, so it is replaced.
+   * @param response
+   * @param contentEncoding the value of the Content-Encoding header.
+   * @param encodedContent the encoded body.
+   * @throws IOException
+   */
+  public void replay(HttpServletResponse response, String contentEncoding, byte[] encodedContent) throws IOException {
+    replayOperations(response, true);
+    response.setHeader("Content-Encoding", contentEncoding);
+    response.setContentLength(encodedContent.length);
+    response.getOutputStream().write(encodedContent);
+  }
+
+  @SuppressWarnings("deprecation")
+  private void replayOperations(HttpServletResponse response, boolean encoded) {
     for ( Operation o : operations ) {
       int op = o.getOperation();
+      if ( encoded && isContentLength(o) ) {
+        continue;
+      }
       switch (op) {
       case OperationResponseCapture.ADD_DATE_HEADER:
         response.addDateHeader((String)o.get(0),(Long)o.get(1));
@@ -88,13 +117,20 @@ public class OperationResponseReplay implements Serializable {
         break;
       }
     }
+  }
 
-     if ( stringContent != null  ) {
-       response.getWriter().write(stringContent);
-     } else if ( byteContent != null ){
-       response.getOutputStream().write(byteContent);
-     }
-
+  private boolean isContentLength(Operation o) {
+    switch (o.getOperation()) {
+    case OperationResponseCapture.SET_CONTENT_LENGTH:
+      return true;
+    case OperationResponseCapture.ADD_HEADER:
+    case OperationResponseCapture.SET_HEADER:
+    case OperationResponseCapture.ADD_INT_HEADER:
+    case OperationResponseCapture.SET_INT_HEADER:
+      return "Content-Length".equalsIgnoreCase((String)o.get(0));
+    default:
+      return false;
+    }
   }
 
 
@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches request paths against the rules of the {@link CacheControlFilter}. Rules are
+ * compiled once, when the filter is configured, and the lookup for a request is:
+ * <ol>
+ * <li>A request for a resource in the root folder (eg /index.html) is matched against the
+ * patterns with the prefix "root".</li>
+ * <li>Otherwise the longest configured subpath containing the resource wins. Subpaths are
+ * held in a trie by path segment, so "var/search" and "var" can both be configured.</li>
+ * <li>Otherwise the path is matched against the patterns for its first path segment.</li>
+ * </ol>
+ * Patterns are tried in the order they were configured and the first match wins. The
+ * patterns of each prefix are combined into a single alternation so that a path is
+ * matched in one pass. The same rule always wins for the same path, regardless of how
+ * many rules there are.
+ * <p>
+ * The static resources that these patterns are written for are requested over and over
+ * with the same paths, so the outcome of recent pattern lookups is remembered. The
+ * memory is bounded, it is emptied when it fills up.
+ */
+public class PathRuleMatcher {
+
+  private static final String ROOT = "root";
+
+  /**
+   * A back reference in a pattern would point at the wrong group once the patterns are
+   * combined.
+   */
+  private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
+
+  private final Node subPaths = new Node();
+
+  private final Map<String, PatternList> patterns = new HashMap<String, PatternList>();
+
+  private static final int MAX_RESOLVED = 10000;
+
+  /**
+   * Paths longer than this are not remembered.
+   */
+  private static final int MAX_RESOLVED_PATH = 256;
+
+  private static final Map<String, String> NO_MATCH = Collections.emptyMap();
+
+  private final ConcurrentHashMap<String, Map<String, String>> resolved = new ConcurrentHashMap<String, Map<String, String>>(
+      MAX_RESOLVED * 4 / 3 + 1);
+
+  /**
+   * Add a rule for every resource under a subpath, eg "devwidgets" or "var/search". If the
+   * same subpath is configured twice, the first rule is kept.
+   */
+  public void addSubPath(String subPath, Map<String, String> headers) {
+    Node node = subPaths;
+    for (String segment : StringUtils.split(subPath, '/')) {
+      Node child = node.children.get(segment);
+      if (child == null) {
+        child = new Node();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+    if (node.headers == null) {
+      node.headers = headers;
+    }
+  }
+
+  /**
+   * Add a pattern rule for paths whose first segment is prefix, or for root resources if
+   * prefix is "root". The pattern is matched against the whole path.
+   */
+  public void addPattern(String prefix, String regex, Map<String, String> headers) {
+    PatternList list = patterns.get(prefix);
+    if (list == null) {
+      list = new PatternList();
+      patterns.put(prefix, list);
+    }
+    list.add(regex, headers);
+  }
+
+  /**
+   * Compile the added patterns, must be called after the last rule is added and before
+   * the first match.
+   */
+  public void compile() {
+    for (PatternList list : patterns.values()) {
+      list.compile();
+    }
+    resolved.clear();
+  }
+
+  /**
+   * @param path
+   *          the path info of the request.
+   * @return the headers of the first rule that matches, or null if there is none.
+   */
+  public Map<String, String> match(String path) {
+    if (path == null) {
+      return null;
+    }
+    // the first element and the rest, so that we can tell if this is root or not
+    int length = path.length();
+    int start = 0;
+    while (start < length && path.charAt(start) == '/') {
+      start++;
+    }
+    if (start == length) { // odd request
+      return null;
+    }
+    int end = path.indexOf('/', start);
+    int restStart = end;
+    while (restStart >= 0 && restStart < length && path.charAt(restStart) == '/') {
+      restStart++;
+    }
+    if (end < 0 || restStart == length) { // root request eg /index.html
+      return matchPatterns(patterns.get(ROOT), path);
+    }
+    String first = path.substring(start, end);
+    String rest = path.substring(restStart);
+
+    // subtree eg /p/index.html, find the deepest subpath that contains the resource.
+    Node node = subPaths.children.get(first);
+    Map<String, String> headers = null;
+    if (node != null) {
+      headers = node.headers;
+      int segmentStart = 0;
+      for (int segmentEnd = rest.indexOf('/'); segmentEnd >= 0; segmentEnd = rest.indexOf('/', segmentStart)) {
+        if (segmentEnd > segmentStart) {
+          node = node.children.get(rest.substring(segmentStart, segmentEnd));
+          if (node == null) {
+            break;
+          }
+          if (node.headers != null) {
+            headers = node.headers;
+          }
+        }
+        segmentStart = segmentEnd + 1;
+      }
+    }
+    if (headers != null) {
+      return headers;
+    }
+
+    return matchPatterns(patterns.get(first), path);
+  }
+
+  /**
+   * Match against a list of patterns, remembering the outcome.
+   */
+  private Map<String, String> matchPatterns(PatternList list, String path) {
+    if (list == null) {
+      return null;
+    }
+    Map<String, String> headers = resolved.get(path);
+    if (headers == null) {
+      headers = list.match(path);
+      if (path.length() <= MAX_RESOLVED_PATH) {
+        if (resolved.size() >= MAX_RESOLVED) {
+          resolved.clear();
+        }
+        resolved.put(path, headers == null ? NO_MATCH : headers);
+      }
+      return headers;
+    }
+    return headers == NO_MATCH ? null : headers;
+  }
+
+  /**
+   * A segment of a configured subpath.
+   */
+  private static class Node {
+    private Map<String, Node> children = new HashMap<String, Node>();
+    private Map<String, String> headers;
+  }
+
+  /**
+   * The ordered patterns of one prefix.
+   */
+  private static class PatternList {
+    private List<String> regexes = new ArrayList<String>();
+    private List<Map<String, String>> headers = new ArrayList<Map<String, String>>();
+    private Pattern[] ordered;
+    /**
+     * All the patterns as one alternation, null if they can't be combined.
+     */
+    private Pattern combined;
+    /**
+     * the group in combined that wraps each pattern.
+     */
+    private int[] groups;
+
+    private void add(String regex, Map<String, String> ruleHeaders) {
+      regexes.add(regex);
+      headers.add(ruleHeaders);
+    }
+
+    private void compile() {
+      ordered = new Pattern[regexes.size()];
+      groups = new int[regexes.size()];
+      StringBuilder alternation = new StringBuilder();
+      boolean combine = true;
+      int group = 1;
+      for (int i = 0; i < ordered.length; i++) {
+        String regex = regexes.get(i);
+        ordered[i] = Pattern.compile(regex);
+        combine = combine && !BACK_REFERENCE.matcher(regex).find();
+        if (i > 0) {
+          alternation.append('|');
+        }
+        alternation.append('(').append(regex).append(')');
+        groups[i] = group;
+        group += ordered[i].matcher("").groupCount() + 1;
+      }
+      // a single pattern gains nothing from being wrapped.
+      combined = (combine && ordered.length > 1) ? Pattern.compile(alternation.toString())
+          : null;
+    }
+
+    private Map<String, String> match(String path) {
+      if (combined != null) {
+        // alternatives are tried left to right, so the first configured pattern that
+        // matches the whole path is the one that matched.
+        Matcher m = combined.matcher(path);
+        if (m.matches()) {
+          for (int i = 0; i < groups.length; i++) {
+            if (m.start(groups[i]) >= 0) {
+              return headers.get(i);
+            }
+          }
+        }
+        return null;
+      }
+      for (int i = 0; i < ordered.length; i++) {
+        if (ordered[i].matcher(path).matches()) {
+          return headers.get(i);
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -28,29 +28,96 @@ public class SplitOutputStream extends ServletOutputStream {
   
   private ServletOutputStream baseStream;
   private ByteArrayOutputStream store;
+  private int holdLimit;
+  private boolean held;
 
   public SplitOutputStream(ServletOutputStream baseStream) {
+    this(baseStream, -1);
+  }
+
+  /**
+   * @param baseStream
+   * @param holdLimit
+   *          content is held back from the base stream until {@link #release()} or until
+   *          more than this many bytes have been written, so headers that depend on the
+   *          whole content can still be set. 0 holds all of it, less than 0 holds nothing.
+   */
+  public SplitOutputStream(ServletOutputStream baseStream, int holdLimit) {
     store = new ByteArrayOutputStream();
     this.baseStream = baseStream;
+    this.holdLimit = holdLimit;
+    this.held = holdLimit >= 0;
   }
 
   @Override
   public void write(int b) throws IOException {
-    baseStream.write(b);
     store.write(b);
+    if ( held ) {
+      checkHoldLimit();
+    } else {
+      baseStream.write(b);
+    }
   }
-  
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    store.write(b, off, len);
+    if ( held ) {
+      checkHoldLimit();
+    } else {
+      baseStream.write(b, off, len);
+    }
+  }
+
+  private void checkHoldLimit() throws IOException {
+    if ( holdLimit > 0 && store.size() > holdLimit ) {
+      release();
+    }
+  }
+
+  /**
+   * Send any content that is being held to the base stream, and pass everything after
+   * it straight through.
+   * @throws IOException
+   */
+  public void release() throws IOException {
+    if ( held ) {
+      held = false;
+      store.writeTo(baseStream);
+    }
+  }
+
+  /**
+   * Forget the content that is being held, used when the response buffer is reset.
+   */
+  public void discard() {
+    if ( held ) {
+      store.reset();
+    }
+  }
+
+  /**
+   * @return true if content is still being held back from the base stream.
+   */
+  public boolean isHeld() {
+    return held;
+  }
+
   @Override
   public void flush() throws IOException {
     super.flush();
-    baseStream.flush();
+    if ( !held ) {
+      baseStream.flush();
+    }
     store.flush();
   }
   
   @Override
   public void close() throws IOException {
     super.close();
-    baseStream.flush();
+    if ( !held ) {
+      baseStream.flush();
+    }
   }
 
   public byte[] toByteArray() {
@@ -28,27 +28,84 @@ public class SplitWriter extends Writer {
   
   private PrintWriter baseWriter;
   private StringWriter store;
+  private int holdLimit;
+  private boolean held;
+  private boolean closed;
 
   public SplitWriter(PrintWriter baseWriter) {
+    this(baseWriter, -1);
+  }
+
+  /**
+   * @param baseWriter
+   * @param holdLimit
+   *          content is held back from the base writer until {@link #release()} or until
+   *          it is more than this many bytes, counting 2 per char, so headers that depend
+   *          on the whole content can still be set. 0 holds all of it, less than 0 holds
+   *          nothing.
+   */
+  public SplitWriter(PrintWriter baseWriter, int holdLimit) {
     this.baseWriter = baseWriter;
     this.store = new StringWriter();
+    this.holdLimit = holdLimit;
+    this.held = holdLimit >= 0;
   }
 
   @Override
   public void write(char[] cbuf, int off, int len) throws IOException {
-    baseWriter.write(cbuf, off, len);
     store.write(cbuf,off,len);
+    if ( !held ) {
+      baseWriter.write(cbuf, off, len);
+    } else if ( holdLimit > 0 && store.getBuffer().length() * 2 > holdLimit ) {
+      release();
+    }
+  }
+
+  /**
+   * Send any content that is being held to the base writer, and pass everything after
+   * it straight through.
+   */
+  public void release() {
+    if ( held ) {
+      held = false;
+      baseWriter.write(store.toString());
+      if ( closed ) {
+        baseWriter.close();
+      }
+    }
+  }
+
+  /**
+   * Forget the content that is being held, used when the response buffer is reset.
+   */
+  public void discard() {
+    if ( held ) {
+      store.getBuffer().setLength(0);
+    }
+  }
+
+  /**
+   * @return true if content is still being held back from the base writer.
+   */
+  public boolean isHeld() {
+    return held;
   }
 
   @Override
   public void flush() throws IOException {
-    baseWriter.flush();
+    if ( !held ) {
+      baseWriter.flush();
+    }
     store.flush();
   }
 
   @Override
   public void close() throws IOException {
-    baseWriter.close();
+    if ( held ) {
+      closed = true;
+    } else {
+      baseWriter.close();
+    }
   }
 
   public String getStringContent() { 
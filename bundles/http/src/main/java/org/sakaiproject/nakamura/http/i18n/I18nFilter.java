@@ -23,19 +23,25 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import javax.jcr.Node;
@@ -52,10 +58,12 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Filter to transform __MSG_*__ i18n message keys into i18n messages.
+ * Filter to transform __MSG_*__ i18n message keys into i18n messages. Pages are compiled
+ * once into an {@link I18nTemplate} and language bundles are loaded once, until they
+ * change.
  */
 @Component(metatype = true)
-@Service
+@Services(value = { @Service(value = Filter.class), @Service(value = EventHandler.class) })
 @org.apache.felix.scr.annotations.Properties(value = {
     @Property(name = Constants.SERVICE_VENDOR, value = "The Sakai Foundation"),
     @Property(name = Constants.SERVICE_DESCRIPTION, value = "Nakamura i18n Filter"),
@@ -63,9 +71,12 @@ import javax.servlet.http.HttpServletResponse;
     @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
     @Property(name = I18nFilter.BUNDLES_PATH, value = I18nFilter.DEFAULT_BUNDLES_PATH),
     @Property(name = I18nFilter.MESSAGE_KEY_PATTERN, value = I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN),
-    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS)
+    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true)
 })
-public class I18nFilter implements Filter {
+public class I18nFilter implements Filter, EventHandler {
   public static final String PARAM_LANGUAGE = "l";
   public static final String DEFAULT_BUNDLES_PATH = "/dev/_bundle";
   public static final String DEFAULT_MESSAGE_KEY_PATTERN = "__MSG__(.+?)__";
@@ -82,6 +93,18 @@ public class I18nFilter implements Filter {
   private Pattern messageKeyPattern;
   private boolean showMissingKeys;
 
+  /**
+   * Compiled pages, by the path of the page resource. Only pages that exist are held, so
+   * there is at most one entry per page in the repository, however many request paths
+   * resolve to it.
+   */
+  final Map<String, I18nTemplate> templates = new ConcurrentHashMap<String, I18nTemplate>();
+
+  /**
+   * Language bundles, by name ("default" or the locale.)
+   */
+  private final Map<String, Properties> bundles = new ConcurrentHashMap<String, Properties>();
+
   @Activate @Modified
   public void modified(Map<?, ?> props) {
     bundlesPath = OsgiUtil.toString(props.get(BUNDLES_PATH), DEFAULT_BUNDLES_PATH);
@@ -92,6 +115,30 @@ public class I18nFilter implements Filter {
 
     showMissingKeys = OsgiUtil.toBoolean(props.get(SHOW_MISSING_KEYS),
         DEFAULT_SHOW_MISSING_KEYS);
+
+    templates.clear();
+    bundles.clear();
+  }
+
+  // ---------- EventHandler interface ----------
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the cached language bundles when anything under the bundles path changes, and
+   * the compiled page when a page changes.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      return;
+    }
+    if (path.startsWith(bundlesPath)) {
+      bundles.clear();
+    } else if (path.endsWith(".html")) {
+      templates.remove(path);
+    }
   }
 
   // ---------- Filter interface ----------
@@ -167,25 +214,35 @@ public class I18nFilter implements Filter {
    */
   private void writeFilteredResponse(SlingHttpServletRequest srequest,
       ServletResponse response, String output) throws IOException {
-    StringBuilder sb = new StringBuilder(output);
+    String filtered = output;
     try {
-      Session session = srequest.getResourceResolver().adaptTo(Session.class);
-      Node bundlesNode = session.getNode(bundlesPath);
-
-      // load the language bundle
-      Locale locale = getLocale(srequest);
-      Properties bndLang = getLangBundle(bundlesNode, locale.toString());
-
-      // load the default bundle
-      Properties bndLangDefault = getLangBundle(bundlesNode, "default");
-
-      // check for message keys and replace them with the appropriate message
-      Matcher m = messageKeyPattern.matcher(output);
-      ArrayList<String> matchedKeys = new ArrayList<String>();
-      while (m.find()) {
-        String msgKey = m.group(0);
-        String key = m.group(1);
-        if (!matchedKeys.contains(key)) {
+      I18nTemplate template = getTemplate(srequest, output);
+      String[] keys = template.getKeys();
+      if (keys.length > 0) {
+        Session session = srequest.getResourceResolver().adaptTo(Session.class);
+        Node bundlesNode = null;
+
+        // load the language bundle
+        Locale locale = getLocale(srequest);
+        Properties bndLang = bundles.get(locale.toString());
+        if (bndLang == null) {
+          bundlesNode = session.getNode(bundlesPath);
+          bndLang = getLangBundle(bundlesNode, locale.toString());
+        }
+
+        // load the default bundle
+        Properties bndLangDefault = bundles.get("default");
+        if (bndLangDefault == null) {
+          if (bundlesNode == null) {
+            bundlesNode = session.getNode(bundlesPath);
+          }
+          bndLangDefault = getLangBundle(bundlesNode, "default");
+        }
+
+        // look up the message for each distinct key once
+        String[] messages = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+          String key = keys[i];
           String message = "";
 
           if (bndLang.containsKey(key)) {
@@ -199,30 +256,46 @@ public class I18nFilter implements Filter {
               message = msg;
             }
           }
-
-          // replace all instances of msgKey with the actual message
-          int keyStart = sb.indexOf(msgKey);
-          while (keyStart >= 0) {
-            sb.replace(keyStart, keyStart + msgKey.length(), message);
-            keyStart = sb.indexOf(msgKey, keyStart);
-          }
-
-          // track the group so we don't try to replace it again
-          matchedKeys.add(key);
+          messages[i] = message;
         }
+
+        // replace all instances of the keys with the actual messages
+        filtered = template.render(messages);
       }
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
     }
 
-    response.setContentLength(sb.length());
+    response.setContentLength(filtered.length());
 
     // send the output to the actual response
     try {
-      response.getWriter().write(sb.toString());
+      response.getWriter().write(filtered);
     } catch (IllegalStateException e) {
-      response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+      response.getOutputStream().write(filtered.getBytes("UTF-8"));
+    }
+  }
+
+  /**
+   * @return the compiled page, compiling it if this version hasn't been seen before.
+   */
+  private I18nTemplate getTemplate(SlingHttpServletRequest srequest, String output) {
+    Resource resource = srequest.getResource();
+    if (resource == null || ResourceUtil.isNonExistingResource(resource)) {
+      // any path can be requested, so pages that don't exist are never kept.
+      return I18nTemplate.compile(output, messageKeyPattern, -1);
+    }
+    long lastModified = -1;
+    if (resource.getResourceMetadata() != null) {
+      lastModified = resource.getResourceMetadata().getModificationTime();
+    }
+    String path = resource.getPath();
+    I18nTemplate template = templates.get(path);
+    if (template == null || !template.isCompiledFrom(output, lastModified)) {
+      template = I18nTemplate.compile(output, messageKeyPattern, lastModified);
+      templates.put(path, template);
     }
+    return template;
   }
 
   private Locale getLocale(SlingHttpServletRequest request) {
@@ -248,6 +321,7 @@ public class I18nFilter implements Filter {
     InputStream in = content.getProperty("jcr:data").getBinary().getStream();
     props.load(in);
     in.close();
+    bundles.put(name, props);
     return props;
   }
 }
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A page with its message keys located once, as the literal text between the keys and a
+ * slot for each key. Filling in the messages is then a single pass over the page.
+ */
+class I18nTemplate {
+
+  /**
+   * The text before each slot, plus the text after the last one.
+   */
+  private final String[] literals;
+
+  /**
+   * For each slot, the index of its key in {@link #keys}.
+   */
+  private final int[] slots;
+
+  /**
+   * The distinct keys, in the order they first appear.
+   */
+  private final String[] keys;
+
+  private final long lastModified;
+  private final int sourceLength;
+  private final int sourceHash;
+
+  private I18nTemplate(String[] literals, int[] slots, String[] keys, long lastModified,
+      String source) {
+    this.literals = literals;
+    this.slots = slots;
+    this.keys = keys;
+    this.lastModified = lastModified;
+    this.sourceLength = source.length();
+    this.sourceHash = source.hashCode();
+  }
+
+  /**
+   * @param source
+   *          the page.
+   * @param pattern
+   *          the message key pattern, group 1 being the key.
+   * @param lastModified
+   *          when the page was last modified, or -1 if not known.
+   */
+  static I18nTemplate compile(String source, Pattern pattern, long lastModified) {
+    List<String> literals = new ArrayList<String>();
+    List<Integer> slots = new ArrayList<Integer>();
+    Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+
+    Matcher m = pattern.matcher(source);
+    int last = 0;
+    while (m.find()) {
+      literals.add(source.substring(last, m.start()));
+      String key = m.group(1);
+      Integer index = keys.get(key);
+      if (index == null) {
+        index = keys.size();
+        keys.put(key, index);
+      }
+      slots.add(index);
+      last = m.end();
+    }
+    literals.add(source.substring(last));
+
+    int[] slotArray = new int[slots.size()];
+    for (int i = 0; i < slotArray.length; i++) {
+      slotArray[i] = slots.get(i);
+    }
+    return new I18nTemplate(literals.toArray(new String[literals.size()]), slotArray,
+        keys.keySet().toArray(new String[keys.size()]), lastModified, source);
+  }
+
+  /**
+   * @return true if this was compiled from the same version of the page.
+   */
+  boolean isCompiledFrom(String source, long lastModified) {
+    return this.lastModified == lastModified && sourceLength == source.length()
+        && sourceHash == source.hashCode();
+  }
+
+  /**
+   * @return the distinct message keys in the page.
+   */
+  String[] getKeys() {
+    return keys;
+  }
+
+  /**
+   * @param messages
+   *          the message for each key, in the order of {@link #getKeys()}.
+   * @return the page with each key replaced by its message.
+   */
+  String render(String[] messages) {
+    int length = literals[0].length();
+    for (int i = 0; i < slots.length; i++) {
+      length += messages[slots[i]].length() + literals[i + 1].length();
+    }
+    StringBuilder sb = new StringBuilder(length);
+    sb.append(literals[0]);
+    for (int i = 0; i < slots.length; i++) {
+      sb.append(messages[slots[i]]).append(literals[i + 1]);
+    }
+    return sb.toString();
+  }
+}
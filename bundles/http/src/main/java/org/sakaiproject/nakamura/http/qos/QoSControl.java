@@ -1,36 +1,56 @@
 package org.sakaiproject.nakamura.http.qos;
 
-import org.mortbay.util.ajax.Continuation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Queue;
-import java.util.concurrent.Semaphore;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.ServletRequest;
 
-public class QoSControl {
+public class QoSControl implements QoSControlMBean {
 
-  private Semaphore semaphore;
+  private static final Logger LOGGER = LoggerFactory.getLogger(QoSControl.class);
+  private static final String JMX_DOMAIN = "org.sakaiproject.nakamura.http";
+  private String name;
+  private QoSLimiter limiter;
   private int priority;
-  private Queue<Continuation>[] priorityQueue;
+  private QoSQueue priorityQueue;
   private long timeout;
+  private AtomicInteger queued = new AtomicInteger();
+  private AtomicLong accepted = new AtomicLong();
+  private AtomicLong rejected = new AtomicLong();
+  private AtomicLong dequeued = new AtomicLong();
+  private AtomicLong queueWait = new AtomicLong();
+  private AtomicLong maxQueueWait = new AtomicLong();
+  private ObjectName objectName;
 
-  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
+  public QoSControl(QoSQueue priorityQueue, int nRequests, int priority,
       long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+    this("default", priorityQueue, new QoSLimiter(nRequests), priority, timeout);
+  }
+
+  public QoSControl(String name, QoSQueue priorityQueue, QoSLimiter limiter, int priority,
+      long timeout) {
+    this.name = name;
+    this.limiter = limiter;
     this.priority = priority;
     this.priorityQueue = priorityQueue;
     this.timeout = timeout;
   }
 
-  public Semaphore getSemaphore() {
-    return semaphore;
+  public QoSLimiter getLimiter() {
+    return limiter;
   }
 
   public int getPriority(ServletRequest request) {
     return priority;
   }
 
-  public Queue<Continuation>[] getPriorityQueue() {
+  public QoSQueue getPriorityQueue() {
     return priorityQueue;
   }
 
@@ -38,4 +58,111 @@ public class QoSControl {
     return timeout;
   }
 
+  /**
+   * @return the time in ms a request arriving now can expect to wait for a permit, based
+   *         on the requests already queued in this category and how long requests take.
+   */
+  public long getExpectedWait() {
+    int depth = queued.get();
+    if (depth == 0) {
+      return 0;
+    }
+    return (depth * limiter.getAverageLatency()) / (limiter.getLimit() * 1000000L);
+  }
+
+  void queued() {
+    queued.incrementAndGet();
+  }
+
+  void dequeued(long waitMs) {
+    queued.decrementAndGet();
+    dequeued.incrementAndGet();
+    queueWait.addAndGet(waitMs);
+    long max = maxQueueWait.get();
+    while (waitMs > max && !maxQueueWait.compareAndSet(max, waitMs)) {
+      max = maxQueueWait.get();
+    }
+  }
+
+  void expired() {
+    queued.decrementAndGet();
+  }
+
+  void accepted() {
+    accepted.incrementAndGet();
+  }
+
+  void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getLimit() {
+    return limiter.getLimit();
+  }
+
+  public int getInFlight() {
+    return limiter.getInFlight();
+  }
+
+  public int getQueueDepth() {
+    return queued.get();
+  }
+
+  public long getAccepted() {
+    return accepted.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public double getAverageQueueWaitMs() {
+    long n = dequeued.get();
+    return n == 0 ? 0.0 : (double) queueWait.get() / (double) n;
+  }
+
+  public long getMaxQueueWaitMs() {
+    return maxQueueWait.get();
+  }
+
+  public double getAverageLatencyMs() {
+    return limiter.getAverageLatency() / 1000000.0;
+  }
+
+  public void reset() {
+    accepted.set(0);
+    rejected.set(0);
+    dequeued.set(0);
+    queueWait.set(0);
+    maxQueueWait.set(0);
+  }
+
+  /**
+   * Register this category with the platform MBeanServer.
+   */
+  public void register() {
+    try {
+      ObjectName on = new ObjectName(JMX_DOMAIN + ":type=QoS,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+      objectName = on;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register QoS category {} with JMX {} ", name, e.getMessage());
+    }
+  }
+
+  public void unregister() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      objectName = null;
+    }
+  }
+
 }
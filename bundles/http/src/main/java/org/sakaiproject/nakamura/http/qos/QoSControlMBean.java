@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * The JMX view of a QoS category.
+ */
+public interface QoSControlMBean {
+
+  /**
+   * @return the category, as configured (eg get:var), or default.
+   */
+  String getName();
+
+  /**
+   * @return the current limit on concurrent requests.
+   */
+  int getLimit();
+
+  /**
+   * @return the number of requests being processed.
+   */
+  int getInFlight();
+
+  /**
+   * @return the number of requests suspended waiting for a permit.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of requests that were processed.
+   */
+  long getAccepted();
+
+  /**
+   * @return the number of requests rejected with a 503, either because their deadline
+   *         passed while queued or because the expected wait was already longer than it.
+   */
+  long getRejected();
+
+  /**
+   * @return the average time a suspended request waited before being granted a permit,
+   *         in ms.
+   */
+  double getAverageQueueWaitMs();
+
+  /**
+   * @return the longest time a suspended request waited before being granted a permit, in
+   *         ms.
+   */
+  long getMaxQueueWaitMs();
+
+  /**
+   * @return a moving average of the time requests hold a permit, in ms.
+   */
+  double getAverageLatencyMs();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
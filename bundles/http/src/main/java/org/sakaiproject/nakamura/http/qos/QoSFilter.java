@@ -19,9 +19,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Dictionary;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -35,6 +33,13 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. Pending requests are prioritiezed into queue, taken out of the queue based on priority and time of entry. If the request does not match any Quality of Service Configuration, the default configuration will be used.
  * Configuration is via the
+ *
+ * Suspended requests wait in priority levels that are served by weighted round robin (see
+ * {@link QoSQueue}), a request releasing its permit hands it to the next waiter. Requests
+ * are rejected with a 503 once they have waited for their timeout, or straight away if
+ * the wait expected in their category is already longer than that. In adaptive mode the
+ * limit of each category follows the latency of its requests (see {@link QoSLimiter}).
+ * Each category is visible in JMX as org.sakaiproject.nakamura.http:type=QoS.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -88,6 +93,24 @@ public class QoSFilter implements Filter {
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
+  /**
+   * If true, the limit of each category adapts to the latency of its requests, starting
+   * from the configured limit.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_ADAPTIVE_CONF = "qos.adaptive";
+  /**
+   * In adaptive mode, the highest a limit may grow to, as a multiple of the configured
+   * limit.
+   */
+  @Property(intValue=4)
+  private static final String QOS_ADAPTIVE_MAX_FACTOR_CONF = "qos.adaptive.maxfactor";
+  /**
+   * The weight of each priority queue, starting with priority 0. By default each priority
+   * has twice the weight of the one below it.
+   */
+  @Property(value={})
+  private static final String QOS_PRIORITY_WEIGHTS_CONF = "qos.priority.weights";
   private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class);
   private String suspendedAttributeName=this.getClass().getName()+this.hashCode();
 
@@ -96,8 +119,12 @@ public class QoSFilter implements Filter {
 
   private long waitMs;
 
+  private boolean adaptive;
 
-  private Queue<Continuation>[] priorityQueue;
+  private int adaptiveMaxFactor;
+
+
+  private QoSQueue priorityQueue;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
 
@@ -117,25 +144,32 @@ public class QoSFilter implements Filter {
         accepted = qoSToken.acquire(waitMs);
         if (accepted) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+        } else if (rejectIfOverloaded(qoSToken)) {
+          request.setAttribute(suspendedAttributeName, Boolean.FALSE);
         } else {
           request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
+          // queue before suspending, a retrying continuation does not return from suspend.
           qoSToken.queue(continuation);
-          return;
+          try {
+            continuation.suspend(qoSToken.getSuspendTime());
+          } catch (RuntimeException retry) {
+            // a retrying continuation ignores a resume until it is suspended, so a grant or
+            // rejection made before this point must resume it again.
+            resumeIfDequeued(qoSToken);
+            throw retry;
+          }
+          // a waiting continuation returns once resumed or timed out.
+          request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+          accepted = qoSToken.acquire(waitMs);
         }
       } else {
         Boolean suspended = (Boolean) request.getAttribute(suspendedAttributeName);
 
         if (suspended.booleanValue()) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
-          if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE) {
-            qoSToken.acquire();
-            accepted = true;
-          } else {
-            // Timeout! try 1 more time.
-            accepted = qoSToken.acquire(waitMs);
-          }
+          // granted while queued, or rejected if the deadline passed.
+          accepted = qoSToken.acquire(waitMs);
         } else {
           // pass through resume of previously accepted request
           qoSToken.acquire();
@@ -160,6 +194,17 @@ public class QoSFilter implements Filter {
     }
   }
 
+  private boolean rejectIfOverloaded(QoSToken qoSToken) {
+    return (qoSToken instanceof QoSTokenImpl)
+        && ((QoSTokenImpl) qoSToken).rejectIfOverloaded();
+  }
+
+  private void resumeIfDequeued(QoSToken qoSToken) {
+    if (qoSToken instanceof QoSTokenImpl) {
+      ((QoSTokenImpl) qoSToken).resumeIfDequeued();
+    }
+  }
+
   private QoSToken getQoSControl(ServletRequest request) {
     QoSToken control = (QoSToken) request.getAttribute(QoSToken.CONTROL_ATTR);
     if  ( control != null ) {
@@ -200,12 +245,17 @@ public class QoSFilter implements Filter {
 
     long defaultTimeout = OsgiUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
     int maxPriorityNumber = OsgiUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
-    for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
+    int[] weights = QoSQueue.defaultWeights(maxPriorityNumber);
+    String[] configuredWeights = OsgiUtil.toStringArray(properties.get(QOS_PRIORITY_WEIGHTS_CONF), new String[0]);
+    for ( int i = 0; i < configuredWeights.length && i < weights.length; i++ ) {
+      weights[i] = Integer.parseInt(configuredWeights[i].trim());
     }
+    priorityQueue = new QoSQueue(weights);
+    adaptive = OsgiUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONF), false);
+    adaptiveMaxFactor = OsgiUtil.toInteger(properties.get(QOS_ADAPTIVE_MAX_FACTOR_CONF), 4);
 
     // path, max requests, priority, timeout
+    unregisterControls();
     qoSControMap.clear();
     String[] qosLocations = (String[])properties.get(QOS_CATEGORIES_CONFIG);
     if ( qosLocations != null ) {
@@ -213,11 +263,11 @@ public class QoSFilter implements Filter {
         String[] settings = StringUtils.split(qosLocation,";");
         if ( settings != null ) {
           if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
-          } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+            qoSControMap.put(settings[0], createControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
           } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+            qoSControMap.put(settings[0], createControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+          } else if ( settings.length > 1 ) {
+            qoSControMap.put(settings[0], createControl(settings[0], Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
           }
         }
       }
@@ -229,7 +279,7 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = OsgiUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = OsgiUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = createControl("default", qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
 
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -237,16 +287,31 @@ public class QoSFilter implements Filter {
 
   }
 
+  private QoSControl createControl(String name, int limit, int priority, long timeout) {
+    QoSLimiter limiter = adaptive ? new QoSLimiter(limit, 1, limit * adaptiveMaxFactor, true)
+        : new QoSLimiter(limit);
+    QoSControl control = new QoSControl(name, priorityQueue, limiter, priority, timeout);
+    control.register();
+    return control;
+  }
+
+  private void unregisterControls() {
+    for (QoSControl control : qoSControMap.values()) {
+      control.unregister();
+    }
+    if (defaultQoSControl != null) {
+      defaultQoSControl.unregister();
+    }
+  }
+
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
-    // resume any continuations held by the filter
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
-      }
+    unregisterControls();
+    // resume every continuation held by the filter, they are rejected as the filter has gone.
+    int drained = priorityQueue.drain();
+    if (drained > 0) {
+      LOGGER.info("Resumed {} suspended requests on deactivation", drained);
     }
   }
 
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent requests in a QoS category. With a fixed limit this
+ * behaves like a fair semaphore. In adaptive mode the limit is adjusted from the latency
+ * of completed requests, in the style of TCP Vegas: while latency stays close to the
+ * lowest latency seen the limit grows by one per window of requests, when requests start
+ * to queue inside the server (latency rises) it shrinks by one, and when latency doubles
+ * it is cut by a tenth.
+ */
+public class QoSLimiter {
+
+  /**
+   * Below this estimated number of requests queued inside the server the limit grows.
+   */
+  private static final double ALPHA = 2.0;
+  /**
+   * Above this estimated number of requests queued inside the server the limit shrinks.
+   */
+  private static final double BETA = 4.0;
+  /**
+   * Latency this many times the minimum is treated as congestion.
+   */
+  private static final double CONGESTED = 2.0;
+  private static final double DECREASE = 0.9;
+  /**
+   * The minimum latency drifts up towards the window average by this fraction each
+   * window, so that a permanent change in the cost of requests is eventually accepted.
+   */
+  private static final double MIN_DRIFT = 0.01;
+  private static final double SMOOTHING = 0.1;
+
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition available = lock.newCondition();
+  private final boolean adaptive;
+  private final int minLimit;
+  private final int maxLimit;
+  private volatile int limit;
+  private volatile int inFlight;
+
+  // adaptation state, guarded by lock.
+  private long minLatency;
+  private long windowLatency;
+  private int windowSize;
+  private int windowMaxInFlight;
+  private volatile long averageLatency;
+
+  /**
+   * A fixed limit.
+   */
+  public QoSLimiter(int limit) {
+    this(limit, limit, limit, false);
+  }
+
+  /**
+   * @param limit
+   *          the initial limit.
+   * @param minLimit
+   *          the lowest the limit will adapt to.
+   * @param maxLimit
+   *          the highest the limit will adapt to.
+   * @param adaptive
+   *          true if the limit should adapt to latency.
+   */
+  public QoSLimiter(int limit, int minLimit, int maxLimit, boolean adaptive) {
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, limit));
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Take a permit if one is free, without waiting.
+   */
+  public boolean tryAcquire() {
+    lock.lock();
+    try {
+      return take();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take a permit, waiting up to waitMs for one to be free.
+   */
+  public boolean tryAcquire(long waitMs) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(waitMs);
+    lock.lockInterruptibly();
+    try {
+      while (!take()) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = available.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take a permit, waiting for as long as it takes.
+   */
+  public void acquire() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (!take()) {
+        available.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean take() {
+    if (inFlight < limit) {
+      inFlight++;
+      if (inFlight > windowMaxInFlight) {
+        windowMaxInFlight = inFlight;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Return a permit.
+   *
+   * @param latencyNanos
+   *          how long the permit was held, negative if the request did not complete
+   *          normally and should not be used to adapt the limit.
+   */
+  public void release(long latencyNanos) {
+    lock.lock();
+    try {
+      if (inFlight > 0) {
+        inFlight--;
+      }
+      if (latencyNanos >= 0) {
+        sample(latencyNanos);
+      }
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void sample(long latency) {
+    averageLatency = averageLatency == 0 ? latency
+        : (long) (averageLatency + SMOOTHING * (latency - averageLatency));
+    if (!adaptive) {
+      return;
+    }
+    windowLatency += latency;
+    windowSize++;
+    if (windowSize < limit) {
+      return;
+    }
+    long windowAverage = windowLatency / windowSize;
+    if (minLatency == 0 || windowAverage < minLatency) {
+      minLatency = windowAverage;
+    } else {
+      minLatency += (long) ((windowAverage - minLatency) * MIN_DRIFT);
+    }
+    int newLimit = limit;
+    if (windowAverage > minLatency * CONGESTED) {
+      newLimit = (int) (limit * DECREASE);
+    } else {
+      double queued = limit * (1.0 - (double) minLatency / (double) windowAverage);
+      if (queued < ALPHA && windowMaxInFlight >= limit) {
+        // only grow if the current limit is actually being used.
+        newLimit = limit + 1;
+      } else if (queued > BETA) {
+        newLimit = limit - 1;
+      }
+    }
+    limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+    windowLatency = 0;
+    windowSize = 0;
+    windowMaxInFlight = inFlight;
+  }
+
+  /**
+   * @return the current limit.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the number of permits taken.
+   */
+  public int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * @return a moving average of the time permits are held, in ns, 0 if none have been
+   *         released.
+   */
+  public long getAverageLatency() {
+    return averageLatency;
+  }
+
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The priority levels that suspended requests wait in. Levels are served by smooth
+ * weighted round robin rather than strictly highest first, so a busy high priority level
+ * gets most of the freed capacity without starving the levels below it. Within a level,
+ * requests are served in the order they arrived.
+ */
+public class QoSQueue {
+
+  /**
+   * The number of waiters looked at in a level before moving on, when the waiters at the
+   * front belong to categories that are at their limit.
+   */
+  private static final int MAX_SCAN = 32;
+
+  private final Queue<QoSTokenImpl>[] levels;
+  private final int[] weights;
+  /**
+   * smooth weighted round robin state, guarded by this.
+   */
+  private final int[] current;
+
+  /**
+   * @param weights
+   *          the weight of each priority level, index 0 is priority 0. Weights less than 1
+   *          are treated as 1.
+   */
+  @SuppressWarnings("unchecked")
+  public QoSQueue(int[] weights) {
+    this.weights = new int[weights.length];
+    for (int i = 0; i < weights.length; i++) {
+      this.weights[i] = Math.max(1, weights[i]);
+    }
+    current = new int[weights.length];
+    levels = new Queue[weights.length];
+    for (int i = 0; i < levels.length; i++) {
+      levels[i] = new ConcurrentLinkedQueue<QoSTokenImpl>();
+    }
+  }
+
+  /**
+   * The default weights, doubling with each priority.
+   */
+  public static int[] defaultWeights(int maxPriority) {
+    int[] weights = new int[maxPriority + 1];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = 1 << Math.min(i, 16);
+    }
+    return weights;
+  }
+
+  public void add(QoSTokenImpl token) {
+    levels[level(token.getPriority())].add(token);
+  }
+
+  public boolean remove(QoSTokenImpl token) {
+    return levels[level(token.getPriority())].remove(token);
+  }
+
+  private int level(int priority) {
+    return Math.min(levels.length - 1, Math.max(0, priority));
+  }
+
+  /**
+   * Grant permits to as many waiters as can take one, and resume them.
+   *
+   * @return the number of waiters granted a permit.
+   */
+  public int dispatchAll() {
+    int granted = 0;
+    while (dispatch()) {
+      granted++;
+    }
+    return granted;
+  }
+
+  /**
+   * Remove every waiter and resume it without a permit, so that it is rejected.
+   *
+   * @return the number of waiters removed.
+   */
+  public int drain() {
+    int drained = 0;
+    for (Queue<QoSTokenImpl> level : levels) {
+      for (QoSTokenImpl token = level.poll(); token != null; token = level.poll()) {
+        token.expire();
+        drained++;
+      }
+    }
+    return drained;
+  }
+
+  /**
+   * Grant a permit to the next waiter that can take one, and resume it. Waiters that are
+   * past their deadline are removed and resumed so they can be rejected.
+   *
+   * @return true if a waiter was granted a permit.
+   */
+  public boolean dispatch() {
+    boolean[] exhausted = new boolean[levels.length];
+    for (int tries = 0; tries < levels.length; tries++) {
+      int level = nextLevel(exhausted);
+      if (level < 0) {
+        return false;
+      }
+      if (dispatch(levels[level])) {
+        return true;
+      }
+      exhausted[level] = true;
+    }
+    return false;
+  }
+
+  private boolean dispatch(Queue<QoSTokenImpl> queue) {
+    long now = System.currentTimeMillis();
+    int scanned = 0;
+    for (Iterator<QoSTokenImpl> i = queue.iterator(); i.hasNext() && scanned < MAX_SCAN; scanned++) {
+      QoSTokenImpl token = i.next();
+      if (token.isExpired(now)) {
+        if (queue.remove(token)) {
+          token.expire();
+        }
+        continue;
+      }
+      if (token.tryGrant()) {
+        queue.remove(token);
+        token.resume();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Pick the level to serve next, by smooth weighted round robin over the non empty
+   * levels that have not been exhausted.
+   *
+   * @return the level, or -1 if there are no waiters.
+   */
+  private synchronized int nextLevel(boolean[] exhausted) {
+    int total = 0;
+    int best = -1;
+    for (int i = levels.length; i-- > 0;) {
+      if (!exhausted[i] && !levels[i].isEmpty()) {
+        current[i] += weights[i];
+        total += weights[i];
+        if (best < 0 || current[i] > current[best]) {
+          best = i;
+        }
+      }
+    }
+    if (best >= 0) {
+      current[best] -= total;
+    }
+    return best;
+  }
+
+  /**
+   * @return the number of waiters at a priority level.
+   */
+  public int size(int priority) {
+    return levels[level(priority)].size();
+  }
+
+  /**
+   * @return the number of priority levels.
+   */
+  public int getLevels() {
+    return levels.length;
+  }
+}
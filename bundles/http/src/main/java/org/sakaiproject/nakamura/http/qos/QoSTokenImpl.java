@@ -3,15 +3,29 @@ package org.sakaiproject.nakamura.http.qos;
 import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.http.qos.QoSToken;
 
-import java.util.Queue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletRequest;
 
+/**
+ * The QoS state of a single request. A request that could not get a permit straight away
+ * is queued, and is either granted a permit by a request releasing one, in which case it
+ * is resumed already holding the permit, or it passes its deadline and is rejected.
+ */
 public class QoSTokenImpl implements QoSToken {
 
+  private static final int NEW = 0;
+  private static final int WAITING = 1;
+  private static final int GRANTED = 2;
+  private static final int CANCELLED = 3;
+
   private QoSControl qoSControl;
   private int priority;
+  private AtomicInteger state = new AtomicInteger(NEW);
+  private volatile Continuation continuation;
+  private volatile long queuedAt;
+  private volatile long deadline;
+  private volatile long acquiredAt;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
@@ -24,15 +38,11 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
-      }
-    }
-    qoSControl.getSemaphore().release();
+    state.set(NEW);
+    qoSControl.getLimiter().release(System.nanoTime() - acquiredAt);
+    // the limit may have grown, or permits been returned by waiters that gave up, so
+    // resume as many waiters as there are permits.
+    qoSControl.getPriorityQueue().dispatchAll();
   }
 
   public long getSuspendTime() {
@@ -40,15 +50,129 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+    this.continuation = continuation;
+    queuedAt = System.currentTimeMillis();
+    long timeout = qoSControl.getTimeout();
+    deadline = timeout > 0 ? queuedAt + timeout : 0;
+    state.set(WAITING);
+    qoSControl.queued();
+    QoSQueue queue = qoSControl.getPriorityQueue();
+    queue.add(this);
+    // permits may have been released between failing to get one and being queued.
+    queue.dispatchAll();
   }
 
+  /**
+   * {@inheritDoc}
+   * If this request was queued, returns true if it has been granted a permit while
+   * queued, otherwise it is rejected.
+   * @see org.sakaiproject.nakamura.api.http.qos.QoSToken#acquire(long)
+   */
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    switch (state.get()) {
+    case GRANTED:
+      return true;
+    case WAITING:
+      if (state.compareAndSet(WAITING, CANCELLED)) {
+        qoSControl.getPriorityQueue().remove(this);
+        qoSControl.expired();
+        qoSControl.rejected();
+        return false;
+      }
+      // granted while we were looking.
+      return state.get() == GRANTED;
+    case CANCELLED:
+      return false;
+    default:
+      if (qoSControl.getLimiter().tryAcquire(waitMs)) {
+        acquired();
+        return true;
+      }
+      return false;
+    }
   }
 
   public void acquire() throws InterruptedException {
-    qoSControl.getSemaphore().acquire();
+    if (state.get() == GRANTED) {
+      return;
+    }
+    qoSControl.getLimiter().acquire();
+    acquired();
+  }
+
+  private void acquired() {
+    acquiredAt = System.nanoTime();
+    qoSControl.accepted();
+  }
+
+  /**
+   * @return true, and counts the request as rejected, if the wait expected in this
+   *         category is already longer than this request would be suspended for.
+   */
+  public boolean rejectIfOverloaded() {
+    long timeout = qoSControl.getTimeout();
+    if (timeout > 0 && qoSControl.getExpectedWait() > timeout) {
+      qoSControl.rejected();
+      return true;
+    }
+    return false;
+  }
+
+  int getPriority() {
+    return priority;
+  }
+
+  boolean isExpired(long now) {
+    return deadline > 0 && now >= deadline;
+  }
+
+  /**
+   * Try and grant a permit to this queued request, called by the queue.
+   *
+   * @return true if the permit was granted, the caller must then resume the request.
+   */
+  boolean tryGrant() {
+    if (state.get() != WAITING || !qoSControl.getLimiter().tryAcquire()) {
+      return false;
+    }
+    if (state.compareAndSet(WAITING, GRANTED)) {
+      acquired();
+      qoSControl.dequeued(System.currentTimeMillis() - queuedAt);
+      return true;
+    }
+    // the request gave up waiting, give the permit back without adapting the limit.
+    qoSControl.getLimiter().release(-1);
+    return false;
+  }
+
+  /**
+   * Called by the queue when the deadline of this request has passed, or the queue is
+   * being drained, resumes the request so that it can be rejected.
+   */
+  void expire() {
+    if (state.compareAndSet(WAITING, CANCELLED)) {
+      qoSControl.expired();
+      qoSControl.rejected();
+      resume();
+    }
+  }
+
+  /**
+   * Resume the request again if it has already been granted a permit or rejected. Called
+   * once the continuation is suspended, as a resume before then may have been ignored.
+   */
+  public void resumeIfDequeued() {
+    int s = state.get();
+    if (s == GRANTED || s == CANCELLED) {
+      resume();
+    }
+  }
+
+  void resume() {
+    Continuation c = continuation;
+    if (c != null) {
+      c.resume();
+    }
   }
 
 }
@@ -17,6 +17,11 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -29,27 +34,47 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.ClusterInvalidatedCache;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CacheControlFilterTest {
@@ -78,6 +103,9 @@ public class CacheControlFilterTest {
   @Mock
   private Cache<Object> cache;
 
+  @Mock
+  private ClusterInvalidatedCache<Object> clusterCache;
+
   @Mock
   private ExtHttpService extHttpService;
 
@@ -191,9 +219,253 @@ public class CacheControlFilterTest {
     
     
     
+  }
+
+  @Test
+  public void checkReplayHasEtag() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(false);
+    assertNotNull(cachedResponse.getEtag());
+    assertEquals(cachedResponse.getEtag(), populateResponseCapture(false).getEtag());
+    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("ETag", cachedResponse.getEtag());
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+
+  @Test
+  public void checkFirstRenderHasEtag() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    });
+    final List<Integer> writtenBeforeEtag = new ArrayList<Integer>();
+    Mockito.doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        writtenBeforeEtag.add(baos.size());
+        return null;
+      }
+    }).when(response).setHeader(Mockito.eq("ETag"), anyString());
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    ArgumentCaptor<CachedResponse> saved = ArgumentCaptor.forClass(CachedResponse.class);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, new TFilter(true));
+
+    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), saved.capture());
+    verify(response).setHeader("ETag", saved.getValue().getEtag());
+    // the header has to go out before the content commits the response.
+    assertEquals(Arrays.asList(0), writtenBeforeEtag);
+    assertEquals(1024, baos.size());
+  }
+
+  @Test
+  public void checkHeldContentIsReleasedWhenTheChainFails() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    });
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+
+    try {
+      cacheControlFilter.doFilter(request, response, new FilterChain() {
+        public void doFilter(ServletRequest request, ServletResponse response)
+            throws IOException, ServletException {
+          response.getOutputStream().write(new byte[10]);
+          throw new ServletException("failed part way through");
+        }
+      });
+      fail();
+    } catch (ServletException e) {
+      assertEquals("failed part way through", e.getMessage());
+    }
+    assertEquals(10, baos.size());
+    verify(cache, never()).put(anyString(), Matchers.any());
+  }
+
+  @Test
+  public void checkConditionalGetNotModified() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + cachedResponse.getEtag());
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("ETag", cachedResponse.getEtag());
+    verify(response, never()).getOutputStream();
+  }
+
+  @Test
+  public void checkCompressedReplay() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      sb.append("var widget").append(i).append(" = {};\n");
+    }
+    String script = sb.toString();
+    CachedResponse cachedResponse = textResponse(script, "gzip");
+
+    assertEquals("gzip", cachedResponse.selectEncoding("gzip, deflate"));
+    assertNull(cachedResponse.selectEncoding("deflate"));
+    assertNull(cachedResponse.selectEncoding("gzip;q=0, identity"));
+    assertNull(cachedResponse.selectEncoding(null));
+
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/widgets.js");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    });
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    when(cache.get("/cacheable/widgets.js?null")).thenReturn(cachedResponse);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("ETag", cachedResponse.getEtag("gzip"));
+    verify(response).setContentLength(baos.size());
+    verify(response, never()).getWriter();
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      inflated.write(buffer, 0, n);
+    }
+    assertEquals(script, inflated.toString("UTF-8"));
+  }
+
+  @Test
+  public void checkLargeResponsesAreNotCached() throws Exception {
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    OperationResponseCapture capture = new OperationResponseCapture();
+    capture.setContentType("application/json");
+    capture.getOutputStream(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+      }
+    }).write(new byte[2048]);
+    @SuppressWarnings("unchecked")
+    Cache<CachedResponse> responseCache = Mockito.mock(Cache.class);
+    Set<String> gzip = Collections.singleton("gzip");
+
+    new CachedResponseManager(request, 30, responseCache, gzip, 1024).save(capture);
+    verify(responseCache, never()).put(anyString(), Matchers.any(CachedResponse.class));
+
+    new CachedResponseManager(request, 30, responseCache, gzip, 4096).save(capture);
+    verify(responseCache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+  }
+
+  private CachedResponse textResponse(String content, String... encodings) throws IOException {
+    OperationResponseCapture capture = new OperationResponseCapture();
+    capture.setContentType("text/javascript");
+    capture.setCharacterEncoding("UTF-8");
+    capture.setContentLength(content.length());
+    capture.getWriter(new PrintWriter(new StringWriter())).write(content);
+    return new CachedResponse(capture, 30, new HashSet<String>(Arrays.asList(encodings)), 0);
+  }
+
+  @Test
+  public void checkConcurrentMissesRenderOnce() throws Exception {
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(new MapCache());
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+
+    final AtomicInteger renders = new AtomicInteger();
+    final CountDownLatch rendering = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final FilterChain slowChain = new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        renders.incrementAndGet();
+        rendering.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new ServletException(e);
+        }
+        new TFilter(false).doFilter(request, response);
+      }
+    };
+
+    int nthreads = 8;
+    final CountDownLatch done = new CountDownLatch(nthreads);
+    final List<StringWriter> bodies = new ArrayList<StringWriter>();
+    for (int i = 0; i < nthreads; i++) {
+      final SlingHttpServletRequest trequest = Mockito.mock(SlingHttpServletRequest.class);
+      final SlingHttpServletResponse tresponse = Mockito.mock(SlingHttpServletResponse.class);
+      StringWriter body = new StringWriter();
+      bodies.add(body);
+      when(trequest.getMethod()).thenReturn("GET");
+      when(trequest.getPathInfo()).thenReturn("/cacheable/widgets.json");
+      when(tresponse.getWriter()).thenReturn(new PrintWriter(body));
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            cacheControlFilter.doFilter(trequest, tresponse, slowChain);
+          } catch (Exception e) {
+            e.printStackTrace();
+          } finally {
+            done.countDown();
+          }
+        }
+      };
+      t.start();
+      if (i == 0) {
+        // make sure the first request has claimed the render before the others arrive.
+        rendering.await(10, TimeUnit.SECONDS);
+      }
+    }
+    Thread.sleep(100);
+    release.countDown();
+    done.await(20, TimeUnit.SECONDS);
+
+    assertEquals(1, renders.get());
+    for (StringWriter body : bodies) {
+      assertEquals("ABCDEF", body.toString());
+    }
+  }
+
+  @Test
+  public void checkEncodedResponsesAreNotCached() throws Exception {
+    OperationResponseCapture sresponse = new OperationResponseCapture();
+    sresponse.setContentType("application/json");
+    sresponse.setHeader("Content-Encoding", "gzip");
+    sresponse.getOutputStream(Mockito.mock(ServletOutputStream.class)).write(new byte[10]);
+    assertFalse(sresponse.canCache());
   }
 
   private CachedResponse populateResponseCapture(boolean useOutputStream) throws IOException {
+    return populateResponseCapture(useOutputStream, 30);
+  }
+
+  private CachedResponse populateResponseCapture(boolean useOutputStream, int cacheAge)
+      throws IOException {
     OperationResponseCapture sresponse = new OperationResponseCapture();
     sresponse.addDateHeader("Date", System.currentTimeMillis());
     sresponse.setDateHeader("Last-Modified", System.currentTimeMillis());
@@ -221,7 +493,7 @@ public class CacheControlFilterTest {
       StringWriter writer = new StringWriter();
       sresponse.getWriter(new PrintWriter(writer)).write("ABCDEF");        
     }  
-    return new CachedResponse(sresponse, 30);
+    return new CachedResponse(sresponse, cacheAge);
   }
 
   @Test
@@ -241,6 +513,58 @@ public class CacheControlFilterTest {
     verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
   }
 
+  @Test
+  public void checkClusterScopeLoadsFirstRender() throws Exception {
+    activateClusterScope();
+    cacheControlFilter.doFilter(request, response, new TFilter(false));
+
+    // nothing changed, so the other nodes keep their copies.
+    verify(clusterCache).load(Mockito.eq("/cacheable/config.json?null"),
+        Matchers.any(CachedResponse.class));
+    verify(clusterCache, never()).put(anyString(), Matchers.any());
+  }
+
+  @Test
+  public void checkClusterScopeLoadsUnchangedRender() throws Exception {
+    activateClusterScope();
+    when(clusterCache.get("/cacheable/config.json?null")).thenReturn(
+        populateResponseCapture(false, 0));
+    Thread.sleep(5);
+    cacheControlFilter.doFilter(request, response, new TFilter(false));
+
+    verify(clusterCache).load(Mockito.eq("/cacheable/config.json?null"),
+        Matchers.any(CachedResponse.class));
+    verify(clusterCache, never()).put(anyString(), Matchers.any());
+    verify(clusterCache, never()).remove(anyString());
+  }
+
+  @Test
+  public void checkClusterScopeInvalidatesChangedRender() throws Exception {
+    activateClusterScope();
+    when(clusterCache.get("/cacheable/config.json?null")).thenReturn(
+        populateResponseCapture(true, 0));
+    Thread.sleep(5);
+    cacheControlFilter.doFilter(request, response, new TFilter(false));
+
+    // the content changed, so the copies on the other nodes are dropped.
+    verify(clusterCache).put(Mockito.eq("/cacheable/config.json?null"),
+        Matchers.any(CachedResponse.class));
+    verify(clusterCache, never()).load(anyString(), Matchers.any());
+    verify(clusterCache, never()).remove(anyString());
+  }
+
+  private void activateClusterScope() throws Exception {
+    @SuppressWarnings("unchecked")
+    Dictionary<String, Object> properties = componentContext.getProperties();
+    properties.put(CacheControlFilter.SAKAI_CACHE_SCOPE, "clusterinvalidated");
+    cacheControlFilter.activate(componentContext);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache",
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(clusterCache);
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+  }
 
   private void verifyExpiresHeaderWithPath(String method, String path,
       boolean expectHeader) throws ServletException, IOException {
@@ -257,4 +581,53 @@ public class CacheControlFilterTest {
     }
   }
 
+  /**
+   * A working cache so that concurrent requests can see each others responses.
+   */
+  private static class MapCache implements Cache<Object> {
+    private Map<String, Object> map = new ConcurrentHashMap<String, Object>();
+
+    public Object put(String key, Object payload) {
+      return map.put(key, payload);
+    }
+
+    public boolean containsKey(String key) {
+      return map.containsKey(key);
+    }
+
+    public Object get(String key) {
+      return map.get(key);
+    }
+
+    public void clear() {
+      map.clear();
+    }
+
+    public void remove(String key) {
+      map.remove(key);
+    }
+
+    public void removeChildren(String key) {
+      for (String k : map.keySet()) {
+        if (k.startsWith(key)) {
+          map.remove(k);
+        }
+      }
+    }
+
+    public List<Object> listChildren(String key) {
+      List<Object> children = new ArrayList<Object>();
+      for (Map.Entry<String, Object> e : map.entrySet()) {
+        if (e.getKey().startsWith(key)) {
+          children.add(e.getValue());
+        }
+      }
+      return children;
+    }
+
+    public List<Object> list() {
+      return new ArrayList<Object>(map.values());
+    }
+  }
+
 }
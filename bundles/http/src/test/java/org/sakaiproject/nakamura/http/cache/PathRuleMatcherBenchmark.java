@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the per request cost of finding the Cache-Control rule for a path, comparing
+ * the compiled {@link PathRuleMatcher} with the map of patterns it replaced. This is not
+ * run as part of the build, run it with
+ * <code>java -cp ... org.sakaiproject.nakamura.http.cache.PathRuleMatcherBenchmark [rules...]</code>
+ */
+public class PathRuleMatcherBenchmark {
+
+  private static final int ITERATIONS = 1000000;
+
+  public static void main(String[] args) {
+    int[] sizes = new int[] { 10, 100, 400 };
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    String[] paths = new String[] { "/index.html", "/dev/lib/jquery.js",
+        "/devwidgets/chat/chat.html", "/var/widgets.json", "/var/search/public/all.json",
+        "/var/rule7/item.json", "/~user/zach/Documents/notes.txt", "/p/abc123",
+        "/var/nomatch/here.json", "/favicon.ico" };
+    // more distinct paths than the matcher remembers
+    String[] uniquePaths = new String[50000];
+    for (int i = 0; i < uniquePaths.length; i++) {
+      uniquePaths[i] = paths[i % paths.length].replace(".", i + ".");
+    }
+    for (int size : sizes) {
+      PathRuleMatcher matcher = new PathRuleMatcher();
+      Map<String, Map<String, String>> subPaths = new HashMap<String, Map<String, String>>();
+      Map<String, Map<Pattern, Map<String, String>>> subPathPatterns = new HashMap<String, Map<Pattern, Map<String, String>>>();
+      int nsub = size / 5;
+      for (int i = 0; i < nsub; i++) {
+        String sub = i == 0 ? "dev" : i == 1 ? "devwidgets" : i == 2 ? "p" : "sub" + i;
+        Map<String, String> headers = headers(sub);
+        matcher.addSubPath(sub, headers);
+        subPaths.put(sub, headers);
+      }
+      for (int i = nsub; i < size; i++) {
+        String prefix;
+        String regex;
+        if (i % 4 == 0) {
+          prefix = "root";
+          regex = ".*\\.(ext" + i + ")$";
+        } else {
+          prefix = "var";
+          regex = "^/var/rule" + i + "/.*\\.json$";
+        }
+        if (i == size - 2) {
+          regex = "^/var/search/public/.*$";
+          prefix = "var";
+        } else if (i == size - 1) {
+          regex = "^/var/widgets.json$";
+          prefix = "var";
+        }
+        Map<String, String> headers = headers(regex);
+        matcher.addPattern(prefix, regex, headers);
+        Map<Pattern, Map<String, String>> patterns = subPathPatterns.get(prefix);
+        if (patterns == null) {
+          patterns = new HashMap<Pattern, Map<String, String>>();
+          subPathPatterns.put(prefix, patterns);
+        }
+        patterns.put(Pattern.compile(regex), headers);
+      }
+      matcher.compile();
+
+      // warm up both before timing
+      int found = 0;
+      for (int i = 0; i < ITERATIONS / 10; i++) {
+        found += matcher.match(paths[i % paths.length]) == null ? 0 : 1;
+        found += legacyMatch(subPaths, subPathPatterns, paths[i % paths.length]) == null ? 0 : 1;
+      }
+
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        found += legacyMatch(subPaths, subPathPatterns, paths[i % paths.length]) == null ? 0 : 1;
+      }
+      long legacy = (System.nanoTime() - start) / ITERATIONS;
+
+      start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        found += matcher.match(paths[i % paths.length]) == null ? 0 : 1;
+      }
+      long compiled = (System.nanoTime() - start) / ITERATIONS;
+
+      start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        found += legacyMatch(subPaths, subPathPatterns, uniquePaths[i % uniquePaths.length]) == null ? 0 : 1;
+      }
+      long legacyUnique = (System.nanoTime() - start) / ITERATIONS;
+
+      start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        found += matcher.match(uniquePaths[i % uniquePaths.length]) == null ? 0 : 1;
+      }
+      long compiledUnique = (System.nanoTime() - start) / ITERATIONS;
+
+      System.out.println(size + " rules, repeated paths: pattern map " + legacy + "ns compiled "
+          + compiled + "ns, unique paths: pattern map " + legacyUnique + "ns compiled "
+          + compiledUnique + "ns per request (" + found + ")");
+    }
+  }
+
+  private static Map<String, String> headers(String name) {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put(".rule", name);
+    return headers;
+  }
+
+  /**
+   * The implementation of CacheControlFilter.getHeaders before the compiled matcher.
+   */
+  private static Map<String, String> legacyMatch(Map<String, Map<String, String>> subPaths,
+      Map<String, Map<Pattern, Map<String, String>>> subPathPatterns, String path) {
+    String[] elements = StringUtils.split(path, "/", 2);
+    if (elements.length == 0) {
+      return null;
+    } else if (elements.length == 1) {
+      Map<Pattern, Map<String, String>> rootPathPatterns = subPathPatterns.get("root");
+      if (rootPathPatterns != null) {
+        for (Entry<Pattern, Map<String, String>> p : rootPathPatterns.entrySet()) {
+          if (p.getKey().matcher(path).matches()) {
+            return p.getValue();
+          }
+        }
+      }
+    } else {
+      Map<String, String> headers = subPaths.get(elements[0]);
+      if (headers != null) {
+        return headers;
+      }
+      Map<Pattern, Map<String, String>> patterns = subPathPatterns.get(elements[0]);
+      if (patterns != null) {
+        for (Entry<Pattern, Map<String, String>> p : patterns.entrySet()) {
+          if (p.getKey().matcher(path).matches()) {
+            return p.getValue();
+          }
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PathRuleMatcherTest {
+
+  private Map<String, String> rule(String name) {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("rule", name);
+    return headers;
+  }
+
+  @Test
+  public void firstConfiguredPatternWins() {
+    PathRuleMatcher matcher = new PathRuleMatcher();
+    Map<String, String> js = rule("js");
+    Map<String, String> any = rule("any");
+    Map<String, String> html = rule("html");
+    matcher.addPattern("root", ".*(js|css)$", js);
+    matcher.addPattern("root", ".*", any);
+    matcher.addPattern("root", ".*html$", html);
+    matcher.compile();
+    for (int i = 0; i < 10; i++) {
+      assertSame(js, matcher.match("/config.js"));
+      assertSame(any, matcher.match("/index.html"));
+    }
+  }
+
+  @Test
+  public void rootAndSubtreesAreSeparate() {
+    PathRuleMatcher matcher = new PathRuleMatcher();
+    Map<String, String> root = rule("root");
+    Map<String, String> var = rule("var");
+    matcher.addPattern("root", ".*json$", root);
+    matcher.addPattern("var", "^/var/widgets.json$", var);
+    matcher.compile();
+    assertSame(root, matcher.match("/widgets.json"));
+    assertSame(var, matcher.match("/var/widgets.json"));
+    assertNull(matcher.match("/var/other.json"));
+    assertNull(matcher.match("/dev/widgets.json"));
+    assertNull(matcher.match("/"));
+    assertNull(matcher.match(null));
+  }
+
+  @Test
+  public void deepestSubPathWins() {
+    PathRuleMatcher matcher = new PathRuleMatcher();
+    Map<String, String> var = rule("var");
+    Map<String, String> search = rule("search");
+    Map<String, String> pattern = rule("pattern");
+    matcher.addSubPath("var", var);
+    matcher.addSubPath("var/search/", search);
+    matcher.addPattern("var", ".*", pattern);
+    matcher.compile();
+    assertSame(search, matcher.match("/var/search/public/all.json"));
+    assertSame(search, matcher.match("/var/search//x.json"));
+    assertSame(var, matcher.match("/var/search.json"));
+    assertSame(var, matcher.match("/var/widgets.json"));
+    // a subpath covers what is under it, not the subpath itself.
+    assertNull(matcher.match("/var"));
+  }
+
+  @Test
+  public void groupsInPatternsDoNotConfuseTheMatch() {
+    PathRuleMatcher matcher = new PathRuleMatcher();
+    Map<String, String> a = rule("a");
+    Map<String, String> b = rule("b");
+    Map<String, String> c = rule("c");
+    matcher.addPattern("p", "^/p/(a|b)/((x)|(y))\\.json$", a);
+    matcher.addPattern("p", "^/p/((b))/.*$", b);
+    matcher.addPattern("p", "^/p/(c)/.*$", c);
+    matcher.compile();
+    assertSame(a, matcher.match("/p/b/y.json"));
+    assertSame(b, matcher.match("/p/b/z.json"));
+    assertSame(c, matcher.match("/p/c/z.json"));
+    assertNull(matcher.match("/p/d/z.json"));
+  }
+
+  @Test
+  public void backReferencesStillMatch() {
+    PathRuleMatcher matcher = new PathRuleMatcher();
+    Map<String, String> a = rule("a");
+    Map<String, String> c = rule("c");
+    matcher.addPattern("p", "^/p/(a)/.*$", a);
+    matcher.addPattern("p", "^/p/(c)/\\1$", c);
+    matcher.compile();
+    assertSame(a, matcher.match("/p/a/a"));
+    assertSame(c, matcher.match("/p/c/c"));
+    assertNull(matcher.match("/p/c/d"));
+  }
+
+  @Test
+  public void inlineFlagsAreScopedToTheirPattern() {
+    PathRuleMatcher matcher = new PathRuleMatcher();
+    Map<String, String> a = rule("a");
+    Map<String, String> b = rule("b");
+    matcher.addPattern("p", "(?i)^/p/A$", a);
+    matcher.addPattern("p", "^/p/B$", b);
+    matcher.compile();
+    assertSame(a, matcher.match("/p/a"));
+    assertSame(b, matcher.match("/p/B"));
+    assertNull(matcher.match("/p/b"));
+  }
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.http.i18n;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
@@ -25,6 +26,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -33,7 +35,11 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.After;
 import org.junit.Before;
@@ -47,12 +53,14 @@ import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Properties;
@@ -371,6 +379,66 @@ public class I18nFilterTest {
     assertTrue(output.contains("Wie geht es ihnen?"));
   }
 
+  @Test
+  public void bundlesAreCachedUntilChanged() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__", false);
+
+    filter.doFilter(request, response, chain);
+    when(response.getWriter()).thenReturn(new PrintWriter(sw));
+    filter.doFilter(request, response, chain);
+
+    // Both requests are filtered, the bundles are only read for the first.
+    assertTrue(sw.toString().startsWith("<html><body>Yay, In the language bundle!"));
+    assertTrue(sw.toString().endsWith("<html><body>Yay, In the language bundle!</body></html>"));
+    verify(bundlesNode, times(1)).getNode("en_US.properties");
+    verify(bundlesNode, times(1)).getNode("default.properties");
+
+    // A change to a bundle means they are read again.
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, I18nFilter.DEFAULT_BUNDLES_PATH
+        + "/en_US.properties/jcr:content");
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+    filter.doFilter(request, response, chain);
+    verify(bundlesNode, times(2)).getNode("en_US.properties");
+  }
+
+  @Test
+  public void templatesAreKeptByPage() throws Exception {
+    Resource page = Mockito.mock(Resource.class);
+    when(page.getPath()).thenReturn("/dev/index.html");
+    when(page.getResourceMetadata()).thenReturn(new ResourceMetadata());
+    when(request.getResource()).thenReturn(page);
+    writeToResponse("__MSG__REPLACE_ME__", false);
+
+    // any number of request paths that resolve to one page share its template.
+    for (int i = 0; i < 10; i++) {
+      when(request.getPathInfo()).thenReturn("/dev/index.html/suffix" + i + ".html");
+      when(response.getWriter()).thenReturn(new PrintWriter(sw));
+      filter.doFilter(request, response, chain);
+    }
+    assertEquals(1, filter.templates.size());
+    assertTrue(filter.templates.containsKey("/dev/index.html"));
+
+    // pages that don't exist are filtered, but not kept.
+    for (int i = 0; i < 10; i++) {
+      String path = "/dev/missing" + i + ".html";
+      when(request.getPathInfo()).thenReturn(path);
+      when(request.getResource()).thenReturn(new NonExistingResource(resourceResolver, path));
+      sw.getBuffer().setLength(0);
+      when(response.getWriter()).thenReturn(new PrintWriter(sw));
+      filter.doFilter(request, response, chain);
+      assertTrue(sw.toString().contains("Yay, In the language bundle!"));
+    }
+    assertEquals(1, filter.templates.size());
+
+    // a change to the page drops its template.
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, "/dev/index.html");
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+    assertEquals(0, filter.templates.size());
+  }
+
   private void writeToResponse(final String key, final boolean useOutputStream) throws IOException, ServletException {
     doAnswer(new Answer<Object>() {
       public Object answer(InvocationOnMock invocation) {
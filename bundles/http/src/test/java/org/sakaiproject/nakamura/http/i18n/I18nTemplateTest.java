@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+/**
+ *
+ */
+public class I18nTemplateTest {
+  private static final Pattern PATTERN = Pattern
+      .compile(I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN);
+
+  @Test
+  public void testRender() {
+    String source = "<p>__MSG__A__</p><b>__MSG__B__ and __MSG__A__</b>";
+    I18nTemplate template = I18nTemplate.compile(source, PATTERN, 1L);
+
+    assertArrayEquals(new String[] { "A", "B" }, template.getKeys());
+    assertEquals("<p>alpha</p><b>beta and alpha</b>", template.render(new String[] {
+        "alpha", "beta" }));
+  }
+
+  @Test
+  public void testNoKeys() {
+    String source = "<p>nothing to see</p>";
+    I18nTemplate template = I18nTemplate.compile(source, PATTERN, 1L);
+
+    assertEquals(0, template.getKeys().length);
+    assertEquals(source, template.render(new String[0]));
+  }
+
+  @Test
+  public void testKeysAtTheEdges() {
+    I18nTemplate template = I18nTemplate.compile("__MSG__A____MSG__B__", PATTERN, -1L);
+
+    assertEquals("ab", template.render(new String[] { "a", "b" }));
+  }
+
+  @Test
+  public void testIsCompiledFrom() {
+    String source = "<p>__MSG__A__</p>";
+    I18nTemplate template = I18nTemplate.compile(source, PATTERN, 1L);
+
+    assertTrue(template.isCompiledFrom(new String(source), 1L));
+    assertFalse(template.isCompiledFrom(source, 2L));
+    assertFalse(template.isCompiledFrom("<p>__MSG__B__</p>", 1L));
+  }
+}
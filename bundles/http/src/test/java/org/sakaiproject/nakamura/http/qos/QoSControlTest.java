@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.mortbay.util.ajax.Continuation;
+
+import javax.servlet.ServletRequest;
+
+public class QoSControlTest {
+
+  @Test
+  public void adaptiveLimitGrowsWhileLatencyIsFlat() throws Exception {
+    QoSLimiter limiter = new QoSLimiter(4, 1, 16, true);
+    for (int round = 0; round < 20; round++) {
+      int limit = limiter.getLimit();
+      for (int i = 0; i < limit; i++) {
+        assertTrue(limiter.tryAcquire());
+      }
+      assertFalse(limiter.tryAcquire());
+      for (int i = 0; i < limit; i++) {
+        limiter.release(1000000L);
+      }
+    }
+    assertEquals(16, limiter.getLimit());
+  }
+
+  @Test
+  public void adaptiveLimitShrinksWhenLatencyRises() throws Exception {
+    QoSLimiter limiter = new QoSLimiter(16, 2, 16, true);
+    long latency = 1000000L;
+    for (int round = 0; round < 30; round++) {
+      int limit = limiter.getLimit();
+      for (int i = 0; i < limit; i++) {
+        assertTrue(limiter.tryAcquire());
+      }
+      for (int i = 0; i < limit; i++) {
+        limiter.release(latency);
+      }
+      latency = latency * 3 / 2;
+    }
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  public void fixedLimitDoesNotAdapt() throws Exception {
+    QoSLimiter limiter = new QoSLimiter(3);
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(limiter.tryAcquire(10));
+      }
+      assertFalse(limiter.tryAcquire(10));
+      for (int i = 0; i < 3; i++) {
+        limiter.release(round * 1000000L);
+      }
+    }
+    assertEquals(3, limiter.getLimit());
+  }
+
+  @Test
+  public void levelsAreServedByWeight() throws Exception {
+    QoSQueue queue = new QoSQueue(new int[] { 1, 2, 4 });
+    QoSControl[] controls = new QoSControl[3];
+    for (int p = 0; p < controls.length; p++) {
+      controls[p] = new QoSControl("p" + p, queue, new QoSLimiter(1), p, 60000);
+      // each category is full, so everything that arrives is queued.
+      assertTrue(controls[p].getLimiter().tryAcquire());
+      for (int i = 0; i < 100; i++) {
+        new QoSTokenImpl(controls[p], mock(ServletRequest.class)).queue(mock(Continuation.class));
+      }
+    }
+    for (int i = 0; i < 70; i++) {
+      for (QoSControl control : controls) {
+        control.getLimiter().release(-1);
+      }
+      assertTrue(queue.dispatch());
+      for (QoSControl control : controls) {
+        control.getLimiter().tryAcquire();
+      }
+    }
+    assertEquals(10, controls[0].getAccepted());
+    assertEquals(20, controls[1].getAccepted());
+    assertEquals(40, controls[2].getAccepted());
+    assertEquals(90, controls[0].getQueueDepth());
+  }
+
+  @Test
+  public void releaseHandsThePermitToAWaiter() throws Exception {
+    QoSQueue queue = new QoSQueue(QoSQueue.defaultWeights(2));
+    QoSControl control = new QoSControl("test", queue, new QoSLimiter(1), 1, 60000);
+    QoSTokenImpl running = new QoSTokenImpl(control, mock(ServletRequest.class));
+    assertTrue(running.acquire(10));
+    QoSTokenImpl waiting = new QoSTokenImpl(control, mock(ServletRequest.class));
+    assertFalse(waiting.acquire(10));
+    Continuation continuation = mock(Continuation.class);
+    waiting.queue(continuation);
+    verify(continuation, never()).resume();
+
+    running.release();
+    verify(continuation).resume();
+    assertTrue(waiting.acquire(10));
+    assertEquals(1, control.getInFlight());
+    assertEquals(0, control.getQueueDepth());
+    waiting.release();
+    assertEquals(0, control.getInFlight());
+  }
+
+  @Test
+  public void releaseResumesAsManyWaitersAsThereArePermits() throws Exception {
+    QoSQueue queue = new QoSQueue(QoSQueue.defaultWeights(2));
+    QoSControl control = new QoSControl("test", queue, new QoSLimiter(3), 1, 60000);
+    QoSTokenImpl[] running = new QoSTokenImpl[3];
+    for (int i = 0; i < running.length; i++) {
+      running[i] = new QoSTokenImpl(control, mock(ServletRequest.class));
+      assertTrue(running[i].acquire(10));
+    }
+    Continuation[] continuations = new Continuation[5];
+    for (int i = 0; i < continuations.length; i++) {
+      continuations[i] = mock(Continuation.class);
+      new QoSTokenImpl(control, mock(ServletRequest.class)).queue(continuations[i]);
+    }
+    // permits returned without a dispatch, as when a waiter gives up during a grant.
+    control.getLimiter().release(-1);
+    control.getLimiter().release(-1);
+    running[0].release();
+    for (int i = 0; i < 3; i++) {
+      verify(continuations[i]).resume();
+    }
+    verify(continuations[3], never()).resume();
+    assertEquals(2, control.getQueueDepth());
+    assertEquals(3, control.getInFlight());
+  }
+
+  @Test
+  public void drainResumesEveryWaiter() throws Exception {
+    QoSQueue queue = new QoSQueue(QoSQueue.defaultWeights(2));
+    QoSControl control = new QoSControl("test", queue, new QoSLimiter(1), 1, 60000);
+    assertTrue(new QoSTokenImpl(control, mock(ServletRequest.class)).acquire(10));
+    Continuation[] continuations = new Continuation[4];
+    QoSTokenImpl[] waiting = new QoSTokenImpl[continuations.length];
+    for (int i = 0; i < continuations.length; i++) {
+      continuations[i] = mock(Continuation.class);
+      waiting[i] = new QoSTokenImpl(control, mock(ServletRequest.class));
+      waiting[i].queue(continuations[i]);
+    }
+    assertEquals(4, queue.drain());
+    for (int i = 0; i < continuations.length; i++) {
+      verify(continuations[i]).resume();
+      assertFalse(waiting[i].acquire(10));
+    }
+    assertEquals(0, control.getQueueDepth());
+    assertEquals(4, control.getRejected());
+  }
+
+  @Test
+  public void waitersPastTheirDeadlineAreRejected() throws Exception {
+    QoSQueue queue = new QoSQueue(QoSQueue.defaultWeights(2));
+    QoSControl control = new QoSControl("test", queue, new QoSLimiter(1), 1, 1);
+    QoSTokenImpl running = new QoSTokenImpl(control, mock(ServletRequest.class));
+    assertTrue(running.acquire(10));
+    QoSTokenImpl waiting = new QoSTokenImpl(control, mock(ServletRequest.class));
+    Continuation continuation = mock(Continuation.class);
+    waiting.queue(continuation);
+    Thread.sleep(10);
+
+    running.release();
+    verify(continuation).resume();
+    assertFalse(waiting.acquire(10));
+    assertEquals(1, control.getRejected());
+    assertEquals(0, control.getQueueDepth());
+    assertEquals(0, control.getInFlight());
+  }
+
+  @Test
+  public void overloadedCategoriesRejectEarly() throws Exception {
+    QoSQueue queue = new QoSQueue(QoSQueue.defaultWeights(2));
+    QoSControl control = new QoSControl("test", queue, new QoSLimiter(1), 1, 100);
+    // requests in this category take a second
+    assertTrue(control.getLimiter().tryAcquire());
+    control.getLimiter().release(1000000000L);
+    QoSTokenImpl running = new QoSTokenImpl(control, mock(ServletRequest.class));
+    assertTrue(running.acquire(10));
+    QoSTokenImpl first = new QoSTokenImpl(control, mock(ServletRequest.class));
+    assertFalse(first.rejectIfOverloaded());
+    first.queue(mock(Continuation.class));
+
+    QoSTokenImpl second = new QoSTokenImpl(control, mock(ServletRequest.class));
+    assertTrue(second.rejectIfOverloaded());
+    assertEquals(1, control.getRejected());
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.felix.http.api.ExtHttpService;
+import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.FilterHolder;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.osgi.service.component.ComponentContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the QoSFilter in an embedded Jetty in front of a servlet that takes a fixed time,
+ * sends bursts of requests at it and reports how long requests waited in the filter. This
+ * is not run as part of the build, run it with
+ * <code>java -cp ... org.sakaiproject.nakamura.http.qos.QoSLoadHarness [limit serviceMs burst periodMs bursts adaptive]</code>
+ */
+public class QoSLoadHarness {
+
+  private static final String ARRIVED = QoSLoadHarness.class.getName() + ".arrived";
+
+  public static void main(String[] args) throws Exception {
+    int limit = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    final int serviceMs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int burst = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    int periodMs = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+    int bursts = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+    boolean adaptive = args.length > 5 && Boolean.parseBoolean(args[5]);
+
+    final List<Long> waits = Collections.synchronizedList(new ArrayList<Long>());
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("qos.default.limit", limit);
+    properties.put("qos.default.requestTimeout", 30000L);
+    properties.put("qos.semaphorewait", 50L);
+    properties.put("qos.adaptive", adaptive);
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(properties);
+    QoSFilter qoSFilter = new QoSFilter();
+    qoSFilter.extHttpService = mock(ExtHttpService.class);
+    qoSFilter.activate(componentContext);
+
+    Server server = new Server();
+    SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setPort(0);
+    server.addConnector(connector);
+    Context context = new Context(server, "/", Context.NO_SESSIONS);
+    // stamps the first arrival of a request, before it reaches the QoSFilter.
+    context.addFilter(new FilterHolder(new Filter() {
+      public void init(FilterConfig filterConfig) {
+      }
+
+      public void doFilter(ServletRequest request, ServletResponse response,
+          FilterChain chain) throws IOException, ServletException {
+        if (request.getAttribute(ARRIVED) == null) {
+          request.setAttribute(ARRIVED, System.nanoTime());
+        }
+        chain.doFilter(request, response);
+      }
+
+      public void destroy() {
+      }
+    }), "/*", Handler.DEFAULT);
+    context.addFilter(new FilterHolder(qoSFilter), "/*", Handler.DEFAULT);
+    context.addServlet(new ServletHolder(new HttpServlet() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+          throws ServletException, IOException {
+        waits.add(System.nanoTime() - (Long) req.getAttribute(ARRIVED));
+        try {
+          Thread.sleep(serviceMs);
+        } catch (InterruptedException e) {
+          throw new ServletException(e);
+        }
+        resp.getWriter().write("ok");
+      }
+    }), "/*");
+    server.start();
+    String url = "http://localhost:" + connector.getLocalPort() + "/load";
+
+    final AtomicInteger ok = new AtomicInteger();
+    final AtomicInteger unavailable = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    ExecutorService clients = Executors.newFixedThreadPool(burst);
+    final CountDownLatch done = new CountDownLatch(burst * bursts);
+    long start = System.currentTimeMillis();
+    for (int b = 0; b < bursts; b++) {
+      for (int i = 0; i < burst; i++) {
+        final URL target = new URL(url + "?b=" + b + "&i=" + i);
+        clients.execute(new Runnable() {
+          public void run() {
+            try {
+              HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+              int status = connection.getResponseCode();
+              if (status == 200) {
+                InputStream in = connection.getInputStream();
+                while (in.read() >= 0) {
+                }
+                in.close();
+                ok.incrementAndGet();
+              } else if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+                unavailable.incrementAndGet();
+              } else {
+                failed.incrementAndGet();
+              }
+            } catch (IOException e) {
+              failed.incrementAndGet();
+            } finally {
+              done.countDown();
+            }
+          }
+        });
+      }
+      Thread.sleep(periodMs);
+    }
+    done.await(10, TimeUnit.MINUTES);
+    long elapsed = System.currentTimeMillis() - start;
+    clients.shutdown();
+    server.stop();
+    qoSFilter.deactivate(componentContext);
+
+    List<Long> sorted = new ArrayList<Long>(waits);
+    Collections.sort(sorted);
+    System.out.println("limit " + limit + (adaptive ? " adaptive" : "") + ", " + bursts
+        + " bursts of " + burst + " every " + periodMs + "ms, " + serviceMs
+        + "ms per request, " + elapsed + "ms");
+    System.out.println("  ok " + ok + " 503 " + unavailable + " failed " + failed);
+    System.out.println("  queue wait p50 " + percentile(sorted, 50) + "ms p99 "
+        + percentile(sorted, 99) + "ms max " + percentile(sorted, 100) + "ms");
+  }
+
+  private static long percentile(List<Long> sorted, int percentile) {
+    if (sorted.isEmpty()) {
+      return 0;
+    }
+    int i = (int) Math.ceil(sorted.size() * percentile / 100.0) - 1;
+    return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, i)));
+  }
+}
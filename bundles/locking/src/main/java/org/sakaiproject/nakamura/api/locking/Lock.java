@@ -51,7 +51,8 @@ public interface Lock extends Serializable {
   boolean isLocked();
 
   /**
-   * @return the id of the lock.
+   * @return the id of the lock. Ids increase each time a lock on the same object is
+   *         granted, so they can be used as fencing tokens.
    */
   long getLockId();
 }
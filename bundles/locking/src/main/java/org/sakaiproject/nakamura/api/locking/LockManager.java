@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.api.locking;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Lock manager provides a mechanism for locking uniquely identified objects across the
  * cluster.
@@ -44,6 +46,23 @@ public interface LockManager {
    */
   Lock waitForLock(String id) throws LockTimeoutException;
 
+  /**
+   * Wait for a lock, for no longer than timeout. The waiting thread sleeps until the
+   * lock is released.
+   *
+   * @param id
+   * @param timeout
+   * @param unit
+   * @return the lock, or null if it wasn't granted within the timeout.
+   * @throws InterruptedException
+   */
+  Lock tryLock(String id, long timeout, TimeUnit unit) throws InterruptedException;
+
+  /**
+   * @return how contended locks have been.
+   */
+  LockStatistics getStatistics();
+
   /**
    * clear the locks associated with this request.
    */
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.locking;
+
+/**
+ * Counts of how contended the locks in a {@link LockManager} have been since it started.
+ */
+public class LockStatistics {
+
+  private final long acquired;
+  private final long contended;
+  private final long timeouts;
+  private final int waiting;
+  private final long totalWaitTime;
+  private final long maxWaitTime;
+
+  /**
+   * @param acquired
+   * @param contended
+   * @param timeouts
+   * @param waiting
+   * @param totalWaitTime
+   * @param maxWaitTime
+   */
+  public LockStatistics(long acquired, long contended, long timeouts, int waiting,
+      long totalWaitTime, long maxWaitTime) {
+    this.acquired = acquired;
+    this.contended = contended;
+    this.timeouts = timeouts;
+    this.waiting = waiting;
+    this.totalWaitTime = totalWaitTime;
+    this.maxWaitTime = maxWaitTime;
+  }
+
+  /**
+   * @return the number of locks granted.
+   */
+  public long getAcquired() {
+    return acquired;
+  }
+
+  /**
+   * @return the number of locks granted that had to wait for another holder.
+   */
+  public long getContended() {
+    return contended;
+  }
+
+  /**
+   * @return the number of times a lock was not granted within its timeout.
+   */
+  public long getTimeouts() {
+    return timeouts;
+  }
+
+  /**
+   * @return the number of threads waiting for a lock now.
+   */
+  public int getWaiting() {
+    return waiting;
+  }
+
+  /**
+   * @return the total time spent waiting for locks that were granted (in ms).
+   */
+  public long getTotalWaitTime() {
+    return totalWaitTime;
+  }
+
+  /**
+   * @return the longest wait for a lock that was granted (in ms).
+   */
+  public long getMaxWaitTime() {
+    return maxWaitTime;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "acquired=" + acquired + " contended=" + contended + " timeouts=" + timeouts
+        + " waiting=" + waiting + " totalWaitTime=" + totalWaitTime + "ms maxWaitTime="
+        + maxWaitTime + "ms";
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.locking;
+
+/**
+ * Carries locks between the servers in a cluster. The {@link LockManager} takes each
+ * lock through a transport, after taking it locally, so only one thread in the cluster
+ * holds a lock at a time. A transport registered as a service is used in place of the
+ * default one, which keeps leases in the cluster replicated cache.
+ */
+public interface LockTransport {
+
+  /**
+   * Told when a lock is released anywhere in the cluster, so waiters can try again
+   * rather than poll.
+   */
+  interface Listener {
+    /**
+     * @param id
+     *          the id of the object that was locked.
+     */
+    void released(String id);
+  }
+
+  /**
+   * Take a lease on a lock.
+   *
+   * @param id
+   *          the id of the object to lock.
+   * @param owner
+   *          identifies the holder, unique in the cluster.
+   * @param leaseTime
+   *          how long the lock is held for (in ms) if it is not renewed or released, so a
+   *          server that goes away doesn't hold its locks for ever.
+   * @return a fencing token, greater than any token given out before for this id, or -1
+   *         if the lock is held by someone else. Anything the lock protects should
+   *         refuse writes with a token lower than one it has already seen, in case a
+   *         lease expired while its holder was still working.
+   */
+  long acquire(String id, String owner, long leaseTime);
+
+  /**
+   * Extend a lease that owner still holds, for holders that keep a lock longer than the
+   * lease time.
+   *
+   * @param id
+   * @param owner
+   * @param token
+   *          the token the lease was taken with.
+   * @param leaseTime
+   *          how long from now the lock is held for (in ms).
+   * @return false if the lease had already gone, in which case the lock may be held by
+   *         someone else.
+   */
+  boolean renew(String id, String owner, long token, long leaseTime);
+
+  /**
+   * Release a lock, if it is still held by owner with that token.
+   *
+   * @param id
+   * @param owner
+   * @param token
+   */
+  void release(String id, String owner, long token);
+
+  /**
+   * @param listener
+   *          to tell about releases, or null to stop.
+   */
+  void setListener(Listener listener);
+}
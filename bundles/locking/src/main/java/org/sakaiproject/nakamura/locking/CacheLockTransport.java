@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.locking.LockTransport;
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The transport used when no other is registered. Leases are kept in the cluster
+ * replicated lock map, as the lock manager always did. The cache can't compare and set
+ * across servers, so two servers can still both take a lock in the time it takes a put
+ * to replicate; a transport with a real cluster lock should be registered where that
+ * matters. Releases are only heard about in this JVM, waiters on other servers find out
+ * when they next try.
+ * <p/>
+ * A released lease is removed from the map, so fencing tokens start from the time in ms
+ * times 1000. They are also above the last token given out in this JVM, so a lock taken
+ * again in the same ms still gets a larger one. On a cluster that relies on the tokens
+ * the servers' clocks must be kept in step.
+ */
+class CacheLockTransport implements LockTransport {
+
+  /**
+   * The number of monitors the ids are spread over. A lease is read and replaced under the
+   * monitor of its id, so threads working on different ids rarely wait for each other.
+   */
+  private static final int STRIPES = 64;
+
+  /**
+   * A lease in the lock map.
+   */
+  static final class Lease implements Serializable {
+    private static final long serialVersionUID = 4781170412851593314L;
+    private final String owner;
+    private final long token;
+    private final long expires;
+
+    Lease(String owner, long token, long expires) {
+      this.owner = owner;
+      this.token = token;
+      this.expires = expires;
+    }
+  }
+
+  private final Cache<Object> lockMap;
+  private final Object[] stripes = new Object[STRIPES];
+  private final AtomicLong lastToken = new AtomicLong();
+  private volatile Listener listener;
+
+  CacheLockTransport(Cache<Object> lockMap) {
+    this.lockMap = lockMap;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#acquire(java.lang.String,
+   *      java.lang.String, long)
+   */
+  public long acquire(String id, String owner, long leaseTime) {
+    synchronized (getStripe(id)) {
+      Lease lease = getLease(id);
+      if (lease != null && !owner.equals(lease.owner)
+          && lease.expires > System.currentTimeMillis()) {
+        return -1;
+      }
+      long token = nextToken(lease);
+      lockMap.put(id, new Lease(owner, token, System.currentTimeMillis() + leaseTime));
+      return token;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#renew(java.lang.String,
+   *      java.lang.String, long, long)
+   */
+  public boolean renew(String id, String owner, long token, long leaseTime) {
+    synchronized (getStripe(id)) {
+      if (!isHeld(getLease(id), owner, token)) {
+        return false;
+      }
+      lockMap.put(id, new Lease(owner, token, System.currentTimeMillis() + leaseTime));
+      return true;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#release(java.lang.String,
+   *      java.lang.String, long)
+   */
+  public void release(String id, String owner, long token) {
+    synchronized (getStripe(id)) {
+      if (!isHeld(getLease(id), owner, token)) {
+        return;
+      }
+      lockMap.remove(id);
+    }
+    Listener l = listener;
+    if (l != null) {
+      l.released(id);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#setListener(org.sakaiproject.nakamura.api.locking.LockTransport.Listener)
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @return true if the lease is the one owner took with token, so a holder whose lease
+   *         ran out and was taken by someone else can't renew or release theirs.
+   */
+  private boolean isHeld(Lease lease, String owner, long token) {
+    return lease != null && lease.token == token && owner.equals(lease.owner);
+  }
+
+  /**
+   * @param lease
+   *          the last lease on the id, if it is still in the map.
+   */
+  private long nextToken(Lease lease) {
+    long floor = System.currentTimeMillis() * 1000L;
+    if (lease != null && lease.token >= floor) {
+      floor = lease.token + 1;
+    }
+    while (true) {
+      long last = lastToken.get();
+      long token = Math.max(floor, last + 1);
+      if (lastToken.compareAndSet(last, token)) {
+        return token;
+      }
+    }
+  }
+
+  private Object getStripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (STRIPES - 1)];
+  }
+
+  private Lease getLease(String id) {
+    Object o = lockMap.get(id);
+    return o instanceof Lease ? (Lease) o : null;
+  }
+}
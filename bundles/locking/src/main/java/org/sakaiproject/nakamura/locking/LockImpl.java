@@ -152,6 +152,13 @@ public class LockImpl implements Lock, ThreadBound {
     unlock();
   }
 
+  /**
+   * @param lockId the id, once the lock has been granted.
+   */
+  void setLockId(long lockId) {
+    this.lockId = lockId;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.locking.Lock#getLockId()
@@ -20,13 +20,22 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.commons.scheduler.Scheduler;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.locking.LockStatistics;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.locking.LockTransport;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -35,21 +44,36 @@ import org.slf4j.LoggerFactory;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that queues the threads waiting for each lock and wakes them when it is
+ * released. Locks are held in this JVM, and across the cluster through the registered
+ * {@link LockTransport}, or the cluster replicated lock map when there is none. Run by
+ * the Sling Scheduler to renew the leases of locks that are still held.
  */
-@Component(immediate = true)
-@Service
+@Component(immediate = true, metatype = true)
+@Services(value = { @Service(value = LockManager.class),
+    @Service(value = Runnable.class) })
+@Properties(value = {
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 30L) })
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
-public class LockManagerImpl implements LockManager {
+public class LockManagerImpl implements LockManager, LockTransport.Listener, Runnable {
 
   /**
-   * The name of the cluster replicated cache. This cache must be configured with a
-   * suitable expiry to allow removal o stale locks and configured with a cluster wide
-   * replication.
+   *
    */
   private static final String LOCKMAP = "lockmanager.lockmap";
+
   /**
    *
    */
@@ -63,21 +87,71 @@ public class LockManagerImpl implements LockManager {
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
 
+  /**
+   * The number of stripes the locks are spread over. Each stripe has its own monitor, so
+   * threads locking different objects rarely wait on each other to get to the queues.
+   */
+  private static final int STRIPES = 64;
+
+  /**
+   * How often a thread waiting on a lock held elsewhere in the cluster tries again, in
+   * case the release was missed (ms).
+   */
+  private static final long REMOTE_RETRY = 500L;
+
+  private static final long DEFAULT_TIMEOUT = 30000L;
+
+  private static final long DEFAULT_LEASE_TIME = 120000L;
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(longValue = DEFAULT_TIMEOUT, description = "How long waitForLock waits before giving up (ms).")
+  static final String LOCK_TIMEOUT = "lock.timeout";
+
+  @Property(longValue = DEFAULT_LEASE_TIME, description = "How long a lock taken through the cluster is held for if its server stops renewing it (ms). Leases are renewed every 30s, so this should be well over that.")
+  static final String LEASE_TIME = "lock.leaseTime";
+
   /**
    * Service dependency, the Cache Manager
    */
   @Reference
   private CacheManagerService cacheManagerService;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private volatile LockTransport lockTransport;
+
+  /**
+   * Used when no transport is registered.
+   */
+  private volatile LockTransport defaultTransport;
+
+  /**
+   * The queues of each lock, spread over the stripes by id.
+   */
+  private final Stripe[] stripes = new Stripe[STRIPES];
   /**
-   * container for Locks.
+   * The locks held through a transport, with the transport that has their lease.
    */
-  private Cache<LockImpl> lockMap;
+  private final Map<LockImpl, LockTransport> leases = new ConcurrentHashMap<LockImpl, LockTransport>();
+  /**
+   * Ids for locks granted in this JVM, used when there is no transport.
+   */
+  private final AtomicLong nextLockId = new AtomicLong();
+
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong contended = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  private long lockTimeout = DEFAULT_TIMEOUT;
+  private long leaseTime = DEFAULT_LEASE_TIME;
+
   /**
    * The id of this instance of this class.
    */
@@ -100,7 +174,51 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+
+  /**
+   * A lock and the threads waiting for it.
+   */
+  private static final class LockQueue {
+    /**
+     * The lock granted, or being granted through the transport. null when free.
+     */
+    private LockImpl holder;
+    private int waiters;
+    private final Condition released;
+
+    private LockQueue(Condition released) {
+      this.released = released;
+    }
+  }
+
+  /**
+   * The queues for a share of the ids, guarded by its lock.
+   */
+  private static final class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, LockQueue> queues = new HashMap<String, LockQueue>();
+
+    private LockQueue getQueue(String id) {
+      LockQueue queue = queues.get(id);
+      if (queue == null) {
+        queue = new LockQueue(lock.newCondition());
+        queues.put(id, queue);
+      }
+      return queue;
+    }
+
+    /**
+     * Hand the lock to the next waiter, or forget the queue if there is none. Must be
+     * called with the lock held and the queue free.
+     */
+    private void next(String id, LockQueue queue) {
+      if (queue.waiters > 0) {
+        queue.released.signal();
+      } else {
+        queues.remove(id);
+      }
+    }
+  }
 
   /**
    * @throws NoSuchAlgorithmException
@@ -110,6 +228,16 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    lockTimeout = toLong(properties.get(LOCK_TIMEOUT), DEFAULT_TIMEOUT);
+    leaseTime = toLong(properties.get(LEASE_TIME), DEFAULT_LEASE_TIME);
   }
 
   public Lock getLock(String id) {
@@ -121,26 +249,243 @@ public class LockManagerImpl implements LockManager {
    * @return
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
+    LockImpl lock = null;
     if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
-        }
+      try {
+        lock = acquire(id, 0);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
     }
+    if (lock == null) {
+      lock = getHolder(id);
+    }
     if (lock != null) {
       lock.bind(this);
     }
     return lock;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#tryLock(java.lang.String,
+   *      long, java.util.concurrent.TimeUnit)
+   */
+  public Lock tryLock(String id, long timeout, TimeUnit unit) throws InterruptedException {
+    return acquire(id, unit.toNanos(timeout));
+  }
+
+  /**
+   * @return the lock granted on id, or null if it is free.
+   */
+  private LockImpl getHolder(String id) {
+    Stripe stripe = getStripe(id);
+    stripe.lock.lock();
+    try {
+      LockQueue queue = stripe.queues.get(id);
+      return queue == null ? null : queue.holder;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Take the lock on id for the current thread, waiting for up to timeout.
+   *
+   * @return the lock, or null if it wasn't granted in time.
+   */
+  private LockImpl acquire(String id, long timeout) throws InterruptedException {
+    long start = System.nanoTime();
+    long deadline = start + timeout;
+    boolean wasContended = false;
+    Stripe stripe = getStripe(id);
+    LockImpl lock;
+    stripe.lock.lockInterruptibly();
+    try {
+      LockQueue queue = stripe.getQueue(id);
+      while (true) {
+        if (queue.holder == null) {
+          lock = new LockImpl(id, 0, threadId.get(), instanceId);
+          lock.bind(this);
+          queue.holder = lock;
+          break;
+        }
+        queue.holder.bind(this);
+        if (queue.holder.isOwner()) {
+          // already held by this thread.
+          return queue.holder;
+        }
+        wasContended = true;
+        if (!await(stripe, id, queue, deadline)) {
+          if (timeout > 0) {
+            timeouts.incrementAndGet();
+          }
+          return null;
+        }
+      }
+    } finally {
+      stripe.lock.unlock();
+    }
+
+    // Held in this JVM, now take it across the cluster.
+    boolean granted = false;
+    try {
+      LockTransport transport = getTransport();
+      if (transport == null) {
+        lock.setLockId(nextLockId.incrementAndGet());
+      } else {
+        long token;
+        while ((token = transport.acquire(id, getOwner(lock), leaseTime)) < 0) {
+          wasContended = true;
+          stripe.lock.lockInterruptibly();
+          try {
+            LockQueue queue = stripe.getQueue(id);
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+              if (timeout > 0) {
+                timeouts.incrementAndGet();
+              }
+              return null;
+            }
+            waiting.incrementAndGet();
+            try {
+              // woken by released(), or tries again in case that was missed.
+              queue.released.awaitNanos(Math.min(remaining, TimeUnit.MILLISECONDS
+                  .toNanos(REMOTE_RETRY)));
+            } finally {
+              waiting.decrementAndGet();
+            }
+          } finally {
+            stripe.lock.unlock();
+          }
+        }
+        lock.setLockId(token);
+        leases.put(lock, transport);
+      }
+      granted = true;
+    } finally {
+      if (!granted) {
+        releaseLocal(lock);
+      }
+    }
+
+    getRequestLocks().put(id, lock);
+    acquired.incrementAndGet();
+    if (wasContended) {
+      long waited = System.nanoTime() - start;
+      contended.incrementAndGet();
+      totalWaitNanos.addAndGet(waited);
+      long max = maxWaitNanos.get();
+      while (waited > max && !maxWaitNanos.compareAndSet(max, waited)) {
+        max = maxWaitNanos.get();
+      }
+    }
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + id);
+    }
+    return lock;
+  }
+
+  /**
+   * Wait for the queue to be released, with the stripe locked.
+   *
+   * @return false if the deadline passed first.
+   */
+  private boolean await(Stripe stripe, String id, LockQueue queue, long deadline)
+      throws InterruptedException {
+    long remaining = deadline - System.nanoTime();
+    if (remaining <= 0) {
+      return false;
+    }
+    queue.waiters++;
+    waiting.incrementAndGet();
+    try {
+      queue.released.awaitNanos(remaining);
+    } catch (InterruptedException e) {
+      // don't swallow a wake up meant for the next waiter.
+      queue.waiters--;
+      if (queue.holder == null) {
+        stripe.next(id, queue);
+      }
+      throw e;
+    } finally {
+      waiting.decrementAndGet();
+    }
+    queue.waiters--;
+    return true;
+  }
+
+  /**
+   * Release the lock in this JVM and wake the next waiter.
+   */
+  private void releaseLocal(LockImpl lock) {
+    String id = lock.getLocked();
+    Stripe stripe = getStripe(id);
+    stripe.lock.lock();
+    try {
+      LockQueue queue = stripe.queues.get(id);
+      if (queue != null && queue.holder == lock) {
+        queue.holder = null;
+        stripe.next(id, queue);
+      }
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc} Wakes the threads waiting on a lock that was held elsewhere in the
+   * cluster.
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport.Listener#released(java.lang.String)
+   */
+  public void released(String id) {
+    Stripe stripe = getStripe(id);
+    stripe.lock.lock();
+    try {
+      LockQueue queue = stripe.queues.get(id);
+      if (queue != null) {
+        queue.released.signalAll();
+      }
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  private Stripe getStripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (STRIPES - 1)];
+  }
+
+  private String getOwner(LockImpl lock) {
+    return instanceId + ":" + lock.getOwner();
+  }
+
+  private LockTransport getTransport() {
+    LockTransport transport = lockTransport;
+    return transport == null ? defaultTransport : transport;
+  }
+
+  /**
+   * {@inheritDoc} Renews the lease of every lock still held, so a lock held for longer
+   * than the lease time isn't given to someone else.
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    for (Entry<LockImpl, LockTransport> e : leases.entrySet()) {
+      LockImpl lock = e.getKey();
+      if (!e.getValue().renew(lock.getLocked(), getOwner(lock), lock.getLockId(),
+          leaseTime) && leases.remove(lock) != null) {
+        LOGGER.warn("The lease on {} ran out while it was held, it may have been locked elsewhere in the cluster",
+            lock.getLocked());
+      }
+    }
+  }
+
   /**
    * @return
    */
@@ -159,9 +504,12 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      // release across the cluster first, so the next local waiter can take it there.
+      LockTransport transport = leases.remove(lock);
+      if (transport != null) {
+        transport.release(lock.getLocked(), getOwner(lock), lock.getLockId());
       }
+      releaseLocal(lock);
     }
   }
 
@@ -185,38 +533,34 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
+    try {
+      Lock lock = tryLock(id, lockTimeout, TimeUnit.MILLISECONDS);
+      if (lock != null) {
         return lock;
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
-      }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
-        }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
-      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockTimeoutException("Interrupted while locking " + id, e);
     }
+    LOGGER.warn("{} Failed to lock {} after {} ms {}", new Object[] {
+        Thread.currentThread(), id, lockTimeout, getStatistics() });
     throw new LockTimeoutException("Failed to lock node " + id);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#getStatistics()
+   */
+  public LockStatistics getStatistics() {
+    return new LockStatistics(acquired.get(), contended.get(), timeouts.get(), waiting
+        .get(), TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get()), TimeUnit.NANOSECONDS
+        .toMillis(maxWaitNanos.get()));
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -228,21 +572,54 @@ public class LockManagerImpl implements LockManager {
     requestLocks.clear();
   }
 
- 
+  private long toLong(Object value, long defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
+      try {
+        return Long.parseLong(value.toString());
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Invalid value {}, using {}", value, defaultValue);
+      }
+    }
+    return defaultValue;
+  }
+
   /**
    * @param cacheManagerService
    */
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    lockMap = cacheManagerService.getCache(LOCKMAP, CacheScope.CLUSTERREPLICATED);
+    Cache<Object> lockMap = cacheManagerService.getCache(LOCKMAP,
+        CacheScope.CLUSTERREPLICATED);
+    CacheLockTransport transport = new CacheLockTransport(lockMap);
+    transport.setListener(this);
+    defaultTransport = transport;
   }
   /**
    * @param cacheManagerService
    */
   protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = null;
-    lockMap = null;
+    defaultTransport = null;
+  }
+
+  /**
+   * @param lockTransport
+   */
+  protected void bindLockTransport(LockTransport lockTransport) {
+    this.lockTransport = lockTransport;
+    lockTransport.setListener(this);
   }
- 
- 
+
+  /**
+   * @param lockTransport
+   */
+  protected void unbindLockTransport(LockTransport lockTransport) {
+    lockTransport.setListener(null);
+    if (this.lockTransport == lockTransport) {
+      this.lockTransport = null;
+    }
+  }
+
 }
@@ -22,23 +22,50 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.easymock.IAnswer;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockStatistics;
+import org.sakaiproject.nakamura.api.locking.LockTransport;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  *
  */
 public class LockManagerImplTest {
 
   private Cache<Object> lockCache;
-  private Cache<Object> requestCache;
+  /**
+   * Each thread is a request with its own locks.
+   */
+  private ThreadLocal<Cache<Object>> requestCache = new ThreadLocal<Cache<Object>>() {
+    @Override
+    protected Cache<Object> initialValue() {
+      return new MapCacheImpl<Object>();
+    }
+  };
   private CacheManagerService cacheManagerService;
   private LockManagerImpl lockManager;
 
@@ -48,7 +75,6 @@ public class LockManagerImplTest {
   @Before
   public void setUp() throws Exception {
     lockCache = new MapCacheImpl<Object>();
-    requestCache = new MapCacheImpl<Object>();
 
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
@@ -56,7 +82,11 @@ public class LockManagerImplTest {
             CacheScope.CLUSTERREPLICATED)).andReturn(lockCache).anyTimes();
     expect(
         cacheManagerService.getCache("lockmanager.requestmap",
-            CacheScope.REQUEST)).andReturn(requestCache).anyTimes();
+            CacheScope.REQUEST)).andAnswer(new IAnswer<Cache<Object>>() {
+      public Cache<Object> answer() throws Throwable {
+        return requestCache.get();
+      }
+    }).anyTimes();
 
     replay(cacheManagerService);
 
@@ -97,4 +127,312 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testGetLockIsReentrant() throws Exception {
+    Lock l = lockManager.getLock("foo");
+    assertSame(l, lockManager.getLock("foo"));
+    assertSame(l, lockManager.tryLock("foo", 10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testLockIsHeldInTheLockMap() throws Exception {
+    final LockManagerImpl otherServer = new LockManagerImpl();
+    otherServer.bindCacheManagerService(cacheManagerService);
+    Lock l = lockManager.getLock("foo");
+    assertNotNull(lockCache.get("foo"));
+    Lock other = inThread(new Locker() {
+      public Lock lock() throws Exception {
+        return otherServer.tryLock("foo", 10, TimeUnit.MILLISECONDS);
+      }
+    });
+    assertNull(other);
+    l.unlock();
+    assertNull(lockCache.get("foo"));
+    other = inThread(new Locker() {
+      public Lock lock() throws Exception {
+        return otherServer.tryLock("foo", 10, TimeUnit.MILLISECONDS);
+      }
+    });
+    assertNotNull(other);
+    otherServer.unbindCacheManagerService(cacheManagerService);
+  }
+
+  @Test
+  public void testLeasesAreRenewed() throws Exception {
+    Map<String, Object[]> leases = new HashMap<String, Object[]>();
+    lockManager.bindLockTransport(new MemoryTransport(leases));
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LEASE_TIME, 1000L);
+    lockManager.activate(properties);
+    Lock l = lockManager.getLock("foo");
+    long expires = (Long) leases.get("foo")[1];
+    Thread.sleep(20);
+    lockManager.run();
+    assertTrue((Long) leases.get("foo")[1] > expires);
+    // a lease that has gone is no longer renewed.
+    leases.remove("foo");
+    lockManager.run();
+    assertNull(leases.get("foo"));
+    l.unlock();
+  }
+
+  @Test
+  public void testTryLockTimesOut() throws Exception {
+    lockManager.getLock("foo");
+    Lock other = inThread(new Locker() {
+      public Lock lock() throws Exception {
+        return lockManager.tryLock("foo", 50, TimeUnit.MILLISECONDS);
+      }
+    });
+    assertNull(other);
+    LockStatistics statistics = lockManager.getStatistics();
+    assertEquals(1, statistics.getTimeouts());
+    assertEquals(0, statistics.getWaiting());
+  }
+
+  @Test
+  public void testWaiterIsWokenOnUnlock() throws Exception {
+    final Lock l = lockManager.getLock("foo");
+    final CountDownLatch waiting = new CountDownLatch(1);
+    final AtomicReference<Lock> granted = new AtomicReference<Lock>();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          waiting.countDown();
+          granted.set(lockManager.waitForLock("foo"));
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    t.start();
+    waiting.await();
+    Thread.sleep(100);
+    assertEquals(1, lockManager.getStatistics().getWaiting());
+    long released = System.currentTimeMillis();
+    l.unlock();
+    t.join(5000);
+    assertNotNull(granted.get());
+    // woken straight away, not on the next poll.
+    assertTrue(System.currentTimeMillis() - released < 1000);
+    LockStatistics statistics = lockManager.getStatistics();
+    assertEquals(2, statistics.getAcquired());
+    assertEquals(1, statistics.getContended());
+    assertTrue(statistics.getMaxWaitTime() >= 100);
+  }
+
+  @Test
+  public void testOneHolderAtATime() throws Exception {
+    final int[] counter = new int[1];
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int n = 0; n < 200; n++) {
+              Lock l = lockManager.waitForLock("counter");
+              int c = counter[0];
+              Thread.yield();
+              counter[0] = c + 1;
+              l.unlock();
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(0, errors.size());
+    assertEquals(1600, counter[0]);
+  }
+
+  @Test
+  public void testLockIsHeldAcrossTheCluster() throws Exception {
+    Map<String, Object[]> leases = new HashMap<String, Object[]>();
+    final LockManagerImpl otherServer = new LockManagerImpl();
+    otherServer.bindCacheManagerService(cacheManagerService);
+    otherServer.bindLockTransport(new MemoryTransport(leases));
+    lockManager.bindLockTransport(new MemoryTransport(leases));
+
+    Lock l = lockManager.getLock("foo");
+    assertTrue(l.isOwner());
+    final CountDownLatch waiting = new CountDownLatch(1);
+    final AtomicReference<Lock> granted = new AtomicReference<Lock>();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          assertNull(otherServer.tryLock("foo", 10, TimeUnit.MILLISECONDS));
+          waiting.countDown();
+          granted.set(otherServer.tryLock("foo", 5, TimeUnit.SECONDS));
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    t.start();
+    waiting.await();
+    Thread.sleep(50);
+    l.unlock();
+    t.join(5000);
+    assertNotNull(granted.get());
+    otherServer.unbindCacheManagerService(cacheManagerService);
+  }
+
+  @Test
+  public void testCacheLeaseIsTakenOnce() throws Exception {
+    final CacheLockTransport transport = new CacheLockTransport(lockCache);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger taken = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final String owner = "owner" + i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            if (transport.acquire("bar", owner, 10000L) > 0) {
+              taken.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(1, taken.get());
+  }
+
+  @Test
+  public void testFencingTokens() throws Exception {
+    CacheLockTransport transport = new CacheLockTransport(lockCache);
+    long first = transport.acquire("bar", "a", 10000L);
+    assertTrue(first > 0);
+    transport.release("bar", "a", first);
+    // released and taken again straight away.
+    long second = transport.acquire("bar", "a", 10000L);
+    assertTrue(second > first);
+    transport.release("bar", "a", second);
+
+    // a's lease runs out while it is still working, and b takes the lock.
+    long expired = transport.acquire("bar", "a", 1L);
+    Thread.sleep(10);
+    long taken = transport.acquire("bar", "b", 10000L);
+    assertTrue(taken > expired);
+    assertFalse(transport.renew("bar", "a", expired, 10000L));
+    transport.release("bar", "a", expired);
+    assertTrue(transport.renew("bar", "b", taken, 10000L));
+    assertEquals(-1, transport.acquire("bar", "a", 10000L));
+  }
+
+  @Test
+  public void testLockIdIsTheFencingToken() throws Exception {
+    LockImpl first = (LockImpl) lockManager.getLock("foo");
+    long firstId = first.getLockId();
+    first.unlock();
+    LockImpl second = (LockImpl) lockManager.getLock("foo");
+    assertTrue(second.getLockId() > firstId);
+    second.unlock();
+  }
+
+  private interface Locker {
+    Lock lock() throws Exception;
+  }
+
+  private Lock inThread(final Locker locker) throws Exception {
+    final AtomicReference<Object> result = new AtomicReference<Object>();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          result.set(locker.lock());
+        } catch (Exception e) {
+          result.set(e);
+        }
+      }
+    };
+    t.start();
+    t.join();
+    if (result.get() instanceof Exception) {
+      throw (Exception) result.get();
+    }
+    return (Lock) result.get();
+  }
+
+  /**
+   * A transport for servers in the same JVM, sharing their leases in a map.
+   */
+  private static class MemoryTransport implements LockTransport {
+
+    private static final List<MemoryTransport> TRANSPORTS = new ArrayList<MemoryTransport>();
+    private static final AtomicLong NEXT_TOKEN = new AtomicLong();
+    private final Map<String, Object[]> leases;
+    private Listener listener;
+
+    MemoryTransport(Map<String, Object[]> leases) {
+      this.leases = leases;
+      synchronized (TRANSPORTS) {
+        TRANSPORTS.add(this);
+      }
+    }
+
+    public long acquire(String id, String owner, long leaseTime) {
+      synchronized (leases) {
+        Object[] lease = leases.get(id);
+        if (lease != null && (Long) lease[1] > System.currentTimeMillis()) {
+          return -1;
+        }
+        long token = NEXT_TOKEN.incrementAndGet();
+        leases.put(id,
+            new Object[] { owner, System.currentTimeMillis() + leaseTime, token });
+        return token;
+      }
+    }
+
+    public boolean renew(String id, String owner, long token, long leaseTime) {
+      synchronized (leases) {
+        Object[] lease = leases.get(id);
+        if (lease == null || !owner.equals(lease[0]) || token != (Long) lease[2]) {
+          return false;
+        }
+        lease[1] = System.currentTimeMillis() + leaseTime;
+        return true;
+      }
+    }
+
+    public void release(String id, String owner, long token) {
+      synchronized (leases) {
+        Object[] lease = leases.get(id);
+        if (lease != null && owner.equals(lease[0]) && token == (Long) lease[2]) {
+          leases.remove(id);
+        }
+      }
+      synchronized (TRANSPORTS) {
+        for (MemoryTransport transport : TRANSPORTS) {
+          if (transport.leases == leases && transport.listener != null) {
+            transport.listener.released(id);
+          }
+        }
+      }
+    }
+
+    public void setListener(Listener listener) {
+      this.listener = listener;
+    }
+  }
 }
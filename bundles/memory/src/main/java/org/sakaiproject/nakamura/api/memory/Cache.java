@@ -71,13 +71,21 @@ public interface Cache<V> {
   void remove(String key);
 
   /**
-   * Remove the key and any child keys from the cache, this is an expensive
-   * operation.
+   * Remove the key and any child keys from the cache. Child keys are keys that
+   * start with the key followed by a /.
    *
    * @param key
    */
   void removeChildren(String key);
 
+  /**
+   * List the values of the key and any child keys in the cache.
+   *
+   * @param key
+   * @return the values, in no particular order.
+   */
+  List<V> listChildren(String key);
+
   /**
    * @return
    */
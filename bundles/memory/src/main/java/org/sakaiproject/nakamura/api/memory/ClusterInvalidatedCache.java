@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * A cache held on each node of a cluster, where a put or remove on one node removes the
+ * entry from the others. Returned by the cache manager for the cluster scopes.
+ */
+public interface ClusterInvalidatedCache<V> extends Cache<V> {
+
+  /**
+   * Cache a value on this node only, without removing it from the other nodes. Used for
+   * values that were read or rendered rather than changed, which the other nodes may
+   * hold as well.
+   *
+   * @param key
+   *          The key with which to find the object.
+   * @param payload
+   *          The object to cache.
+   * @return the value previously cached on this node.
+   */
+  V load(String key, V payload);
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+
+/**
+ * A compact binary encoding of the {@link CacheHolder}s used by sparse content. Each
+ * property is written as a name, a one byte type and the value. Holders containing any
+ * value of a type that is not understood are not encoded, and so stay on heap.
+ */
+public class CacheHolderCodec implements OffHeapCodec<CacheHolder> {
+
+  private static final byte NULL_MAP = 0;
+  private static final byte MAP = 1;
+
+  private static final byte STRING = 1;
+  private static final byte LONG = 2;
+  private static final byte INTEGER = 3;
+  private static final byte BOOLEAN = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte BIGDECIMAL = 6;
+  private static final byte CALENDAR = 7;
+  private static final byte STRING_ARRAY = 8;
+  private static final byte NULL = 9;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.OffHeapCodec#encode(java.lang.Object)
+   */
+  public byte[] encode(CacheHolder holder) {
+    if (holder == null) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(baos);
+      Map<String, Object> map = holder.get();
+      if (map == null) {
+        out.writeByte(NULL_MAP);
+      } else {
+        out.writeByte(MAP);
+        out.writeInt(map.size());
+        for (Entry<String, Object> e : map.entrySet()) {
+          writeString(out, e.getKey());
+          if (!writeValue(out, e.getValue())) {
+            return null;
+          }
+        }
+      }
+      out.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.OffHeapCodec#decode(byte[])
+   */
+  public CacheHolder decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (in.readByte() == NULL_MAP) {
+      return new CacheHolder(null);
+    }
+    int n = in.readInt();
+    Map<String, Object> map = new HashMap<String, Object>(n * 2);
+    for (int i = 0; i < n; i++) {
+      String key = readString(in);
+      map.put(key, readValue(in));
+    }
+    return new CacheHolder(map);
+  }
+
+  private boolean writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof BigDecimal) {
+      out.writeByte(BIGDECIMAL);
+      writeString(out, value.toString());
+    } else if (value.getClass() == GregorianCalendar.class) {
+      Calendar calendar = (Calendar) value;
+      out.writeByte(CALENDAR);
+      out.writeLong(calendar.getTimeInMillis());
+      writeString(out, calendar.getTimeZone().getID());
+    } else if (value instanceof String[]) {
+      String[] values = (String[]) value;
+      out.writeByte(STRING_ARRAY);
+      out.writeInt(values.length);
+      for (String s : values) {
+        if (s == null) {
+          return false;
+        }
+        writeString(out, s);
+      }
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private Object readValue(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+    case NULL:
+      return null;
+    case STRING:
+      return readString(in);
+    case LONG:
+      return in.readLong();
+    case INTEGER:
+      return in.readInt();
+    case BOOLEAN:
+      return in.readBoolean();
+    case DOUBLE:
+      return in.readDouble();
+    case BIGDECIMAL:
+      return new BigDecimal(readString(in));
+    case CALENDAR:
+      long time = in.readLong();
+      Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone(readString(in)));
+      calendar.setTimeInMillis(time);
+      return calendar;
+    case STRING_ARRAY:
+      String[] values = new String[in.readInt()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = readString(in);
+      }
+      return values;
+    default:
+      throw new IOException("Unknown property type " + type);
+    }
+  }
+
+  /**
+   * Strings are written as a length and UTF-8 bytes, since writeUTF can't write strings
+   * that encode to more than 64K.
+   */
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    byte[] b = new byte[in.readInt()];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+}
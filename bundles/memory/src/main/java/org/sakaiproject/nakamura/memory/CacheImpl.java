@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.memory;
 
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.ObjectExistsException;
+import net.sf.ehcache.event.CacheEventListener;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
 
@@ -32,6 +34,8 @@ public class CacheImpl<V> implements Cache<V> {
 
   private String cacheName;
   private net.sf.ehcache.Cache cache;
+  private PrefixKeyIndex index;
+  private CacheStatistics statistics;
 
   /**
    * @param cacheManager
@@ -43,16 +47,20 @@ public class CacheImpl<V> implements Cache<V> {
     } else {
       cacheName = name;
     }
-    synchronized (cacheManager) {
+    cache = cacheManager.getCache(cacheName);
+    if (cache == null) {
+      try {
+        cacheManager.addCache(cacheName);
+      } catch (ObjectExistsException e) {
+        // another thread created the cache first, which is fine.
+      }
       cache = cacheManager.getCache(cacheName);
       if (cache == null) {
-        cacheManager.addCache(cacheName);
-        cache = cacheManager.getCache(cacheName);
-        if (cache == null) {
-          throw new RuntimeException("Failed to create Cache with name " + cacheName);
-        }
+        throw new RuntimeException("Failed to create Cache with name " + cacheName);
       }
     }
+    index = PrefixKeyIndex.getIndex(cache);
+    statistics = CacheStatistics.getStatistics(cache);
   }
 
   /**
@@ -80,7 +88,9 @@ public class CacheImpl<V> implements Cache<V> {
    */
   @SuppressWarnings("unchecked")
   public V get(String key) {
+    long start = System.nanoTime();
     Element e = cache.get(key);
+    statistics.recordGet(e != null, System.nanoTime() - start);
     if (e == null) {
       return null;
     }
@@ -102,6 +112,7 @@ public class CacheImpl<V> implements Cache<V> {
       }
     }
     cache.put(new Element(key, payload));
+    statistics.recordPut();
     return previous;
   }
 
@@ -124,12 +135,33 @@ public class CacheImpl<V> implements Cache<V> {
     if (!key.endsWith("/")) {
       key = key + "/";
     }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
+    for (String k : index.keysWithPrefix(key)) {
+      cache.remove(k);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> listChildren(String key) {
+    List<V> values = new ArrayList<V>();
+    Element e = cache.get(key);
+    if (e != null) {
+      values.add((V) e.getObjectValue());
+    }
+    if (!key.endsWith("/")) {
+      key = key + "/";
+    }
+    for (String k : index.keysWithPrefix(key)) {
+      e = cache.get(k);
+      if (e != null) {
+        values.add((V) e.getObjectValue());
       }
     }
+    return values;
   }
 
   /**
@@ -150,4 +182,20 @@ public class CacheImpl<V> implements Cache<V> {
     return values;
   }
 
+  /**
+   * Register a listener for the events of the underlying ehcache.
+   *
+   * @param listener
+   */
+  public void registerListener(CacheEventListener listener) {
+    cache.getCacheEventNotificationService().registerListener(listener);
+  }
+
+  /**
+   * @return the statistics for this cache.
+   */
+  public CacheStatistics getStatistics() {
+    return statistics;
+  }
+
 }
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A batch of invalidations sent by one node. Batches are encoded into a compact binary
+ * form so they can be sent as a single message, without needing java serialization or
+ * the classloader of the cache payloads.
+ */
+public class CacheInvalidationBatch {
+
+  /**
+   * The operations that can be applied to a remote cache.
+   */
+  public enum Operation {
+    REMOVE, REMOVE_CHILDREN, CLEAR;
+  }
+
+  /**
+   * A single invalidation.
+   */
+  public static class Invalidation {
+    private final String cacheName;
+    private final Operation operation;
+    private final String key;
+
+    public Invalidation(String cacheName, Operation operation, String key) {
+      this.cacheName = cacheName;
+      this.operation = operation;
+      this.key = key;
+    }
+
+    public String getCacheName() {
+      return cacheName;
+    }
+
+    public Operation getOperation() {
+      return operation;
+    }
+
+    /**
+     * @return the key, null for {@link Operation#CLEAR}
+     */
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public String toString() {
+      return operation + " " + cacheName + " " + key;
+    }
+  }
+
+  /**
+   * Version 2 writes strings as a length and UTF-8 bytes, as the {@link CacheHolderCodec}
+   * does, so that keys longer than writeUTF allows can be sent.
+   */
+  private static final int VERSION = 2;
+
+  private final String origin;
+  private final List<Invalidation> invalidations;
+
+  /**
+   * @param origin
+   *          the id of the node that generated the batch.
+   * @param invalidations
+   */
+  public CacheInvalidationBatch(String origin, List<Invalidation> invalidations) {
+    this.origin = origin;
+    this.invalidations = Collections.unmodifiableList(invalidations);
+  }
+
+  public String getOrigin() {
+    return origin;
+  }
+
+  public List<Invalidation> getInvalidations() {
+    return invalidations;
+  }
+
+  /**
+   * @return the batch encoded as bytes.
+   * @throws IOException
+   */
+  public byte[] toBytes() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(64 + invalidations.size() * 64);
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeByte(VERSION);
+    CacheHolderCodec.writeString(out, origin);
+    out.writeInt(invalidations.size());
+    for (Invalidation invalidation : invalidations) {
+      out.writeByte(invalidation.operation.ordinal());
+      CacheHolderCodec.writeString(out, invalidation.cacheName);
+      if (invalidation.key == null) {
+        out.writeBoolean(false);
+      } else {
+        out.writeBoolean(true);
+        CacheHolderCodec.writeString(out, invalidation.key);
+      }
+    }
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param bytes
+   *          a batch encoded by {@link #toBytes()}
+   * @return the decoded batch.
+   * @throws IOException
+   *           if the bytes are not a batch of a known version.
+   */
+  public static CacheInvalidationBatch fromBytes(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unknown cache invalidation batch version " + version);
+    }
+    String origin = CacheHolderCodec.readString(in);
+    int n = in.readInt();
+    Operation[] operations = Operation.values();
+    List<Invalidation> invalidations = new ArrayList<Invalidation>(n);
+    for (int i = 0; i < n; i++) {
+      Operation operation = operations[in.readByte()];
+      String cacheName = CacheHolderCodec.readString(in);
+      String key = null;
+      if (in.readBoolean()) {
+        key = CacheHolderCodec.readString(in);
+      }
+      invalidations.add(new Invalidation(cacheName, operation, key));
+    }
+    return new CacheInvalidationBatch(origin, invalidations);
+  }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Invalidation;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the invalidations generated by the cluster scoped caches of this node and
+ * sends them to the rest of the cluster in batches, and applies the invalidations that
+ * arrive from other nodes to the local caches. Local operations are applied immediately,
+ * the other nodes see them once the batch has been sent, which is normally within a few
+ * milliseconds.
+ */
+public class CacheInvalidationManager implements CacheInvalidationTransport.Listener {
+
+  /**
+   * The maximum number of invalidations sent in one batch.
+   */
+  public static final int MAX_BATCH_SIZE = 500;
+  /**
+   * The time in ms the sender waits for more invalidations before sending a batch.
+   */
+  public static final long LINGER_MS = 5;
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(CacheInvalidationManager.class);
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private final ConcurrentMap<String, Cache<?>> localCaches = new ConcurrentHashMap<String, Cache<?>>();
+  private final BlockingQueue<Invalidation> pending = new LinkedBlockingQueue<Invalidation>();
+  private volatile CacheInvalidationTransport transport;
+  private volatile boolean running;
+  private Thread sender;
+
+  /**
+   * @return the id of this node, used to recognise batches sent by this node.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Register the local cache that invalidations from other nodes are applied to.
+   *
+   * @param cacheName
+   * @param localCache
+   *          the local cache, which must not generate invalidations itself.
+   */
+  public void register(String cacheName, Cache<?> localCache) {
+    localCaches.put(cacheName, localCache);
+  }
+
+  /**
+   * Queue an invalidation for the rest of the cluster.
+   *
+   * @param cacheName
+   * @param operation
+   * @param key
+   *          the key, null for {@link Operation#CLEAR}
+   */
+  public void invalidate(String cacheName, Operation operation, String key) {
+    if (transport != null) {
+      pending.offer(new Invalidation(cacheName, operation, key));
+    }
+  }
+
+  /**
+   * Set the transport to the cluster, starting the sender if necessary.
+   *
+   * @param newTransport
+   *          the transport, or null to stop sending to the cluster.
+   */
+  public synchronized void setTransport(CacheInvalidationTransport newTransport) {
+    if (transport != null) {
+      transport.removeListener(this);
+    }
+    transport = newTransport;
+    if (transport == null) {
+      pending.clear();
+      return;
+    }
+    transport.addListener(this);
+    if (sender == null) {
+      running = true;
+      sender = new Thread(new Runnable() {
+        public void run() {
+          sendLoop();
+        }
+      }, "Cache Invalidation Sender");
+      sender.setDaemon(true);
+      sender.start();
+    }
+  }
+
+  /**
+   * Stop the sender, sending anything that is still pending.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (sender != null) {
+      sender.interrupt();
+      sender = null;
+    }
+    flush();
+    setTransport(null);
+  }
+
+  /**
+   * Send everything that is pending, in batches.
+   */
+  public void flush() {
+    List<Invalidation> batch = new ArrayList<Invalidation>();
+    while (pending.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+      send(batch);
+      batch = new ArrayList<Invalidation>();
+    }
+  }
+
+  private void sendLoop() {
+    while (running) {
+      try {
+        Invalidation first = pending.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
+        }
+        List<Invalidation> batch = new ArrayList<Invalidation>();
+        batch.add(first);
+        if (pending.size() < MAX_BATCH_SIZE) {
+          Thread.sleep(LINGER_MS);
+        }
+        pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+        send(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  private void send(List<Invalidation> batch) {
+    CacheInvalidationTransport t = transport;
+    if (t != null && batch.size() > 0) {
+      LOGGER.debug("Sending {} cache invalidations ", batch.size());
+      t.send(new CacheInvalidationBatch(nodeId, batch));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheInvalidationTransport.Listener#onInvalidation(org.sakaiproject.nakamura.memory.CacheInvalidationBatch)
+   */
+  public void onInvalidation(CacheInvalidationBatch batch) {
+    if (nodeId.equals(batch.getOrigin())) {
+      return;
+    }
+    for (Invalidation invalidation : batch.getInvalidations()) {
+      Cache<?> cache = localCaches.get(invalidation.getCacheName());
+      if (cache == null) {
+        continue;
+      }
+      switch (invalidation.getOperation()) {
+      case REMOVE:
+        cache.remove(invalidation.getKey());
+        break;
+      case REMOVE_CHILDREN:
+        cache.removeChildren(invalidation.getKey());
+        break;
+      case CLEAR:
+        cache.clear();
+        break;
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc} Every cluster cache on this node is cleared, since any of them may hold
+   * entries that were invalidated while the transport was disconnected.
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheInvalidationTransport.Listener#onReconnect()
+   */
+  public void onReconnect() {
+    LOGGER.info("Clearing the cluster caches of this node after a reconnect ");
+    for (Cache<?> cache : localCaches.values()) {
+      cache.clear();
+    }
+  }
+
+}
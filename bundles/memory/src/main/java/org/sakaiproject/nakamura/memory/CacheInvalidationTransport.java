@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * Carries batches of cache invalidations between the nodes of a cluster. A transport
+ * delivers every batch it is given to the listeners of all the other nodes, it is up to
+ * the listener to ignore batches that originated locally.
+ */
+public interface CacheInvalidationTransport {
+
+  /**
+   * Receives batches of invalidations from the transport.
+   */
+  public interface Listener {
+    /**
+     * @param batch
+     *          a batch of invalidations, possibly from this node.
+     */
+    void onInvalidation(CacheInvalidationBatch batch);
+
+    /**
+     * The transport lost its connection to the cluster and has reconnected. Batches sent
+     * by other nodes in the meantime have not been delivered.
+     */
+    void onReconnect();
+  }
+
+  /**
+   * Send a batch of invalidations to the cluster.
+   *
+   * @param batch
+   */
+  void send(CacheInvalidationBatch batch);
+
+  /**
+   * @param listener
+   *          the listener to receive invalidations from the cluster.
+   */
+  void addListener(Listener listener);
+
+  /**
+   * @param listener
+   */
+  void removeListener(Listener listener);
+
+  /**
+   * Release any resources held by the transport.
+   */
+  void close();
+}
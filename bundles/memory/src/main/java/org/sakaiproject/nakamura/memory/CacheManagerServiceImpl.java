@@ -33,8 +33,14 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.management.MBeanServer;
 
@@ -54,7 +60,11 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  private ConcurrentMap<String, Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
+  private ConcurrentMap<String, Cache<?>> clusterCaches = new ConcurrentHashMap<String, Cache<?>>();
+  private ConcurrentMap<String, OffHeapTieredCache<?>> offHeapTiers = new ConcurrentHashMap<String, OffHeapTieredCache<?>>();
+  private CacheInvalidationManager invalidationManager = new CacheInvalidationManager();
+  private CacheInvalidationTransport invalidationTransport;
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
 
@@ -101,6 +111,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    invalidationManager.stop();
+    setInvalidationTransport(null);
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -115,9 +127,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -168,15 +179,146 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @SuppressWarnings("unchecked")
   private <V> Cache<V> getInstanceCache(String name) {
     if (name == null) {
-      return new CacheImpl<V>(cacheManager, null);
-    } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
-      if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name);
-        caches.put(name, c);
+      name = "default";
+    }
+    Cache<V> c = (Cache<V>) caches.get(name);
+    if (c == null) {
+      c = createLocalCache(name);
+      Cache<V> existing = (Cache<V>) caches.putIfAbsent(name, c);
+      if (existing != null) {
+        c = existing;
       }
-      return c;
     }
+    return c;
+  }
+
+  /**
+   * Generate a cache bound to the instance that sends invalidations to the rest of the
+   * cluster. The replicated scope is implemented the same way, so that other nodes reload
+   * the value from storage rather than receiving a serialized copy, which might not be
+   * loadable by their classloaders.
+   *
+   * @param name
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterCache(String name) {
+    if (name == null) {
+      name = "default";
+    }
+    Cache<V> c = (Cache<V>) clusterCaches.get(name);
+    if (c == null) {
+      Cache<V> localCache = createLocalCache(name);
+      c = new ClusterInvalidatedCacheImpl<V>(name, localCache, invalidationManager);
+      Cache<V> existing = (Cache<V>) clusterCaches.putIfAbsent(name, c);
+      if (existing != null) {
+        c = existing;
+      } else {
+        invalidationManager.register(name, localCache);
+      }
+    }
+    return c;
+  }
+
+  /**
+   * @param name
+   * @return the cache held on this node for the name, with an off heap tier if one has
+   *         been configured.
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> createLocalCache(String name) {
+    Cache<V> tier = (Cache<V>) offHeapTiers.get(name);
+    if (tier != null) {
+      return tier;
+    }
+    return new CacheImpl<V>(cacheManager, name);
+  }
+
+  /**
+   * Configure an off heap tier for a named cache. This must be done before the cache is
+   * first used, after which the store may be changed or removed.
+   *
+   * @param name
+   *          the name of the cache.
+   * @param store
+   *          the store, or null to hold the cache on heap only.
+   * @param codec
+   *          the codec for the values in the cache.
+   */
+  @SuppressWarnings("unchecked")
+  public <V> void setOffHeapStore(String name, OffHeapCacheStore store, OffHeapCodec<V> codec) {
+    OffHeapTieredCache<V> tier = (OffHeapTieredCache<V>) offHeapTiers.get(name);
+    if (tier == null) {
+      if (store == null) {
+        return;
+      }
+      if (caches.containsKey(name) || clusterCaches.containsKey(name)) {
+        logger.warn(
+            "Cache {} is already in use, an off heap tier will be used after a restart ",
+            name);
+        store.close();
+        return;
+      }
+      tier = new OffHeapTieredCache<V>(new CacheImpl<V>(cacheManager, name), codec);
+      OffHeapTieredCache<V> existing = (OffHeapTieredCache<V>) offHeapTiers.putIfAbsent(
+          name, tier);
+      if (existing != null) {
+        tier = existing;
+      }
+    }
+    if (store != null) {
+      store.register();
+    }
+    tier.setStore(store);
+  }
+
+  /**
+   * @return the off heap stores in use, by cache name.
+   */
+  public Map<String, OffHeapCacheStore> getOffHeapStores() {
+    Map<String, OffHeapCacheStore> stores = new TreeMap<String, OffHeapCacheStore>();
+    for (Entry<String, OffHeapTieredCache<?>> e : offHeapTiers.entrySet()) {
+      OffHeapCacheStore store = e.getValue().getStore();
+      if (store != null) {
+        stores.put(e.getKey(), store);
+      }
+    }
+    return stores;
+  }
+
+  /**
+   * @return the statistics of every cache in the cache manager that has been used through
+   *         this service, sorted by name.
+   */
+  public List<CacheStatistics> getStatistics() {
+    List<CacheStatistics> statistics = new ArrayList<CacheStatistics>();
+    String[] names = cacheManager.getCacheNames();
+    Arrays.sort(names);
+    for (String name : names) {
+      net.sf.ehcache.Cache cache = cacheManager.getCache(name);
+      if (cache != null) {
+        CacheStatistics cacheStatistics = CacheStatistics.findStatistics(cache);
+        if (cacheStatistics != null) {
+          statistics.add(cacheStatistics);
+        }
+      }
+    }
+    return statistics;
+  }
+
+  /**
+   * Set the transport used to send invalidations to the rest of the cluster.
+   *
+   * @param transport
+   *          the transport, or null to make the cluster caches local only.
+   */
+  public synchronized void setInvalidationTransport(CacheInvalidationTransport transport) {
+    if (invalidationTransport != null && invalidationTransport != transport) {
+      invalidationManager.setTransport(null);
+      invalidationTransport.close();
+    }
+    invalidationTransport = transport;
+    invalidationManager.setTransport(transport);
   }
 
   /**
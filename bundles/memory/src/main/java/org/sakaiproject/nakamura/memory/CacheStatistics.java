@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the activity of a single named cache. Hits, misses, puts and get times are
+ * recorded by {@link CacheImpl}, evictions and expiries come from the cache events. There
+ * is one instance per ehcache, use {@link #getStatistics(Ehcache)} to get it, and each
+ * one is registered with the platform MBeanServer.
+ */
+public class CacheStatistics implements CacheEventListener, CacheStatisticsMBean {
+
+  public static final String JMX_DOMAIN = "org.sakaiproject.nakamura.memory";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheStatistics.class);
+
+  private final Ehcache cache;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expiries = new AtomicLong();
+  private final AtomicLong getTimeNanos = new AtomicLong();
+  private ObjectName objectName;
+
+  private CacheStatistics(Ehcache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Get the statistics for a cache, creating and registering them if the cache does not
+   * have any already.
+   *
+   * @param cache
+   * @return the statistics for the cache.
+   */
+  public static CacheStatistics getStatistics(Ehcache cache) {
+    synchronized (cache) {
+      CacheStatistics statistics = findStatistics(cache);
+      if (statistics == null) {
+        statistics = new CacheStatistics(cache);
+        cache.getCacheEventNotificationService().registerListener(statistics);
+        statistics.register();
+      }
+      return statistics;
+    }
+  }
+
+  /**
+   * @param cache
+   * @return the statistics for the cache, or null if no {@link CacheImpl} has been
+   *         created for it.
+   */
+  public static CacheStatistics findStatistics(Ehcache cache) {
+    Set<?> listeners = cache.getCacheEventNotificationService().getCacheEventListeners();
+    for (Object listener : listeners) {
+      if (listener instanceof CacheStatistics) {
+        return (CacheStatistics) listener;
+      }
+    }
+    return null;
+  }
+
+  private void register() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":type=CacheStatistics,name="
+          + ObjectName.quote(cache.getName()));
+      mBeanServer.registerMBean(this, name);
+      objectName = name;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register statistics for cache {} with JMX {} ",
+          cache.getName(), e.getMessage());
+    }
+  }
+
+  /**
+   * Record a get.
+   *
+   * @param hit
+   *          true if the get found a value.
+   * @param nanos
+   *          the time the get took.
+   */
+  void recordGet(boolean hit, long nanos) {
+    if (hit) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    getTimeNanos.addAndGet(nanos);
+  }
+
+  void recordPut() {
+    puts.incrementAndGet();
+  }
+
+  public String getName() {
+    return cache.getName();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    if (total == 0) {
+      return 0.0;
+    }
+    return ((double) h) / ((double) total);
+  }
+
+  public long getPuts() {
+    return puts.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getExpiries() {
+    return expiries.get();
+  }
+
+  public double getAverageGetTimeMicros() {
+    long gets = hits.get() + misses.get();
+    if (gets == 0) {
+      return 0.0;
+    }
+    return ((double) getTimeNanos.get()) / ((double) gets) / 1000.0;
+  }
+
+  public int getSize() {
+    return (int) (cache.getMemoryStoreSize() + cache.getDiskStoreSize());
+  }
+
+  public void reset() {
+    hits.set(0);
+    misses.set(0);
+    puts.set(0);
+    evictions.set(0);
+    expiries.set(0);
+    getTimeNanos.set(0);
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    evictions.incrementAndGet();
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    expiries.incrementAndGet();
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Called when the cache is disposed of, unregisters the MBean.
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#dispose()
+   */
+  public void dispose() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The statistics belong to a single cache, so they can't be cloned.
+   *
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("CacheStatistics belong to a single cache");
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * The JMX view of the statistics of a single named cache.
+ */
+public interface CacheStatisticsMBean {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the number of gets that found a value.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that found nothing.
+   */
+  long getMisses();
+
+  /**
+   * @return hits / (hits + misses), 0 if there have been no gets.
+   */
+  double getHitRatio();
+
+  /**
+   * @return the number of puts.
+   */
+  long getPuts();
+
+  /**
+   * @return the number of entries evicted because the cache was full.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of entries that expired.
+   */
+  long getExpiries();
+
+  /**
+   * @return the average time taken by a get, in microseconds.
+   */
+  double getAverageGetTimeMicros();
+
+  /**
+   * @return the number of entries in the cache, including any that have expired but not
+   *         yet been removed.
+   */
+  int getSize();
+
+  /**
+   * Reset all the counters.
+   */
+  void reset();
+}
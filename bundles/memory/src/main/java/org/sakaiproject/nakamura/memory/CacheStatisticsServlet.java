@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lists the statistics of every named cache as JSON, for sizing the cache configuration.
+ */
+@ServiceDocumentation(name = "CacheStatisticsServlet", shortDescription = "Statistics for each named cache.", description = "Lists hits, misses, puts, evictions, expiries, size and average get time for every named cache on this server, and the state of any off heap tier. Only available to the admin user.", bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/system/cachestats"), methods = @ServiceMethod(name = "GET", description = "<p>Sample JSON response:</p><pre>"
+    + "curl -u admin:admin http://localhost:8080/system/cachestats\n"
+    + "{\"caches\":[{\"name\":\"contentCache\",\"hits\":1230,\"misses\":45,\"hitRatio\":0.964,\"puts\":45,\"evictions\":0,\"expiries\":3,\"size\":42,\"averageGetTimeMicros\":1.7}]}"
+    + "</pre>", response = {
+    @ServiceResponse(code = 200, description = "The statistics of every cache."),
+    @ServiceResponse(code = 403, description = "The current user is not the admin user."),
+    @ServiceResponse(code = 500, description = "Failed to write the statistics.") }))
+@SlingServlet(paths = { "/system/cachestats" }, generateComponent = true, generateService = true, methods = { "GET" })
+public class CacheStatisticsServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = 1877403575614052946L;
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheStatisticsServlet.class);
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!"admin".equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Only the admin user can see cache statistics");
+      return;
+    }
+    if (!(cacheManagerService instanceof CacheManagerServiceImpl)) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "The cache manager does not provide statistics");
+      return;
+    }
+    try {
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter writer = new JSONWriter(response.getWriter());
+      writer.object();
+      writer.key("caches");
+      writer.array();
+      CacheManagerServiceImpl cacheManager = (CacheManagerServiceImpl) cacheManagerService;
+      Map<String, OffHeapCacheStore> offHeapStores = cacheManager.getOffHeapStores();
+      for (CacheStatistics statistics : cacheManager.getStatistics()) {
+        writer.object();
+        writer.key("name").value(statistics.getName());
+        writer.key("hits").value(statistics.getHits());
+        writer.key("misses").value(statistics.getMisses());
+        writer.key("hitRatio").value(statistics.getHitRatio());
+        writer.key("puts").value(statistics.getPuts());
+        writer.key("evictions").value(statistics.getEvictions());
+        writer.key("expiries").value(statistics.getExpiries());
+        writer.key("size").value(statistics.getSize());
+        writer.key("averageGetTimeMicros").value(statistics.getAverageGetTimeMicros());
+        OffHeapCacheStore store = offHeapStores.get(statistics.getName());
+        if (store != null) {
+          writer.key("offHeap");
+          writer.object();
+          writer.key("entries").value(store.getEntries());
+          writer.key("usedBytes").value(store.getUsedBytes());
+          writer.key("capacityBytes").value(store.getCapacityBytes());
+          writer.key("hits").value(store.getHits());
+          writer.key("misses").value(store.getMisses());
+          writer.key("puts").value(store.getPuts());
+          writer.key("evictions").value(store.getEvictions());
+          writer.key("rejections").value(store.getRejections());
+          writer.endObject();
+        }
+        writer.endObject();
+      }
+      writer.endArray();
+      writer.endObject();
+    } catch (JSONException e) {
+      LOGGER.error("Failed to write cache statistics", e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Failed to write cache statistics");
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.ClusterInvalidatedCache;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Operation;
+
+import java.util.List;
+
+/**
+ * A Cache that is held locally, but sends invalidations to the other nodes in the
+ * cluster whenever an entry is put or removed. Every put is broadcast, whether or not
+ * this node held the key, since another node may have cached it while this one did not.
+ * Values read from storage are cached with {@link #load(String, Object)}, which is not
+ * broadcast.
+ */
+public class ClusterInvalidatedCacheImpl<V> implements ClusterInvalidatedCache<V> {
+
+  private final String cacheName;
+  private final Cache<V> cache;
+  private final CacheInvalidationManager invalidationManager;
+
+  /**
+   * @param cacheName
+   * @param cache
+   *          the local cache.
+   * @param invalidationManager
+   */
+  public ClusterInvalidatedCacheImpl(String cacheName, Cache<V> cache,
+      CacheInvalidationManager invalidationManager) {
+    this.cacheName = cacheName;
+    this.cache = cache;
+    this.invalidationManager = invalidationManager;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = cache.put(key, payload);
+    invalidationManager.invalidate(cacheName, Operation.REMOVE, key);
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc} The rest of the cluster is not told, since nothing has changed.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.ClusterInvalidatedCache#load(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V load(String key, V payload) {
+    return cache.put(key, payload);
+  }
+
+  public boolean containsKey(String key) {
+    return cache.containsKey(key);
+  }
+
+  public V get(String key) {
+    return cache.get(key);
+  }
+
+  public void clear() {
+    cache.clear();
+    invalidationManager.invalidate(cacheName, Operation.CLEAR, null);
+  }
+
+  public void remove(String key) {
+    cache.remove(key);
+    invalidationManager.invalidate(cacheName, Operation.REMOVE, key);
+  }
+
+  public void removeChildren(String key) {
+    cache.removeChildren(key);
+    invalidationManager.invalidate(cacheName, Operation.REMOVE_CHILDREN, key);
+  }
+
+  public List<V> list() {
+    return cache.list();
+  }
+
+  public List<V> listChildren(String key) {
+    return cache.listChildren(key);
+  }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Invalidation;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Sends invalidation batches over a JMS topic, one message per batch. The connection is
+ * held open for the life of the transport, since batches are sent frequently. Messages
+ * are not persistent, so when the connection is lost it is rebuilt in the background, and
+ * once it is back the listeners are told that invalidations may have been missed. Caches
+ * whose invalidations could not be sent in the meantime are cleared on the other nodes.
+ */
+public class JmsInvalidationTransport implements CacheInvalidationTransport,
+    MessageListener, ExceptionListener {
+
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/invalidation";
+
+  /**
+   * The time in ms before the first attempt to reconnect, doubled after each failure.
+   */
+  static final long RECONNECT_DELAY_MS = 500;
+  /**
+   * The longest time in ms between attempts to reconnect.
+   */
+  static final long MAX_RECONNECT_DELAY_MS = 30000;
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(JmsInvalidationTransport.class);
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  private final ConnectionFactoryService connectionFactoryService;
+  private Connection connection;
+  private Session producerSession;
+  private MessageProducer producer;
+  private Thread reconnector;
+  private boolean closed;
+  /**
+   * The origin and caches of the batches that could not be sent.
+   */
+  private String unsentOrigin;
+  private final Set<String> unsentCaches = new LinkedHashSet<String>();
+
+  /**
+   * @param connectionFactoryService
+   * @throws JMSException
+   *           if the connection to the broker could not be established.
+   */
+  public JmsInvalidationTransport(ConnectionFactoryService connectionFactoryService)
+      throws JMSException {
+    this.connectionFactoryService = connectionFactoryService;
+    synchronized (this) {
+      try {
+        connect();
+      } catch (JMSException e) {
+        close();
+        throw e;
+      }
+    }
+  }
+
+  private void connect() throws JMSException {
+    connection = connectionFactoryService.getDefaultConnectionFactory()
+        .createConnection();
+    connection.setExceptionListener(this);
+    Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    Topic topic = consumerSession.createTopic(TOPIC);
+    MessageConsumer consumer = consumerSession.createConsumer(topic);
+    consumer.setMessageListener(this);
+
+    // sessions are not thread safe, the producer session is only used under the
+    // monitor in send.
+    producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageProducer newProducer = producerSession.createProducer(producerSession
+        .createTopic(TOPIC));
+    newProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    connection.start();
+    producer = newProducer;
+  }
+
+  private void disconnect() {
+    producer = null;
+    producerSession = null;
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      connection = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheInvalidationTransport#send(org.sakaiproject.nakamura.memory.CacheInvalidationBatch)
+   */
+  public synchronized void send(CacheInvalidationBatch batch) {
+    if (closed) {
+      return;
+    }
+    if (producer == null) {
+      keepUnsent(batch);
+      return;
+    }
+    try {
+      BytesMessage message = producerSession.createBytesMessage();
+      message.writeBytes(batch.toBytes());
+      producer.send(message);
+    } catch (JMSException e) {
+      LOGGER.error("Failed to send cache invalidations {} ", e.getMessage(), e);
+      keepUnsent(batch);
+    } catch (IOException e) {
+      LOGGER.error("Failed to encode cache invalidations {} ", e.getMessage(), e);
+      keepUnsent(batch);
+    }
+  }
+
+  private void keepUnsent(CacheInvalidationBatch batch) {
+    unsentOrigin = batch.getOrigin();
+    for (Invalidation invalidation : batch.getInvalidations()) {
+      unsentCaches.add(invalidation.getCacheName());
+    }
+  }
+
+  /**
+   * {@inheritDoc} The connection is rebuilt on another thread.
+   *
+   * @see javax.jms.ExceptionListener#onException(javax.jms.JMSException)
+   */
+  public synchronized void onException(JMSException exception) {
+    if (closed || reconnector != null) {
+      return;
+    }
+    LOGGER.error("Lost the JMS connection for cache invalidations, reconnecting {} ",
+        exception.getMessage(), exception);
+    // anything sent from now on is remembered until the connection is back.
+    producer = null;
+    reconnector = new Thread(new Runnable() {
+      public void run() {
+        reconnect();
+      }
+    }, "Cache Invalidation Reconnect");
+    reconnector.setDaemon(true);
+    reconnector.start();
+  }
+
+  private void reconnect() {
+    long delay = RECONNECT_DELAY_MS;
+    while (true) {
+      synchronized (this) {
+        disconnect();
+      }
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        return;
+      }
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        try {
+          connect();
+          reconnector = null;
+          sendUnsent();
+        } catch (JMSException e) {
+          LOGGER.warn("Unable to reconnect to JMS for cache invalidations {} ",
+              e.getMessage());
+          delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MS);
+          continue;
+        }
+      }
+      LOGGER.info("Reconnected to JMS for cache invalidations ");
+      for (Listener listener : listeners) {
+        listener.onReconnect();
+      }
+      return;
+    }
+  }
+
+  /**
+   * The other nodes still hold whatever the unsent batches should have removed, so they
+   * are told to clear those caches.
+   */
+  private void sendUnsent() {
+    if (unsentCaches.isEmpty()) {
+      return;
+    }
+    List<Invalidation> clears = new ArrayList<Invalidation>();
+    for (String cacheName : unsentCaches) {
+      clears.add(new Invalidation(cacheName, Operation.CLEAR, null));
+    }
+    CacheInvalidationBatch batch = new CacheInvalidationBatch(unsentOrigin, clears);
+    unsentCaches.clear();
+    send(batch);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    if (!(message instanceof BytesMessage)) {
+      LOGGER.warn("Ignoring unexpected message on {} {} ", TOPIC, message);
+      return;
+    }
+    try {
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(body);
+      CacheInvalidationBatch batch = CacheInvalidationBatch.fromBytes(body);
+      for (Listener listener : listeners) {
+        listener.onInvalidation(batch);
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (IOException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public synchronized void close() {
+    closed = true;
+    listeners.clear();
+    if (reconnector != null) {
+      reconnector.interrupt();
+      reconnector = null;
+    }
+    disconnect();
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.JMSException;
+
+/**
+ * Sends the cluster cache invalidations over JMS when a broker is available. This is kept
+ * apart from the CacheManagerServiceImpl so that the JMS packages are an optional import,
+ * and the caches still work where there is no JMS.
+ */
+@Component(immediate = true)
+public class JmsInvalidationTransportBinder {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(JmsInvalidationTransportBinder.class);
+
+  @Reference
+  private ConnectionFactoryService connectionFactoryService;
+
+  @Reference
+  private CacheManagerService cacheManagerService;
+
+  @Activate
+  protected void activate() {
+    if (!(cacheManagerService instanceof CacheManagerServiceImpl)) {
+      return;
+    }
+    try {
+      ((CacheManagerServiceImpl) cacheManagerService)
+          .setInvalidationTransport(new JmsInvalidationTransport(connectionFactoryService));
+      LOGGER.info("Cluster cache invalidations are being sent over JMS topic {} ",
+          JmsInvalidationTransport.TOPIC);
+    } catch (JMSException e) {
+      LOGGER.error(
+          "Unable to connect to JMS, cluster caches will not be invalidated remotely {} ",
+          e.getMessage(), e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (cacheManagerService instanceof CacheManagerServiceImpl) {
+      ((CacheManagerServiceImpl) cacheManagerService).setInvalidationTransport(null);
+    }
+  }
+}
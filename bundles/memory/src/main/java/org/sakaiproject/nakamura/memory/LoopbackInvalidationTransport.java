@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A transport that delivers batches to every listener in the same JVM. Several
+ * {@link CacheManagerServiceImpl} instances sharing one loopback transport behave like
+ * the nodes of a cluster, which is how the cluster scopes are tested.
+ */
+public class LoopbackInvalidationTransport implements CacheInvalidationTransport {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LoopbackInvalidationTransport.class);
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheInvalidationTransport#send(org.sakaiproject.nakamura.memory.CacheInvalidationBatch)
+   */
+  public void send(CacheInvalidationBatch batch) {
+    for (Listener listener : listeners) {
+      try {
+        listener.onInvalidation(batch);
+      } catch (RuntimeException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public void close() {
+    listeners.clear();
+  }
+
+}
@@ -22,8 +22,8 @@ import org.sakaiproject.nakamura.api.memory.ThreadBound;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 /**
  *
@@ -88,10 +88,9 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     if ( !key.endsWith("/") ) {
       key = key + "/";
     }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    for ( Iterator<String> keys = super.keySet().iterator(); keys.hasNext(); ) {
+      if ( keys.next().startsWith(key) ) {
+        keys.remove();
       }
     }
   }
@@ -104,6 +103,26 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     return new ArrayList<V>(super.values());
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<V> listChildren(String key) {
+    List<V> values = new ArrayList<V>();
+    if ( super.containsKey(key) ) {
+      values.add(super.get(key));
+    }
+    if ( !key.endsWith("/") ) {
+      key = key + "/";
+    }
+    for ( Entry<String, V> e : super.entrySet() ) {
+      if ( e.getKey().startsWith(key) ) {
+        values.add(e.getValue());
+      }
+    }
+    return values;
+  }
+
 
 
 
@@ -0,0 +1,450 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Holds encoded cache values in direct ByteBuffers, outside the java heap. The store is
+ * split into segments, each one a ring buffer written in order and guarded by its own
+ * lock. When a segment is full the oldest entries are overwritten, so the store behaves
+ * as a FIFO cache. Only the keys and the position of each value are held on heap.
+ * <p>
+ * The keys of every segment are also held in a sorted index, so that the keys below a
+ * path can be found without scanning the segments. The index is a concurrent skip list
+ * rather than a locked set, so segments never wait on each other to update it. A key is
+ * only added to or removed from the index under the lock of its segment.
+ * </p>
+ * <p>
+ * Removals leave a short lived tombstone, so that a value being written to the store
+ * concurrently with its removal, by an eviction from the heap cache, can be discarded
+ * rather than resurrected.
+ * </p>
+ */
+public class OffHeapCacheStore implements OffHeapCacheStoreMBean {
+
+  /**
+   * How long removals are remembered for.
+   */
+  static final long TOMBSTONE_TTL = 10000L;
+
+  private static final int SEGMENTS = 16;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapCacheStore.class);
+
+  /**
+   * The location of a value in a segment.
+   */
+  private static class Slot {
+    private final int offset;
+    private final int length;
+    private final long expires;
+
+    Slot(int offset, int length, long expires) {
+      this.offset = offset;
+      this.length = length;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * A ring buffer of values. Slots are held in the order they were written, so the first
+   * slot is always the next to be overwritten.
+   */
+  private class Segment {
+    private final ByteBuffer buffer;
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<String, Slot>();
+    private final LinkedHashMap<String, Long> tombstones = new LinkedHashMap<String, Long>();
+    private int writePosition;
+    private long usedBytes;
+
+    Segment(int capacity) {
+      buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    synchronized byte[] get(String key, long now) {
+      Slot slot = slots.get(key);
+      if (slot == null) {
+        return null;
+      }
+      if (slot.expires < now) {
+        removeSlot(key);
+        return null;
+      }
+      byte[] value = new byte[slot.length];
+      buffer.position(slot.offset);
+      buffer.get(value);
+      return value;
+    }
+
+    synchronized boolean put(String key, byte[] value, long createdAt, long expires) {
+      if (isRemovedSince(key, createdAt)) {
+        return false;
+      }
+      removeSlot(key);
+      int capacity = buffer.capacity();
+      if (writePosition + value.length > capacity) {
+        // the end of the buffer is too small, drop the oldest entries that are stored
+        // there and wrap to the start.
+        evictFrom(writePosition, capacity);
+        writePosition = 0;
+      }
+      evictFrom(writePosition, writePosition + value.length);
+      buffer.position(writePosition);
+      buffer.put(value);
+      slots.put(key, new Slot(writePosition, value.length, expires));
+      keys.add(key);
+      writePosition += value.length;
+      usedBytes += value.length;
+      return true;
+    }
+
+    private void evictFrom(int start, int end) {
+      Iterator<Entry<String, Slot>> i = slots.entrySet().iterator();
+      while (i.hasNext()) {
+        Entry<String, Slot> oldest = i.next();
+        Slot slot = oldest.getValue();
+        if (slot.offset < start || slot.offset >= end) {
+          return;
+        }
+        i.remove();
+        usedBytes -= slot.length;
+        keys.remove(oldest.getKey());
+        evictions.incrementAndGet();
+      }
+    }
+
+    synchronized void remove(String key, long now) {
+      removeSlot(key);
+      tombstones.remove(key);
+      tombstones.put(key, now);
+      expireTombstones(now);
+    }
+
+    synchronized void removeKey(String key) {
+      removeSlot(key);
+    }
+
+    synchronized byte[] takeKey(String key, long now) {
+      byte[] value = get(key, now);
+      removeSlot(key);
+      return value;
+    }
+
+    synchronized boolean hasTombstone(String key, long since) {
+      Long removedAt = tombstones.get(key);
+      return removedAt != null && removedAt >= since;
+    }
+
+    synchronized void clear() {
+      for (String key : slots.keySet()) {
+        keys.remove(key);
+      }
+      slots.clear();
+      writePosition = 0;
+      usedBytes = 0;
+    }
+
+    synchronized int size() {
+      return slots.size();
+    }
+
+    synchronized long getUsedBytes() {
+      return usedBytes;
+    }
+
+    private void removeSlot(String key) {
+      Slot slot = slots.remove(key);
+      if (slot != null) {
+        usedBytes -= slot.length;
+        keys.remove(key);
+      }
+    }
+
+    private void expireTombstones(long now) {
+      Iterator<Long> i = tombstones.values().iterator();
+      while (i.hasNext() && i.next() < now - TOMBSTONE_TTL) {
+        i.remove();
+      }
+    }
+  }
+
+  private final String name;
+  private final Segment[] segments;
+  private final long capacityBytes;
+  private final long timeToLive;
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+  private final List<Entry<String, Long>> removedPrefixes = new ArrayList<Entry<String, Long>>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+  private volatile long clearedAt;
+  private ObjectName objectName;
+
+  /**
+   * @param name
+   *          the name of the cache the store belongs to.
+   * @param capacityBytes
+   *          the total bytes of direct memory to allocate.
+   * @param timeToLive
+   *          the time in ms an entry is held for.
+   */
+  public OffHeapCacheStore(String name, long capacityBytes, long timeToLive) {
+    this.name = name;
+    this.timeToLive = timeToLive;
+    int segmentCapacity = (int) Math.min(Integer.MAX_VALUE, capacityBytes / SEGMENTS);
+    this.capacityBytes = ((long) segmentCapacity) * SEGMENTS;
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(segmentCapacity);
+    }
+  }
+
+  private Segment segmentFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % SEGMENTS];
+  }
+
+  /**
+   * @param key
+   * @return the value, or null if not present or expired.
+   */
+  public byte[] get(String key) {
+    byte[] value = segmentFor(key).get(key, System.currentTimeMillis());
+    if (value == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return value;
+  }
+
+  /**
+   * Store a value, unless the key has been removed since the value was created.
+   *
+   * @param key
+   * @param value
+   *          the encoded value, or null if it could not be encoded.
+   * @param createdAt
+   *          the time the value was put into the heap cache.
+   */
+  public void put(String key, byte[] value, long createdAt) {
+    if (value == null || value.length > capacityBytes / SEGMENTS) {
+      // any older value for the key is now out of date.
+      discard(key);
+      rejections.incrementAndGet();
+      return;
+    }
+    if (segmentFor(key).put(key, value, createdAt, createdAt + timeToLive)) {
+      puts.incrementAndGet();
+    }
+  }
+
+  /**
+   * Remove a value, leaving a tombstone.
+   *
+   * @param key
+   */
+  public void remove(String key) {
+    segmentFor(key).remove(key, System.currentTimeMillis());
+  }
+
+  /**
+   * Remove a value without leaving a tombstone, used when a newer value has been put into
+   * the heap cache.
+   *
+   * @param key
+   * @return the value that was discarded, or null if there was none.
+   */
+  public byte[] discard(String key) {
+    return segmentFor(key).takeKey(key, System.currentTimeMillis());
+  }
+
+  /**
+   * Remove the key and every key below it.
+   *
+   * @param key
+   */
+  public void removeChildren(String key) {
+    long now = System.currentTimeMillis();
+    remove(key);
+    if (!key.endsWith("/")) {
+      key = key + "/";
+    }
+    synchronized (removedPrefixes) {
+      Iterator<Entry<String, Long>> i = removedPrefixes.iterator();
+      while (i.hasNext()) {
+        if (i.next().getValue() < now - TOMBSTONE_TTL) {
+          i.remove();
+        }
+      }
+      removedPrefixes.add(new SimpleEntry(key, now));
+    }
+    // a child put while this runs may be missed here, but the prefix recorded above
+    // stops it being stored.
+    String upper = key.substring(0, key.length() - 1) + (char) (key.charAt(key.length() - 1) + 1);
+    for (String child : keys.subSet(key, upper)) {
+      segmentFor(child).removeKey(child);
+    }
+  }
+
+  /**
+   * @param key
+   * @param since
+   * @return true if the key has been removed, directly or by a removeChildren or a clear,
+   *         at or after since.
+   */
+  public boolean isRemovedSince(String key, long since) {
+    if (clearedAt >= since) {
+      return true;
+    }
+    synchronized (removedPrefixes) {
+      for (Entry<String, Long> removed : removedPrefixes) {
+        if (removed.getValue() >= since && key.startsWith(removed.getKey())) {
+          return true;
+        }
+      }
+    }
+    return segmentFor(key).hasTombstone(key, since);
+  }
+
+  /**
+   * Remove everything.
+   */
+  public void clear() {
+    clearedAt = System.currentTimeMillis();
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * Register the store with the platform MBeanServer.
+   */
+  public void register() {
+    try {
+      ObjectName on = new ObjectName(CacheStatistics.JMX_DOMAIN
+          + ":type=OffHeapCacheStore,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+      objectName = on;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register off heap store for cache {} with JMX {} ", name,
+          e.getMessage());
+    }
+  }
+
+  /**
+   * Release the store. The direct memory is freed once the store has been garbage
+   * collected.
+   */
+  public void close() {
+    clear();
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      objectName = null;
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getEntries() {
+    int n = 0;
+    for (Segment segment : segments) {
+      n += segment.size();
+    }
+    return n;
+  }
+
+  public long getUsedBytes() {
+    long n = 0;
+    for (Segment segment : segments) {
+      n += segment.getUsedBytes();
+    }
+    return n;
+  }
+
+  public long getCapacityBytes() {
+    return capacityBytes;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getPuts() {
+    return puts.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  private static class SimpleEntry implements Entry<String, Long> {
+    private final String key;
+    private final Long value;
+
+    SimpleEntry(String key, Long value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public Long getValue() {
+      return value;
+    }
+
+    public Long setValue(Long value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * The JMX view of an {@link OffHeapCacheStore}.
+ */
+public interface OffHeapCacheStoreMBean {
+
+  /**
+   * @return the name of the cache the store belongs to.
+   */
+  String getName();
+
+  /**
+   * @return the number of entries held.
+   */
+  int getEntries();
+
+  /**
+   * @return the bytes used by the entries held.
+   */
+  long getUsedBytes();
+
+  /**
+   * @return the bytes of direct memory allocated to the store.
+   */
+  long getCapacityBytes();
+
+  /**
+   * @return the number of gets that found a value.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that found nothing, or an expired entry.
+   */
+  long getMisses();
+
+  /**
+   * @return the number of entries written to the store.
+   */
+  long getPuts();
+
+  /**
+   * @return the number of entries overwritten to make space for newer ones.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of values that could not be stored, because they could not be
+   *         encoded or were too large.
+   */
+  long getRejections();
+}
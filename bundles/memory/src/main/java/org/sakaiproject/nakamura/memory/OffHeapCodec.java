@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.IOException;
+
+/**
+ * Converts cache values to and from the bytes held in an {@link OffHeapCacheStore}.
+ */
+public interface OffHeapCodec<V> {
+
+  /**
+   * @param value
+   * @return the encoded value, or null if the value can't be encoded and so should not be
+   *         stored off heap.
+   */
+  byte[] encode(V value);
+
+  /**
+   * @param bytes
+   *          bytes produced by {@link #encode(Object)}
+   * @return the value.
+   * @throws IOException
+   *           if the bytes could not be decoded.
+   */
+  V decode(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A heap cache with an optional second tier held off heap. Entries evicted from the heap
+ * cache are encoded into the {@link OffHeapCacheStore}, and moved back onto the heap when
+ * they are next read. Every change and removal applies to both tiers, and an entry that
+ * leaves the heap without being stored off heap discards any older off heap copy. With no store set
+ * the cache is just the heap cache.
+ */
+public class OffHeapTieredCache<V> implements Cache<V>, CacheEventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapTieredCache.class);
+
+  private final CacheImpl<V> cache;
+  private final OffHeapCodec<V> codec;
+  private volatile OffHeapCacheStore store;
+
+  /**
+   * @param cache
+   *          the heap cache.
+   * @param codec
+   *          the codec used to encode values into the off heap store.
+   */
+  public OffHeapTieredCache(CacheImpl<V> cache, OffHeapCodec<V> codec) {
+    this.cache = cache;
+    this.codec = codec;
+    cache.registerListener(this);
+  }
+
+  /**
+   * @param store
+   *          the new off heap store, or null to hold entries on heap only. Any previous
+   *          store is closed.
+   */
+  public void setStore(OffHeapCacheStore store) {
+    OffHeapCacheStore previous = this.store;
+    this.store = store;
+    if (previous != null && previous != store) {
+      previous.close();
+    }
+  }
+
+  /**
+   * @return the off heap store, null if there is none.
+   */
+  public OffHeapCacheStore getStore() {
+    return store;
+  }
+
+  public V get(String key) {
+    V value = cache.get(key);
+    OffHeapCacheStore s = store;
+    if (value != null || s == null) {
+      return value;
+    }
+    long readAt = System.currentTimeMillis();
+    byte[] bytes = s.get(key);
+    if (bytes == null) {
+      return null;
+    }
+    try {
+      value = codec.decode(bytes);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to decode off heap entry {} {} ", key, e.getMessage());
+      s.remove(key);
+      return null;
+    }
+    cache.put(key, value);
+    // a removal that raced with the read must win.
+    if (s.isRemovedSince(key, readAt)) {
+      cache.remove(key);
+      return null;
+    }
+    return value;
+  }
+
+  public boolean containsKey(String key) {
+    if (cache.containsKey(key)) {
+      return true;
+    }
+    OffHeapCacheStore s = store;
+    return s != null && s.get(key) != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The previous value is returned from whichever tier held it, so that replacing an entry
+   * that was only held off heap is seen as an overwrite.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    OffHeapCacheStore s = store;
+    byte[] offHeap = null;
+    if (s != null) {
+      offHeap = s.discard(key);
+    }
+    V previous = cache.put(key, payload);
+    if (previous == null && offHeap != null) {
+      try {
+        previous = codec.decode(offHeap);
+      } catch (IOException e) {
+        LOGGER.debug("Unable to decode replaced off heap entry {} {} ", key, e.getMessage());
+      }
+    }
+    return previous;
+  }
+
+  public void remove(String key) {
+    cache.remove(key);
+    OffHeapCacheStore s = store;
+    if (s != null) {
+      s.remove(key);
+    }
+  }
+
+  public void removeChildren(String key) {
+    cache.removeChildren(key);
+    OffHeapCacheStore s = store;
+    if (s != null) {
+      s.removeChildren(key);
+    }
+  }
+
+  public void clear() {
+    cache.clear();
+    OffHeapCacheStore s = store;
+    if (s != null) {
+      s.clear();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Lists the heap tier only.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return cache.list();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Lists the heap tier only.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<V> listChildren(String key) {
+    return cache.listChildren(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Moves the evicted entry into the off heap store.
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementEvicted(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  @SuppressWarnings("unchecked")
+  public void notifyElementEvicted(Ehcache ehcache, Element element) {
+    OffHeapCacheStore s = store;
+    if (s != null && element.getObjectKey() instanceof String) {
+      s.put((String) element.getObjectKey(), codec.encode((V) element.getObjectValue()),
+          element.getCreationTime());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Discards any older copy of the expired entry held off heap.
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementExpired(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementExpired(Ehcache ehcache, Element element) {
+    OffHeapCacheStore s = store;
+    if (s != null && element.getObjectKey() instanceof String) {
+      s.discard((String) element.getObjectKey());
+    }
+  }
+
+  public void notifyElementPut(Ehcache ehcache, Element element) throws CacheException {
+  }
+
+  public void notifyElementUpdated(Ehcache ehcache, Element element) throws CacheException {
+  }
+
+  public void notifyElementRemoved(Ehcache ehcache, Element element) throws CacheException {
+  }
+
+  public void notifyRemoveAll(Ehcache ehcache) {
+  }
+
+  public void dispose() {
+    setStore(null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The tier belongs to a single cache, so it can't be cloned.
+   *
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("An OffHeapTieredCache belongs to a single cache");
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index of the String keys in an ehcache, maintained from the cache events, so
+ * that all the keys with a prefix can be found in O(log n + k) rather than scanning every
+ * key in the cache. There is one index per ehcache, use {@link #getIndex(Ehcache)} to get
+ * it. The index is a concurrent skip list, so cache writes never wait on a lock to update
+ * it.
+ */
+public class PrefixKeyIndex implements CacheEventListener {
+
+  private final Ehcache cache;
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+
+  private PrefixKeyIndex(Ehcache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Get the index for a cache, creating and registering it if the cache does not have one
+   * already.
+   *
+   * @param cache
+   * @return the index for the cache.
+   */
+  public static PrefixKeyIndex getIndex(Ehcache cache) {
+    synchronized (cache) {
+      Set<?> listeners = cache.getCacheEventNotificationService().getCacheEventListeners();
+      for (Object listener : listeners) {
+        if (listener instanceof PrefixKeyIndex) {
+          return (PrefixKeyIndex) listener;
+        }
+      }
+      PrefixKeyIndex index = new PrefixKeyIndex(cache);
+      cache.getCacheEventNotificationService().registerListener(index);
+      for (Object key : cache.getKeys()) {
+        index.add(key);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * @param prefix
+   * @return a snapshot of the keys that start with the prefix.
+   */
+  public List<String> keysWithPrefix(String prefix) {
+    if (prefix.length() == 0) {
+      return new ArrayList<String>(keys);
+    }
+    // the first string greater than every string starting with prefix
+    String upper = prefix.substring(0, prefix.length() - 1)
+        + (char) (prefix.charAt(prefix.length() - 1) + 1);
+    return new ArrayList<String>(keys.subSet(prefix, upper));
+  }
+
+  /**
+   * @return the number of keys in the index.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  private void add(Object key) {
+    if (key instanceof String) {
+      keys.add((String) key);
+    }
+  }
+
+  /**
+   * Remove a key from the index, provided it has not been put back into the cache by
+   * another thread since the removal that generated the event. A put adds its key after
+   * the element is in the cache, so checking the cache again after removing the key means
+   * a concurrent put is never lost from the index.
+   */
+  private void remove(Object key) {
+    if (key instanceof String) {
+      if (keys.remove(key) && cache.isKeyInCache(key)) {
+        keys.add((String) key);
+      }
+    }
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    add(element.getObjectKey());
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+    add(element.getObjectKey());
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    remove(element.getObjectKey());
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+    // keep anything put since the cache was cleared.
+    for (Iterator<String> i = keys.iterator(); i.hasNext();) {
+      String key = i.next();
+      if (!cache.isKeyInCache(key)) {
+        remove(key);
+      }
+    }
+  }
+
+  public void dispose() {
+    keys.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The index belongs to a single cache, so it can't be cloned.
+   *
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("A PrefixKeyIndex belongs to a single cache");
+  }
+
+}
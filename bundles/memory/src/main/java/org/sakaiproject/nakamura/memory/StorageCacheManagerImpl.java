@@ -3,6 +3,7 @@ package org.sakaiproject.nakamura.memory;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
@@ -10,6 +11,8 @@ import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Map;
 
@@ -20,23 +23,79 @@ public class StorageCacheManagerImpl implements StorageCacheManager {
   private Map<String, CacheHolder> accessControlCache;
   private Map<String, CacheHolder> authorizableCache;
   private Map<String, CacheHolder> contentCache;
+  private CacheHolderCodec codec = new CacheHolderCodec();
   
+  @Property(intValue = 0)
+  static final String OFFHEAP_ACCESS_CONTROL_MB = "offheap.accessControlCache.mb";
+
+  @Property(intValue = 0)
+  static final String OFFHEAP_AUTHORIZABLE_MB = "offheap.authorizableCache.mb";
+
+  @Property(intValue = 0)
+  static final String OFFHEAP_CONTENT_MB = "offheap.contentCache.mb";
+
+  @Property(intValue = 600)
+  static final String OFFHEAP_TTL = "offheap.ttl.seconds";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StorageCacheManagerImpl.class);
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Activate
   public void activate(Map<String, Object> props) {
+    if (cacheManagerService instanceof CacheManagerServiceImpl) {
+      // the off heap tiers have to be configured before the caches are first used.
+      long ttl = toInt(props.get(OFFHEAP_TTL), 600) * 1000L;
+      configureOffHeap("accessControlCache", toInt(props.get(OFFHEAP_ACCESS_CONTROL_MB), 0), ttl);
+      configureOffHeap("authorizableCache", toInt(props.get(OFFHEAP_AUTHORIZABLE_MB), 0), ttl);
+      configureOffHeap("contentCache", toInt(props.get(OFFHEAP_CONTENT_MB), 0), ttl);
+    }
     Cache<CacheHolder> accesssControlCacheCache = cacheManagerService.getCache("accessControlCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> authorizableCacheCache = cacheManagerService.getCache("authorizableCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> contentCacheCache = cacheManagerService.getCache("contentCache", CacheScope.CLUSTERINVALIDATED);
-    accessControlCache = new MapDeligate<String, CacheHolder>(accesssControlCacheCache);
-    authorizableCache = new MapDeligate<String, CacheHolder>(authorizableCacheCache);
-    contentCache = new MapDeligate<String, CacheHolder>(contentCacheCache);
+    accessControlCache = new StorageCacheMap(accesssControlCacheCache);
+    authorizableCache = new StorageCacheMap(authorizableCacheCache);
+    contentCache = new StorageCacheMap(contentCacheCache);
   }
   
   @Deactivate
   public void deactivate(Map<String, Object> props) {
-    
+    if (cacheManagerService instanceof CacheManagerServiceImpl) {
+      configureOffHeap("accessControlCache", 0, 0);
+      configureOffHeap("authorizableCache", 0, 0);
+      configureOffHeap("contentCache", 0, 0);
+    }
+  }
+
+  /**
+   * @param cacheName
+   * @param mb
+   *          the size of the off heap tier in MB, 0 for no off heap tier.
+   * @param ttl
+   *          the time an entry is held off heap, in ms.
+   */
+  private void configureOffHeap(String cacheName, int mb, long ttl) {
+    OffHeapCacheStore store = null;
+    if (mb > 0) {
+      LOGGER.info("Holding up to {} MB of {} off heap ", mb, cacheName);
+      store = new OffHeapCacheStore(cacheName, mb * 1024L * 1024L, ttl);
+    }
+    ((CacheManagerServiceImpl) cacheManagerService).setOffHeapStore(cacheName, store,
+        codec);
+  }
+
+  private int toInt(Object value, int defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    } else if (value != null) {
+      try {
+        return Integer.parseInt(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Invalid integer {}, using {} ", value, defaultValue);
+      }
+    }
+    return defaultValue;
   }
   
   
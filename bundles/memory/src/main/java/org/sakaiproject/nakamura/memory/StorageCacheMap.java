@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.ClusterInvalidatedCache;
+
+/**
+ * The map given to sparse for one of its storage caches. Sparse puts the row it has just
+ * read after a cache miss, and a holder with no row when it deletes one; an update removes
+ * the key. Only the delete changes anything, so the rows that were read are loaded into
+ * this node's cache without invalidating the copies the other nodes hold.
+ */
+public class StorageCacheMap extends MapDeligate<String, CacheHolder> {
+
+  private final Cache<CacheHolder> cache;
+
+  public StorageCacheMap(Cache<CacheHolder> cache) {
+    super(cache);
+    this.cache = cache;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public CacheHolder put(String key, CacheHolder value) {
+    if (value != null && value.get() != null
+        && cache instanceof ClusterInvalidatedCache<?>) {
+      return ((ClusterInvalidatedCache<CacheHolder>) cache).load(key, value);
+    }
+    return super.put(key, value);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import net.sf.ehcache.CacheManager;
+
+import org.sakaiproject.nakamura.memory.CacheImpl;
+
+import java.util.List;
+
+/**
+ * Compares removeChildren using the prefix index with a scan of every key in the cache.
+ * This is not run as part of the build, run it with
+ * <code>java -cp ... org.sakaiproject.nakamura.osgi.memory.RemoveChildrenBenchmark [sizes...]</code>
+ */
+public class RemoveChildrenBenchmark {
+
+  private static final int CHILDREN = 10;
+  private static final int ITERATIONS = 200;
+
+  public static void main(String[] args) {
+    int[] sizes = new int[] { 10000, 100000, 1000000 };
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    CacheManager cacheManager = CacheManager.create();
+    for (int size : sizes) {
+      String name = "benchmark" + size;
+      net.sf.ehcache.Cache ehcache = new net.sf.ehcache.Cache(name, size + CHILDREN, false,
+          true, 0, 0);
+      cacheManager.addCache(ehcache);
+      CacheImpl<String> cache = new CacheImpl<String>(cacheManager, name);
+      fill(cache, size);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        String parent = "/p/" + (i % (size / CHILDREN));
+        scanRemoveChildren(ehcache, parent);
+      }
+      long scan = (System.nanoTime() - start) / ITERATIONS;
+      fill(cache, size);
+
+      start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        String parent = "/p/" + (i % (size / CHILDREN));
+        cache.removeChildren(parent);
+      }
+      long indexed = (System.nanoTime() - start) / ITERATIONS;
+
+      System.out.println(size + " keys: scan " + (scan / 1000) + "us indexed "
+          + (indexed / 1000) + "us per removeChildren");
+      cacheManager.removeCache(name);
+    }
+    cacheManager.shutdown();
+  }
+
+  private static void fill(CacheImpl<String> cache, int size) {
+    for (int i = 0; i < size; i++) {
+      cache.put("/p/" + (i / CHILDREN) + "/" + (i % CHILDREN), "v");
+    }
+  }
+
+  /**
+   * The implementation of removeChildren before the prefix index.
+   */
+  private static void scanRemoveChildren(net.sf.ehcache.Cache cache, String key) {
+    cache.remove(key);
+    key = key + "/";
+    List<?> keys = cache.getKeys();
+    for (Object k : keys) {
+      if (((String) k).startsWith(key)) {
+        cache.remove(k);
+      }
+    }
+  }
+
+}
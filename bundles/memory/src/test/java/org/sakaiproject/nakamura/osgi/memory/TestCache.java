@@ -21,7 +21,9 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
@@ -30,6 +32,7 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.CacheStatistics;
 
 import java.io.IOException;
 
@@ -92,6 +95,113 @@ public class TestCache {
     }
   }
 
+  @Test
+  public void testChildKeysArePrefixMatchedByPath() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("PrefixTestCache", scope);
+      cache.put("a", "a");
+      cache.put("a/b", "ab");
+      cache.put("a/b/c", "abc");
+      cache.put("ab", "sibling");
+      cache.put("a0", "sibling0");
+      assertEquals(3, cache.listChildren("a").size());
+      assertEquals(2, cache.listChildren("a/b").size());
+      assertTrue(cache.listChildren("a/b").contains("abc"));
+      cache.removeChildren("a");
+      assertNull(cache.get("a/b/c"));
+      assertEquals(0, cache.listChildren("a").size());
+      assertEquals("sibling", cache.get("ab"));
+      assertEquals("sibling0", cache.get("a0"));
+      cache.clear();
+      cache.put("a/b", "ab");
+      assertEquals(1, cache.listChildren("a").size());
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testChildKeysSurviveConcurrentPutAndRemove() throws InterruptedException {
+    final Cache<String> cache = cacheManagerService.getCache("ConcurrentPrefixTestCache",
+        CacheScope.INSTANCE);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final int n = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 5000; j++) {
+            String key = "p/" + (j % 50);
+            if ((j + n) % 2 == 0) {
+              cache.put(key, key);
+            } else {
+              cache.remove(key);
+            }
+          }
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    int cached = 0;
+    for (int j = 0; j < 50; j++) {
+      if (cache.get("p/" + j) != null) {
+        cached++;
+      }
+    }
+    // every key still in the cache must be found through the index.
+    assertEquals(cached, cache.listChildren("p").size());
+  }
+
+  @Test
+  public void testStatistics() {
+    Cache<String> cache = cacheManagerService.getCache("StatisticsTestCache",
+        CacheScope.INSTANCE);
+    cache.put("a", "a");
+    cache.get("a");
+    cache.get("b");
+    CacheStatistics statistics = null;
+    for (CacheStatistics s : cacheManagerService.getStatistics()) {
+      if ("StatisticsTestCache".equals(s.getName())) {
+        statistics = s;
+      }
+    }
+    assertNotNull(statistics);
+    assertEquals(1, statistics.getHits());
+    assertEquals(1, statistics.getMisses());
+    assertEquals(1, statistics.getPuts());
+    assertEquals(0.5, statistics.getHitRatio(), 0.001);
+    assertEquals(1, statistics.getSize());
+  }
+
+  @Test
+  public void testConcurrentCacheCreation() throws InterruptedException {
+    final Cache<?>[] created = new Cache<?>[20];
+    Thread[] threads = new Thread[created.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int n = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          created[n] = cacheManagerService.getCache("ConcurrentTestCache",
+              CacheScope.CLUSTERINVALIDATED);
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    for (Cache<?> c : created) {
+      assertSame(created[0], c);
+    }
+  }
+
   @Test
   public void testThreadUnbinding() {
     ThreadBound testItem = createMock(ThreadBound.class);
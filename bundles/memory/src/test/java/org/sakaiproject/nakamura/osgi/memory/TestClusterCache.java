@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Invalidation;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Operation;
+import org.sakaiproject.nakamura.memory.CacheInvalidationManager;
+import org.sakaiproject.nakamura.memory.CacheInvalidationTransport;
+import org.sakaiproject.nakamura.memory.CacheHolderCodec;
+import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.LoopbackInvalidationTransport;
+import org.sakaiproject.nakamura.memory.OffHeapCacheStore;
+import org.sakaiproject.nakamura.memory.StorageCacheMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class TestClusterCache {
+
+  private CacheManagerServiceImpl nodeA;
+  private CacheManagerServiceImpl nodeB;
+  private LoopbackInvalidationTransport transport;
+
+  @Before
+  public void setUp() throws IOException {
+    transport = new LoopbackInvalidationTransport();
+    nodeA = new CacheManagerServiceImpl();
+    nodeB = new CacheManagerServiceImpl();
+    nodeA.setInvalidationTransport(transport);
+    nodeB.setInvalidationTransport(transport);
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.stop();
+    nodeB.stop();
+  }
+
+  private CacheHolder holder(String id) {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("id", id);
+    return new CacheHolder(map);
+  }
+
+  private <V> void waitForNull(Cache<V> cache, String key) throws InterruptedException {
+    for (int i = 0; i < 200 && cache.get(key) != null; i++) {
+      Thread.sleep(10);
+    }
+    assertNull("Expected " + key + " to be invalidated", cache.get(key));
+  }
+
+  /**
+   * Waits until everything from has broadcast so far has been applied to to, since puts
+   * are broadcast too and would otherwise race with the puts that follow them.
+   */
+  @SuppressWarnings("unchecked")
+  private <V> void sync(Cache<V> from, Cache<V> to) throws InterruptedException {
+    ((Cache<Object>) to).put("sync-marker", "marker");
+    from.remove("sync-marker");
+    waitForNull(to, "sync-marker");
+  }
+
+  @Test
+  public void testRemoveInvalidatesOtherNodes() throws InterruptedException {
+    Cache<String> cacheA = nodeA.getCache("clusterTest", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cacheB = nodeB.getCache("clusterTest", CacheScope.CLUSTERINVALIDATED);
+    cacheB.put("/a/b", "valueB");
+    assertEquals("valueB", cacheB.get("/a/b"));
+
+    cacheA.remove("/a/b");
+    assertNull(cacheA.get("/a/b"));
+    waitForNull(cacheB, "/a/b");
+  }
+
+  @Test
+  public void testOverwriteInvalidatesOtherNodes() throws InterruptedException {
+    Cache<String> cacheA = nodeA.getCache("clusterTest", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cacheB = nodeB.getCache("clusterTest", CacheScope.CLUSTERINVALIDATED);
+    cacheA.put("key", "old");
+    sync(cacheA, cacheB);
+    cacheB.put("key", "old");
+    sync(cacheB, cacheA);
+    cacheA.put("key", "new");
+    waitForNull(cacheB, "key");
+    assertEquals("new", cacheA.get("key"));
+  }
+
+  @Test
+  public void testFirstPutInvalidatesOtherNodes() throws InterruptedException {
+    Cache<String> cacheA = nodeA.getCache("clusterTest", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cacheB = nodeB.getCache("clusterTest", CacheScope.CLUSTERINVALIDATED);
+    // B has the key cached, A has never seen it.
+    cacheB.put("key", "old");
+    sync(cacheB, cacheA);
+    cacheA.put("key", "new");
+    waitForNull(cacheB, "key");
+    assertEquals("new", cacheA.get("key"));
+  }
+
+  @Test
+  public void testOverwriteOfOffHeapEntryIsBroadcast() throws InterruptedException {
+    nodeA.setOffHeapStore("offHeapClusterTest", new OffHeapCacheStore("offHeapClusterTest",
+        16 * 1024 * 1024, 60000L), new CacheHolderCodec());
+    Cache<CacheHolder> cacheA = nodeA.getCache("offHeapClusterTest",
+        CacheScope.CLUSTERINVALIDATED);
+    Cache<CacheHolder> cacheB = nodeB.getCache("offHeapClusterTest",
+        CacheScope.CLUSTERINVALIDATED);
+    // the default cache holds 10000 elements in memory, so /p/0 is pushed off heap.
+    for (int i = 0; i < 12000; i++) {
+      cacheA.put("/p/" + i, holder("a" + i));
+    }
+    assertNotNull(nodeA.getOffHeapStores().get("offHeapClusterTest").get("/p/0"));
+    sync(cacheA, cacheB);
+    final List<Invalidation> sent = new CopyOnWriteArrayList<Invalidation>();
+    transport.addListener(new CacheInvalidationTransport.Listener() {
+      public void onInvalidation(CacheInvalidationBatch batch) {
+        sent.addAll(batch.getInvalidations());
+      }
+
+      public void onReconnect() {
+      }
+    });
+
+    CacheHolder previous = cacheA.put("/p/0", holder("new"));
+    assertEquals("a0", previous.get().get("id"));
+    for (int i = 0; i < 200 && sent.isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, sent.size());
+    assertEquals("offHeapClusterTest", sent.get(0).getCacheName());
+    assertEquals(Operation.REMOVE, sent.get(0).getOperation());
+    assertEquals("/p/0", sent.get(0).getKey());
+    assertEquals("new", cacheA.get("/p/0").get().get("id"));
+  }
+
+  @Test
+  public void testStorageReadsAreNotBroadcast() throws InterruptedException {
+    Cache<CacheHolder> cacheA = nodeA.getCache("storageTest", CacheScope.CLUSTERINVALIDATED);
+    Cache<CacheHolder> cacheB = nodeB.getCache("storageTest", CacheScope.CLUSTERINVALIDATED);
+    Map<String, CacheHolder> storageA = new StorageCacheMap(cacheA);
+    Map<String, CacheHolder> storageB = new StorageCacheMap(cacheB);
+    final List<Invalidation> sent = new CopyOnWriteArrayList<Invalidation>();
+    transport.addListener(new CacheInvalidationTransport.Listener() {
+      public void onInvalidation(CacheInvalidationBatch batch) {
+        sent.addAll(batch.getInvalidations());
+      }
+
+      public void onReconnect() {
+      }
+    });
+
+    // both nodes read the same row after a miss, and keep it.
+    storageA.put("/r", holder("r"));
+    storageB.put("/r", holder("r"));
+    // sparse caches a delete as a holder without a row.
+    storageA.put("/r", new CacheHolder(null));
+    waitForNull(cacheB, "/r");
+    assertEquals(1, sent.size());
+    assertEquals(Operation.REMOVE, sent.get(0).getOperation());
+    assertEquals("/r", sent.get(0).getKey());
+    assertNotNull(cacheA.get("/r"));
+    assertNull(cacheA.get("/r").get());
+  }
+
+  @Test
+  public void testRemoveChildrenAndClear() throws InterruptedException {
+    Cache<String> cacheA = nodeA.getCache("clusterTest", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cacheB = nodeB.getCache("clusterTest", CacheScope.CLUSTERREPLICATED);
+    cacheB.put("fish", "cat");
+    cacheB.put("fish/child", "childcat");
+    cacheB.put("other", "dog");
+    cacheA.removeChildren("fish");
+    waitForNull(cacheB, "fish/child");
+    assertNull(cacheB.get("fish"));
+    assertEquals("dog", cacheB.get("other"));
+    cacheA.clear();
+    waitForNull(cacheB, "other");
+  }
+
+  @Test
+  public void testReconnectClearsLocalCaches() {
+    Cache<String> local = nodeA.getCache("reconnectTest", CacheScope.INSTANCE);
+    local.put("key", "value");
+    CacheInvalidationManager manager = new CacheInvalidationManager();
+    manager.register("reconnectTest", local);
+    manager.onReconnect();
+    assertNull(local.get("key"));
+  }
+
+  @Test
+  public void testBatchEncoding() throws IOException {
+    List<Invalidation> invalidations = new ArrayList<Invalidation>();
+    invalidations.add(new Invalidation("a", Operation.REMOVE, "/x"));
+    invalidations.add(new Invalidation("b", Operation.REMOVE_CHILDREN, "/y"));
+    invalidations.add(new Invalidation("c", Operation.CLEAR, null));
+    CacheInvalidationBatch batch = CacheInvalidationBatch.fromBytes(new CacheInvalidationBatch(
+        "node1", invalidations).toBytes());
+    assertEquals("node1", batch.getOrigin());
+    assertEquals(3, batch.getInvalidations().size());
+    assertEquals(Operation.REMOVE_CHILDREN, batch.getInvalidations().get(1).getOperation());
+    assertEquals("/y", batch.getInvalidations().get(1).getKey());
+    assertNull(batch.getInvalidations().get(2).getKey());
+  }
+
+  @Test
+  public void testBatchEncodingOfLongKeys() throws IOException {
+    // more than writeUTF can encode, 3 bytes a character in UTF-8.
+    StringBuilder key = new StringBuilder("/");
+    for (int i = 0; i < 30000; i++) {
+      key.append('\u20ac');
+    }
+    List<Invalidation> invalidations = new ArrayList<Invalidation>();
+    invalidations.add(new Invalidation("a", Operation.REMOVE, key.toString()));
+    invalidations.add(new Invalidation("b", Operation.REMOVE, "/short"));
+    CacheInvalidationBatch batch = CacheInvalidationBatch.fromBytes(new CacheInvalidationBatch(
+        "node1", invalidations).toBytes());
+    assertEquals(2, batch.getInvalidations().size());
+    assertEquals(key.toString(), batch.getInvalidations().get(0).getKey());
+    assertEquals("/short", batch.getInvalidations().get(1).getKey());
+  }
+}
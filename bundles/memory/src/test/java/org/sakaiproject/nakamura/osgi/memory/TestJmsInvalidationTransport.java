@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Invalidation;
+import org.sakaiproject.nakamura.memory.CacheInvalidationBatch.Operation;
+import org.sakaiproject.nakamura.memory.CacheInvalidationTransport;
+import org.sakaiproject.nakamura.memory.JmsInvalidationTransport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+public class TestJmsInvalidationTransport {
+
+  private final List<byte[]> sent = new CopyOnWriteArrayList<byte[]>();
+
+  private Connection connection() throws JMSException {
+    BytesMessage message = createNiceMock(BytesMessage.class);
+    message.writeBytes((byte[]) anyObject());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        sent.add((byte[]) getCurrentArguments()[0]);
+        return null;
+      }
+    }).anyTimes();
+    Topic topic = createNiceMock(Topic.class);
+    Session session = createNiceMock(Session.class);
+    expect(session.createTopic(JmsInvalidationTransport.TOPIC)).andReturn(topic).anyTimes();
+    expect(session.createConsumer(topic)).andReturn(createNiceMock(MessageConsumer.class))
+        .anyTimes();
+    expect(session.createProducer(topic)).andReturn(createNiceMock(MessageProducer.class))
+        .anyTimes();
+    expect(session.createBytesMessage()).andReturn(message).anyTimes();
+    Connection connection = createNiceMock(Connection.class);
+    expect(connection.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(session)
+        .anyTimes();
+    connection.close();
+    replay(message, topic, session, connection);
+    return connection;
+  }
+
+  private CacheInvalidationBatch batch(Operation operation, String cacheName, String key) {
+    List<Invalidation> invalidations = new ArrayList<Invalidation>();
+    invalidations.add(new Invalidation(cacheName, operation, key));
+    return new CacheInvalidationBatch("node1", invalidations);
+  }
+
+  @Test
+  public void testReconnectAfterConnectionLoss() throws Exception {
+    Connection first = connection();
+    Connection second = connection();
+    ConnectionFactory connectionFactory = createMock(ConnectionFactory.class);
+    expect(connectionFactory.createConnection()).andReturn(first);
+    // the broker is still down on the first attempt.
+    expect(connectionFactory.createConnection()).andThrow(new JMSException("refused"));
+    expect(connectionFactory.createConnection()).andReturn(second);
+    ConnectionFactoryService connectionFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(
+        connectionFactory).anyTimes();
+    replay(connectionFactory, connectionFactoryService);
+
+    JmsInvalidationTransport transport = new JmsInvalidationTransport(
+        connectionFactoryService);
+    final AtomicInteger reconnects = new AtomicInteger();
+    transport.addListener(new CacheInvalidationTransport.Listener() {
+      public void onInvalidation(CacheInvalidationBatch batch) {
+      }
+
+      public void onReconnect() {
+        reconnects.incrementAndGet();
+      }
+    });
+    transport.send(batch(Operation.REMOVE, "contentCache", "/a"));
+    assertEquals(1, sent.size());
+
+    transport.onException(new JMSException("broker gone"));
+    // this can't be sent until the connection is back.
+    transport.send(batch(Operation.REMOVE, "authorizableCache", "user1"));
+    assertEquals(1, sent.size());
+    for (int i = 0; i < 100 && reconnects.get() == 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, reconnects.get());
+    verify(first, connectionFactory);
+
+    // the cache that missed an invalidation is cleared on the other nodes.
+    assertEquals(2, sent.size());
+    CacheInvalidationBatch clear = CacheInvalidationBatch.fromBytes(sent.get(1));
+    assertEquals("node1", clear.getOrigin());
+    assertEquals(1, clear.getInvalidations().size());
+    assertEquals(Operation.CLEAR, clear.getInvalidations().get(0).getOperation());
+    assertEquals("authorizableCache", clear.getInvalidations().get(0).getCacheName());
+
+    transport.send(batch(Operation.REMOVE, "contentCache", "/b"));
+    assertEquals(3, sent.size());
+    transport.close();
+    verify(second);
+  }
+}
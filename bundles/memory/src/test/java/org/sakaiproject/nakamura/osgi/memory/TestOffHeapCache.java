@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.CacheHolderCodec;
+import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.OffHeapCacheStore;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+public class TestOffHeapCache {
+
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  private CacheHolder holder(int i) {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("id", "item" + i);
+    map.put("n", (long) i);
+    return new CacheHolder(map);
+  }
+
+  @Test
+  public void testCodec() throws IOException {
+    CacheHolderCodec codec = new CacheHolderCodec();
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("s", "a string");
+    map.put("l", 12L);
+    map.put("i", 3);
+    map.put("b", true);
+    map.put("d", 1.5);
+    map.put("bd", new BigDecimal("1.25"));
+    Calendar c = new GregorianCalendar(TimeZone.getTimeZone("Europe/London"));
+    map.put("c", c);
+    map.put("a", new String[] { "x", "y" });
+    map.put("n", null);
+    CacheHolder decoded = codec.decode(codec.encode(new CacheHolder(map)));
+    Map<String, Object> result = decoded.get();
+    assertEquals(map.size(), result.size());
+    assertEquals("a string", result.get("s"));
+    assertEquals(12L, result.get("l"));
+    assertEquals(3, result.get("i"));
+    assertEquals(true, result.get("b"));
+    assertEquals(1.5, result.get("d"));
+    assertEquals(new BigDecimal("1.25"), result.get("bd"));
+    assertEquals(c.getTimeInMillis(), ((Calendar) result.get("c")).getTimeInMillis());
+    assertEquals(c.getTimeZone().getID(), ((Calendar) result.get("c")).getTimeZone().getID());
+    assertArrayEquals(new String[] { "x", "y" }, (String[]) result.get("a"));
+    assertTrue(result.containsKey("n"));
+
+    assertNull(codec.decode(codec.encode(new CacheHolder(null))).get());
+
+    map.put("unknown", new Object());
+    assertNull(codec.encode(new CacheHolder(map)));
+  }
+
+  @Test
+  public void testStoreOverwritesOldestEntries() {
+    // 16 segments of 1K each
+    OffHeapCacheStore store = new OffHeapCacheStore("test", 16 * 1024, 60000L);
+    long now = System.currentTimeMillis();
+    byte[] value = new byte[100];
+    for (int i = 0; i < 1000; i++) {
+      value[0] = (byte) i;
+      store.put("key" + i, value, now);
+    }
+    assertTrue(store.getEntries() < 1000);
+    assertTrue(store.getUsedBytes() <= store.getCapacityBytes());
+    assertTrue(store.getEvictions() > 0);
+    byte[] last = store.get("key999");
+    assertNotNull(last);
+    assertEquals((byte) 999, last[0]);
+    assertNull(store.get("key0"));
+  }
+
+  @Test
+  public void testStoreRemovals() {
+    OffHeapCacheStore store = new OffHeapCacheStore("test", 16 * 1024, 60000L);
+    long before = System.currentTimeMillis() - 1;
+    store.put("/a", new byte[] { 1 }, before);
+    store.put("/a/b", new byte[] { 2 }, before);
+    store.put("/ab", new byte[] { 3 }, before);
+    store.removeChildren("/a");
+    assertNull(store.get("/a"));
+    assertNull(store.get("/a/b"));
+    assertNotNull(store.get("/ab"));
+
+    // a value created before a removal must not be stored.
+    store.put("/a/b", new byte[] { 2 }, before);
+    assertNull(store.get("/a/b"));
+    store.remove("/x");
+    store.put("/x", new byte[] { 4 }, before);
+    assertNull(store.get("/x"));
+    store.put("/x", new byte[] { 4 }, System.currentTimeMillis() + 1);
+    assertNotNull(store.get("/x"));
+
+    // expired values are not returned.
+    store.put("/y", new byte[] { 5 }, System.currentTimeMillis() - 120000L);
+    assertNull(store.get("/y"));
+  }
+
+  @Test
+  public void testRemoveChildrenWhileOtherKeysArePut() throws Exception {
+    final OffHeapCacheStore store = new OffHeapCacheStore("test", 16 * 64 * 1024, 60000L);
+    final long before = System.currentTimeMillis() - 1;
+    for (int i = 0; i < 1000; i++) {
+      store.put("/a/" + i, new byte[10], before);
+    }
+    Thread[] writers = new Thread[4];
+    for (int t = 0; t < writers.length; t++) {
+      final int thread = t;
+      writers[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 250; i++) {
+            store.put("/b/" + thread + "/" + i, new byte[10], before);
+          }
+        }
+      };
+      writers[t].start();
+    }
+    store.removeChildren("/a");
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertNull(store.get("/a/" + i));
+    }
+    assertEquals(1000, store.getEntries());
+    for (int t = 0; t < writers.length; t++) {
+      for (int i = 0; i < 250; i++) {
+        assertNotNull(store.get("/b/" + t + "/" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testEvictedEntriesAreReadFromOffHeap() {
+    cacheManagerService.setOffHeapStore("offHeapTest", new OffHeapCacheStore(
+        "offHeapTest", 16 * 1024 * 1024, 60000L), new CacheHolderCodec());
+    Cache<CacheHolder> cache = cacheManagerService.getCache("offHeapTest",
+        CacheScope.CLUSTERINVALIDATED);
+    // the default cache holds 10000 elements in memory.
+    int n = 12000;
+    for (int i = 0; i < n; i++) {
+      cache.put("/p/" + i, holder(i));
+    }
+    OffHeapCacheStore store = cacheManagerService.getOffHeapStores().get("offHeapTest");
+    assertTrue(store.getEntries() > 0);
+    for (int i = 0; i < n; i++) {
+      CacheHolder h = cache.get("/p/" + i);
+      assertNotNull("Missing " + i, h);
+      assertEquals("item" + i, h.get().get("id"));
+    }
+    cache.removeChildren("/p");
+    for (int i = 0; i < n; i++) {
+      assertNull(cache.get("/p/" + i));
+    }
+    assertEquals(0, store.getEntries());
+  }
+
+}
@@ -83,6 +83,15 @@ public interface MessageConstants {
    * This property will hold the number of times message delivery has been retried
    */
   public static final String PROP_SAKAI_RETRY_COUNT = "sakai:retrycount";
+  /**
+   * This property will hold the number of recipients an internal message has been
+   * delivered to so far.
+   */
+  public static final String PROP_SAKAI_DELIVERED_COUNT = "sakai:deliveredcount";
+  /**
+   * This property will hold the recipients an internal message could not be delivered to.
+   */
+  public static final String PROP_SAKAI_FAILED_RECIPIENTS = "sakai:failedrecipients";
   /**
    * Property of the message store container for a message. Used primarily in discussions.
    */
@@ -18,9 +18,9 @@
 
 package org.sakaiproject.nakamura.message.internal;
 
-import com.google.common.collect.ImmutableMap;
-
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -29,6 +29,7 @@ import org.apache.felix.scr.annotations.Services;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -37,12 +38,9 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.locking.LockManager;
-import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.LiteMessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.LiteMessageTransport;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
@@ -50,7 +48,6 @@ import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageRoute;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
 import org.sakaiproject.nakamura.api.message.MessageTransport;
-import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
@@ -58,9 +55,15 @@ import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 
@@ -94,12 +97,55 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   protected transient LockManager lockManager;
 
+  @Property(intValue = 4, description = "The number of threads batches of recipients are delivered on in parallel, 0 to deliver to every recipient in turn.")
+  static final String FANOUT_THREADS = "sakai.message.fanout.threads";
+
+  @Property(intValue = 100, description = "The number of recipients delivered to in each batch.")
+  static final String FANOUT_BATCH_SIZE = "sakai.message.fanout.batchSize";
+
+  @Property(intValue = 2, description = "The number of times recipients the message could not be delivered to are tried again.")
+  static final String FANOUT_RETRIES = "sakai.message.fanout.retries";
+
+  private int batchSize = 100;
+
+  private int retries = 2;
+
+  private ThreadPoolExecutor executor;
+
   /**
    * Default constructor
    */
   public LiteInternalMessageHandler() {
   }
 
+  @SuppressWarnings("rawtypes")
+  @Activate
+  protected void activate(Map properties) {
+    int threads = OsgiUtil.toInteger(properties.get(FANOUT_THREADS), 4);
+    batchSize = OsgiUtil.toInteger(properties.get(FANOUT_BATCH_SIZE), 100);
+    retries = OsgiUtil.toInteger(properties.get(FANOUT_RETRIES), 2);
+    if (threads > 0) {
+      final AtomicInteger count = new AtomicInteger();
+      // a full queue rejects the batch and the sending thread delivers it itself.
+      executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "message-fanout-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -112,21 +158,25 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
 
       session = slingRepository.loginAdministrative();
 
-      // recipients keeps track of who have already received the message, to avoid
-      // duplicate messages
       List<String> recipients = new ArrayList<String>();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
       for (MessageRoute route : routes) {
         if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
-          LOG.info("Started handling a message.");
-          String recipient = route.getRcpt();
-          // the path were we want to save messages in.
-          String messageId = (String) originalMessage
-              .getProperty(MessageConstants.PROP_SAKAI_ID);
-          sendHelper(recipients, recipient, originalMessage, session, messageId,
-              authorizableManager);
+          recipients.add(route.getRcpt());
         }
       }
+      if (recipients.isEmpty()) {
+        return;
+      }
+      LOG.info("Started handling a message.");
+      // the path were we want to save messages in.
+      String messageId = (String) originalMessage
+          .getProperty(MessageConstants.PROP_SAKAI_ID);
+      // users keeps everyone that should receive the message once, to avoid duplicate
+      // messages
+      Set<String> users = MessageFanOut.expand(recipients,
+          session.getAuthorizableManager());
+      new MessageFanOut(slingRepository, messagingService, lockManager, executor,
+          batchSize, retries).deliver(session, originalMessage, messageId, users);
     } catch (AccessDeniedException e) {
       LOG.error(e.getMessage(), e);
     } catch (ClientPoolException e) {
@@ -144,66 +194,6 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }
   }
 
-  private void sendHelper(List<String> recipients, String recipient,
-      Content originalMessage, Session session, String messageId,
-      AuthorizableManager authManager) {
-    try {
-      ContentManager contentManager = session.getContentManager();
-      Authorizable au = authManager.findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
-        Group group = (Group) au;
-        // user must be in the group directly to send a message:
-        for (String memberName : group.getMembers()) {
-          if (!recipients.contains(memberName)) {
-            // call back to itself: this allows for groups to be in groups and future
-            // extensions
-            sendHelper(recipients, memberName, originalMessage, session, messageId,
-                authManager);
-            recipients.add(memberName);
-          }
-        }
-      } else {
-        // only send a message to a user who hasn't already received one:
-        if (!recipients.contains(recipient)) {
-
-          String toPath = messagingService.getFullPathToMessage(recipient, messageId,
-              session);
-
-          try {
-            lockManager.waitForLock(toPath);
-          } catch (LockTimeoutException e1) {
-            throw new MessagingException("Unable to lock destination message store");
-          }
-          
-          ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
-          // Copy the content into the user his folder.
-          contentManager.update(
-              new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
-                  .build()));
-          contentManager.copy(originalMessage.getPath(), toPath, true);
-          Content message = contentManager.get(toPath);
-
-          // Add some extra properties on the just created node.
-          message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-          message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-          message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
-          message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
-          contentManager.update(message);
-
-          recipients.add(recipient);
-        }
-      }
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getMessage(), e);
-    } catch (StorageClientException e) {
-      LOG.error(e.getMessage(), e);
-    } catch (IOException e) {
-      LOG.error(e.getMessage(), e);
-    } finally {
-      lockManager.clearLocks();
-    }
-  }
-
   /**
    * Determines what type of messages this handler will process. {@inheritDoc}
    * 
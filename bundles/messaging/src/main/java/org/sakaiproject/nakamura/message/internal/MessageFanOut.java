@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers an internal message to every user it is addressed to. Groups are expanded into
+ * a set of users first, so everyone gets the message once however many groups they are
+ * in. The users are then delivered to in batches, run in parallel on the executor with an
+ * administrative session each.
+ * <p/>
+ * Recipients that fail are tried again here, so only the internal delivery is repeated,
+ * not the other transports of the message. When there is more than one recipient the
+ * progress is kept on the sent message, the number delivered and the recipients that
+ * still failed. If the message is sent again the recipients that already have it in
+ * their inbox are skipped.
+ */
+class MessageFanOut {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageFanOut.class);
+
+  private final Repository repository;
+  private final LiteMessagingService messagingService;
+  private final LockManager lockManager;
+  private final ExecutorService executor;
+  private final int batchSize;
+  private final int retries;
+
+  /**
+   * @param repository
+   *          to log the batches in with.
+   * @param messagingService
+   * @param lockManager
+   * @param executor
+   *          runs the batches, null to deliver in turn on the calling thread.
+   * @param batchSize
+   *          the number of recipients in a batch.
+   * @param retries
+   *          the number of times the recipients that failed are tried again.
+   */
+  MessageFanOut(Repository repository, LiteMessagingService messagingService,
+      LockManager lockManager, ExecutorService executor, int batchSize, int retries) {
+    this.repository = repository;
+    this.messagingService = messagingService;
+    this.lockManager = lockManager;
+    this.executor = executor;
+    this.batchSize = Math.max(1, batchSize);
+    this.retries = Math.max(0, retries);
+  }
+
+  /**
+   * Expands groups into their members, and their members' members. Each group is only
+   * expanded once, so groups in groups, even cycles of them, are fine.
+   *
+   * @param recipients
+   * @param authManager
+   * @return the users, and any recipients that are not authorizables, in the order they
+   *         were found.
+   */
+  static Set<String> expand(Collection<String> recipients, AuthorizableManager authManager) {
+    Set<String> users = new LinkedHashSet<String>();
+    Set<String> seen = new HashSet<String>();
+    LinkedList<String> pending = new LinkedList<String>(recipients);
+    while (!pending.isEmpty()) {
+      String recipient = pending.removeFirst();
+      if (!seen.add(recipient)) {
+        continue;
+      }
+      try {
+        Authorizable au = authManager.findAuthorizable(recipient);
+        if (au instanceof Group) {
+          // user must be in the group directly to send a message:
+          for (String memberName : ((Group) au).getMembers()) {
+            if (!seen.contains(memberName)) {
+              pending.add(memberName);
+            }
+          }
+        } else {
+          users.add(recipient);
+        }
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      }
+    }
+    return users;
+  }
+
+  /**
+   * Delivers the message to the recipients.
+   *
+   * @param session
+   *          an administrative session, used to record progress and for the deliveries
+   *          when there is only one batch.
+   * @param originalMessage
+   * @param messageId
+   * @param recipients
+   *          users, as returned by {@link #expand(Collection, AuthorizableManager)}.
+   * @return the recipients the message could not be delivered to.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  List<String> deliver(Session session, Content originalMessage, String messageId,
+      Collection<String> recipients) throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = session.getContentManager();
+    boolean tracked = recipients.size() > 1;
+    boolean resume = false;
+    if (tracked) {
+      Content progress = contentManager.get(originalMessage.getPath());
+      resume = progress != null
+          && progress.hasProperty(MessageConstants.PROP_SAKAI_DELIVERED_COUNT);
+      if (!resume) {
+        // mark the fan out as started, so that if it dies part way through sending again
+        // only delivers to those that are missing it.
+        recordProgress(contentManager, originalMessage.getPath(), 0, null);
+      }
+    }
+
+    List<List<String>> batches = new ArrayList<List<String>>();
+    List<String> batch = null;
+    for (String recipient : recipients) {
+      if (batch == null || batch.size() == batchSize) {
+        batch = new ArrayList<String>(batchSize);
+        batches.add(batch);
+      }
+      batch.add(recipient);
+    }
+
+    List<String> failed = new ArrayList<String>();
+    int delivered = 0;
+    if (executor == null || batches.size() < 2) {
+      for (int i = 0; i < batches.size(); i++) {
+        Batch done = new Batch(originalMessage, messageId, batches.get(i), resume)
+            .deliver(session);
+        delivered += done.delivered;
+        failed.addAll(done.failed);
+        if (tracked && i < batches.size() - 1) {
+          recordProgress(contentManager, originalMessage.getPath(), delivered, null);
+        }
+      }
+    } else {
+      List<Future<Batch>> futures = new ArrayList<Future<Batch>>(batches.size());
+      for (List<String> b : batches) {
+        final Batch task = new Batch(originalMessage, messageId, b, resume);
+        try {
+          futures.add(executor.submit(task));
+        } catch (RejectedExecutionException e) {
+          // the executor is busy or has been shut down, deliver here.
+          futures.add(new DoneFuture(task.call()));
+        }
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          Batch done = futures.get(i).get();
+          delivered += done.delivered;
+          failed.addAll(done.failed);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failed.addAll(batches.get(i));
+        } catch (ExecutionException e) {
+          LOG.error("Failed to deliver a batch of message {} ", messageId, e.getCause());
+          failed.addAll(batches.get(i));
+        }
+        if (tracked && i < futures.size() - 1) {
+          recordProgress(contentManager, originalMessage.getPath(), delivered, null);
+        }
+      }
+    }
+
+    for (int attempt = 0; attempt < retries && !failed.isEmpty(); attempt++) {
+      // skip any that did get the message.
+      Batch retry = new Batch(originalMessage, messageId, failed, true).deliver(session);
+      delivered += retry.delivered;
+      failed = retry.failed;
+    }
+
+    if (tracked) {
+      recordProgress(contentManager, originalMessage.getPath(), delivered, failed);
+    }
+    if (!failed.isEmpty()) {
+      LOG.warn("Message {} was not delivered to {} of {} recipients ", new Object[] {
+          messageId, failed.size(), recipients.size() });
+    }
+    return failed;
+  }
+
+  /**
+   * Records how many recipients have had the message delivered, and once done which ones
+   * failed.
+   *
+   * @param failed
+   *          null while the fan out is still running.
+   */
+  private void recordProgress(ContentManager contentManager, String path, int delivered,
+      List<String> failed) throws StorageClientException, AccessDeniedException {
+    Content message = contentManager.get(path);
+    if (message == null) {
+      return;
+    }
+    message.setProperty(MessageConstants.PROP_SAKAI_DELIVERED_COUNT, delivered);
+    if (failed != null) {
+      if (failed.isEmpty()) {
+        message.removeProperty(MessageConstants.PROP_SAKAI_FAILED_RECIPIENTS);
+      } else {
+        message.setProperty(MessageConstants.PROP_SAKAI_FAILED_RECIPIENTS,
+            failed.toArray(new String[failed.size()]));
+      }
+    }
+    contentManager.update(message);
+  }
+
+  /**
+   * A batch of recipients, delivered to in turn with one session.
+   */
+  private class Batch implements Callable<Batch> {
+
+    private final Content originalMessage;
+    private final String messageId;
+    private final List<String> recipients;
+    private final boolean resume;
+    private final List<String> failed = new ArrayList<String>();
+    private int delivered;
+
+    private Batch(Content originalMessage, String messageId, List<String> recipients,
+        boolean resume) {
+      this.originalMessage = originalMessage;
+      this.messageId = messageId;
+      this.recipients = recipients;
+      this.resume = resume;
+    }
+
+    public Batch call() {
+      Session session = null;
+      try {
+        session = repository.loginAdministrative();
+        return deliver(session);
+      } catch (ClientPoolException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } finally {
+        if (session != null) {
+          try {
+            session.logout();
+          } catch (ClientPoolException e) {
+            LOG.warn("Failed to logout session.", e);
+          }
+        }
+      }
+      failed.addAll(recipients);
+      return this;
+    }
+
+    private Batch deliver(Session session) throws StorageClientException,
+        AccessDeniedException {
+      ContentManager contentManager = session.getContentManager();
+      for (String recipient : recipients) {
+        try {
+          deliver(recipient, session, contentManager);
+        } catch (AccessDeniedException e) {
+          LOG.error(e.getMessage(), e);
+          failed.add(recipient);
+        } catch (StorageClientException e) {
+          LOG.error(e.getMessage(), e);
+          failed.add(recipient);
+        } catch (IOException e) {
+          LOG.error(e.getMessage(), e);
+          failed.add(recipient);
+        } catch (MessagingException e) {
+          LOG.error(e.getMessage(), e);
+          failed.add(recipient);
+        }
+      }
+      return this;
+    }
+
+    private void deliver(String recipient, Session session, ContentManager contentManager)
+        throws StorageClientException, AccessDeniedException, IOException {
+      String toPath = messagingService.getFullPathToMessage(recipient, messageId, session);
+      try {
+        lockManager.waitForLock(toPath);
+      } catch (LockTimeoutException e1) {
+        throw new MessagingException("Unable to lock destination message store");
+      }
+      try {
+        if (resume) {
+          Content existing = contentManager.get(toPath);
+          if (existing != null
+              && MessageConstants.BOX_INBOX.equals(existing
+                  .getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX))) {
+            // delivered before the last attempt failed.
+            delivered++;
+            return;
+          }
+        }
+        String parentPath = toPath.substring(0, toPath.lastIndexOf("/"));
+        if (!contentManager.exists(parentPath)) {
+          ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
+          contentManager.update(new Content(parentPath, propertyBuilder.build()));
+        }
+        // Copy the content into the user his folder.
+        contentManager.copy(originalMessage.getPath(), toPath, true);
+        Content message = contentManager.get(toPath);
+        // the progress of the fan out is the sender's, not the recipient's.
+        message.removeProperty(MessageConstants.PROP_SAKAI_DELIVERED_COUNT);
+        message.removeProperty(MessageConstants.PROP_SAKAI_FAILED_RECIPIENTS);
+
+        // Add some extra properties on the just created node.
+        message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
+        message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+        message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+        message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
+        contentManager.update(message);
+        delivered++;
+      } finally {
+        lockManager.clearLocks();
+      }
+    }
+  }
+
+  /**
+   * A batch that was run on the calling thread.
+   */
+  private static class DoneFuture implements Future<Batch> {
+
+    private final Batch batch;
+
+    private DoneFuture(Batch batch) {
+      this.batch = batch;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return true;
+    }
+
+    public Batch get() {
+      return batch;
+    }
+
+    public Batch get(long timeout, TimeUnit unit) {
+      return batch;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.locking.LockStatistics;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
+import org.sakaiproject.nakamura.message.LiteMessagingServiceImpl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares delivering a message to each recipient in turn with delivering it in parallel
+ * batches. The content is stored by sparse in its in memory storage, with a fixed delay on
+ * each call to the storage client to stand in for the round trip to a database.
+ *
+ * <pre>
+ * java -cp ... org.sakaiproject.nakamura.message.internal.MessageFanOutBenchmark [threads] [batchSize] [latencyMicros]
+ * </pre>
+ */
+public class MessageFanOutBenchmark {
+
+  private static final String MESSAGE_PATH = "a:sender/message/outbox/msg1";
+  private static final int[] RECIPIENTS = { 1000, 10000, 50000 };
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    long latency = (args.length > 2 ? Long.parseLong(args[2]) : 100) * 1000L;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int n : RECIPIENTS) {
+        List<String> recipients = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+          recipients.add("user" + i);
+        }
+        long inTurn = run(recipients, null, batchSize, latency);
+        long parallel = run(recipients, executor, batchSize, latency);
+        System.err.println(n + " recipients: in turn " + inTurn + "ms, " + threads
+            + " threads " + parallel + "ms");
+      }
+    } finally {
+      executor.shutdown();
+    }
+    System.exit(0);
+  }
+
+  private static long run(List<String> recipients, ExecutorService executor,
+      int batchSize, long latency) throws Exception {
+    SlowMemoryRepository.latency = 0;
+    SlowMemoryRepository memoryRepository = new SlowMemoryRepository();
+    try {
+      Repository repository = memoryRepository.getRepository();
+      Session session = repository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      Map<String, Object> original = new HashMap<String, Object>();
+      original.put(MessageConstants.PROP_SAKAI_ID, "msg1");
+      original.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_OUTBOX);
+      contentManager.update(new Content(MESSAGE_PATH, original));
+
+      MessageFanOut fanOut = new MessageFanOut(repository, new LiteMessagingServiceImpl(),
+          new NoLockManager(), executor, batchSize, 0);
+      SlowMemoryRepository.latency = latency;
+      long start = System.currentTimeMillis();
+      List<String> failed = fanOut.deliver(session, contentManager.get(MESSAGE_PATH),
+          "msg1", recipients);
+      long took = System.currentTimeMillis() - start;
+      if (!failed.isEmpty()) {
+        System.err.println("Failed to deliver to " + failed.size());
+      }
+      session.logout();
+      return took;
+    } finally {
+      memoryRepository.close();
+    }
+  }
+
+  /**
+   * Sparse in memory, each call to the storage client waiting for the latency first.
+   */
+  private static class SlowMemoryRepository extends BaseMemoryRepository {
+
+    private static volatile long latency;
+
+    private SlowMemoryRepository() throws Exception {
+      super();
+    }
+
+    @Override
+    protected StorageClientPool getClientPool(Configuration configuration)
+        throws ClassNotFoundException {
+      final StorageClientPool pool = super.getClientPool(configuration);
+      return new StorageClientPool() {
+
+        public StorageClient getClient() throws ClientPoolException {
+          final StorageClient client = pool.getClient();
+          return (StorageClient) Proxy.newProxyInstance(
+              StorageClient.class.getClassLoader(), new Class<?>[] { StorageClient.class },
+              new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                  if (latency > 0) {
+                    LockSupport.parkNanos(latency);
+                  }
+                  try {
+                    return method.invoke(client, args);
+                  } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                  }
+                }
+              });
+        }
+
+        public StorageCacheManager getStorageCacheManager() {
+          return pool.getStorageCacheManager();
+        }
+      };
+    }
+  }
+
+  /**
+   * Every recipient has a different inbox, so the locks are never contended.
+   */
+  private static class NoLockManager implements LockManager {
+
+    public Lock getLock(String id) {
+      return null;
+    }
+
+    public Lock getLock(String id, boolean create) {
+      return null;
+    }
+
+    public Lock waitForLock(String id) {
+      return null;
+    }
+
+    public Lock tryLock(String id, long timeout, TimeUnit unit) {
+      return null;
+    }
+
+    public LockStatistics getStatistics() {
+      return null;
+    }
+
+    public void clearLocks() {
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *
+ */
+public class MessageFanOutTest {
+
+  private static final String MESSAGE_PATH = "a:sender/message/outbox/msg1";
+
+  private Map<String, Map<String, Object>> store;
+  private Repository repository;
+  private Session session;
+  private ContentManager contentManager;
+  private LiteMessagingService messagingService;
+  private LockManager lockManager;
+  private ExecutorService executor;
+  private volatile String failOnce;
+  private volatile String failAlways;
+
+  @Before
+  public void setUp() throws Exception {
+    store = new ConcurrentHashMap<String, Map<String, Object>>();
+    Map<String, Object> original = new HashMap<String, Object>();
+    original.put(MessageConstants.PROP_SAKAI_ID, "msg1");
+    original.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_OUTBOX);
+    store.put(MESSAGE_PATH, original);
+
+    contentManager = mock(ContentManager.class);
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) {
+        String path = (String) invocation.getArguments()[0];
+        Map<String, Object> properties = store.get(path);
+        return properties == null ? null : new Content(path, properties);
+      }
+    });
+    when(contentManager.exists(anyString())).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) {
+        return store.containsKey(invocation.getArguments()[0]);
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        Content content = (Content) invocation.getArguments()[0];
+        store.put(content.getPath(), new HashMap<String, Object>(content.getProperties()));
+        return null;
+      }
+    }).when(contentManager).update(any(Content.class));
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Exception {
+        String to = (String) invocation.getArguments()[1];
+        if (to.equals(failOnce)) {
+          failOnce = null;
+          throw new StorageClientException("Unable to copy to " + to);
+        }
+        if (to.equals(failAlways)) {
+          throw new StorageClientException("Unable to copy to " + to);
+        }
+        store.put(to, new HashMap<String, Object>(store.get(invocation.getArguments()[0])));
+        return null;
+      }
+    }).when(contentManager).copy(anyString(), anyString(), anyBoolean());
+
+    session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+
+    messagingService = mock(LiteMessagingService.class);
+    when(messagingService.getFullPathToMessage(anyString(), anyString(), eq(session)))
+        .thenAnswer(new Answer<String>() {
+          public String answer(InvocationOnMock invocation) {
+            return "a:" + invocation.getArguments()[0] + "/message/inbox/"
+                + invocation.getArguments()[1];
+          }
+        });
+    when(messagingService.getFullPathToStore(anyString(), eq(session))).thenAnswer(
+        new Answer<String>() {
+          public String answer(InvocationOnMock invocation) {
+            return "a:" + invocation.getArguments()[0] + "/message/";
+          }
+        });
+    lockManager = mock(LockManager.class);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testExpandNestedGroupsOnce() throws Exception {
+    AuthorizableManager authorizableManager = mock(AuthorizableManager.class);
+    Group g1 = mock(Group.class);
+    when(g1.getMembers()).thenReturn(new String[] { "u1", "g2", "u2" });
+    Group g2 = mock(Group.class);
+    // g1 is in g2 and g2 is in g1
+    when(g2.getMembers()).thenReturn(new String[] { "u2", "u3", "g1" });
+    when(authorizableManager.findAuthorizable("g1")).thenReturn(g1);
+    when(authorizableManager.findAuthorizable("g2")).thenReturn(g2);
+    for (String user : new String[] { "u1", "u2", "u3" }) {
+      Authorizable au = mock(Authorizable.class);
+      when(authorizableManager.findAuthorizable(user)).thenReturn(au);
+    }
+
+    List<String> users = new ArrayList<String>(MessageFanOut.expand(Arrays.asList("g1",
+        "u1", "w-widget"), authorizableManager));
+    assertEquals(Arrays.asList("u1", "w-widget", "u2", "u3"), users);
+  }
+
+  @Test
+  public void testDeliverInParallelBatches() throws Exception {
+    List<String> recipients = users(250);
+    MessageFanOut fanOut = new MessageFanOut(repository, messagingService, lockManager,
+        executor, 100, 2);
+
+    List<String> failed = fanOut.deliver(session, new Content(MESSAGE_PATH, store
+        .get(MESSAGE_PATH)), "msg1", recipients);
+
+    assertTrue(failed.isEmpty());
+    for (String recipient : recipients) {
+      Map<String, Object> inbox = store.get("a:" + recipient + "/message/inbox/msg1");
+      assertNotNull(recipient, inbox);
+      assertEquals(MessageConstants.BOX_INBOX, inbox
+          .get(MessageConstants.PROP_SAKAI_MESSAGEBOX));
+      assertEquals(false, inbox.get(MessageConstants.PROP_SAKAI_READ));
+      assertEquals("a:" + recipient + "/message/", inbox
+          .get(MessageConstants.PROP_SAKAI_MESSAGE_STORE));
+    }
+    Map<String, Object> original = store.get(MESSAGE_PATH);
+    assertEquals(250, original.get(MessageConstants.PROP_SAKAI_DELIVERED_COUNT));
+    assertFalse(original.containsKey(MessageConstants.PROP_SAKAI_FAILED_RECIPIENTS));
+    // one session for each batch
+    verify(repository, times(3)).loginAdministrative();
+  }
+
+  @Test
+  public void testFailedRecipientsAreRetried() throws Exception {
+    List<String> recipients = users(10);
+    MessageFanOut fanOut = new MessageFanOut(repository, messagingService, lockManager,
+        executor, 3, 2);
+    failOnce = "a:user7/message/inbox/msg1";
+
+    List<String> failed = fanOut.deliver(session, new Content(MESSAGE_PATH, store
+        .get(MESSAGE_PATH)), "msg1", recipients);
+
+    assertTrue(failed.isEmpty());
+    Map<String, Object> original = store.get(MESSAGE_PATH);
+    assertEquals(10, original.get(MessageConstants.PROP_SAKAI_DELIVERED_COUNT));
+    assertFalse(original.containsKey(MessageConstants.PROP_SAKAI_FAILED_RECIPIENTS));
+    // only the internal delivery is retried, the message is not sent again.
+    assertFalse(original.containsKey(MessageConstants.PROP_SAKAI_SENDSTATE));
+    verify(contentManager, times(2)).copy(MESSAGE_PATH, "a:user7/message/inbox/msg1",
+        true);
+    verify(contentManager, times(1)).copy(MESSAGE_PATH, "a:user1/message/inbox/msg1",
+        true);
+  }
+
+  @Test
+  public void testResumeAfterPartialFailure() throws Exception {
+    List<String> recipients = users(10);
+    MessageFanOut fanOut = new MessageFanOut(repository, messagingService, lockManager,
+        executor, 3, 2);
+    failAlways = "a:user7/message/inbox/msg1";
+
+    List<String> failed = fanOut.deliver(session, new Content(MESSAGE_PATH, store
+        .get(MESSAGE_PATH)), "msg1", recipients);
+
+    assertEquals(Arrays.asList("user7"), failed);
+    Map<String, Object> original = store.get(MESSAGE_PATH);
+    assertEquals(9, original.get(MessageConstants.PROP_SAKAI_DELIVERED_COUNT));
+    assertArrayEquals(new String[] { "user7" }, (String[]) original
+        .get(MessageConstants.PROP_SAKAI_FAILED_RECIPIENTS));
+    assertFalse(original.containsKey(MessageConstants.PROP_SAKAI_SENDSTATE));
+    // tried once and retried twice.
+    verify(contentManager, times(3)).copy(MESSAGE_PATH, "a:user7/message/inbox/msg1",
+        true);
+
+    // sending again only copies to the one that failed.
+    failAlways = null;
+    failed = fanOut.deliver(session, new Content(MESSAGE_PATH, store.get(MESSAGE_PATH)),
+        "msg1", recipients);
+
+    assertTrue(failed.isEmpty());
+    original = store.get(MESSAGE_PATH);
+    assertEquals(10, original.get(MessageConstants.PROP_SAKAI_DELIVERED_COUNT));
+    assertFalse(original.containsKey(MessageConstants.PROP_SAKAI_FAILED_RECIPIENTS));
+    verify(contentManager, times(4)).copy(MESSAGE_PATH, "a:user7/message/inbox/msg1",
+        true);
+    verify(contentManager, times(1)).copy(MESSAGE_PATH, "a:user1/message/inbox/msg1",
+        true);
+  }
+
+  @Test
+  public void testInboxCopiesDoNotCarryProgress() throws Exception {
+    List<String> recipients = users(10);
+    MessageFanOut fanOut = new MessageFanOut(repository, messagingService, lockManager,
+        executor, 3, 0);
+    failAlways = "a:user7/message/inbox/msg1";
+    fanOut.deliver(session, new Content(MESSAGE_PATH, store.get(MESSAGE_PATH)), "msg1",
+        recipients);
+    failAlways = null;
+    // the sent message now lists user7 as failed, and is copied to user7 on resume.
+    fanOut.deliver(session, new Content(MESSAGE_PATH, store.get(MESSAGE_PATH)), "msg1",
+        recipients);
+
+    for (String recipient : recipients) {
+      Map<String, Object> inbox = store.get("a:" + recipient + "/message/inbox/msg1");
+      assertNotNull(recipient, inbox);
+      assertFalse(recipient, inbox.containsKey(MessageConstants.PROP_SAKAI_DELIVERED_COUNT));
+      assertFalse(recipient, inbox
+          .containsKey(MessageConstants.PROP_SAKAI_FAILED_RECIPIENTS));
+    }
+  }
+
+  @Test
+  public void testDeliverInTurnWithoutExecutor() throws Exception {
+    List<String> recipients = users(5);
+    MessageFanOut fanOut = new MessageFanOut(repository, messagingService, lockManager,
+        null, 2, 2);
+
+    List<String> failed = fanOut.deliver(session, new Content(MESSAGE_PATH, store
+        .get(MESSAGE_PATH)), "msg1", recipients);
+
+    assertTrue(failed.isEmpty());
+    for (String recipient : recipients) {
+      assertTrue(store.containsKey("a:" + recipient + "/message/inbox/msg1"));
+    }
+    // the caller's session delivers everything.
+    verify(repository, times(0)).loginAdministrative();
+    verify(lockManager, times(5)).clearLocks();
+  }
+
+  private List<String> users(int n) {
+    List<String> users = new ArrayList<String>();
+    for (int i = 0; i < n; i++) {
+      users.add("user" + i);
+    }
+    return users;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Streams search results to the client as they are written. The response buffer is
+ * bounded and the writer is flushed every few results, or when results have been held for
+ * too long, so the first bytes go out before the page is complete and the memory used does
+ * not grow with the page size. If the client goes away the wrapped iterators stop, so the
+ * rest of the page is not rendered for nobody.
+ */
+public class ResultStream {
+
+  public static final String BUFFER_SIZE_PROP = "streaming.bufferSize";
+  public static final String FLUSH_RESULTS_PROP = "streaming.flushResults";
+  public static final String FLUSH_INTERVAL_PROP = "streaming.flushInterval";
+
+  public static final int DEFAULT_BUFFER_SIZE = 16384;
+  public static final int DEFAULT_FLUSH_RESULTS = 50;
+  public static final long DEFAULT_FLUSH_INTERVAL = 250;
+
+  private final PrintWriter writer;
+  private final int flushResults;
+  private final long flushIntervalNanos;
+  private int sinceFlush;
+  private long lastFlush;
+  private boolean closed;
+
+  ResultStream(PrintWriter writer, int flushResults, long flushIntervalMs) {
+    this.writer = writer;
+    this.flushResults = flushResults;
+    this.flushIntervalNanos = flushIntervalMs * 1000000L;
+    this.lastFlush = System.nanoTime();
+  }
+
+  /**
+   * @param response
+   * @param bufferSize
+   *          the response buffer size, 0 to leave it to the container.
+   * @param flushResults
+   *          flush after this many results, 0 to only flush on time.
+   * @param flushIntervalMs
+   *          flush when results have been held for this long, 0 to only flush on count.
+   * @return a stream on the response writer.
+   * @throws IOException
+   */
+  public static ResultStream open(SlingHttpServletResponse response, int bufferSize,
+      int flushResults, long flushIntervalMs) throws IOException {
+    if (bufferSize > 0 && !response.isCommitted()) {
+      try {
+        response.setBufferSize(bufferSize);
+      } catch (IllegalStateException e) {
+        // something has already been written, keep the buffer we have.
+      }
+    }
+    return new ResultStream(response.getWriter(), flushResults, flushIntervalMs);
+  }
+
+  public PrintWriter getWriter() {
+    return writer;
+  }
+
+  /**
+   * Note that a result has been written, and flush if one is due.
+   *
+   * @return false if the client has gone and there is no point writing more.
+   */
+  public boolean written() {
+    if (closed) {
+      return false;
+    }
+    sinceFlush++;
+    long now = System.nanoTime();
+    if ((flushResults > 0 && sinceFlush >= flushResults)
+        || (flushIntervalNanos > 0 && now - lastFlush >= flushIntervalNanos)) {
+      // checkError flushes, and is the only way to see the IOException PrintWriter
+      // swallows when the connection has been closed.
+      closed = writer.checkError();
+      sinceFlush = 0;
+      lastFlush = now;
+    }
+    return !closed;
+  }
+
+  /**
+   * @return true if the client is still there, as far as we know.
+   */
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Wrap the results given to a batch processor. Asking for the next result means the
+   * previous one has been written.
+   *
+   * @param <T>
+   * @param iterator
+   * @return an iterator that flushes as it goes and stops if the client goes away.
+   */
+  public <T> Iterator<T> wrap(final Iterator<T> iterator) {
+    return new Iterator<T>() {
+      private boolean started;
+
+      public boolean hasNext() {
+        return !closed && iterator.hasNext();
+      }
+
+      public T next() {
+        if (started) {
+          written();
+        }
+        started = true;
+        return iterator.next();
+      }
+
+      public void remove() {
+        iterator.remove();
+      }
+    };
+  }
+
+  /**
+   * @param iterator
+   * @return a row iterator that flushes as it goes and stops if the client goes away.
+   * @see #wrap(Iterator)
+   */
+  public RowIterator wrapRows(final RowIterator iterator) {
+    return new RowIterator() {
+      private boolean started;
+
+      public boolean hasNext() {
+        return !closed && iterator.hasNext();
+      }
+
+      public Row nextRow() {
+        if (started) {
+          written();
+        }
+        started = true;
+        return iterator.nextRow();
+      }
+
+      public Object next() {
+        return nextRow();
+      }
+
+      public void skip(long skipNum) {
+        iterator.skip(skipNum);
+      }
+
+      public long getSize() {
+        return iterator.getSize();
+      }
+
+      public long getPosition() {
+        return iterator.getPosition();
+      }
+
+      public void remove() {
+        iterator.remove();
+      }
+    };
+  }
+}
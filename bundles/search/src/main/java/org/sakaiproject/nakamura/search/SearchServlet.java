@@ -87,6 +87,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -181,7 +182,10 @@ import javax.servlet.http.HttpServletResponse;
 @Properties(value = {
     @Property(name = "service.description", value = { "Perfoms searchs based on the associated node." }),
     @Property(name = "service.vendor", value = { "The Sakai Foundation" }),
-    @Property(name = "maximumResults", longValue = 2500L)
+    @Property(name = "maximumResults", longValue = 2500L),
+    @Property(name = ResultStream.BUFFER_SIZE_PROP, intValue = ResultStream.DEFAULT_BUFFER_SIZE),
+    @Property(name = ResultStream.FLUSH_RESULTS_PROP, intValue = ResultStream.DEFAULT_FLUSH_RESULTS),
+    @Property(name = ResultStream.FLUSH_INTERVAL_PROP, longValue = ResultStream.DEFAULT_FLUSH_INTERVAL)
 })
 @References(value = {
     @Reference(name = "SearchResultProcessor", referenceInterface = SearchResultProcessor.class,
@@ -224,6 +228,9 @@ public class SearchServlet extends SlingSafeMethodsServlet {
   private List<ServiceReference> delayedBatchReferences = new ArrayList<ServiceReference>();
 
   protected long maximumResults = 100;
+  protected int streamBufferSize = ResultStream.DEFAULT_BUFFER_SIZE;
+  protected int streamFlushResults = ResultStream.DEFAULT_FLUSH_RESULTS;
+  protected long streamFlushInterval = ResultStream.DEFAULT_FLUSH_INTERVAL;
 
   // Default processors
   /**
@@ -376,7 +383,11 @@ public class SearchServlet extends SlingSafeMethodsServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        // Results are flushed to the client as they are written, rather than being held
+        // until the whole page is rendered.
+        ResultStream stream = ResultStream.open(response, streamBufferSize,
+            streamFlushResults, streamFlushInterval);
+        ExtendedJSONWriter write = new ExtendedJSONWriter(stream.getWriter());
         write.setTidy(isTidy(request));
 
         write.object();
@@ -386,7 +397,7 @@ public class SearchServlet extends SlingSafeMethodsServlet {
 
         write.array();
 
-        RowIterator iterator = rs.getRowIterator();
+        RowIterator iterator = stream.wrapRows(rs.getRowIterator());
         if (useBatch) {
           LOGGER.info("Using batch processor for results");
           searchBatchProcessor.writeNodes(request, write, aggregator, iterator);
@@ -432,10 +443,16 @@ public class SearchServlet extends SlingSafeMethodsServlet {
       }
     } catch (RepositoryException e) {
       e.printStackTrace();
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      // Once results have been flushed the status line has gone, all we can do is stop.
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      }
       LOGGER.info("Caught RepositoryException {}", e.getMessage());
     } catch (JSONException e) {
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      // Once results have been flushed the status line has gone, all we can do is stop.
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      }
       LOGGER.info("Caught JSONException {}", e.getMessage());
     }
   }
@@ -949,6 +966,13 @@ public class SearchServlet extends SlingSafeMethodsServlet {
     }
 
     maximumResults = (Long) componentContext.getProperties().get("maximumResults");
+    Dictionary<?, ?> props = componentContext.getProperties();
+    streamBufferSize = OsgiUtil.toInteger(props.get(ResultStream.BUFFER_SIZE_PROP),
+        ResultStream.DEFAULT_BUFFER_SIZE);
+    streamFlushResults = OsgiUtil.toInteger(props.get(ResultStream.FLUSH_RESULTS_PROP),
+        ResultStream.DEFAULT_FLUSH_RESULTS);
+    streamFlushInterval = OsgiUtil.toLong(props.get(ResultStream.FLUSH_INTERVAL_PROP),
+        ResultStream.DEFAULT_FLUSH_INTERVAL);
   }
 
   /**
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_LIMIT_RESULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.sakaiproject.nakamura.api.search.solr.Query.Type;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+
+/**
+ * Everything SolrSearchServlet needs from a search node, read from JCR once.
+ */
+public class CompiledSearch {
+
+  static final String JCR_LAST_MODIFIED = "jcr:lastModified";
+
+  private final long lastModified;
+  private final Type type;
+  private final boolean limitResults;
+  private final String propertyProviderName;
+  private final String batchProcessorName;
+  private final String resultProcessorName;
+  private final Map<String, String> nodeProperties;
+  private final SearchTemplate queryTemplate;
+  private final Map<String, SearchTemplate> options;
+
+  /**
+   * @param node
+   *          the search node.
+   * @throws RepositoryException
+   * @throws JSONException
+   *           if the options are not valid JSON.
+   */
+  public CompiledSearch(Node node) throws RepositoryException, JSONException {
+    lastModified = getLastModified(node);
+    if (node.hasProperty("sling:resourceType")
+        && "sakai/sparse-search".equals(node.getProperty("sling:resourceType").getString())) {
+      type = Type.SPARSE;
+    } else {
+      type = Type.SOLR;
+    }
+    limitResults = !node.hasProperty(SAKAI_LIMIT_RESULTS)
+        || node.getProperty(SAKAI_LIMIT_RESULTS).getBoolean();
+    propertyProviderName = getString(node, SAKAI_PROPERTY_PROVIDER);
+    batchProcessorName = getString(node, SAKAI_BATCHRESULTPROCESSOR);
+    resultProcessorName = getString(node, SAKAI_RESULTPROCESSOR);
+
+    // the properties of the node are the defaults for the template.
+    Map<String, String> properties = new HashMap<String, String>();
+    PropertyIterator props = node.getProperties();
+    while (props.hasNext()) {
+      javax.jcr.Property prop = props.nextProperty();
+      if (!prop.isMultiple()) {
+        properties.put(prop.getName(), prop.getString());
+      }
+    }
+    nodeProperties = Collections.unmodifiableMap(properties);
+
+    String template = getString(node, SAKAI_QUERY_TEMPLATE);
+    queryTemplate = template == null ? null : SearchTemplate.compile(template);
+
+    Map<String, SearchTemplate> compiledOptions = new LinkedHashMap<String, SearchTemplate>();
+    JSONObject queryOptions = accumulateQueryOptions(node);
+    if (queryOptions != null) {
+      Iterator<String> keys = queryOptions.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        compiledOptions.put(key, SearchTemplate.compile(queryOptions.getString(key)));
+      }
+    }
+    options = Collections.unmodifiableMap(compiledOptions);
+  }
+
+  /**
+   * @param node
+   * @return the last modified time of the node, or -1 if it does not record one.
+   * @throws RepositoryException
+   */
+  static long getLastModified(Node node) throws RepositoryException {
+    if (node.hasProperty(JCR_LAST_MODIFIED)) {
+      Calendar c = node.getProperty(JCR_LAST_MODIFIED).getDate();
+      if (c != null) {
+        return c.getTimeInMillis();
+      }
+    }
+    return -1;
+  }
+
+  private static String getString(Node node, String name) throws RepositoryException {
+    if (node.hasProperty(name)) {
+      return node.getProperty(name).getString();
+    }
+    return null;
+  }
+
+  private static JSONObject accumulateQueryOptions(Node queryNode)
+      throws RepositoryException, JSONException {
+    JSONObject queryOptions = null;
+    if (queryNode.hasProperty(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      // process the options as JSON string
+      String optionsProp = queryNode.getProperty(SAKAI_QUERY_TEMPLATE_OPTIONS).getString();
+      queryOptions = new JSONObject(optionsProp);
+    } else if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      // process the options as a sub-node
+      Node optionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
+      if (optionsNode.hasProperties()) {
+        queryOptions = new JSONObject();
+        PropertyIterator props = optionsNode.getProperties();
+        while (props.hasNext()) {
+          javax.jcr.Property prop = props.nextProperty();
+          if (!prop.getName().startsWith("jcr:")) {
+            queryOptions.put(prop.getName(), prop.getString());
+          }
+        }
+      }
+    }
+    return queryOptions;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public boolean isLimitResults() {
+    return limitResults;
+  }
+
+  public String getPropertyProviderName() {
+    return propertyProviderName;
+  }
+
+  public String getBatchProcessorName() {
+    return batchProcessorName;
+  }
+
+  public String getResultProcessorName() {
+    return resultProcessorName;
+  }
+
+  /**
+   * @return the single valued properties of the search node.
+   */
+  public Map<String, String> getNodeProperties() {
+    return nodeProperties;
+  }
+
+  /**
+   * @return the query template, or null if the node does not have one.
+   */
+  public SearchTemplate getQueryTemplate() {
+    return queryTemplate;
+  }
+
+  /**
+   * @return the query options, each compiled as a template.
+   */
+  public Map<String, SearchTemplate> getOptions() {
+    return options;
+  }
+}
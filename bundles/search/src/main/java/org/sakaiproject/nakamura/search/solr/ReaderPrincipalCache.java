@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.solr.client.solrj.util.ClientUtils;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the readers filter query for each user, ie the user and every group they are a
+ * member of. The filter string is built in a stable order so that Solr sees the same fq
+ * for the same user and can answer it from its filterCache.
+ */
+public class ReaderPrincipalCache {
+
+  /**
+   * The readers filter, and the principals it was built from.
+   */
+  private static class Entry {
+    final String filter;
+    final Set<String> principals;
+    final long expires;
+
+    Entry(String filter, Set<String> principals, long expires) {
+      this.filter = filter;
+      this.principals = principals;
+      this.expires = expires;
+    }
+  }
+
+  private final ConcurrentMap<String, Entry> entries;
+  /**
+   * Bumped on every invalidation, so readers looked up while membership changed are not
+   * cached.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private final int maxSize;
+  private final long ttl;
+
+  /**
+   * @param maxSize
+   *          the maximum number of users held, the cache is cleared when it fills.
+   * @param ttl
+   *          ms an entry lives for, this bounds how stale an entry can be when a
+   *          membership change happens on another server in the cluster.
+   */
+  public ReaderPrincipalCache(int maxSize, long ttl) {
+    this.maxSize = Math.max(1, maxSize);
+    this.ttl = ttl;
+    this.entries = new ConcurrentHashMap<String, Entry>(Math.min(this.maxSize, 1024));
+  }
+
+  /**
+   * @param userId
+   * @return the cached readers filter for the user, or null if there is none.
+   */
+  public String get(String userId) {
+    Entry e = entries.get(userId);
+    if (e == null) {
+      return null;
+    }
+    if (e.expires < System.currentTimeMillis()) {
+      entries.remove(userId, e);
+      return null;
+    }
+    return e.filter;
+  }
+
+  /**
+   * @return the current generation, to be read before looking up the groups passed to
+   *         {@link #put(String, Collection, long)}.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Build and cache the readers filter for a user.
+   *
+   * @param userId
+   * @param groups
+   *          the ids of every group the user is a member of.
+   * @return the filter.
+   */
+  public String put(String userId, Collection<String> groups) {
+    return put(userId, groups, generation.get());
+  }
+
+  /**
+   * Build the readers filter for a user, and cache it unless something was invalidated
+   * since the groups were looked up.
+   *
+   * @param userId
+   * @param groups
+   *          the ids of every group the user is a member of.
+   * @param lookupGeneration
+   *          the value of {@link #getGeneration()} before the groups were looked up.
+   * @return the filter.
+   */
+  public String put(String userId, Collection<String> groups, long lookupGeneration) {
+    Set<String> principals = new TreeSet<String>(groups);
+    principals.add(userId);
+    String filter = buildFilter(principals);
+    if (entries.size() >= maxSize) {
+      entries.clear();
+    }
+    Entry entry = new Entry(filter, principals, System.currentTimeMillis() + ttl);
+    entries.put(userId, entry);
+    if (lookupGeneration != generation.get()) {
+      // an invalidate ran after the lookup, it may have missed this entry.
+      entries.remove(userId, entry);
+    }
+    return filter;
+  }
+
+  /**
+   * An authorizable changed, remove it and every user whose readers include it.
+   *
+   * @param id
+   *          the user or group id.
+   */
+  public void invalidate(String id) {
+    generation.incrementAndGet();
+    entries.remove(id);
+    for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+      if (i.next().getValue().principals.contains(id)) {
+        i.remove();
+      }
+    }
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @param principals
+   * @return readers:(a OR b ...) with each principal escaped.
+   */
+  static String buildFilter(Collection<String> principals) {
+    StringBuilder sb = new StringBuilder(principals.size() * 24 + 10);
+    sb.append("readers:(");
+    boolean first = true;
+    for (String principal : principals) {
+      if (!first) {
+        sb.append(" OR ");
+      }
+      sb.append(ClientUtils.escapeQueryChars(principal));
+      first = false;
+    }
+    return sb.append(')').toString();
+  }
+}
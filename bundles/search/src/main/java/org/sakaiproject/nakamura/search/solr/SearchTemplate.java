@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query template parsed once, so that a request only has to substitute values. Simple
+ * templates, that only contain ${name} and $name references, are split into literal and
+ * reference segments. Anything else, directives, escapes, quiet or property references, is
+ * left to the TemplateService, as before.
+ */
+public class SearchTemplate {
+
+  private final String source;
+  /**
+   * Alternating literal and reference segments, references are held as the name, with
+   * the text to use when there is no value alongside. Null if the template is not simple.
+   */
+  private final String[] segments;
+  private final boolean[] references;
+  private final List<String> terms;
+
+  private SearchTemplate(String source, String[] segments, boolean[] references,
+      List<String> terms) {
+    this.source = source;
+    this.segments = segments;
+    this.references = references;
+    this.terms = terms;
+  }
+
+  /**
+   * @param template
+   * @return the compiled template.
+   */
+  public static SearchTemplate compile(String template) {
+    List<String> terms = scanTerms(template);
+    List<String> parts = new ArrayList<String>();
+    List<Boolean> refs = new ArrayList<Boolean>();
+    if (template.indexOf('#') >= 0) {
+      return new SearchTemplate(template, null, null, terms);
+    }
+    int literalStart = 0;
+    int i = template.indexOf('$');
+    while (i >= 0) {
+      if (i > 0 && template.charAt(i - 1) == '\\') {
+        // escaped references are for velocity to sort out.
+        return new SearchTemplate(template, null, null, terms);
+      }
+      int end;
+      String name;
+      if (i + 1 < template.length() && template.charAt(i + 1) == '{') {
+        int close = identifierEnd(template, i + 2);
+        if (close == i + 2 || close >= template.length() || template.charAt(close) != '}') {
+          return new SearchTemplate(template, null, null, terms);
+        }
+        name = template.substring(i + 2, close);
+        end = close + 1;
+      } else if (i + 1 < template.length() && template.charAt(i + 1) == '!') {
+        return new SearchTemplate(template, null, null, terms);
+      } else {
+        int close = identifierEnd(template, i + 1);
+        if (close == i + 1) {
+          // a $ on its own is a literal.
+          i = template.indexOf('$', i + 1);
+          continue;
+        }
+        if (close < template.length()) {
+          char c = template.charAt(close);
+          if (c == '.' || c == '(' || c == '[') {
+            return new SearchTemplate(template, null, null, terms);
+          }
+        }
+        name = template.substring(i + 1, close);
+        end = close;
+      }
+      parts.add(template.substring(literalStart, i));
+      refs.add(Boolean.FALSE);
+      parts.add(name);
+      refs.add(Boolean.TRUE);
+      // the text to emit if there is no value, as velocity does.
+      parts.add(template.substring(i, end));
+      refs.add(Boolean.FALSE);
+      literalStart = end;
+      i = template.indexOf('$', end);
+    }
+    parts.add(template.substring(literalStart));
+    refs.add(Boolean.FALSE);
+    boolean[] references = new boolean[refs.size()];
+    for (int j = 0; j < references.length; j++) {
+      references[j] = refs.get(j);
+    }
+    return new SearchTemplate(template, parts.toArray(new String[parts.size()]),
+        references, terms);
+  }
+
+  /**
+   * @return true if the template is evaluated without the template service.
+   */
+  public boolean isCompiled() {
+    return segments != null;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @param parameters
+   * @return the ${name} terms in the template that have no value, the same terms
+   *         TemplateService.missingTerms reports.
+   */
+  public Collection<String> missingTerms(Map<String, String> parameters) {
+    if (terms.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<String> missing = null;
+    for (String term : terms) {
+      if (parameters.get(term) == null) {
+        if (missing == null) {
+          missing = new ArrayList<String>();
+        }
+        missing.add(term);
+      }
+    }
+    if (missing == null) {
+      return Collections.emptyList();
+    }
+    return missing;
+  }
+
+  /**
+   * @param parameters
+   * @param templateService
+   *          used if the template could not be compiled.
+   * @return the template with the parameters substituted.
+   */
+  public String evaluate(Map<String, String> parameters, TemplateService templateService) {
+    if (segments == null) {
+      return templateService.evaluateTemplate(parameters, source);
+    }
+    StringBuilder sb = new StringBuilder(source.length() + 64);
+    for (int i = 0; i < segments.length; i++) {
+      if (references[i]) {
+        String value = parameters.get(segments[i]);
+        i++;
+        sb.append(value == null ? segments[i] : value);
+      } else {
+        sb.append(segments[i]);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The same scan as VelocityTemplateService.missingTerms, done once.
+   */
+  private static List<String> scanTerms(String template) {
+    List<String> terms = new ArrayList<String>();
+    int startPosition = template.indexOf("${");
+    while (startPosition > -1) {
+      int endPosition = template.indexOf("}", startPosition);
+      if (endPosition > -1) {
+        terms.add(template.substring(startPosition + 2, endPosition));
+        startPosition = template.indexOf("${", endPosition);
+      } else {
+        break;
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * A velocity identifier is a letter or _ followed by letters, digits, _ or -.
+   *
+   * @return the index after the identifier that starts at start, or start if there is
+   *         none.
+   */
+  private static int identifierEnd(String template, int start) {
+    int i = start;
+    if (i < template.length()) {
+      char c = template.charAt(i);
+      if (!(isLetter(c) || c == '_')) {
+        return start;
+      }
+      i++;
+    }
+    while (i < template.length()) {
+      char c = template.charAt(i);
+      if (!(isLetter(c) || (c >= '0' && c <= '9') || c == '_' || c == '-')) {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+}
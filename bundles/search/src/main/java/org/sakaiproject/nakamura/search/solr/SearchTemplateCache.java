@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.json.JSONException;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds a compiled form of each search node, keyed by path and checked against the last
+ * modified time of the node. Entries are dropped when the node, or anything below it,
+ * changes.
+ */
+@Component(immediate = true)
+@Services(value = { @Service(value = SearchTemplateCache.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }) })
+public class SearchTemplateCache implements EventHandler {
+
+  private final ConcurrentMap<String, CompiledSearch> compiled = new ConcurrentHashMap<String, CompiledSearch>();
+  /**
+   * Bumped on every invalidation, so a search compiled while its node changed is not
+   * cached.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param node
+   *          the search node.
+   * @return the compiled search for the node.
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  public CompiledSearch get(Node node) throws RepositoryException, JSONException {
+    String path = node.getPath();
+    CompiledSearch search = compiled.get(path);
+    if (search != null && search.getLastModified() == CompiledSearch.getLastModified(node)) {
+      return search;
+    }
+    long gen = generation.get();
+    search = new CompiledSearch(node);
+    if (gen == generation.get()) {
+      compiled.put(path, search);
+    }
+    return search;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && path.startsWith(SEARCH_PATH_PREFIX)) {
+      invalidate(path);
+    }
+  }
+
+  /**
+   * Drop the search at path, any search below it and the search it is part of.
+   *
+   * @param path
+   */
+  public void invalidate(String path) {
+    generation.incrementAndGet();
+    for (Iterator<String> i = compiled.keySet().iterator(); i.hasNext();) {
+      String key = i.next();
+      if (key.equals(path) || path.startsWith(key + "/") || key.startsWith(path + "/")) {
+        i.remove();
+      }
+    }
+  }
+
+  public int size() {
+    return compiled.size();
+  }
+}
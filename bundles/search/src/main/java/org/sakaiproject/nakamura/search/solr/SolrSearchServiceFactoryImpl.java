@@ -7,9 +7,11 @@ import com.google.common.collect.Sets;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
@@ -24,13 +26,16 @@ import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.schema.TextField;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
@@ -44,6 +49,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,8 +64,13 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 @Component(immediate = true, metatype = true)
-@Service
-public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
+@Services(value = { @Service(value = SolrSearchServiceFactory.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.UPDATED_TOPIC,
+    StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.DELETE_TOPIC }) })
+public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory,
+    EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SolrSearchServiceFactoryImpl.class);
@@ -69,10 +80,42 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
   @Property(name = "defaultMaxResults", intValue = 100)
   private int defaultMaxResults = 100; // set to 100 to allow testing
 
+  @Property(name = "readersCacheSize", intValue = 10000)
+  private int readersCacheSize = 10000;
+
+  @Property(name = "readersCacheTtl", longValue = 300000)
+  private long readersCacheTtl = 300000;
+
+  /**
+   * The readers filter query for each user, so that group membership is only walked when
+   * it changes.
+   */
+  private ReaderPrincipalCache readersCache = new ReaderPrincipalCache(readersCacheSize,
+      readersCacheTtl);
+
   @Activate
   protected void activate(Map<?, ?> props) {
     defaultMaxResults = OsgiUtil.toInteger(props.get("defaultMaxResults"),
         defaultMaxResults);
+    readersCacheSize = OsgiUtil.toInteger(props.get("readersCacheSize"), readersCacheSize);
+    readersCacheTtl = OsgiUtil.toLong(props.get("readersCacheTtl"), readersCacheTtl);
+    readersCache = new ReaderPrincipalCache(readersCacheSize, readersCacheTtl);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Membership is held on both the group and its members, so any change to an
+   * authorizable drops it and every user whose readers include it.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String id = (String) event.getProperty(IndexingHandler.FIELD_PATH);
+    if (id != null) {
+      readersCache.invalidate(id);
+    } else {
+      readersCache.clear();
+    }
   }
 
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
@@ -118,36 +161,59 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
   private SolrSearchResultSet processSolrQuery(SlingHttpServletRequest request,
       Query query, boolean asAnon) throws StorageClientException, AccessDeniedException, SolrServerException {
     String queryString = query.getQueryString();
-    // apply readers restrictions.
+    // apply readers restrictions as a filter query, which Solr caches separately from the
+    // query so the permission set is reused across searches by the same user.
+    String readersFilter = null;
     if (asAnon) {
-      queryString = "(" + queryString + ")  AND readers:" + User.ANON_USER;
+      readersFilter = "readers:" + User.ANON_USER;
     } else {
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
       if (!User.ADMIN_USER.equals(session.getUserId())) {
-        AuthorizableManager am = session.getAuthorizableManager();
-        Authorizable user = am.findAuthorizable(session.getUserId());
-        Set<String> readers = Sets.newHashSet();
-        for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-          readers.add(ClientUtils.escapeQueryChars(gi.next().getId()));
-        }
-        readers.add(session.getUserId());
-        queryString = "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
+        readersFilter = getReadersFilter(session);
       }
     }
 
     SolrQuery solrQuery = buildQuery(request, queryString, query.getOptions());
+    if (readersFilter != null) {
+      solrQuery.addFilterQuery(readersFilter);
+    }
 
     SolrServer solrServer = solrSearchService.getServer();
-    try {
-      LOGGER.info("Performing Query {} ", URLDecoder.decode(solrQuery.toString(),"UTF-8"));
-    } catch (UnsupportedEncodingException e) {
+    if (LOGGER.isDebugEnabled()) {
+      try {
+        LOGGER.debug("Performing Query {} ", URLDecoder.decode(solrQuery.toString(),"UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+      }
     }
     QueryResponse response = solrServer.query(solrQuery);
     SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response);
-    LOGGER.info("Got {} hits in {} ms", rs.getSize(), response.getElapsedTime());
+    LOGGER.debug("Got {} hits in {} ms", rs.getSize(), response.getElapsedTime());
     return rs;
   }
 
+  /**
+   * @param session
+   * @return the readers filter for the session user, from the cache if it has one.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  private String getReadersFilter(Session session) throws StorageClientException,
+      AccessDeniedException {
+    String userId = session.getUserId();
+    String filter = readersCache.get(userId);
+    if (filter == null) {
+      long generation = readersCache.getGeneration();
+      AuthorizableManager am = session.getAuthorizableManager();
+      Authorizable user = am.findAuthorizable(userId);
+      Set<String> groups = Sets.newHashSet();
+      for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+        groups.add(gi.next().getId());
+      }
+      filter = readersCache.put(userId, groups, generation);
+    }
+    return filter;
+  }
+
   /**
    * Process properties to query sparse content directly.
    *
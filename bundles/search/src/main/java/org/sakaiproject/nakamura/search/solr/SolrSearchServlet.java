@@ -23,12 +23,6 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARA
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_BATCH_PROCESSOR_NAMES;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_PROVIDER_NAMES;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_LIMIT_RESULTS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_BATCH_RESULT_PROCESSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PROPERTY_PROVIDER;
@@ -53,7 +47,7 @@ import org.apache.sling.api.request.RequestParameterMap;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
@@ -61,7 +55,6 @@ import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.MissingParameterException;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Query.Type;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -70,6 +63,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
+import org.sakaiproject.nakamura.search.ResultStream;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
@@ -78,6 +72,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -88,10 +83,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.ValueFormatException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -103,7 +95,10 @@ import javax.servlet.http.HttpServletResponse;
 @Properties(value = {
     @Property(name = "service.description", value = { "Perfoms searchs based on the associated node." }),
     @Property(name = "service.vendor", value = { "The Sakai Foundation" }),
-    @Property(name = "maximumResults", longValue = 2500L) })
+    @Property(name = "maximumResults", longValue = 2500L),
+    @Property(name = ResultStream.BUFFER_SIZE_PROP, intValue = ResultStream.DEFAULT_BUFFER_SIZE),
+    @Property(name = ResultStream.FLUSH_RESULTS_PROP, intValue = ResultStream.DEFAULT_FLUSH_RESULTS),
+    @Property(name = ResultStream.FLUSH_INTERVAL_PROP, longValue = ResultStream.DEFAULT_FLUSH_INTERVAL) })
 @References(value = {
     @Reference(name = "SearchResultProcessor", referenceInterface = SolrSearchResultProcessor.class, bind = "bindSearchResultProcessor", unbind = "unbindSearchResultProcessor", cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC),
     @Reference(name = "SearchBatchResultProcessor", referenceInterface = SolrSearchBatchResultProcessor.class, bind = "bindSearchBatchResultProcessor", unbind = "unbindSearchBatchResultProcessor", cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC),
@@ -131,6 +126,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   private List<ServiceReference> delayedBatchReferences = new ArrayList<ServiceReference>();
 
   protected long maximumResults = 100;
+  protected int streamBufferSize = ResultStream.DEFAULT_BUFFER_SIZE;
+  protected int streamFlushResults = ResultStream.DEFAULT_FLUSH_RESULTS;
+  protected long streamFlushInterval = ResultStream.DEFAULT_FLUSH_INTERVAL;
 
   // Default processors
   /**
@@ -154,6 +152,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Reference
   private transient TemplateService templateService;
 
+  @Reference
+  protected transient SearchTemplateCache searchTemplateCache;
+
   private Pattern homePathPattern = Pattern.compile("^(.*)(~([\\w-]*?))/");
 
   @Override
@@ -169,13 +170,14 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
       }
 
       Node node = resource.adaptTo(Node.class);
-      if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+      CompiledSearch search = null;
+      if (node != null) {
+        search = searchTemplateCache.get(node);
+      }
+      if (search != null && search.getQueryTemplate() != null) {
         // TODO: we might want to use this ?
         @SuppressWarnings("unused")
-        boolean limitResults = true;
-        if (node.hasProperty(SAKAI_LIMIT_RESULTS)) {
-          limitResults = node.getProperty(SAKAI_LIMIT_RESULTS).getBoolean();
-        }
+        boolean limitResults = search.isLimitResults();
 
         long nitems = SolrSearchUtil.longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
             DEFAULT_PAGED_ITEMS);
@@ -184,7 +186,7 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         // KERN-1147 Respond better when all parameters haven't been provided for a query
         Query query = null;
         try {
-          query = processQuery(request, node);
+          query = processQuery(request, search);
         } catch (MissingParameterException e) {
           response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
           return;
@@ -198,9 +200,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         boolean useBatch = false;
         // Get the
         SolrSearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = batchProcessors.get(node.getProperty(
-              SAKAI_BATCHRESULTPROCESSOR).getString());
+        if (search.getBatchProcessorName() != null) {
+          searchBatchProcessor = batchProcessors.get(search.getBatchProcessorName());
           useBatch = true;
           if (searchBatchProcessor == null) {
             searchBatchProcessor = defaultSearchBatchProcessor;
@@ -208,9 +209,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
 
         SolrSearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = processors.get(node.getProperty(SAKAI_RESULTPROCESSOR)
-              .getString());
+        if (search.getResultProcessorName() != null) {
+          searchProcessor = processors.get(search.getResultProcessorName());
           if (searchProcessor == null) {
             searchProcessor = defaultSearchProcessor;
           }
@@ -233,7 +233,11 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        // Results are flushed to the client as they are written, rather than being held
+        // until the whole page is rendered.
+        ResultStream stream = ResultStream.open(response, streamBufferSize,
+            streamFlushResults, streamFlushInterval);
+        ExtendedJSONWriter write = new ExtendedJSONWriter(stream.getWriter());
         write.setTidy(isTidy(request));
 
         write.object();
@@ -243,12 +247,12 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
 
         write.array();
 
-        Iterator<Result> iterator = rs.getResultSetIterator();
+        Iterator<Result> iterator = stream.wrap(rs.getResultSetIterator());
         if (useBatch) {
-          LOGGER.info("Using batch processor for results");
+          LOGGER.debug("Using batch processor for results");
           searchBatchProcessor.writeResults(request, write, iterator);
         } else {
-          LOGGER.info("Using regular processor for results");
+          LOGGER.debug("Using regular processor for results");
           // We don't skip any rows ourselves here.
           // We expect a rowIterator coming from a resultset to be at the right place.
           for (long i = 0; i < nitems && iterator.hasNext(); i++) {
@@ -270,10 +274,16 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
       }
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      // Once results have been flushed the status line has gone, all we can do is stop.
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      }
     } catch (JSONException e) {
       LOGGER.error(e.getMessage(), e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      // Once results have been flushed the status line has gone, all we can do is stop.
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      }
     }
   }
 
@@ -301,31 +311,27 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   }
 
   /**
-   * Processes a velocity template so that variable references are replaced by the same
-   * properties in the property provider and request.
+   * Processes a compiled query template so that variable references are replaced by the
+   * same properties in the property provider and request.
    *
    * @param request
    *          the request.
-   * @param queryTemplate
-   *          the query template.
-   * @param propertyProviderName
+   * @param search
+   *          the compiled search node.
    * @return A processed query template
    * @throws MissingParameterException
    */
-  protected Query processQuery(SlingHttpServletRequest request, Node queryNode)
-      throws RepositoryException, MissingParameterException, JSONException {
-    String propertyProviderName = null;
-    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-      propertyProviderName = queryNode.getProperty(SAKAI_PROPERTY_PROVIDER).getString();
-    }
-    Map<String, String> propertiesMap = loadProperties(request, propertyProviderName,
-        queryNode);
+  protected Query processQuery(SlingHttpServletRequest request, CompiledSearch search)
+      throws MissingParameterException {
+    Map<String, String> propertiesMap = loadProperties(request,
+        search.getPropertyProviderName(), search);
+
+    SearchTemplate queryTemplate = search.getQueryTemplate();
 
-    String queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    // check for any missing terms, after the processors have had a chance to set them.
+    checkMissingTerms(queryTemplate, propertiesMap);
 
-    // process the query string before checking for missing terms to a) give processors a
-    // chance to set things and b) catch any missing terms added by the processors.
-    String queryString = templateService.evaluateTemplate(propertiesMap, queryTemplate);
+    String queryString = queryTemplate.evaluate(propertiesMap, templateService);
 
     // expand home directory references to full path; eg. ~user => a:user
     queryString = expandHomeDirectory(queryString);
@@ -333,94 +339,24 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     // append the user principals to the query string
     queryString = addUserPrincipals(request, queryString);
 
-    // check for any missing terms & process the query template
-    Collection<String> missingTerms = templateService.missingTerms(propertiesMap,
-        queryTemplate);
-    if (!missingTerms.isEmpty()) {
-      throw new MissingParameterException(
-          "Your request is missing parameters for the template: "
-              + StringUtils.join(missingTerms, ", "));
-    }
-
-    // collect query options
-    JSONObject queryOptions = accumulateQueryOptions(queryNode);
-
     // process the options as templates and check for missing params
-    Map<String, String> options = processOptions(propertiesMap, queryOptions);
-
-    // check the resource type and set the query type appropriately
-    // default to using solr for queries
-    javax.jcr.Property resourceType = queryNode.getProperty("sling:resourceType");
-    Query query = null;
-    if ("sakai/sparse-search".equals(resourceType.getString())) {
-      query = new Query(Type.SPARSE, queryString, options);
-    } else {
-      query = new Query(Type.SOLR, queryString, options);
-    }
-    return query;
-  }
-
-  /**
-   * @param propertiesMap
-   * @param queryOptions
-   * @return
-   * @throws JSONException
-   * @throws MissingParameterException
-   */
-  private Map<String, String> processOptions(Map<String, String> propertiesMap,
-      JSONObject queryOptions) throws JSONException, MissingParameterException {
-    Collection<String> missingTerms;
     Map<String, String> options = Maps.newHashMap();
-    if (queryOptions != null) {
-      Iterator<String> keys = queryOptions.keys();
-      while(keys.hasNext()) {
-        String key = keys.next();
-        String val = queryOptions.getString(key);
-        missingTerms = templateService.missingTerms(propertiesMap, val);
-        if (!missingTerms.isEmpty()) {
-          throw new MissingParameterException(
-              "Your request is missing parameters for the template: "
-                  + StringUtils.join(missingTerms, ", "));
-        }
-
-        String processedVal = templateService.evaluateTemplate(propertiesMap, val);
-        options.put(key, processedVal);
-      }
+    for (Entry<String, SearchTemplate> option : search.getOptions().entrySet()) {
+      checkMissingTerms(option.getValue(), propertiesMap);
+      options.put(option.getKey(), option.getValue().evaluate(propertiesMap, templateService));
     }
-    return options;
+
+    return new Query(search.getType(), queryString, options);
   }
 
-  /**
-   * @param queryNode
-   * @param queryOptions
-   * @return
-   * @throws RepositoryException
-   * @throws ValueFormatException
-   * @throws PathNotFoundException
-   * @throws JSONException
-   */
-  private JSONObject accumulateQueryOptions(Node queryNode) throws RepositoryException,
-      ValueFormatException, PathNotFoundException, JSONException {
-    JSONObject queryOptions = null;
-    if (queryNode.hasProperty(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      // process the options as JSON string
-      String optionsProp = queryNode.getProperty(SAKAI_QUERY_TEMPLATE_OPTIONS).getString();
-      queryOptions = new JSONObject(optionsProp);
-    } else if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      // process the options as a sub-node
-      Node optionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
-      if (optionsNode.hasProperties()) {
-        queryOptions = new JSONObject();
-        PropertyIterator props = optionsNode.getProperties();
-        while (props.hasNext()) {
-          javax.jcr.Property prop = props.nextProperty();
-          if (!prop.getName().startsWith("jcr:")) {
-            queryOptions.put(prop.getName(), prop.getString());
-          }
-        }
-      }
+  private void checkMissingTerms(SearchTemplate template, Map<String, String> propertiesMap)
+      throws MissingParameterException {
+    Collection<String> missingTerms = template.missingTerms(propertiesMap);
+    if (!missingTerms.isEmpty()) {
+      throw new MissingParameterException(
+          "Your request is missing parameters for the template: "
+              + StringUtils.join(missingTerms, ", "));
     }
-    return queryOptions;
   }
 
   /**
@@ -433,29 +369,22 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * 
    * @param request
    * @param propertyProviderName
+   * @param search
    * @return
-   * @throws RepositoryException
    */
   private Map<String, String> loadProperties(SlingHttpServletRequest request,
-      String propertyProviderName, Node node) throws RepositoryException {
-    Map<String, String> propertiesMap = new HashMap<String, String>();
+      String propertyProviderName, CompiledSearch search) {
+    // 0. start from the properties of the query template node so defaults can be set
+    Map<String, String> propertiesMap = new HashMap<String, String>(
+        search.getNodeProperties());
 
-    // 0. load authorizable (user) information
+    // 1. load authorizable (user) information, which the node can not override
     String userId = request.getRemoteUser();
     String userPrivatePath = ClientUtils.escapeQueryChars(LitePersonalUtils
         .getPrivatePath(userId));
     propertiesMap.put("_userPrivatePath", userPrivatePath);
     propertiesMap.put("_userId", ClientUtils.escapeQueryChars(userId));
 
-    // 1. load in properties from the query template node so defaults can be set
-    PropertyIterator props = node.getProperties();
-    while (props.hasNext()) {
-      javax.jcr.Property prop = props.nextProperty();
-      if (!propertiesMap.containsKey(prop.getName()) && !prop.isMultiple()) {
-        propertiesMap.put(prop.getName(), prop.getString());
-      }
-    }
-
     // 2. load in properties from the request
     RequestParameterMap params = request.getRequestParameterMap();
     for (Entry<String, RequestParameter[]> entry : params.entrySet()) {
@@ -754,6 +683,13 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     }
 
     maximumResults = (Long) componentContext.getProperties().get("maximumResults");
+    Dictionary<?, ?> props = componentContext.getProperties();
+    streamBufferSize = OsgiUtil.toInteger(props.get(ResultStream.BUFFER_SIZE_PROP),
+        ResultStream.DEFAULT_BUFFER_SIZE);
+    streamFlushResults = OsgiUtil.toInteger(props.get(ResultStream.FLUSH_RESULTS_PROP),
+        ResultStream.DEFAULT_FLUSH_RESULTS);
+    streamFlushInterval = OsgiUtil.toLong(props.get(ResultStream.FLUSH_INTERVAL_PROP),
+        ResultStream.DEFAULT_FLUSH_INTERVAL);
   }
 
   /**
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.search;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+public class ResultStreamTest {
+
+  @Mock
+  private SlingHttpServletResponse response;
+
+  @Mock
+  private Row row;
+
+  public ResultStreamTest() {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  @Test
+  public void testFlushEveryN() throws IOException {
+    CountingWriter out = new CountingWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+    ResultStream stream = ResultStream.open(response, 4096, 10, 0);
+    verify(response).setBufferSize(4096);
+    for (int i = 0; i < 35; i++) {
+      Assert.assertTrue(stream.written());
+    }
+    Assert.assertEquals(3, out.flushes);
+  }
+
+  @Test
+  public void testBufferSizeLeftAloneWhenCommitted() throws IOException {
+    when(response.isCommitted()).thenReturn(true);
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    ResultStream.open(response, 4096, 10, 0);
+    verify(response, never()).setBufferSize(4096);
+  }
+
+  @Test
+  public void testWrapStopsWhenClientGoes() throws IOException {
+    CountingWriter out = new CountingWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+    ResultStream stream = ResultStream.open(response, 0, 5, 0);
+    List<String> results = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      results.add("r" + i);
+    }
+    Iterator<String> it = stream.wrap(results.iterator());
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      if (++n == 7) {
+        out.broken = true;
+      }
+    }
+    // the 7th result is written when the 8th is fetched, which is not a flush, the 11th is.
+    Assert.assertEquals(11, n);
+    Assert.assertFalse(stream.isOpen());
+    verify(response, never()).setBufferSize(0);
+  }
+
+  @Test
+  public void testWrapRows() throws IOException {
+    CountingWriter out = new CountingWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+    ResultStream stream = ResultStream.open(response, 0, 4, 0);
+    List<Row> rows = new ArrayList<Row>();
+    for (int i = 0; i < 20; i++) {
+      rows.add(row);
+    }
+    RowIterator it = stream.wrapRows(new RowIteratorImpl(rows));
+    Assert.assertEquals(20, it.getSize());
+    int n = 0;
+    while (it.hasNext()) {
+      Assert.assertSame(row, it.nextRow());
+      n++;
+    }
+    Assert.assertEquals(20, n);
+    // 19 results are known to be written, the last one is followed by the total.
+    Assert.assertEquals(4, out.flushes);
+    verify(response, times(1)).getWriter();
+  }
+
+  private static class CountingWriter extends Writer {
+    int flushes;
+    boolean broken;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      if (broken) {
+        throw new IOException("Connection reset");
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (broken) {
+        throw new IOException("Connection reset");
+      }
+      flushes++;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+}
@@ -190,6 +190,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(request.getResource()).andReturn(resource);
 
     response = createMock(SlingHttpServletResponse.class);
+    expect(response.isCommitted()).andReturn(false);
     response.sendError(500, null);
     expectLastCall();
 
@@ -202,6 +203,34 @@ public class SearchServletTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testRepositoryExceptionAfterCommit() throws Exception {
+    Node queryNode = createMock(Node.class);
+
+    addStringPropertyToNode(queryNode, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    expect(queryNode.hasProperty(SAKAI_QUERY_LANGUAGE)).andThrow(
+        new RepositoryException());
+
+    Resource resource = createMock(Resource.class);
+    expect(resource.getPath()).andReturn("/var/dummy");
+    expect(resource.adaptTo(Node.class)).andReturn(queryNode);
+
+    request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource);
+
+    // results have already been flushed, so there is no status left to send.
+    response = createMock(SlingHttpServletResponse.class);
+    expect(response.isCommitted()).andReturn(true);
+
+    searchServlet = new SearchServlet();
+
+    replay();
+
+    searchServlet.doGet(request, response);
+
+    verify();
+  }
+
   private void executeSimpleQueryWithNoResults(String queryParameter,
       String itemCount, String expectedSqlQuery) throws RepositoryException,
       IOException, ServletException {
@@ -294,6 +323,9 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expectLastCall();
     response.setCharacterEncoding("UTF-8");
     expectLastCall();
+    expect(response.isCommitted()).andReturn(false).anyTimes();
+    response.setBufferSize(ResultStream.DEFAULT_BUFFER_SIZE);
+    expectLastCall();
     expect(response.getWriter()).andReturn(new PrintWriter(stringWriter));
     searchServlet = new SearchServlet();
     searchServlet.defaultSearchProcessor = proc;
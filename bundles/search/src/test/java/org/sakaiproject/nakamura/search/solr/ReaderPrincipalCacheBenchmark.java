@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.util.ClientUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compares the per query cost of the readers restriction for users in 10, 100 and 1000
+ * groups, rebuilding it into q on every query against the cached fq. The group walk in
+ * sparse and the Solr side, where the fq is answered from the filterCache, are not
+ * included, both only widen the gap. Run as a main class, it is not part of the unit
+ * tests.
+ */
+public class ReaderPrincipalCacheBenchmark {
+
+  private static final int[] GROUPS = { 10, 100, 1000 };
+  private static final int QUERIES = 20000;
+
+  public static void main(String[] args) {
+    System.out.println("groups\trebuilt ns/query\tcached ns/query\tq length\tfq length");
+    for (int round = 0; round < 2; round++) {
+      for (int n : GROUPS) {
+        List<String> groups = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+          groups.add("g-course-" + i + "-members");
+        }
+        ReaderPrincipalCache cache = new ReaderPrincipalCache(100, 60000);
+        int sink = 0;
+
+        long start = System.nanoTime();
+        SolrQuery q = null;
+        for (int i = 0; i < QUERIES; i++) {
+          q = rebuilt("user" + (i % 50), groups);
+          sink += q.getQuery().length();
+        }
+        long rebuilt = (System.nanoTime() - start) / QUERIES;
+
+        start = System.nanoTime();
+        SolrQuery f = null;
+        for (int i = 0; i < QUERIES; i++) {
+          f = cached(cache, "user" + (i % 50), groups);
+          sink += f.getFilterQueries().length;
+        }
+        long cached = (System.nanoTime() - start) / QUERIES;
+
+        if (round > 0) {
+          System.out.println(n + "\t" + rebuilt + "\t" + cached + "\t"
+              + q.getQuery().length() + "\t" + f.getFilterQueries()[0].length()
+              + (sink == 42 ? " " : ""));
+        }
+      }
+    }
+  }
+
+  /**
+   * What SolrSearchServiceFactoryImpl did before the readers cache.
+   */
+  private static SolrQuery rebuilt(String userId, List<String> groups) {
+    Set<String> readers = new HashSet<String>();
+    for (String group : groups) {
+      readers.add(ClientUtils.escapeQueryChars(group));
+    }
+    readers.add(userId);
+    return new SolrQuery("(title:physics) AND readers:(" + StringUtils.join(readers, " OR ")
+        + ")");
+  }
+
+  private static SolrQuery cached(ReaderPrincipalCache cache, String userId,
+      List<String> groups) {
+    String filter = cache.get(userId);
+    if (filter == null) {
+      filter = cache.put(userId, groups);
+    }
+    SolrQuery solrQuery = new SolrQuery("title:physics");
+    solrQuery.addFilterQuery(filter);
+    return solrQuery;
+  }
+}
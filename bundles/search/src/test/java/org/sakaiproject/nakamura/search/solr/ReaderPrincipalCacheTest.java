@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ *
+ */
+public class ReaderPrincipalCacheTest {
+
+  @Test
+  public void testFilterIsStableAndEscaped() {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(10, 60000);
+    String filter = cache.put("ieb", Arrays.asList("g-b", "g-a", "a:b"));
+    assertEquals("readers:(a\\:b OR g\\-a OR g\\-b OR ieb)", filter);
+    assertEquals(filter, cache.get("ieb"));
+    // the same membership in a different order is the same filter, so Solr reuses it.
+    assertEquals(filter, new ReaderPrincipalCache(10, 60000).put("ieb",
+        Arrays.asList("a:b", "g-b", "g-a")));
+  }
+
+  @Test
+  public void testInvalidateGroupDropsMembers() {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(10, 60000);
+    cache.put("alice", Arrays.asList("math", "physics"));
+    cache.put("bob", Arrays.asList("physics"));
+    cache.put("carol", Arrays.asList("history"));
+    cache.invalidate("physics");
+    assertNull(cache.get("alice"));
+    assertNull(cache.get("bob"));
+    assertEquals("readers:(carol OR history)", cache.get("carol"));
+    cache.invalidate("carol");
+    assertNull(cache.get("carol"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testPutAfterInvalidateIsNotCached() {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(10, 60000);
+    long generation = cache.getGeneration();
+    // membership was read, then changed and invalidated before the put landed.
+    cache.invalidate("physics");
+    String filter = cache.put("alice", Arrays.asList("math", "physics"), generation);
+    assertEquals("readers:(alice OR math OR physics)", filter);
+    assertNull(cache.get("alice"));
+    generation = cache.getGeneration();
+    cache.put("alice", Arrays.asList("math"), generation);
+    assertEquals("readers:(alice OR math)", cache.get("alice"));
+  }
+
+  @Test
+  public void testExpiryAndSize() throws Exception {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(2, 0);
+    cache.put("alice", Collections.<String> emptyList());
+    Thread.sleep(5);
+    assertNull(cache.get("alice"));
+    cache = new ReaderPrincipalCache(2, 60000);
+    cache.put("alice", Collections.<String> emptyList());
+    cache.put("bob", Collections.<String> emptyList());
+    cache.put("carol", Collections.<String> emptyList());
+    assertEquals(1, cache.size());
+    assertEquals("readers:(carol)", cache.get("carol"));
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.search.solr.Query.Type;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
+
+import java.util.Calendar;
+import java.util.Hashtable;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+
+/**
+ *
+ */
+public class SearchTemplateCacheTest {
+
+  private static final String PATH = "/var/search/pool/files";
+  private Node node;
+  private Property lastModified;
+
+  @Before
+  public void setUp() throws Exception {
+    node = mock(Node.class);
+    when(node.getPath()).thenReturn(PATH);
+    Property template = mock(Property.class);
+    when(template.getString()).thenReturn("content:(${q})");
+    when(node.hasProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE)).thenReturn(true);
+    when(node.getProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE)).thenReturn(template);
+    Property options = mock(Property.class);
+    when(options.getString()).thenReturn("{\"sort\":\"${sortOn} desc\"}");
+    when(node.hasProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS)).thenReturn(true);
+    when(node.getProperty(SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS)).thenReturn(
+        options);
+    Property resourceType = mock(Property.class);
+    when(resourceType.getString()).thenReturn("sakai/sparse-search");
+    when(node.hasProperty("sling:resourceType")).thenReturn(true);
+    when(node.getProperty("sling:resourceType")).thenReturn(resourceType);
+    PropertyIterator props = mock(PropertyIterator.class);
+    when(node.getProperties()).thenReturn(props);
+
+    lastModified = mock(Property.class);
+    when(lastModified.getDate()).thenReturn(Calendar.getInstance());
+    when(node.hasProperty(CompiledSearch.JCR_LAST_MODIFIED)).thenReturn(true);
+    when(node.getProperty(CompiledSearch.JCR_LAST_MODIFIED)).thenReturn(lastModified);
+  }
+
+  @Test
+  public void testCompiledOnce() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+    CompiledSearch search = cache.get(node);
+    assertEquals(Type.SPARSE, search.getType());
+    assertEquals("content:(${q})", search.getQueryTemplate().getSource());
+    assertEquals("${sortOn} desc", search.getOptions().get("sort").getSource());
+    assertSame(search, cache.get(node));
+  }
+
+  @Test
+  public void testRecompiledWhenModified() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+    CompiledSearch search = cache.get(node);
+    Calendar later = Calendar.getInstance();
+    later.setTimeInMillis(search.getLastModified() + 1000);
+    when(lastModified.getDate()).thenReturn(later);
+    assertNotSame(search, cache.get(node));
+  }
+
+  @Test
+  public void testInvalidatedByEvents() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+    cache.get(node);
+    cache.handleEvent(event("/var/search/pool/other"));
+    assertEquals(1, cache.size());
+    cache.handleEvent(event(PATH + "/" + SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS));
+    assertEquals(0, cache.size());
+    cache.get(node);
+    cache.handleEvent(event("/var/search"));
+    assertEquals(0, cache.size());
+  }
+
+  private Event event(String path) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SearchTemplateTest {
+
+  @Test
+  public void testSimpleTemplate() {
+    TemplateService templateService = mock(TemplateService.class);
+    SearchTemplate template = SearchTemplate
+        .compile("path:${_event-path}/signup AND title:(${q}) AND $q AND cost:$5 ${_tags}");
+    assertTrue(template.isCompiled());
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("_event-path", "/e/1");
+    params.put("q", "physics");
+    assertEquals(Arrays.asList("_tags"), template.missingTerms(params));
+    params.put("_tags", "");
+    assertTrue(template.missingTerms(params).isEmpty());
+    assertEquals("path:/e/1/signup AND title:(physics) AND physics AND cost:$5 ",
+        template.evaluate(params, templateService));
+    verifyZeroInteractions(templateService);
+  }
+
+  @Test
+  public void testUnresolvedReferencesAreLeft() {
+    SearchTemplate template = SearchTemplate.compile("$q and ${x}");
+    assertEquals("$q and ${x}", template.evaluate(new HashMap<String, String>(), null));
+  }
+
+  @Test
+  public void testVelocityTemplatesAreDelegated() {
+    String[] templates = { "#if($q)title:$q#end", "title:$q.toLowerCase()", "title:$!{q}",
+        "title:\\${q}", "title:${q.x}" };
+    for (String source : templates) {
+      TemplateService templateService = mock(TemplateService.class);
+      Map<String, String> params = new HashMap<String, String>();
+      params.put("q", "a");
+      when(templateService.evaluateTemplate(params, source)).thenReturn("velocity");
+      SearchTemplate template = SearchTemplate.compile(source);
+      assertFalse(source, template.isCompiled());
+      assertEquals("velocity", template.evaluate(params, templateService));
+    }
+  }
+}
@@ -18,7 +18,6 @@
 package org.apache.jackrabbit.core.security.authorization.acl;
 
 import org.apache.commons.collections.iterators.IteratorChain;
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
@@ -28,8 +27,10 @@ import org.apache.jackrabbit.core.DynamicSecurityManager;
 import org.apache.jackrabbit.core.NodeImpl;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
 import org.apache.jackrabbit.core.security.authorization.AccessControlConstants;
 import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
+import org.apache.jackrabbit.core.security.principal.ConcurrentClockMap;
 import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
 import org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic.RuleProcessorManager;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager;
@@ -47,6 +48,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
@@ -56,21 +58,44 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
 import javax.jcr.security.AccessControlEntry;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
 
 /**
  * Extension of the standard ACLProvider to use a dynamic entry collector.
+ * <p/>
+ * ACLs are compiled once per access controlled node and shared by every session, keyed
+ * by the path of the node. Only the parts that depend on the user, dynamic principals
+ * and rule processors, are evaluated for each request. Compiled ACLs are evicted by
+ * observation events on ACL and ACE nodes. ACEs with active or inactive periods are
+ * filtered into a snapshot that is reused until the next period starts or ends.
  */
 public class DynamicACLProvider extends ACLProvider {
 
   private static final Logger LOG = LoggerFactory.getLogger(DynamicACLProvider.class);
+  /**
+   * The number of compiled ACLs to keep, 0 disables the cache.
+   */
+  public static final String PARAM_ACL_CACHE_SIZE = "aclCacheSize";
+  private static final int DEFAULT_ACL_CACHE_SIZE = 10000;
+  private static final long ONE_DAY = 24L * 3600L * 1000L;
+
   private String userId;
   private DynamicPrincipalManager dynamicPrincipalManager;
-  private LRUMap staticPrincipals = new LRUMap(1000);
+  private Map<String, Boolean> staticPrincipals = new ConcurrentClockMap<String, Boolean>(1000);
   private NodeId rootNodeId;
   private RuleProcessorManager ruleProccesorManager;
+  private ConcurrentClockMap<String, CompiledAcl> compiledAcls;
+  /**
+   * Incremented for every ACL change, so that an ACL compiled while it was being changed
+   * is not cached.
+   */
+  private final AtomicLong aclModifications = new AtomicLong();
+  private AclListener aclListener;
+  private String policyName;
 
 
   // This creates a second systemEditor that we can see, hopefully it wont cause problems having 2 of these.
@@ -100,6 +125,49 @@ public class DynamicACLProvider extends ACLProvider {
     rootNodeId = node.getNodeId();
     systemEditor = new ACLEditor(systemSession, this);
 
+    int cacheSize = DEFAULT_ACL_CACHE_SIZE;
+    if (configuration.containsKey(PARAM_ACL_CACHE_SIZE)) {
+      cacheSize = Integer.parseInt(String.valueOf(configuration.get(PARAM_ACL_CACHE_SIZE)));
+    }
+    if (cacheSize > 0) {
+      compiledAcls = new ConcurrentClockMap<String, CompiledAcl>(cacheSize);
+      policyName = resolver.getJCRName(N_POLICY);
+      aclListener = new AclListener();
+      int events = Event.PROPERTY_CHANGED | Event.PROPERTY_ADDED | Event.PROPERTY_REMOVED
+          | Event.NODE_ADDED | Event.NODE_REMOVED;
+      String[] ntNames = new String[] { resolver.getJCRName(NT_REP_ACE),
+          resolver.getJCRName(NT_REP_ACL) };
+      // changes made through the system session must evict too, so not noLocal.
+      observationMgr.addEventListener(aclListener, events, "/", true, null, ntNames, false);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.apache.jackrabbit.core.security.authorization.AbstractAccessControlProvider#close()
+   */
+  @Override
+  public void close() {
+    if (aclListener != null) {
+      try {
+        observationMgr.removeEventListener(aclListener);
+      } catch (RepositoryException e) {
+        LOG.debug("Unable to unregister listener: {} ", e.getMessage());
+      }
+      aclListener = null;
+    }
+    if (compiledAcls != null) {
+      LOG.debug("Closing, compiled ACL cache {} ", compiledAcls.getStatistics());
+      compiledAcls.clear();
+    }
+    super.close();
+  }
+
+  /**
+   * @return hit, miss and eviction counts of the compiled ACL cache.
+   */
+  public String getCacheStatistics() {
+    return compiledAcls == null ? "disabled" : compiledAcls.getStatistics();
   }
 
   /**
@@ -124,6 +192,308 @@ public class DynamicACLProvider extends ACLProvider {
     return new Entries(node, principalNames).iterator();
   }
 
+  /**
+   * Gets the compiled ACL of an access controlled node, from the cache if it is there.
+   *
+   * @param node
+   *          the access controlled node.
+   * @return the compiled ACL.
+   * @throws RepositoryException
+   */
+  private CompiledAcl getCompiledAcl(NodeImpl node) throws RepositoryException {
+    if (compiledAcls == null) {
+      return new CompiledAcl(node);
+    }
+    String path = node.getPath();
+    CompiledAcl acl = compiledAcls.get(path);
+    // a different node may have been moved to this path since the ACL was compiled.
+    if (acl != null && acl.nodeId.equals(node.getNodeId())) {
+      return acl;
+    }
+    long modifications = aclModifications.get();
+    acl = new CompiledAcl(node);
+    if (!acl.resolved) {
+      // a principal that doesn't resolve yet would be skipped, even if it is denied.
+      compiledAcls.remove(path);
+      return acl;
+    }
+    compiledAcls.put(path, acl);
+    if (modifications != aclModifications.get()) {
+      // an ACL changed while this one was being compiled, it may have been this one.
+      compiledAcls.remove(path);
+    }
+    return acl;
+  }
+
+  /**
+   * The ACEs of an ACL node, resolved to entries with everything that does not depend on
+   * the user.
+   */
+  private class CompiledAcl {
+
+    private final NodeId nodeId;
+    private final CompiledAce[] aces;
+    private final boolean timed;
+    /**
+     * false if the principal of any ACE was not found, in which case the ACL is not
+     * cached, so the principal is looked up again on the next check.
+     */
+    private final boolean resolved;
+    private volatile ActiveAces active;
+
+    private CompiledAcl(NodeImpl node) throws RepositoryException {
+      nodeId = node.getNodeId();
+      NodeImpl aclNode = node.getNode(N_POLICY);
+      SessionImpl sImpl = (SessionImpl) aclNode.getSession();
+      PrincipalManager principalMgr = sImpl.getPrincipalManager();
+      AccessControlManager acMgr = sImpl.getAccessControlManager();
+      ACLTemplate template = (ACLTemplate) systemEditor.getACL(aclNode);
+
+      List<CompiledAce> compiled = new ArrayList<CompiledAce>();
+      boolean hasPeriods = false;
+      boolean allResolved = true;
+      NodeIterator itr = aclNode.getNodes();
+      while (itr.hasNext()) {
+        NodeImpl aceNode = (NodeImpl) itr.nextNode();
+        CompiledAce ace = new CompiledAce(aceNode, template, principalMgr, acMgr);
+        hasPeriods = hasPeriods || ace.periods != null;
+        allResolved = allResolved && ace.principal != null;
+        compiled.add(ace);
+      }
+      aces = compiled.toArray(new CompiledAce[compiled.size()]);
+      timed = hasPeriods;
+      resolved = allResolved;
+    }
+
+    /**
+     * @param now
+     * @return the ACEs that are active at now by their periods.
+     */
+    private CompiledAce[] getActiveAces(long now) {
+      if (!timed) {
+        return aces;
+      }
+      ActiveAces current = active;
+      if (current == null || now < current.from || now >= current.until) {
+        current = new ActiveAces(aces, now);
+        active = current;
+      }
+      return current.aces;
+    }
+  }
+
+  /**
+   * The ACEs of an ACL whose periods make them active between from and until.
+   */
+  private static class ActiveAces {
+
+    private final long from;
+    private final long until;
+    private final CompiledAce[] aces;
+
+    private ActiveAces(CompiledAce[] all, long now) {
+      List<CompiledAce> matched = new ArrayList<CompiledAce>();
+      long next = Long.MAX_VALUE;
+      for (CompiledAce ace : all) {
+        if (ace.periods == null || ace.periods.isActive(now)) {
+          matched.add(ace);
+        }
+        if (ace.periods != null) {
+          next = Math.min(next, ace.periods.nextChange(now));
+        }
+      }
+      from = now;
+      until = next;
+      aces = matched.toArray(new CompiledAce[matched.size()]);
+    }
+  }
+
+  /**
+   * An ACE with its principal, privileges and periods resolved.
+   */
+  private static class CompiledAce {
+
+    private final String principalName;
+    private final boolean rules;
+    private final Principal principal;
+    private final AccessControlEntry entry;
+    private final boolean allow;
+    private final NodeId aceNodeId;
+    private final String ruleProcessor;
+    private final Periods periods;
+    private final String[] privilegeNames;
+
+    private CompiledAce(NodeImpl aceNode, ACLTemplate template,
+        PrincipalManager principalMgr, AccessControlManager acMgr)
+        throws RepositoryException {
+      aceNodeId = aceNode.getNodeId();
+      String name = aceNode.getProperty(AccessControlConstants.P_PRINCIPAL_NAME).getString();
+      RulesPrincipal rp = null;
+      try {
+        rp = new RulesPrincipal(name);
+        name = rp.getPrincipalName();
+      } catch ( IllegalArgumentException e ) {
+        LOG.debug("Principal {} is not a rules principal ",name, e);
+      }
+      principalName = name;
+      rules = rp != null;
+      if (rules) {
+        periods = Periods.read(aceNode);
+        ruleProcessor = aceNode.hasProperty(RulesBasedAce.P_RULEPROCESSOR) ? aceNode
+            .getProperty(RulesBasedAce.P_RULEPROCESSOR).getString() : null;
+      } else {
+        periods = null;
+        ruleProcessor = null;
+      }
+
+      allow = aceNode.isNodeType(AccessControlConstants.NT_REP_GRANT_ACE);
+      Value[] privValues = getValues(aceNode.getProperty(AccessControlConstants.P_PRIVILEGES));
+      privilegeNames = new String[privValues.length];
+      Privilege[] privs = new Privilege[privValues.length];
+      for (int i = 0; i < privValues.length; i++) {
+        privilegeNames[i] = privValues[i].getString();
+        privs[i] = acMgr.privilegeFromName(privilegeNames[i]);
+      }
+      principal = principalMgr.getPrincipal(principalName);
+      if (principal == null) {
+        LOG.debug("Principal {} of {} not found ", principalName, aceNode.getPath());
+        entry = null;
+      } else {
+        // create a new ACEImpl (omitting validation check)
+        entry = template.createEntry(principal, privs, allow);
+      }
+    }
+  }
+
+  /**
+   * The active and inactive periods of a rules based ACE, as [start, end) pairs of the
+   * times when it is within each period.
+   */
+  private static class Periods {
+
+    private final long[] activeRanges;
+    private final long[] inactiveRanges;
+
+    private Periods(long[] activeRanges, long[] inactiveRanges) {
+      this.activeRanges = activeRanges;
+      this.inactiveRanges = inactiveRanges;
+    }
+
+    /**
+     * @param aceNode
+     * @return the periods of the ACE, or null if they can't be read, in which case the
+     *         ACE is always active.
+     */
+    private static Periods read(NodeImpl aceNode) {
+      try {
+        long[] active = parseRanges(getValues(RulesBasedAce.P_ACTIVE_RANGE, aceNode));
+        if (active.length != 0) {
+          // inactive periods are ignored when there are active ones.
+          return new Periods(active, new long[0]);
+        }
+        long[] inactive = parseRanges(getValues(RulesBasedAce.P_INACTIVE_RANGE, aceNode));
+        if (inactive.length == 0) {
+          return null;
+        }
+        return new Periods(active, inactive);
+      } catch ( Exception e ) {
+        LOG.debug("Was not a rules based acl {} ", e.getMessage());
+        return null; // an error in processing has to default to active
+      }
+    }
+
+    private static long[] parseRanges(Value[] values) throws RepositoryException {
+      long[] ranges = new long[values.length * 2];
+      for (int i = 0; i < values.length; i++) {
+        String[] range = StringUtils.split(values[i].getString(), '/');
+        ISO8601Date from = new ISO8601Date(range[0]);
+        ISO8601Date to = new ISO8601Date(range[1]);
+        long start = from.getTimeInMillis();
+        // a date without a time only starts once that day is over, see ISO8601Date.before.
+        if (!from.before(start + 1)) {
+          start += ONE_DAY;
+        }
+        ranges[i * 2] = start + 1;
+        ranges[i * 2 + 1] = to.getTimeInMillis();
+      }
+      return ranges;
+    }
+
+    private boolean isActive(long now) {
+      if (activeRanges.length != 0) {
+        // it had active times, one of them must match
+        return within(activeRanges, now);
+      }
+      return !within(inactiveRanges, now);
+    }
+
+    private static boolean within(long[] ranges, long now) {
+      for (int i = 0; i < ranges.length; i += 2) {
+        if (ranges[i] <= now && now < ranges[i + 1]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @param now
+     * @return the first time after now that a period starts or ends.
+     */
+    private long nextChange(long now) {
+      long next = Long.MAX_VALUE;
+      long[] ranges = activeRanges.length != 0 ? activeRanges : inactiveRanges;
+      for (long time : ranges) {
+        if (time > now && time < next) {
+          next = time;
+        }
+      }
+      return next;
+    }
+  }
+
+  /**
+   * Evicts the compiled ACL of the node that owns a changed ACL or ACE.
+   */
+  private class AclListener implements SynchronousEventListener {
+
+    public void onEvent(EventIterator events) {
+      while (events.hasNext()) {
+        Event event = events.nextEvent();
+        aclModifications.incrementAndGet();
+        try {
+          String path = getAccessControlledPath(event.getPath());
+          if (path == null) {
+            compiledAcls.clear();
+          } else {
+            compiledAcls.remove(path);
+          }
+        } catch (RepositoryException e) {
+          LOG.warn("Clearing compiled ACLs, unable to read event: {} ", e.getMessage());
+          compiledAcls.clear();
+        }
+      }
+    }
+
+    /**
+     * @param path
+     *          the path of an ACL node, an ACE node or one of their properties.
+     * @return the path of the access controlled node, null if it isn't in the path.
+     */
+    private String getAccessControlledPath(String path) {
+      String segment = "/" + policyName;
+      int i = path.indexOf(segment);
+      while (i >= 0) {
+        int end = i + segment.length();
+        if (end == path.length() || path.charAt(end) == '/') {
+          return i == 0 ? "/" : path.substring(0, i);
+        }
+        i = path.indexOf(segment, end);
+      }
+      return null;
+    }
+  }
+
   /**
    * Inner class used to collect ACEs for a given set of principals throughout the node
    * hierarchy.
@@ -133,13 +503,13 @@ public class DynamicACLProvider extends ACLProvider {
     private final Collection<String> principalNames;
     private final List<AccessControlEntry> userAces = new ArrayList<AccessControlEntry>();
     private final List<AccessControlEntry> groupAces = new ArrayList<AccessControlEntry>();
+    private final long now = System.currentTimeMillis();
     private StringBuilder construct;
-    private boolean forceDebug = true;
 
     private Entries(NodeImpl node, Collection<String> principalNames)
         throws RepositoryException {
       this.principalNames = principalNames;
-      if ( LOG.isDebugEnabled() || forceDebug ) {
+      if ( LOG.isDebugEnabled() ) {
         construct = new StringBuilder();
         construct.append("\nPath:").append(node.getPath());
       }
@@ -150,10 +520,7 @@ public class DynamicACLProvider extends ACLProvider {
       // if the given node is access-controlled, construct a new ACL and add
       // it to the list
       if (isAccessControlled(node)) {
-        // build acl for the access controlled node
-        NodeImpl aclNode = node.getNode(N_POLICY);
-        // collectEntries(aclNode, principalNamesToEntries);
-        collectEntriesFromAcl(aclNode, contextNode);
+        collectEntriesFromAcl(node, getCompiledAcl(node), contextNode);
       }
       // recursively look for access controlled parents up the hierarchy.
       if (!rootNodeId.equals(node.getId())) {
@@ -165,84 +532,69 @@ public class DynamicACLProvider extends ACLProvider {
     /**
      * Separately collect the entries defined for the user and group principals.
      *
-     * @param aclNode
-     *          acl node
+     * @param node
+     *          the access controlled node
+     * @param acl
+     *          the compiled acl of the node
      * @throws RepositoryException
      *           if an error occurs
      */
-    private void collectEntriesFromAcl(NodeImpl aclNode, NodeImpl contextNode) throws RepositoryException {
-      if ( LOG.isDebugEnabled() || forceDebug ) {
+    private void collectEntriesFromAcl(NodeImpl node, CompiledAcl acl, NodeImpl contextNode) throws RepositoryException {
+      NodeImpl aclNode = null;
+      if ( construct != null ) {
+        aclNode = node.getNode(N_POLICY);
         construct.append(":ACLNode:").append(aclNode.getPath());
         construct.append("\n");
       }
-      SessionImpl sImpl = (SessionImpl) aclNode.getSession();
-      PrincipalManager principalMgr = sImpl.getPrincipalManager();
-      AccessControlManager acMgr = sImpl.getAccessControlManager();
 
       // first collect aces present on the given aclNode.
       List<AccessControlEntry> gaces = new ArrayList<AccessControlEntry>();
       List<AccessControlEntry> uaces = new ArrayList<AccessControlEntry>();
 
-      ACLTemplate template = (ACLTemplate) systemEditor.getACL(aclNode);
-      NodeIterator itr = aclNode.getNodes();
-      while (itr.hasNext()) {
-        NodeImpl aceNode = (NodeImpl) itr.nextNode();
-        String principalName = aceNode.getProperty(
-            AccessControlConstants.P_PRINCIPAL_NAME).getString();
-        RulesPrincipal rp = null;
-        try {
-          rp = new RulesPrincipal(principalName);
-          principalName = rp.getPrincipalName();
-        } catch ( IllegalArgumentException e ) {
-          LOG.debug("Principal {} is not a rules principal ",principalName, e);
+      for (CompiledAce compiledAce : acl.getActiveAces(now)) {
+        String principalName = compiledAce.principalName;
+        // only process the ace if 'principalName' is contained in the given set
+        // or the dynamicPrincialManager says the user has the principal.
+        boolean matched = principalNames.contains(principalName);
+        if (!matched) {
+          if (aclNode == null) {
+            aclNode = node.getNode(N_POLICY);
+          }
+          matched = hasPrincipal(principalName, aclNode, contextNode, userId);
         }
-        if ( rp == null || isAceActiveCheap(aceNode) ) {
-          // only process aceNode if 'principalName' is contained in the given set
-          // or the dynamicPrincialManager says the user has the principal.
-
-          if (principalNames.contains(principalName)
-              || hasPrincipal(principalName, aclNode, contextNode,
-                  userId)) {
-            if ( rp == null || isAceActiveExpensive(aceNode,contextNode,userId) ) {
-              Principal princ = principalMgr.getPrincipal(principalName);
-
-              Value[] privValues = getValues(aceNode.getProperty(AccessControlConstants.P_PRIVILEGES));
-              Privilege[] privs = new Privilege[privValues.length];
-              if ( LOG.isDebugEnabled() || forceDebug ) {
-                construct.append("[Matched,");
-                construct.append((princ instanceof Group)?"group,":"user,");
-                construct.append(aceNode
-                    .isNodeType(AccessControlConstants.NT_REP_GRANT_ACE)?"grant,":"deny,").append(principalName);
-                for (int i = 0; i < privValues.length; i++) {
-                  construct.append(",").append(privValues[i].getString());
-                }
-                construct.append("]\n");
-              }
-              for (int i = 0; i < privValues.length; i++) {
-                privs[i] = acMgr.privilegeFromName(privValues[i].getString());
-              }
-              // create a new ACEImpl (omitting validation check)
-              AccessControlEntry ace = template.createEntry(princ, privs, aceNode
-                  .isNodeType(AccessControlConstants.NT_REP_GRANT_ACE));
-              // add it to the proper list (e.g. separated by principals)
-              /**
-               * NOTE: access control entries must be collected in reverse order in order to
-               * assert proper evaluation.
-               */
-              if (EveryonePrincipal.getInstance().getName().equals(princ.getName()) ) {
-                gaces.add(ace);
-              } else if (princ instanceof Group) {
-                gaces.add(0, ace);
-              } else {
-                uaces.add(0, ace);
+        if (matched) {
+          if (isAceActive(compiledAce, contextNode)) {
+            Principal princ = compiledAce.principal;
+            if (princ == null) {
+              continue;
+            }
+            if ( construct != null ) {
+              construct.append("[Matched,");
+              construct.append((princ instanceof Group)?"group,":"user,");
+              construct.append(compiledAce.allow?"grant,":"deny,").append(principalName);
+              for (String privilegeName : compiledAce.privilegeNames) {
+                construct.append(",").append(privilegeName);
               }
-            } else if ( LOG.isDebugEnabled()  || forceDebug) {
-
-              construct.append("[Not Active,").append(principalName).append("]\n");
+              construct.append("]\n");
+            }
+            AccessControlEntry ace = compiledAce.entry;
+            // add it to the proper list (e.g. separated by principals)
+            /**
+             * NOTE: access control entries must be collected in reverse order in order to
+             * assert proper evaluation.
+             */
+            if (EveryonePrincipal.getInstance().getName().equals(princ.getName()) ) {
+              gaces.add(ace);
+            } else if (princ instanceof Group) {
+              gaces.add(0, ace);
+            } else {
+              uaces.add(0, ace);
             }
-          } else if ( LOG.isDebugEnabled()  || forceDebug){
-            construct.append("[Ignored,").append(principalName).append("]\n");
+          } else if ( construct != null ) {
+            construct.append("[Not Active,").append(principalName).append("]\n");
           }
+        } else if ( construct != null ){
+          construct.append("[Ignored,").append(principalName).append("]\n");
         }
       }
 
@@ -256,10 +608,22 @@ public class DynamicACLProvider extends ACLProvider {
       }
     }
 
+    /**
+     * Rules based ACEs with a rule processor are only active if it says so, it has to
+     * look at the ACE node.
+     */
+    private boolean isAceActive(CompiledAce compiledAce, NodeImpl contextNode)
+        throws RepositoryException {
+      if (compiledAce.ruleProcessor == null) {
+        return true;
+      }
+      NodeImpl aceNode = session.getNodeById(compiledAce.aceNodeId);
+      return isAceActiveExpensive(aceNode, contextNode, userId);
+    }
 
     @SuppressWarnings("unchecked")
     private Iterator<AccessControlEntry> iterator() {
-      if ( forceDebug) {
+      if ( construct != null ) {
         LOG.debug("User {} ACE {} ",userId,construct);
       }
       return new IteratorChain(userAces.iterator(), groupAces.iterator());
@@ -305,41 +669,15 @@ public class DynamicACLProvider extends ACLProvider {
     // should only be here if the principal is a RulesPrincipal
     try {
       RulesPrincipal.checkValid(aceNode.getProperty(AccessControlConstants.P_PRINCIPAL_NAME).getString());
-      long now = System.currentTimeMillis();
-
-      Value[] activeRanges = getValues(RulesBasedAce.P_ACTIVE_RANGE, aceNode);
-      if ( activeRanges.length != 0 ) {
-        for ( Value r : activeRanges) {
-          String[] range = StringUtils.split(r.getString(),'/');
-          ISO8601Date from = new ISO8601Date(range[0]);
-          ISO8601Date to = new ISO8601Date(range[1]);
-          if ( from.before(now) && to.after(now) ) {
-            return true;
-
-          }
-        }
-        return false; // it had active times but none matched
-      }
-
-      Value[] inactiveRanges = getValues(RulesBasedAce.P_INACTIVE_RANGE,aceNode);
-      if ( inactiveRanges.length != 0 ) {
-        for ( Value r : inactiveRanges) {
-          String[] range = StringUtils.split(r.getString(),'/');
-          ISO8601Date from = new ISO8601Date(range[0]);
-          ISO8601Date to = new ISO8601Date(range[1]);
-          if ( from.before(now) && to.after(now) ) {
-            return false;
-          }
-        }
-      }
-      return true;
     } catch ( IllegalArgumentException e ) {
       LOG.debug("Was not a rules based acl {} ", e.getMessage());
       return true; // its not a rules based ACL so it must be active.
-    } catch ( Exception e ) {
+    } catch ( RepositoryException e ) {
       LOG.debug("Was not a rules based acl {} ", e.getMessage());
       return true; // an error in processing has to default to active
     }
+    Periods periods = Periods.read(aceNode);
+    return periods == null || periods.isActive(System.currentTimeMillis());
   }
 
   /**
@@ -348,7 +686,7 @@ public class DynamicACLProvider extends ACLProvider {
    * @return
    * @throws RepositoryException
    */
-  private Value[] getValues(String propertyName, NodeImpl node) throws RepositoryException {
+  private static Value[] getValues(String propertyName, NodeImpl node) throws RepositoryException {
     List<Value> values = new ArrayList<Value>();
     if ( node.hasProperty(propertyName)) {
       values.add(node.getProperty(propertyName).getValue());
@@ -363,7 +701,7 @@ public class DynamicACLProvider extends ACLProvider {
     return values.toArray(new Value[values.size()]);
   }
 
-  private Value[] getValues(Property property) throws RepositoryException {
+  private static Value[] getValues(Property property) throws RepositoryException {
     if ( property.isMultiple()) {
       return property.getValues();
     } else {
@@ -387,11 +725,9 @@ public class DynamicACLProvider extends ACLProvider {
         LOG.warn(e1.getMessage(),e1);
       }
     }
-    synchronized (staticPrincipals) {
-      if (staticPrincipals.containsKey(principalName)) {
-        LOG.debug("Principal {} is cached static - not resolving dynamically",principalName );
-        return false;
-      }      
+    if (staticPrincipals.get(principalName) != null) {
+      LOG.debug("Principal {} is cached static - not resolving dynamically",principalName );
+      return false;
     }
     Session session = aclNode.getSession();
     if (session instanceof JackrabbitSession) {
@@ -411,9 +747,7 @@ public class DynamicACLProvider extends ACLProvider {
         }
         if (!dynamic) {
           LOG.debug("Found static principal {}. Caching ",principalName);
-          synchronized (staticPrincipals) {
-            staticPrincipals.put(principalName, true);            
-          }
+          staticPrincipals.put(principalName, true);
           return false;
         }
       } catch (AccessDeniedException e) {
@@ -41,7 +41,7 @@ public abstract class AbstractPrincipalProvider implements PrincipalProvider {
 
 
     /** the principal cache */
-    private ConcurrentLRUMap<String, Principal> cache = new ConcurrentLRUMap<String, Principal>();
+    private ConcurrentClockMap<String, Principal> cache = new ConcurrentClockMap<String, Principal>();
 
     /**
      * Create a new instance of <code>AbstractPrincipalProvider</code>.
@@ -100,10 +100,12 @@ public abstract class AbstractPrincipalProvider implements PrincipalProvider {
      */
     public Principal getPrincipal(String principalName) {
         checkInitialized();
-        if (cache.containsKey(principalName)) {
-            return (Principal) cache.get(principalName);
+        // only principals that were found are cached, so null is a miss.
+        Principal principal = cache.get(principalName);
+        if (principal != null) {
+            return principal;
         }
-        Principal principal = providePrincipal(principalName);
+        principal = providePrincipal(principalName);
         if (principal != null) {
           cache.put(principalName, principal);
         }
@@ -119,11 +121,18 @@ public abstract class AbstractPrincipalProvider implements PrincipalProvider {
         }
 
         int maxSize = Integer.parseInt(options.getProperty(MAXSIZE_KEY, "1000"));
-        cache = new ConcurrentLRUMap<String, Principal>(maxSize);
+        cache = new ConcurrentClockMap<String, Principal>(maxSize);
         
         initialized = true;
     }
 
+    /**
+     * @return the size, hits, misses and evictions of the principal cache.
+     */
+    public String getCacheStatistics() {
+        return cache.getStatistics();
+    }
+
     /**
      * Clears the cache and calls the implementation to close their resources
      * @see PrincipalProvider#close()
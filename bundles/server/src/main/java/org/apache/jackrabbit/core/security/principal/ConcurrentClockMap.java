@@ -0,0 +1,375 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded concurrent map that evicts with a segmented CLOCK, an approximation of LRU.
+ * Reads take no lock, they only mark the entry as referenced. Each segment keeps its
+ * entries in a ring, and when a full segment needs room its hand sweeps the ring,
+ * clearing the marks, until it finds an entry that hasn't been read since the last
+ * sweep. Every mark cleared is one set by a read, so eviction is amortized O(1) where
+ * {@link ConcurrentLRUMap} sorted the whole map.
+ * <p/>
+ * Counts of hits, misses and evictions are kept for tuning the size.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentClockMap<K, V> implements Map<K, V> {
+
+  private static final int MAX_SEGMENTS = 16;
+
+  /**
+   * An entry, and where it is in its segment's ring.
+   */
+  private static final class Node<K, V> {
+    private final K key;
+    private volatile V value;
+    private volatile boolean referenced;
+    private int slot;
+
+    private Node(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * A share of the entries, with its own ring and lock. Counters are kept per segment
+   * so reads on different keys don't contend on them.
+   */
+  private static final class Segment<K, V> {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Node<K, V>[] ring;
+    private int size;
+    private int hand;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    private Segment(int capacity) {
+      ring = new Node[capacity];
+    }
+  }
+
+  /**
+   * A snapshot of an entry.
+   */
+  private static final class ImmutableEntry<K, V> implements Entry<K, V> {
+    private final K key;
+    private final V value;
+
+    private ImmutableEntry(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    public K getKey() {
+      return key;
+    }
+
+    public V getValue() {
+      return value;
+    }
+
+    public V setValue(V value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> e = (Entry<?, ?>) obj;
+      return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+          && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+      return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+    }
+  }
+
+  private final ConcurrentHashMap<K, Node<K, V>> map;
+  private final Segment<K, V>[] segments;
+  private final int maxSize;
+
+  /**
+   * Create a map holding up to 100 entries.
+   */
+  public ConcurrentClockMap() {
+    this(100);
+  }
+
+  /**
+   * @param maxSize
+   *          the most entries to hold.
+   */
+  @SuppressWarnings("unchecked")
+  public ConcurrentClockMap(int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+    }
+    this.maxSize = maxSize;
+    // enough entries in each segment that evicting within one is close to evicting
+    // across the whole map.
+    int n = 1;
+    while (n < MAX_SEGMENTS && maxSize / (n * 2) >= 64) {
+      n *= 2;
+    }
+    segments = new Segment[n];
+    for (int i = 0; i < n; i++) {
+      segments[i] = new Segment<K, V>((maxSize + n - 1 - i) / n);
+    }
+    map = new ConcurrentHashMap<K, Node<K, V>>(Math.min(maxSize, 1024) * 4 / 3 + 1,
+        0.75f, n);
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & (segments.length - 1)];
+  }
+
+  public V get(Object key) {
+    Node<K, V> node = map.get(key);
+    Segment<K, V> segment = segmentFor(key);
+    if (node == null) {
+      segment.misses.incrementAndGet();
+      return null;
+    }
+    segment.hits.incrementAndGet();
+    if (!node.referenced) {
+      node.referenced = true;
+    }
+    return node.value;
+  }
+
+  public V put(K key, V value) {
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      Node<K, V> node = map.get(key);
+      if (node != null) {
+        V old = node.value;
+        node.value = value;
+        node.referenced = true;
+        return old;
+      }
+      node = new Node<K, V>(key, value);
+      if (segment.size < segment.ring.length) {
+        node.slot = segment.size;
+        segment.ring[segment.size++] = node;
+      } else {
+        // sweep for an entry that hasn't been read since the hand last passed it. Reads
+        // can mark entries again behind the hand, so give up after two turns.
+        Node<K, V>[] ring = segment.ring;
+        Node<K, V> victim = ring[segment.hand];
+        for (int i = 0; victim.referenced && i < ring.length * 2; i++) {
+          victim.referenced = false;
+          segment.hand = (segment.hand + 1) % ring.length;
+          victim = ring[segment.hand];
+        }
+        map.remove(victim.key);
+        segment.evictions.incrementAndGet();
+        node.slot = segment.hand;
+        ring[segment.hand] = node;
+        segment.hand = (segment.hand + 1) % ring.length;
+      }
+      map.put(key, node);
+      return null;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  public V remove(Object key) {
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      Node<K, V> node = map.remove(key);
+      if (node == null) {
+        return null;
+      }
+      // fill the gap with the last entry in the ring.
+      Node<K, V>[] ring = segment.ring;
+      int last = --segment.size;
+      if (node.slot != last) {
+        ring[node.slot] = ring[last];
+        ring[node.slot].slot = node.slot;
+      }
+      ring[last] = null;
+      if (segment.hand >= segment.size) {
+        segment.hand = 0;
+      }
+      return node.value;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  public void clear() {
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        for (int i = 0; i < segment.size; i++) {
+          map.remove(segment.ring[i].key);
+          segment.ring[i] = null;
+        }
+        segment.size = 0;
+        segment.hand = 0;
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  public boolean containsKey(Object key) {
+    return map.containsKey(key);
+  }
+
+  public boolean containsValue(Object value) {
+    for (Node<K, V> node : map.values()) {
+      V v = node.value;
+      if (value == null ? v == null : value.equals(v)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void putAll(Map<? extends K, ? extends V> t) {
+    for (Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * @return the keys held, which can't be modified.
+   */
+  public Set<K> keySet() {
+    return Collections.unmodifiableSet(map.keySet());
+  }
+
+  /**
+   * @return a copy of the values held.
+   */
+  public Collection<V> values() {
+    List<V> values = new ArrayList<V>(map.size());
+    for (Node<K, V> node : map.values()) {
+      values.add(node.value);
+    }
+    return values;
+  }
+
+  /**
+   * @return a copy of the entries held.
+   */
+  public Set<Entry<K, V>> entrySet() {
+    Set<Entry<K, V>> set = new HashSet<Entry<K, V>>();
+    for (Node<K, V> node : map.values()) {
+      set.add(new ImmutableEntry<K, V>(node.key, node.value));
+    }
+    return set;
+  }
+
+  /**
+   * @return the most entries held.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return the number of gets that found an entry.
+   */
+  public long getHitCount() {
+    long hits = 0;
+    for (Segment<K, V> segment : segments) {
+      hits += segment.hits.get();
+    }
+    return hits;
+  }
+
+  /**
+   * @return the number of gets that found nothing.
+   */
+  public long getMissCount() {
+    long misses = 0;
+    for (Segment<K, V> segment : segments) {
+      misses += segment.misses.get();
+    }
+    return misses;
+  }
+
+  /**
+   * @return the number of entries evicted to make room.
+   */
+  public long getEvictionCount() {
+    long evictions = 0;
+    for (Segment<K, V> segment : segments) {
+      evictions += segment.evictions.get();
+    }
+    return evictions;
+  }
+
+  /**
+   * @return the hits, misses and evictions, for logging.
+   */
+  public String getStatistics() {
+    long hits = getHitCount();
+    long misses = getMissCount();
+    long total = hits + misses;
+    return "size=" + size() + "/" + maxSize + " hits=" + hits + " misses=" + misses
+        + " hitRatio=" + (total == 0 ? 0 : (hits * 100 / total)) + "% evictions="
+        + getEvictionCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[" + getStatistics() + "]";
+  }
+}
@@ -14,7 +14,9 @@ import java.util.concurrent.ConcurrentHashMap;
  * A reasonably dumb LRU map, but its concurrent.
  * @param <K>
  * @param <V>
+ * @deprecated every put over the max size sorts the whole map, use {@link ConcurrentClockMap}.
  */
+@Deprecated
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
   public class Holder<T> {
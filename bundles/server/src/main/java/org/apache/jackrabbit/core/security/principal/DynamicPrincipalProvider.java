@@ -40,7 +40,6 @@ import javax.security.auth.Subject;
 import java.security.Principal;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -66,6 +65,9 @@ import java.util.Set;
  */
 public class DynamicPrincipalProvider extends AbstractPrincipalProvider implements SynchronousEventListener {
 
+    /** Option name for the max size of the membership cache */
+    public static final String MEMBERSHIP_MAXSIZE_KEY = "membershipCacheMaxSize";
+
     /**
      * the default logger
      */
@@ -75,7 +77,7 @@ public class DynamicPrincipalProvider extends AbstractPrincipalProvider implemen
      * a cache for group memberships: maps principal-name to a set of principals
      * representing the members.
      */
-    private final Map<String, Set<Principal>> membershipCache;
+    private volatile ConcurrentClockMap<String, Set<Principal>> membershipCache;
 
     /**
      * Principal-Base of this Provider
@@ -118,7 +120,7 @@ public class DynamicPrincipalProvider extends AbstractPrincipalProvider implemen
 
         if ( userManager instanceof UserManagerImpl ) {
         	// only cache if we can can invalidate the cache
-            membershipCache = new ConcurrentLRUMap<String, Set<Principal>>();
+            membershipCache = new ConcurrentClockMap<String, Set<Principal>>(1000);
 	        String groupPath = ((UserManagerImpl) userManager).getGroupsPath();
 	        String userPath = ((UserManagerImpl) userManager).getUsersPath();
 	        String targetPath = groupPath;
@@ -175,6 +177,10 @@ public class DynamicPrincipalProvider extends AbstractPrincipalProvider implemen
             options.put(NEGATIVE_ENTRY_KEY, "true");
         }
         super.init(options);
+        if (membershipCache != null) {
+            int maxSize = Integer.parseInt(options.getProperty(MEMBERSHIP_MAXSIZE_KEY, "1000"));
+            membershipCache = new ConcurrentClockMap<String, Set<Principal>>(maxSize);
+        }
     }
 
     //--------------------------------------------------< PrincipalProvider >---
@@ -226,6 +232,7 @@ public class DynamicPrincipalProvider extends AbstractPrincipalProvider implemen
     public PrincipalIterator getGroupMembership(Principal userPrincipal) {
         checkInitialized();
         Set<Principal> mship = null;
+        ConcurrentClockMap<String, Set<Principal>> membershipCache = this.membershipCache;
         if ( membershipCache != null ) {
         	mship = membershipCache.get(userPrincipal.getName());
         }
@@ -250,6 +257,10 @@ public class DynamicPrincipalProvider extends AbstractPrincipalProvider implemen
      */
     @Override
     public void close() {
+        if (log.isDebugEnabled()) {
+            log.debug("Closing, principal cache {}, membership cache {}", getCacheStatistics(),
+                membershipCache == null ? "disabled" : membershipCache.getStatistics());
+        }
         super.close();
         if ( membershipCache != null ) {
         	membershipCache.clear();
@@ -21,7 +21,7 @@ import org.apache.jackrabbit.api.security.principal.PrincipalIterator;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.core.security.AnonymousPrincipal;
 import org.apache.jackrabbit.core.security.principal.AdminPrincipal;
-import org.apache.jackrabbit.core.security.principal.ConcurrentLRUMap;
+import org.apache.jackrabbit.core.security.principal.ConcurrentClockMap;
 import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
 import org.apache.jackrabbit.core.security.principal.PrincipalIteratorAdapter;
 import org.apache.jackrabbit.core.security.principal.PrincipalProvider;
@@ -62,7 +62,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   private boolean initialized;
 
   /** the principal cache */
-  private ConcurrentLRUMap<String, Principal> cache = new ConcurrentLRUMap<String, Principal>();
+  private ConcurrentClockMap<String, Principal> cache = new ConcurrentClockMap<String, Principal>();
   private Repository sparseRepository;
   private org.sakaiproject.nakamura.api.lite.Session session;
   private AuthorizableManager authorizableManager;
@@ -257,6 +257,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public void close() {
+    LOGGER.debug("Closing, principal cache {} ", cache.getStatistics());
     try {
       session.logout();
     } catch (ClientPoolException e) {
@@ -275,10 +276,11 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    // only principals that were found are cached, so null is a miss.
+    Principal principal = cache.get(principalName);
+    if (principal != null) {
+      return principal;
     }
-    Principal principal = null;
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
@@ -328,7 +330,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
     }
 
     int maxSize = Integer.parseInt(options.getProperty(MAXSIZE_KEY, "1000"));
-    cache = new ConcurrentLRUMap<String, Principal>(maxSize);
+    cache = new ConcurrentClockMap<String, Principal>(maxSize);
 
     initialized = true;
   }
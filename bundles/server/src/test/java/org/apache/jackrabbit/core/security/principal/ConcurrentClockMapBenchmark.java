@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares {@link ConcurrentClockMap} with {@link ConcurrentLRUMap} the way
+ * DynamicPrincipalProvider uses them: a get for each login, and a put when that misses.
+ * Users are drawn with a skew, so some log in much more than others, from a population
+ * larger than the cache. Puts into ConcurrentLRUMap can fail while another thread reads
+ * (its sort sees the access times change under it), those are counted as errors.
+ *
+ * <pre>
+ * java -cp ... org.apache.jackrabbit.core.security.principal.ConcurrentClockMapBenchmark [threads] [cacheSize] [users] [seconds]
+ * </pre>
+ */
+public class ConcurrentClockMapBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    int cacheSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int users = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+    long millis = (args.length > 3 ? Long.parseLong(args[3]) : 5) * 1000L;
+
+    for (int run = 0; run < 3; run++) {
+      report("ConcurrentLRUMap  ", new ConcurrentLRUMap<String, String>(cacheSize), threads,
+          users, millis);
+      report("ConcurrentClockMap", new ConcurrentClockMap<String, String>(cacheSize),
+          threads, users, millis);
+    }
+  }
+
+  private static void report(String name, final Map<String, String> map, int threads,
+      final int users, final long millis) throws InterruptedException {
+    final AtomicLong gets = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final long seed = t;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            start.await();
+            long end = System.currentTimeMillis() + millis;
+            long n = 0;
+            long m = 0;
+            while (System.currentTimeMillis() < end) {
+              for (int i = 0; i < 100; i++) {
+                // squaring a uniform draw skews it toward the low ids.
+                double d = random.nextDouble();
+                String user = "user" + (int) (d * d * users);
+                if (map.get(user) == null) {
+                  m++;
+                  try {
+                    map.put(user, user);
+                  } catch (RuntimeException e) {
+                    errors.incrementAndGet();
+                  }
+                }
+                n++;
+              }
+            }
+            gets.addAndGet(n);
+            misses.addAndGet(m);
+          } catch (InterruptedException e) {
+            e.printStackTrace();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+    done.await();
+    System.out.println(name + " " + (gets.get() * 1000L / millis) + " gets/s, hit ratio "
+        + ((gets.get() - misses.get()) * 100 / Math.max(1, gets.get())) + "%, size "
+        + map.size() + ", errors " + errors.get());
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ */
+public class ConcurrentClockMapTest {
+
+  @Test
+  public void testSizeIsBounded() {
+    ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(10);
+    for (int i = 0; i < 100; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    assertEquals(10, map.size());
+    assertEquals(90, map.getEvictionCount());
+    assertEquals("v99", map.get("k99"));
+  }
+
+  @Test
+  public void testReadEntriesAreKept() {
+    ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(4);
+    for (int i = 0; i < 4; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    map.get("k0");
+    map.get("k2");
+    map.put("k4", "v4");
+    map.put("k5", "v5");
+    // k1 and k3 weren't read, so they go first.
+    assertEquals("v0", map.get("k0"));
+    assertEquals("v2", map.get("k2"));
+    assertFalse(map.containsKey("k1"));
+    assertFalse(map.containsKey("k3"));
+    assertTrue(map.containsKey("k4"));
+    assertTrue(map.containsKey("k5"));
+  }
+
+  @Test
+  public void testPutReplaces() {
+    ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(4);
+    assertNull(map.put("a", "1"));
+    assertEquals("1", map.put("a", "2"));
+    assertEquals("2", map.get("a"));
+    assertEquals(1, map.size());
+    assertTrue(map.containsValue("2"));
+  }
+
+  @Test
+  public void testRemoveAndClear() {
+    ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(4);
+    for (int i = 0; i < 4; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    assertEquals("v1", map.remove("k1"));
+    assertNull(map.remove("k1"));
+    assertEquals(3, map.size());
+    // the gap is reused before anything is evicted.
+    map.put("k4", "v4");
+    assertEquals(4, map.size());
+    assertEquals(0, map.getEvictionCount());
+    map.clear();
+    assertTrue(map.isEmpty());
+    for (int i = 0; i < 8; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    assertEquals(4, map.size());
+  }
+
+  @Test
+  public void testStatistics() {
+    ConcurrentClockMap<String, String> map = new ConcurrentClockMap<String, String>(4);
+    map.put("a", "1");
+    map.get("a");
+    map.get("a");
+    map.get("b");
+    assertEquals(2, map.getHitCount());
+    assertEquals(1, map.getMissCount());
+    assertEquals(0, map.getEvictionCount());
+  }
+
+  @Test
+  public void testConcurrentUseStaysBounded() throws Exception {
+    final ConcurrentClockMap<Integer, Integer> map = new ConcurrentClockMap<Integer, Integer>(
+        1000);
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final long seed = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            for (int i = 0; i < 50000; i++) {
+              Integer key = random.nextInt(5000);
+              Integer value = map.get(key);
+              if (value == null) {
+                map.put(key, key);
+              } else if (!value.equals(key)) {
+                throw new AssertionError("Expected " + key + " got " + value);
+              }
+              if (i % 1000 == 0) {
+                map.remove(random.nextInt(5000));
+              }
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(0, errors.size());
+    assertTrue(map.size() <= 1000);
+    assertEquals(8 * 50000, map.getHitCount() + map.getMissCount());
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
+import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
+
+import java.security.Principal;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.AccessControlPolicy;
+import javax.jcr.security.AccessControlPolicyIterator;
+import javax.jcr.security.Privilege;
+
+/**
+ * Measures read checks against DynamicACLProvider on a deep tree, with an ACL on every
+ * fourth node. Each check is a nodeExists from a new session, so the per session result
+ * cache of the compiled permissions never hits and every check walks the ACLs up to the
+ * root. Run it on two revisions to compare them.
+ *
+ * <pre>
+ * java -cp ... org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic.DynamicACLProviderBenchmark [threads] [depth] [seconds]
+ * </pre>
+ */
+public class DynamicACLProviderBenchmark {
+
+  private static final int LEAVES = 10;
+  private static final int CHECKS_PER_SESSION = 20;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int depth = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    long millis = (args.length > 2 ? Long.parseLong(args[2]) : 10) * 1000L;
+
+    final Repository repo = RepositoryBaseTest.getRepositoryBase().getRepository();
+    final String userId = "benchUser" + System.currentTimeMillis();
+    final String[] leaves = createTree(repo, userId, depth);
+
+    for (int run = 0; run < 3; run++) {
+      final AtomicLong checks = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final long end = System.currentTimeMillis() + millis;
+      final CountDownLatch done = new CountDownLatch(threads);
+      for (int t = 0; t < threads; t++) {
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              long n = 0;
+              while (System.currentTimeMillis() < end) {
+                Session session = repo.login(new SimpleCredentials(userId, "testpassword"
+                    .toCharArray()));
+                try {
+                  for (int i = 0; i < CHECKS_PER_SESSION; i++) {
+                    if (!session.nodeExists(leaves[i % leaves.length])) {
+                      errors.incrementAndGet();
+                    }
+                    n++;
+                  }
+                } finally {
+                  session.logout();
+                }
+              }
+              checks.addAndGet(n);
+            } catch (Exception e) {
+              e.printStackTrace();
+              errors.incrementAndGet();
+            } finally {
+              done.countDown();
+            }
+          }
+        }.start();
+      }
+      done.await();
+      System.err.println("depth " + depth + ", " + threads + " threads: "
+          + (checks.get() * 1000L / millis) + " reads/s, " + errors.get() + " errors");
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Creates a chain of depth nodes with leaves at the bottom, and an ACL on every fourth
+   * node that grants read to everyone and denies write to the user.
+   */
+  private static String[] createTree(Repository repo, String userId, int depth)
+      throws Exception {
+    JackrabbitSession session = (JackrabbitSession) repo.login(new SimpleCredentials(
+        "admin", "admin".toCharArray()));
+    try {
+      session.getUserManager().createUser(userId, "testpassword");
+      Node node = session.getRootNode().addNode("bench" + System.currentTimeMillis());
+      String[] aclPaths = new String[depth / 4 + 1];
+      int acls = 0;
+      for (int i = 0; i < depth; i++) {
+        node = node.addNode("level" + i);
+        if (i % 4 == 0) {
+          aclPaths[acls++] = node.getPath();
+        }
+      }
+      String[] leaves = new String[LEAVES];
+      for (int i = 0; i < LEAVES; i++) {
+        leaves[i] = node.addNode("leaf" + i).getPath();
+      }
+      session.save();
+
+      AccessControlManager accessControlManager = session.getAccessControlManager();
+      Principal user = session.getPrincipalManager().getPrincipal(userId);
+      Privilege[] read = new Privilege[] { accessControlManager
+          .privilegeFromName("jcr:read") };
+      Privilege[] write = new Privilege[] { accessControlManager
+          .privilegeFromName("jcr:write") };
+      for (int i = 0; i < acls; i++) {
+        JackrabbitAccessControlList acl = null;
+        AccessControlPolicyIterator applicablePolicies = accessControlManager
+            .getApplicablePolicies(aclPaths[i]);
+        while (applicablePolicies.hasNext()) {
+          AccessControlPolicy policy = applicablePolicies.nextAccessControlPolicy();
+          if (policy instanceof JackrabbitAccessControlList) {
+            acl = (JackrabbitAccessControlList) policy;
+            break;
+          }
+        }
+        acl.addEntry(EveryonePrincipal.getInstance(), read, true);
+        acl.addEntry(user, write, false);
+        accessControlManager.setPolicy(aclPaths[i], acl);
+      }
+      session.save();
+      return leaves;
+    } finally {
+      session.logout();
+    }
+  }
+}
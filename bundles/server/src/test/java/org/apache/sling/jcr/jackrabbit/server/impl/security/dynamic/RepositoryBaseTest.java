@@ -26,6 +26,7 @@ import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.core.security.AnonymousPrincipal;
 import org.apache.jackrabbit.core.security.authorization.acl.RulesPrincipal;
 import org.apache.jackrabbit.core.security.principal.AdminPrincipal;
+import org.apache.jackrabbit.core.security.principal.UnknownPrincipal;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.RuleACLModifier;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.RulesBasedAce;
 import org.junit.Assert;
@@ -57,6 +58,7 @@ import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
 import javax.jcr.Value;
 import javax.jcr.ValueFactory;
+import javax.jcr.security.AccessControlEntry;
 import javax.jcr.security.AccessControlList;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.AccessControlPolicy;
@@ -499,6 +501,159 @@ public class RepositoryBaseTest {
 
   }
 
+  @Test
+  public void testAclChangeSeenByNewSessions() throws IOException, RepositoryException,
+      ClientPoolException, StorageClientException,
+      org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException,
+      ClassNotFoundException {
+    Repository repo = getRepositoryBase().getRepository();
+    JackrabbitSession session = null;
+    try {
+      session = (JackrabbitSession) repo.login(new SimpleCredentials("admin", "admin"
+          .toCharArray()));
+      String testNode = "testAclChangeNode" + System.currentTimeMillis();
+      String testUserId = "testAclChangeUser" + System.currentTimeMillis();
+      Node parent = session.getRootNode().addNode(testNode);
+      Node child = parent.addNode("a").addNode("b").addNode("c");
+      String resourcePath = parent.getPath();
+      String childPath = child.getPath();
+      session.getUserManager().createUser(testUserId, "testpassword");
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+      session.logout();
+
+      // read once so the ACLs above the child are compiled.
+      session = (JackrabbitSession) repo.login(new SimpleCredentials(testUserId,
+          "testpassword".toCharArray()));
+      Assert.assertTrue(session.nodeExists(childPath));
+      session.logout();
+
+      session = (JackrabbitSession) repo.login(new SimpleCredentials("admin", "admin"
+          .toCharArray()));
+      AccessControlManager accessControlManager = session.getAccessControlManager();
+      JackrabbitAccessControlList acl = null;
+      AccessControlPolicyIterator applicablePolicies = accessControlManager
+          .getApplicablePolicies(resourcePath);
+      while (applicablePolicies.hasNext()) {
+        AccessControlPolicy policy = applicablePolicies.nextAccessControlPolicy();
+        if (policy instanceof JackrabbitAccessControlList) {
+          acl = (JackrabbitAccessControlList) policy;
+          break;
+        }
+      }
+      Assert.assertNotNull(acl);
+      Principal principal = session.getPrincipalManager().getPrincipal(testUserId);
+      Assert.assertNotNull(principal);
+      acl.addEntry(principal, new Privilege[] { accessControlManager
+          .privilegeFromName("jcr:read") }, false);
+      accessControlManager.setPolicy(resourcePath, acl);
+      session.save();
+      session.logout();
+
+      session = (JackrabbitSession) repo.login(new SimpleCredentials(testUserId,
+          "testpassword".toCharArray()));
+      Assert.assertFalse(session.nodeExists(childPath));
+      session.logout();
+
+      // removing the entry again must be seen by the next session.
+      session = (JackrabbitSession) repo.login(new SimpleCredentials("admin", "admin"
+          .toCharArray()));
+      accessControlManager = session.getAccessControlManager();
+      acl = null;
+      for (AccessControlPolicy policy : accessControlManager.getPolicies(resourcePath)) {
+        if (policy instanceof JackrabbitAccessControlList) {
+          acl = (JackrabbitAccessControlList) policy;
+          break;
+        }
+      }
+      Assert.assertNotNull(acl);
+      for (AccessControlEntry ace : acl.getAccessControlEntries()) {
+        acl.removeAccessControlEntry(ace);
+      }
+      accessControlManager.setPolicy(resourcePath, acl);
+      session.save();
+      session.logout();
+
+      session = (JackrabbitSession) repo.login(new SimpleCredentials(testUserId,
+          "testpassword".toCharArray()));
+      Assert.assertTrue(session.nodeExists(childPath));
+    } finally {
+      session.logout();
+    }
+  }
+
+  @Test
+  public void testUnresolvedDenyIsNotCached() throws IOException, RepositoryException,
+      ClientPoolException, StorageClientException,
+      org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException,
+      ClassNotFoundException {
+    Repository repo = getRepositoryBase().getRepository();
+    JackrabbitSession session = null;
+    try {
+      session = (JackrabbitSession) repo.login(new SimpleCredentials("admin", "admin"
+          .toCharArray()));
+      String testNode = "testUnresolvedDenyNode" + System.currentTimeMillis();
+      String testUserId = "testUnresolvedDenyUser" + System.currentTimeMillis();
+      final String groupName = "testUnresolvedDenyGroup" + System.currentTimeMillis();
+      Principal groupPrincipal = new Principal() {
+        public String getName() {
+          return groupName;
+        }
+      };
+      Node parent = session.getRootNode().addNode(testNode);
+      Node child = parent.addNode("a").addNode("b");
+      String resourcePath = parent.getPath();
+      String childPath = child.getPath();
+      session.getUserManager().createUser(testUserId, "testpassword");
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+
+      AccessControlManager accessControlManager = session.getAccessControlManager();
+      JackrabbitAccessControlList acl = null;
+      AccessControlPolicyIterator applicablePolicies = accessControlManager
+          .getApplicablePolicies(resourcePath);
+      while (applicablePolicies.hasNext()) {
+        AccessControlPolicy policy = applicablePolicies.nextAccessControlPolicy();
+        if (policy instanceof JackrabbitAccessControlList) {
+          acl = (JackrabbitAccessControlList) policy;
+          break;
+        }
+      }
+      Assert.assertNotNull(acl);
+      // deny a group that does not exist yet.
+      acl.addEntry(new UnknownPrincipal(groupName), new Privilege[] { accessControlManager
+          .privilegeFromName("jcr:read") }, false);
+      accessControlManager.setPolicy(resourcePath, acl);
+      session.save();
+      session.logout();
+
+      // the ACL is compiled while the deny principal does not resolve.
+      session = (JackrabbitSession) repo.login(new SimpleCredentials(testUserId,
+          "testpassword".toCharArray()));
+      Assert.assertTrue(session.nodeExists(childPath));
+      session.logout();
+
+      // once the group is created its members are denied.
+      session = (JackrabbitSession) repo.login(new SimpleCredentials("admin", "admin"
+          .toCharArray()));
+      UserManager userManager = session.getUserManager();
+      Group group = userManager.createGroup(groupPrincipal);
+      group.addMember(userManager.getAuthorizable(testUserId));
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+      session.logout();
+
+      session = (JackrabbitSession) repo.login(new SimpleCredentials(testUserId,
+          "testpassword".toCharArray()));
+      Assert.assertFalse(session.nodeExists(childPath));
+    } finally {
+      session.logout();
+    }
+  }
+
   @Test
   public void testUserAccessControl() throws LoginException, RepositoryException,
       IOException, ClientPoolException, StorageClientException,
@@ -38,6 +38,9 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -118,15 +121,12 @@ public class TokenStore {
         SecureCookieException {
       String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
           + encodeField(userId) + "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ");
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
-      m.update(cookiePayload.getBytes(UTF_8));
-      String cookieValue = encodeField(m.doFinal());
+      String cookieValue = encodeField(hmac(expiringSecretKey.getSecretKey(), cookiePayload));
       return cookieValue + "@" + cookiePayload;
     }
 
@@ -136,6 +136,15 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String decode(String value) throws SecureCookieException {
+      VerifiedCookie verified = verifiedCookies.get(value);
+      if (verified != null) {
+        if (System.currentTimeMillis() < verified.validUntil) {
+          this.secretKeyId = verified.secretKeyId;
+          this.serverId = verified.serverId;
+          return verified.userId;
+        }
+        verifiedCookies.remove(value);
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 4) {        
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
@@ -156,8 +165,15 @@ public class TokenStore {
             if ( debugCookies ) {
               LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
             }
-            String hmac = encode(cookieTime, userId);
-            if (value.equals(hmac)) {
+            // check the signature of the payload as sent, rather than re-encoding the
+            // whole cookie, and compare in constant time.
+            String cookiePayload = parts[1] + "@" + parts[2] + "@" + parts[3];
+            byte[] expected = hmac(secretKey, cookiePayload);
+            byte[] actual = decodeBytes(parts[0]);
+            if (constantTimeEquals(expected, actual)) {
+              addVerifiedCookie(value, new VerifiedCookie(userId, secretKeyId, serverId,
+                  Math.min(Math.min(cookieTime, expiringSecretKey.getExpires()),
+                      System.currentTimeMillis() + VERIFIED_COOKIE_TTL)));
               return userId;
             }
           } catch (ArrayIndexOutOfBoundsException e) {
@@ -168,8 +184,6 @@ public class TokenStore {
             LOG.error(e.getMessage(), e);
           } catch (UnsupportedEncodingException e) {
             LOG.error(e.getMessage(), e);
-          } catch (NoSuchAlgorithmException e) {
-            LOG.error(e.getMessage(), e);
           }
           throw new SecureCookieException("AuthNCookie is invalid " + value);
         } else {
@@ -185,6 +199,24 @@ public class TokenStore {
 
   }
 
+  /**
+   * A cookie that has been checked, so it doesn't need checking again until it, or the
+   * key that signed it, expires.
+   */
+  private static final class VerifiedCookie {
+    private final String userId;
+    private final int secretKeyId;
+    private final String serverId;
+    private final long validUntil;
+
+    private VerifiedCookie(String userId, int secretKeyId, String serverId, long validUntil) {
+      this.userId = userId;
+      this.secretKeyId = secretKeyId;
+      this.serverId = serverId;
+      this.validUntil = validUntil;
+    }
+  }
+
   public static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
 
   /**
@@ -201,6 +233,30 @@ public class TokenStore {
    */
   private static final String UTF_8 = "UTF-8";
 
+  /**
+   * How long a checked cookie is trusted without checking it again (in ms).
+   */
+  private static final long VERIFIED_COOKIE_TTL = 60000L;
+
+  /**
+   * The most checked cookies to hold.
+   */
+  private static final int MAX_VERIFIED_COOKIES = 10000;
+
+  /**
+   * Macs are not thread safe and are expensive to get, so each thread keeps one.
+   */
+  private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance(HMAC_SHA1);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
   private static final String DEFAULT_TOKEN_FILE = "sling/cookie-tokens.bin";
   /**
    * The ttl of the cookie before it becomes invalid (in ms)
@@ -210,15 +266,20 @@ public class TokenStore {
   /**
    * The time when a new token should be created.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private volatile long nextUpdate = System.currentTimeMillis();
   /**
    * The location of the current token.
    */
-  private int secretKeyId = 0;
+  private volatile int secretKeyId = 0;
   /**
    * A ring of tokens used to encypt.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private volatile ExpiringSecretKey[] secretKeyRingBuffer;
+
+  /**
+   * Cookies that have been checked, by cookie value.
+   */
+  private final ConcurrentMap<String, VerifiedCookie> verifiedCookies = new ConcurrentHashMap<String, VerifiedCookie>();
   /**
    * A secure random used for generating new tokens.
    */
@@ -301,7 +362,18 @@ public class TokenStore {
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
+  SecureCookie getActiveToken() {
+    // the current key only changes every ttl/2, so only lock when it might be changing.
+    ExpiringSecretKey[] keys = secretKeyRingBuffer;
+    int keyId = secretKeyId;
+    if (keys != null && System.currentTimeMillis() <= nextUpdate
+        && !hasExpired(keys[keyId])) {
+      return new SecureCookie(serverId, keyId);
+    }
+    return updateActiveToken();
+  }
+
+  private synchronized SecureCookie updateActiveToken() {
     if (secretKeyRingBuffer == null) {
       loadLocalSecretKeys();
     }
@@ -514,6 +586,49 @@ public class TokenStore {
     return null;
   }
 
+  /**
+   * Remember a cookie that has been checked, keeping the number held bounded.
+   */
+  private void addVerifiedCookie(String value, VerifiedCookie verified) {
+    if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+      long now = System.currentTimeMillis();
+      for (Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); i.hasNext();) {
+        if (i.next().validUntil <= now) {
+          i.remove();
+        }
+      }
+      if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+        verifiedCookies.clear();
+      }
+    }
+    verifiedCookies.put(value, verified);
+  }
+
+  /**
+   * @return the HMAC of the payload with the key, using this thread's Mac.
+   */
+  private byte[] hmac(SecretKey secretKey, String payload) throws InvalidKeyException,
+      UnsupportedEncodingException {
+    Mac m = MAC.get();
+    m.init(secretKey);
+    return m.doFinal(payload.getBytes(UTF_8));
+  }
+
+  /**
+   * Compare two byte arrays, taking the same time wherever they differ, so the time taken
+   * doesn't tell an attacker how much of a forged signature is right.
+   */
+  static boolean constantTimeEquals(byte[] a, byte[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    int result = 0;
+    for (int i = 0; i < a.length; i++) {
+      result |= a[i] ^ b[i];
+    }
+    return result == 0;
+  }
+
   /**
    * @return
    */
@@ -550,10 +665,18 @@ public class TokenStore {
    * @throws UnsupportedEncodingException
    */
   private String decodeField(String field) throws UnsupportedEncodingException {
-    byte[] fieldUtf8 = new Base64(0, new byte[0], true).decode(field);
+    byte[] fieldUtf8 = decodeBytes(field);
     String unescapedField = new String(fieldUtf8, CharEncoding.UTF_8);
     return unescapedField;
   }
 
+  /**
+   * @param field
+   * @return the bytes encoded in a field by {@link #encodeField(byte[])}
+   */
+  private byte[] decodeBytes(String field) {
+    return new Base64(0, new byte[0], true).decode(field);
+  }
+
 
 }
@@ -74,6 +74,18 @@ public class LocalCache<T>  implements Cache<Object> {
     m.remove(key);
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<Object> listChildren(String key) {
+    List<Object> values = new ArrayList<Object>();
+    if (m.containsKey(key)) {
+      values.add(m.get(key));
+    }
+    return values;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookie;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decodes trusted cookies from many threads at once, the way every authenticated request
+ * does. "hit" decodes the same cookies over and over, as a user's requests do; "miss"
+ * decodes each cookie once, so every decode checks the signature. "before" does what
+ * decode did for each request before checked cookies were held: a new Mac, an HMAC and
+ * a string compare.
+ *
+ * <pre>
+ * java -cp ... org.sakaiproject.nakamura.auth.trusted.TokenStoreBenchmark [threads] [seconds]
+ * </pre>
+ */
+public class TokenStoreBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    final long millis = (args.length > 1 ? Long.parseLong(args[1]) : 5) * 1000L;
+
+    File tokenFile = File.createTempFile("tokens", ".bin");
+    tokenFile.delete();
+    final TokenStore tokenStore = new TokenStore();
+    tokenStore.doInit(new CacheManagerService() {
+      private Cache<Object> cache = new LocalCache<Object>();
+
+      @SuppressWarnings("unchecked")
+      public <T> Cache<T> getCache(String name, CacheScope scope) {
+        return (Cache<T>) cache;
+      }
+
+      public void unbind(CacheScope scope) {
+      }
+    }, tokenFile.getAbsolutePath(), "server1", 1200000L);
+
+    final String[] cookies = new String[200000];
+    long expires = System.currentTimeMillis() + 1200000L;
+    for (int i = 0; i < cookies.length; i++) {
+      cookies[i] = tokenStore.getActiveToken().encode(expires, "user" + i);
+    }
+
+    for (int run = 0; run < 3; run++) {
+      System.out.println("hit    " + run(threads, millis, new Op() {
+        public void run(int thread, long n) throws Exception {
+          String cookie = cookies[(int) ((thread * 31 + n) % 1000)];
+          if (tokenStore.getSecureCookie().decode(cookie) == null) {
+            throw new IllegalStateException();
+          }
+        }
+      }) + " decodes/s");
+      System.out.println("miss   " + run(threads, millis, new Op() {
+        private final AtomicLong next = new AtomicLong();
+
+        public void run(int thread, long n) throws Exception {
+          // past the end the cookies have been forgotten as the held set was cleared.
+          String cookie = cookies[(int) (next.getAndIncrement() % cookies.length)];
+          if (tokenStore.getSecureCookie().decode(cookie) == null) {
+            throw new IllegalStateException();
+          }
+        }
+      }) + " decodes/s");
+      final SecretKeySpec key = new SecretKeySpec(new byte[20], "HmacSHA1");
+      System.out.println("before " + run(threads, millis, new Op() {
+        public void run(int thread, long n) throws Exception {
+          String cookie = cookies[(int) ((thread * 31 + n) % 1000)];
+          Mac m = Mac.getInstance("HmacSHA1");
+          m.init(key);
+          m.update(cookie.substring(cookie.indexOf('@') + 1).getBytes("UTF-8"));
+          if (new String(m.doFinal(), "UTF-8").equals(cookie)) {
+            throw new IllegalStateException();
+          }
+        }
+      }) + " decodes/s");
+    }
+    tokenFile.delete();
+  }
+
+  private interface Op {
+    void run(int thread, long n) throws Exception;
+  }
+
+  private static long run(int threads, final long millis, final Op op)
+      throws InterruptedException {
+    final AtomicLong total = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            long end = System.currentTimeMillis() + millis;
+            long n = 0;
+            while (System.currentTimeMillis() < end) {
+              for (int i = 0; i < 100; i++) {
+                op.run(thread, n++);
+              }
+            }
+            total.addAndGet(n);
+          } catch (Exception e) {
+            e.printStackTrace();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+    done.await();
+    return total.get() * 1000L / millis;
+  }
+}
@@ -227,6 +227,62 @@ public class TrustedTokenServiceTest {
     verify();
   }
 
+  @Test
+  public void testCookieEncodingSafety5() {
+    ComponentContext context = configureForCookie();
+    replay();
+    trustedTokenService.activate(context);
+    String cookie = trustedTokenService.encodeCookie("ieb");
+    Assert.assertEquals("ieb", trustedTokenService.decodeCookie(cookie));
+    // the signature of a cookie that decoded must not be accepted for another user.
+    String other = trustedTokenService.encodeCookie("other");
+    String[] parts = StringUtils.split(cookie, "@");
+    String[] otherParts = StringUtils.split(other, "@");
+    String forged = parts[0] + "@" + parts[1] + "@" + otherParts[2] + "@" + parts[3];
+    Assert.assertNull(trustedTokenService.decodeCookie(forged));
+    Assert.assertEquals("ieb", trustedTokenService.decodeCookie(cookie));
+    verify();
+  }
+
+  @Test
+  public void testConstantTimeEquals() {
+    Assert.assertTrue(TokenStore.constantTimeEquals(new byte[] { 1, 2, 3 }, new byte[] { 1, 2, 3 }));
+    Assert.assertFalse(TokenStore.constantTimeEquals(new byte[] { 1, 2, 3 }, new byte[] { 1, 2, 4 }));
+    Assert.assertFalse(TokenStore.constantTimeEquals(new byte[] { 1, 2, 3 }, new byte[] { 1, 2 }));
+  }
+
+  @Test
+  public void testCookieDecodingConcurrently() throws InterruptedException {
+    ComponentContext context = configureForCookie();
+    replay();
+    trustedTokenService.activate(context);
+    final String[] cookies = new String[50];
+    for (int i = 0; i < cookies.length; i++) {
+      cookies[i] = trustedTokenService.encodeCookie("user" + i);
+    }
+    final List<String> failures = java.util.Collections.synchronizedList(new ArrayList<String>());
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int n = 0; n < 200; n++) {
+            int i = n % cookies.length;
+            if (!("user" + i).equals(trustedTokenService.decodeCookie(cookies[i]))) {
+              failures.add(cookies[i]);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(0, failures.size());
+    verify();
+  }
+
   @Test
   public void testCookieEncodingTokens() throws InterruptedException {
     ComponentContext context = configureForCookieFast();
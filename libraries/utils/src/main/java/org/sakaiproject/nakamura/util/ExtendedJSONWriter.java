@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.util;
 
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONString;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
@@ -217,6 +218,39 @@ public class ExtendedJSONWriter extends JSONWriter {
     }
   }
 
+  /**
+   * Write text that should already be JSON as the next value, unchanged. The text is
+   * checked first, and if it is not exactly one well formed JSON value it is written as a
+   * quoted string instead, so a bad value can't break the document being written.
+   *
+   * @param json
+   * @return true if the text was written as JSON, false if it was quoted.
+   * @throws JSONException
+   */
+  public boolean valueJSON(String json) throws JSONException {
+    if (!JSONValidator.isValue(json)) {
+      value(json);
+      return false;
+    }
+    value(new RawJSON(json.trim()));
+    return true;
+  }
+
+  /**
+   * JSON that has already been checked, JSONWriter writes it as it is.
+   */
+  private static final class RawJSON implements JSONString {
+    private final String json;
+
+    RawJSON(String json) {
+      this.json = json;
+    }
+
+    public String toJSONString() {
+      return json;
+    }
+  }
+
   private static boolean isUserPath(String name, Object value) {
     if ("jcr:path".equals(name) || "path".equals(name) || "userProfilePath".equals(name)) {
       String s = String.valueOf(value);
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+/**
+ * Checks that text is exactly one JSON value, as RFC 4627 has it. JSONTokener accepts
+ * unquoted strings, single quotes, comments and trailing text, so it can't be used to
+ * decide whether text is safe to write into a document unchanged. Nothing is built, the
+ * text is only scanned.
+ */
+final class JSONValidator {
+
+  /**
+   * Deeper nesting is rejected rather than risk the stack.
+   */
+  private static final int MAX_DEPTH = 512;
+
+  private final String text;
+  private int pos;
+
+  private JSONValidator(String text) {
+    this.text = text;
+  }
+
+  /**
+   * @param text
+   * @return true if the text, ignoring whitespace either side, is a single JSON value.
+   */
+  static boolean isValue(String text) {
+    if (text == null) {
+      return false;
+    }
+    JSONValidator validator = new JSONValidator(text);
+    validator.whitespace();
+    if (!validator.value(0)) {
+      return false;
+    }
+    validator.whitespace();
+    return validator.pos == text.length();
+  }
+
+  private int peek() {
+    return pos < text.length() ? text.charAt(pos) : -1;
+  }
+
+  private void whitespace() {
+    while (pos < text.length()) {
+      char c = text.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  private boolean value(int depth) {
+    if (depth > MAX_DEPTH) {
+      return false;
+    }
+    switch (peek()) {
+    case '{':
+      return object(depth + 1);
+    case '[':
+      return array(depth + 1);
+    case '"':
+      return string();
+    case 't':
+      return literal("true");
+    case 'f':
+      return literal("false");
+    case 'n':
+      return literal("null");
+    default:
+      return number();
+    }
+  }
+
+  private boolean object(int depth) {
+    pos++;
+    whitespace();
+    if (peek() == '}') {
+      pos++;
+      return true;
+    }
+    while (true) {
+      if (peek() != '"' || !string()) {
+        return false;
+      }
+      whitespace();
+      if (peek() != ':') {
+        return false;
+      }
+      pos++;
+      whitespace();
+      if (!value(depth)) {
+        return false;
+      }
+      whitespace();
+      int c = peek();
+      pos++;
+      if (c == '}') {
+        return true;
+      } else if (c != ',') {
+        return false;
+      }
+      whitespace();
+    }
+  }
+
+  private boolean array(int depth) {
+    pos++;
+    whitespace();
+    if (peek() == ']') {
+      pos++;
+      return true;
+    }
+    while (true) {
+      if (!value(depth)) {
+        return false;
+      }
+      whitespace();
+      int c = peek();
+      pos++;
+      if (c == ']') {
+        return true;
+      } else if (c != ',') {
+        return false;
+      }
+      whitespace();
+    }
+  }
+
+  private boolean string() {
+    pos++;
+    while (pos < text.length()) {
+      char c = text.charAt(pos++);
+      if (c == '"') {
+        return true;
+      } else if (c == '\\') {
+        int e = peek();
+        pos++;
+        if (e == 'u') {
+          for (int i = 0; i < 4; i++) {
+            if (Character.digit(peek(), 16) < 0) {
+              return false;
+            }
+            pos++;
+          }
+        } else if ("\"\\/bfnrt".indexOf(e) < 0) {
+          return false;
+        }
+      } else if (c < ' ') {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private boolean literal(String word) {
+    if (text.startsWith(word, pos)) {
+      pos += word.length();
+      return true;
+    }
+    return false;
+  }
+
+  private boolean number() {
+    if (peek() == '-') {
+      pos++;
+    }
+    if (peek() == '0') {
+      pos++;
+    } else if (!digits()) {
+      return false;
+    }
+    if (peek() == '.') {
+      pos++;
+      if (!digits()) {
+        return false;
+      }
+    }
+    if (peek() == 'e' || peek() == 'E') {
+      pos++;
+      if (peek() == '+' || peek() == '-') {
+        pos++;
+      }
+      if (!digits()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean digits() {
+    int start = pos;
+    while (peek() >= '0' && peek() <= '9') {
+      pos++;
+    }
+    return pos > start;
+  }
+}
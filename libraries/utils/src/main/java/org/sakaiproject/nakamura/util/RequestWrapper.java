@@ -7,12 +7,15 @@ import org.apache.sling.api.wrappers.SlingHttpServletRequestWrapper;
 import org.sakaiproject.nakamura.util.parameters.ParameterMap;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Map;
 
 public class RequestWrapper extends SlingHttpServletRequestWrapper {
 
+  private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
   private RequestInfo requestInfo;
   private ParameterMap postParameterMap;
 
@@ -155,4 +158,29 @@ public class RequestWrapper extends SlingHttpServletRequestWrapper {
     return requestInfo.getUrl();
   }
 
+  //
+  // Headers
+  //
+
+  /**
+   * The body of a sub-request ends up inside the batch response, so it has to come back
+   * uncompressed whatever encodings the client accepts for the batch response itself.
+   */
+  @Override
+  public String getHeader(String name) {
+    if (ACCEPT_ENCODING.equalsIgnoreCase(name)) {
+      return null;
+    }
+    return super.getHeader(name);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Enumeration getHeaders(String name) {
+    if (ACCEPT_ENCODING.equalsIgnoreCase(name)) {
+      return Collections.enumeration(Collections.<String> emptyList());
+    }
+    return super.getHeaders(name);
+  }
+
 }
@@ -21,6 +21,7 @@ import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.apache.sling.api.wrappers.ValueMapDecorator;
@@ -56,6 +57,66 @@ public class ExtendedJSONWriterTest {
     mocks = new ArrayList<Object>();
   }
 
+  @Test
+  public void testValueJSON() throws JSONException {
+    StringWriter writer = new StringWriter();
+    ExtendedJSONWriter ext = new ExtendedJSONWriter(writer);
+    ext.object();
+    ext.key("a");
+    ext.value(1);
+    ext.key("body");
+    assertTrue(ext.valueJSON("{\"x\":[1,2,\"y\"]}"));
+    ext.key("b");
+    ext.value(true);
+    ext.endObject();
+    assertEquals("{\"a\":1,\"body\":{\"x\":[1,2,\"y\"]},\"b\":true}", writer.toString());
+    assertEquals(3, new JSONObject(writer.toString()).getJSONObject("body")
+        .getJSONArray("x").length());
+  }
+
+  @Test
+  public void testValueJSONInArray() throws JSONException {
+    StringWriter writer = new StringWriter();
+    ExtendedJSONWriter ext = new ExtendedJSONWriter(writer);
+    ext.array();
+    assertTrue(ext.valueJSON(" [1, {\"a\":\"\\u00e9\"}, -0.5e+3, null]\n"));
+    assertTrue(ext.valueJSON("\"x\""));
+    ext.endArray();
+    assertEquals("[[1, {\"a\":\"\\u00e9\"}, -0.5e+3, null],\"x\"]", writer.toString());
+  }
+
+  @Test
+  public void testInvalidValueJSONIsQuoted() throws JSONException {
+    String[] invalid = { "", "{", "{\"a\":1}}", "{\"a\":1},{}", "{a:1}", "['a']",
+        "[1,]", "{\"a\":1,}", "01", "1.", "-", "tru", "\"\\x\"", "\"a\nb\"",
+        "/* c */ {}", "<html>{}</html>" };
+    for (String text : invalid) {
+      StringWriter writer = new StringWriter();
+      ExtendedJSONWriter ext = new ExtendedJSONWriter(writer);
+      ext.object();
+      ext.key("body");
+      assertFalse(text, ext.valueJSON(text));
+      ext.endObject();
+      assertEquals(text, new JSONObject(writer.toString()).getString("body"));
+    }
+  }
+
+  @Test
+  public void testDeepValueJSONIsQuoted() throws JSONException {
+    StringBuilder deep = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      deep.append('[');
+    }
+    for (int i = 0; i < 10000; i++) {
+      deep.append(']');
+    }
+    StringWriter writer = new StringWriter();
+    ExtendedJSONWriter ext = new ExtendedJSONWriter(writer);
+    ext.array();
+    assertFalse(ext.valueJSON(deep.toString()));
+    ext.endArray();
+  }
+
   @Test
   public void testValueMap() {
     Map<String, Object> map = new HashMap<String, Object>();
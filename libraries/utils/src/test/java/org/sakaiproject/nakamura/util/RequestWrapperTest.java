@@ -21,6 +21,7 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.junit.Test;
@@ -71,4 +72,17 @@ public class RequestWrapperTest {
 
   }
 
+  @Test
+  public void testAcceptEncodingIsHidden() {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getHeader("Accept")).andReturn("application/json");
+    replay(request);
+    RequestWrapper wrapper = new RequestWrapper(request, new RequestInfo());
+
+    assertEquals(null, wrapper.getHeader("Accept-Encoding"));
+    assertEquals(null, wrapper.getHeader("accept-encoding"));
+    assertFalse(wrapper.getHeaders("Accept-Encoding").hasMoreElements());
+    assertEquals("application/json", wrapper.getHeader("Accept"));
+  }
+
 }